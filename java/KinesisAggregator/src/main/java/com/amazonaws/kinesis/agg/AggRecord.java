@@ -16,25 +16,23 @@
  */
 package com.amazonaws.kinesis.agg;
 
-import java.io.ByteArrayOutputStream;
-import java.math.BigInteger;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-
-import org.apache.commons.lang.StringUtils;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import com.amazonaws.annotation.NotThreadSafe;
 import com.amazonaws.services.kinesis.clientlibrary.types.Messages.AggregatedRecord;
 import com.amazonaws.services.kinesis.clientlibrary.types.Messages.Record;
 import com.amazonaws.services.kinesis.model.PutRecordRequest;
 import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
-import com.google.protobuf.ByteString;
 
 /**
  * 
@@ -52,10 +50,9 @@ import com.google.protobuf.ByteString;
 public class AggRecord {
 	// Serialization protocol constants via the specification at
 	// https://github.com/awslabs/amazon-kinesis-producer/blob/master/aggregation-format.md
-	private static final byte[] AGGREGATED_RECORD_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a,
+	static final byte[] AGGREGATED_RECORD_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a,
 			(byte) 0xc2 };
 	protected static final String MESSAGE_DIGEST_NAME = "MD5";
-	private static final BigInteger UINT_128_MAX = new BigInteger(StringUtils.repeat("FF", 16), 16);
 
 	// Kinesis Limits
 	// (https://docs.aws.amazon.com/kinesis/latest/APIReference/API_PutRecord.html)
@@ -64,16 +61,32 @@ public class AggRecord {
 	protected static final int PARTITION_KEY_MIN_LENGTH = 1;
 	protected static final int PARTITION_KEY_MAX_LENGTH = 256;
 
+	// Lifecycle states of a pooled record (records without a pool stay open)
+	private static final int STATE_OPEN = 0;
+	private static final int STATE_IN_FLIGHT = 1;
+	private static final int STATE_RECYCLED = 2;
+
+	/**
+	 * The explicit hash key index of a user record that is written without an
+	 * explicit hash key field.
+	 */
+	private static final int NO_EXPLICIT_HASH_KEY = Integer.MIN_VALUE;
+
 	/** The current size of the aggregated protobuf message. */
 	private int aggregatedMessageSizeBytes;
 	/** The set of unique explicit hash keys in the protocol buffer message. */
-	private final KeySet explicitHashKeys;
+	private final HashKeyTable explicitHashKeys;
 	/** The set of unique partition keys in the protocol buffer message. */
-	private final KeySet partitionKeys;
+	private final KeyTable partitionKeys;
+	/** The encoded partition key table of the protocol buffer message. */
+	private final PayloadArena partitionKeyTable;
+	/** The encoded explicit hash key table of the protocol buffer message. */
+	private final PayloadArena explicitHashKeyTable;
 	/**
-	 * The current builder object by which we're actively constructing a record.
+	 * The encoded user records of the protocol buffer message, which hold the
+	 * data of the user records.
 	 */
-	private AggregatedRecord.Builder aggregatedRecordBuilder;
+	private final PayloadArena records;
 	/**
 	 * The message digest to use for calculating MD5 checksums per the protocol
 	 * specification.
@@ -83,24 +96,188 @@ public class AggRecord {
 	private String aggPartitionKey;
 	/** The explicit hash key for the entire aggregated record. */
 	private String aggExplicitHashKey;
+	/** Hashes partition keys into explicit hash keys. */
+	private final PartitionKeyHasher partitionKeyHasher;
+	/**
+	 * Whether user records without an explicit hash key are written without
+	 * one, rather than with the hash of their partition key.
+	 */
+	private final boolean omitDerivedExplicitHashKeys;
+	/** Scratch space for formatting explicit hash keys as decimal strings. */
+	private final char[] decimalDigits;
+	/**
+	 * The words of the explicit hash key of the user record being added,
+	 * whether parsed, computed or passed in binary form.
+	 */
+	private final long[] parsedHashKey;
+	/** The pool this record is returned to once released, or null. */
+	private final AggRecordPool pool;
+	/** The number of holders that still have to release this record. */
+	private final AtomicInteger references;
+	/** The lifecycle state of this record (only changes if pooled). */
+	private volatile int state;
+	/**
+	 * The size in bytes this record is allowed to grow to before it is
+	 * considered full.
+	 */
+	private final int maxSizeBytes;
+	/** Why this record was completed, or null while it is still open. */
+	private volatile FlushReason flushReason;
+	/** Compresses the data of each user record, or null. */
+	private final UserRecordCompressor userRecordCompressor;
+	/** Compresses the whole record while user records are added, or null. */
+	private final AggregateCompressor aggregateCompressor;
+	/** Whether the compressed stream has been ended; no user records can be added. */
+	private boolean compressionFinished;
+	/** The handles of the tracked user records, or null if none are tracked. */
+	private UserRecordFutures userRecordFutures;
+	/** The number of tracked user records in the previous use of this record. */
+	private int trackedUserRecordsHint;
+	/**
+	 * The size of the finished compressed record, or 0 if the record is sent
+	 * in the standard encoding because compressing did not make it smaller.
+	 */
+	private int compressedSizeBytes;
+	/**
+	 * The key table lookups and size of the user record most recently
+	 * accepted by reserveUserRecord, consumed by appendUserRecord.
+	 */
+	private int reservedPartitionKeyIndex;
+	private int reservedPartitionKeyLength;
+	private int reservedExplicitHashKeyIndex;
+	private int reservedExplicitHashKeyLength;
+	/**
+	 * The decimal form of the reserved user record's explicit hash key if it
+	 * is not in the table yet, or null.
+	 */
+	private String reservedExplicitHashKey;
+	private int reservedRecordSize;
 
 	/**
 	 * Construct a new (empty) aggregated Kinesis record.
 	 */
 	public AggRecord() {
-		this.aggregatedRecordBuilder = AggregatedRecord.newBuilder();
+		this(null, MAX_BYTES_PER_RECORD);
+	}
+
+	/**
+	 * Construct a new (empty) aggregated Kinesis record that may belong to a
+	 * record pool and may have a smaller size limit than a Kinesis record.
+	 * 
+	 * @param pool
+	 *            The pool to return this record to once it has been released
+	 *            by all its holders, or null if this record is not pooled.
+	 * @param maxSizeBytes
+	 *            The size in bytes this record may grow to before it is full.
+	 *            A single user record larger than this is still accepted into
+	 *            an empty aggregated record as long as it fits in
+	 *            MAX_BYTES_PER_RECORD.
+	 */
+	AggRecord(AggRecordPool pool, int maxSizeBytes) {
+		this(pool, maxSizeBytes, CompressionMode.NONE, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Construct a new (empty) aggregated Kinesis record that may belong to a
+	 * record pool, may have a smaller size limit than a Kinesis record and may
+	 * be compressed.
+	 * 
+	 * @param pool
+	 *            The pool to return this record to once it has been released
+	 *            by all its holders, or null if this record is not pooled.
+	 * @param maxSizeBytes
+	 *            The size in bytes this record may grow to before it is full
+	 *            (compressed, if the whole record is compressed).
+	 * @param compressionMode
+	 *            Whether and how to compress this record.
+	 * @param compressionLevel
+	 *            The Deflater compression level to use.
+	 */
+	AggRecord(AggRecordPool pool, int maxSizeBytes, CompressionMode compressionMode, int compressionLevel) {
+		this(pool, maxSizeBytes, compressionMode, compressionLevel, false);
+	}
+
+	/**
+	 * Construct a new (empty) aggregated Kinesis record that may belong to a
+	 * record pool, may have a smaller size limit than a Kinesis record, may be
+	 * compressed and may leave out the explicit hash keys that consumers can
+	 * derive from the partition key.
+	 * 
+	 * @param pool
+	 *            The pool to return this record to once it has been released
+	 *            by all its holders, or null if this record is not pooled.
+	 * @param maxSizeBytes
+	 *            The size in bytes this record may grow to before it is full
+	 *            (compressed, if the whole record is compressed).
+	 * @param compressionMode
+	 *            Whether and how to compress this record.
+	 * @param compressionLevel
+	 *            The Deflater compression level to use.
+	 * @param omitDerivedExplicitHashKeys
+	 *            Whether user records added without an explicit hash key are
+	 *            written without one. Consumers then hash the partition key,
+	 *            exactly as this record would have, and the MD5 hash is only
+	 *            computed for the first user record, whose hash key routes the
+	 *            whole aggregated record.
+	 */
+	AggRecord(AggRecordPool pool, int maxSizeBytes, CompressionMode compressionMode, int compressionLevel,
+			boolean omitDerivedExplicitHashKeys) {
+		this(pool, maxSizeBytes, compressionMode, compressionLevel, omitDerivedExplicitHashKeys, false);
+	}
+
+	/**
+	 * Construct a new (empty) aggregated Kinesis record that may belong to a
+	 * record pool, may have a smaller size limit than a Kinesis record, may be
+	 * compressed, may leave out derived explicit hash keys and may keep the
+	 * data of its user records outside the Java heap.
+	 * 
+	 * @param pool
+	 *            The pool to return this record to once it has been released
+	 *            by all its holders, or null if this record is not pooled.
+	 * @param maxSizeBytes
+	 *            The size in bytes this record may grow to before it is full
+	 *            (compressed, if the whole record is compressed).
+	 * @param compressionMode
+	 *            Whether and how to compress this record.
+	 * @param compressionLevel
+	 *            The Deflater compression level to use.
+	 * @param omitDerivedExplicitHashKeys
+	 *            Whether user records added without an explicit hash key are
+	 *            written without one.
+	 * @param offHeapPayloads
+	 *            Whether the encoded user records are kept in a direct buffer
+	 *            rather than a heap array.
+	 */
+	AggRecord(AggRecordPool pool, int maxSizeBytes, CompressionMode compressionMode, int compressionLevel,
+			boolean omitDerivedExplicitHashKeys, boolean offHeapPayloads) {
+		this.pool = pool;
+		this.omitDerivedExplicitHashKeys = omitDerivedExplicitHashKeys;
+		this.userRecordCompressor = compressionMode == CompressionMode.USER_RECORD
+				? new UserRecordCompressor(compressionLevel) : null;
+		this.aggregateCompressor = compressionMode == CompressionMode.AGGREGATE
+				? new AggregateCompressor(compressionLevel) : null;
+		this.maxSizeBytes = maxSizeBytes;
+		this.references = new AtomicInteger();
+		this.state = STATE_OPEN;
+		this.partitionKeyTable = new PayloadArena(false);
+		this.explicitHashKeyTable = new PayloadArena(false);
+		this.records = new PayloadArena(offHeapPayloads);
 		this.aggregatedMessageSizeBytes = 0;
-		this.explicitHashKeys = new KeySet();
-		this.partitionKeys = new KeySet();
+		this.explicitHashKeys = new HashKeyTable();
+		this.partitionKeys = new KeyTable();
 
 		this.aggExplicitHashKey = "";
 		this.aggPartitionKey = "";
 
+		this.decimalDigits = new char[ExplicitHashKeys.MAX_DECIMAL_DIGITS];
+		this.parsedHashKey = new long[2];
+
 		try {
 			this.md5 = MessageDigest.getInstance(MESSAGE_DIGEST_NAME);
 		} catch (NoSuchAlgorithmException e) {
 			throw new IllegalStateException("Could not create an MD5 message digest.", e);
 		}
+		this.partitionKeyHasher = new PartitionKeyHasher(this.md5);
 	}
 
 	/**
@@ -111,15 +288,33 @@ public class AggRecord {
 	 *         "addUserRecord(...)" method.
 	 */
 	public int getNumUserRecords() {
-		return this.aggregatedRecordBuilder.getRecordsCount();
+		return this.records.recordCount();
 	}
 
 	/**
 	 * Get the current size in bytes of the fully serialized aggregated record.
+	 * If the whole record is compressed (CompressionMode.AGGREGATE), this is
+	 * an upper bound of the compressed size until the record has been
+	 * completed, and the exact size after that.
 	 * 
 	 * @return The current size in bytes of this message in its serialized form.
 	 */
 	public int getSizeBytes() {
+		if (this.compressionFinished && this.compressedSizeBytes > 0) {
+			return this.compressedSizeBytes;
+		} else if (this.aggregateCompressor != null && !this.compressionFinished && getNumUserRecords() > 0) {
+			return (int) Math.min(getEncodedSizeBytes(),
+					this.aggregateCompressor.sizeBound(this.aggregatedMessageSizeBytes));
+		}
+
+		return getEncodedSizeBytes();
+	}
+
+	/**
+	 * @return The size in bytes of this record in the standard (not
+	 *         compressed) encoding.
+	 */
+	private int getEncodedSizeBytes() {
 		if (getNumUserRecords() == 0) {
 			return 0;
 		}
@@ -128,32 +323,240 @@ public class AggRecord {
 	}
 
 	/**
-	 * Serialize this record to bytes. Has no side effects (i.e. does not affect
-	 * the contents of this record object).
+	 * End the compressed stream of a record whose user records are compressed
+	 * together (CompressionMode.AGGREGATE), so that it can be serialized. No
+	 * more user records can be added afterwards.
+	 * 
+	 * @return True if the record is serialized compressed, false if it uses
+	 *         the standard encoding, either because it is not compressed as a
+	 *         whole or because compressing did not make it smaller.
+	 */
+	private boolean finishCompression() {
+		if (this.aggregateCompressor == null || getNumUserRecords() == 0) {
+			return false;
+		}
+
+		if (!this.compressionFinished) {
+			int size = this.aggregateCompressor.finish(this.partitionKeyTable, this.explicitHashKeyTable);
+			this.compressedSizeBytes = size < getEncodedSizeBytes() ? size : 0;
+			this.compressionFinished = true;
+		}
+		return this.compressedSizeBytes > 0;
+	}
+
+	/**
+	 * Serialize this record to bytes. Does not affect the contents of this
+	 * record object, with one exception: if the whole record is compressed
+	 * (CompressionMode.AGGREGATE), the first call ends its compressed stream,
+	 * which seals the record. Adding a user record after that throws an
+	 * IllegalStateException.
 	 * 
 	 * @return A byte array containing an Kinesis aggregated format-compatible
 	 *         Kinesis record.
 	 */
 	public byte[] toRecordBytes() {
+		checkNotRecycled();
 		if (getNumUserRecords() == 0) {
 			return new byte[0];
+		} else if (finishCompression()) {
+			return Arrays.copyOf(this.aggregateCompressor.getOutput(), this.compressedSizeBytes);
+		}
+
+		byte[] recordBytes = new byte[getEncodedSizeBytes()];
+		encode(recordBytes, 0);
+		return recordBytes;
+	}
+
+	/**
+	 * Serialize this record into an existing byte array, starting at the
+	 * specified offset. This allows a single pre-sized buffer to be reused
+	 * across many aggregated records instead of allocating a new array for
+	 * every record. Like toRecordBytes(), this seals a record that is
+	 * compressed as a whole, and otherwise does not affect its contents.
+	 * 
+	 * @param buffer
+	 *            The byte array to write the Kinesis aggregated
+	 *            format-compatible record into.
+	 * @param offset
+	 *            The index in the buffer at which to start writing.
+	 * @return The number of bytes written into the buffer.
+	 * @throws IllegalArgumentException
+	 *             If the buffer does not have enough space after the offset
+	 *             to hold the serialized record.
+	 */
+	public int toRecordBytes(byte[] buffer, int offset) {
+		checkNotRecycled();
+		if (getNumUserRecords() == 0) {
+			return 0;
+		}
+
+		boolean compressed = finishCompression();
+		int recordSize = compressed ? this.compressedSizeBytes : getEncodedSizeBytes();
+		if (offset < 0 || buffer.length - offset < recordSize) {
+			throw new IllegalArgumentException("Buffer must have at least " + recordSize
+					+ " bytes available after offset " + offset + ", got " + (buffer.length - offset) + " bytes");
+		}
+
+		if (compressed) {
+			System.arraycopy(this.aggregateCompressor.getOutput(), 0, buffer, offset, recordSize);
+		} else {
+			encode(buffer, offset);
+		}
+		return recordSize;
+	}
+
+	/**
+	 * Serialize this record into a ByteBuffer, starting at the buffer's current
+	 * position. On return the buffer's position has been advanced past the
+	 * serialized record and its limit is unchanged. Heap buffers are encoded
+	 * in place in their backing array and direct buffers are copied into
+	 * straight from the record's buffers, so no heap array the size of the
+	 * record is ever created. Like toRecordBytes(), this seals a record that
+	 * is compressed as a whole, and otherwise does not affect its contents.
+	 * 
+	 * @param target
+	 *            The buffer to write the Kinesis aggregated format-compatible
+	 *            record into.
+	 * @return The number of bytes written into the buffer.
+	 * @throws IllegalArgumentException
+	 *             If the buffer does not have enough space remaining to hold
+	 *             the serialized record.
+	 * @throws java.nio.ReadOnlyBufferException
+	 *             If the buffer is read-only.
+	 */
+	public int writeTo(ByteBuffer target) {
+		checkNotRecycled();
+		if (getNumUserRecords() == 0) {
+			return 0;
+		}
+
+		boolean compressed = finishCompression();
+		int recordSize = compressed ? this.compressedSizeBytes : getEncodedSizeBytes();
+		if (target.remaining() < recordSize) {
+			throw new IllegalArgumentException("Buffer must have at least " + recordSize
+					+ " bytes remaining, got " + target.remaining() + " bytes");
+		}
+
+		if (compressed) {
+			target.put(this.aggregateCompressor.getOutput(), 0, recordSize);
+		} else if (target.hasArray()) {
+			encode(target.array(), target.arrayOffset() + target.position());
+			target.position(target.position() + recordSize);
+		} else {
+			encode(target);
+		}
+		return recordSize;
+	}
+
+	/**
+	 * Serialize this record to a channel (e.g. a FileChannel or a socket
+	 * channel), handing the record's buffers to the channel section by
+	 * section so no heap array the size of the record is ever created. Like
+	 * toRecordBytes(), this seals a record that is compressed as a whole, and
+	 * otherwise does not affect its contents.
+	 * 
+	 * The channel must be in blocking mode: this method does not return until
+	 * the whole record has been written.
+	 * 
+	 * @param channel
+	 *            The channel to write the Kinesis aggregated format-compatible
+	 *            record to.
+	 * @return The number of bytes written to the channel.
+	 * @throws IOException
+	 *             If writing to the channel fails.
+	 * @throws java.nio.channels.IllegalBlockingModeException
+	 *             If the channel is a selectable channel in non-blocking
+	 *             mode.
+	 */
+	public int writeTo(WritableByteChannel channel) throws IOException {
+		checkNotRecycled();
+		if (getNumUserRecords() == 0) {
+			return 0;
+		}
+
+		if (finishCompression()) {
+			writeFully(channel, ByteBuffer.wrap(this.aggregateCompressor.getOutput(), 0, this.compressedSizeBytes));
+		} else {
+			encode(channel);
+		}
+		return getSizeBytes();
+	}
+
+	/**
+	 * Write the magic bytes, protobuf message body and trailing MD5 digest of
+	 * this record directly into the target buffer. The key tables and user
+	 * records are kept encoded in the order a generated protobuf message
+	 * would write them, so the output is byte-identical to serializing a
+	 * built AggregatedRecord, and encoding is a bulk copy of each section.
+	 * The digest is updated chunk by chunk while the bytes just copied are
+	 * still hot, so no separate pass over the message body is needed.
+	 * 
+	 * @param buffer
+	 *            The buffer to write into (must have enough space).
+	 * @param offset
+	 *            The index in the buffer at which to start writing.
+	 */
+	private void encode(byte[] buffer, int offset) {
+		System.arraycopy(AGGREGATED_RECORD_MAGIC, 0, buffer, offset, AGGREGATED_RECORD_MAGIC.length);
+
+		this.md5.reset();
+		int position = offset + AGGREGATED_RECORD_MAGIC.length;
+		position = this.partitionKeyTable.copyTo(buffer, position, this.md5);
+		position = this.explicitHashKeyTable.copyTo(buffer, position, this.md5);
+		position = this.records.copyTo(buffer, position, this.md5);
+
+		try {
+			this.md5.digest(buffer, position, this.md5.getDigestLength());
+		} catch (DigestException e) {
+			throw new IllegalStateException("Failed to encode aggregated record.", e);
 		}
+	}
+
+	/**
+	 * Write the magic bytes, protobuf message body and trailing MD5 digest of
+	 * this record into a buffer at its position, advancing the position. Used
+	 * for direct buffers, which have no array to encode into.
+	 * 
+	 * @param target
+	 *            The buffer to write into (must have enough space remaining).
+	 */
+	private void encode(ByteBuffer target) {
+		target.put(AGGREGATED_RECORD_MAGIC);
+
+		this.md5.reset();
+		this.partitionKeyTable.copyTo(target, this.md5);
+		this.explicitHashKeyTable.copyTo(target, this.md5);
+		this.records.copyTo(target, this.md5);
+
+		target.put(this.md5.digest());
+	}
 
-		byte[] messageBody = this.aggregatedRecordBuilder.build().toByteArray();
+	/**
+	 * Write the magic bytes, protobuf message body and trailing MD5 digest of
+	 * this record to a blocking channel. Each section of the message body is
+	 * handed to the channel as a whole, and a direct payload arena is written
+	 * without being copied at all. The channel is not closed.
+	 * 
+	 * @param channel
+	 *            The channel to write the record to.
+	 * @throws IOException
+	 *             If writing to the channel fails.
+	 */
+	private void encode(WritableByteChannel channel) throws IOException {
+		writeFully(channel, ByteBuffer.wrap(AGGREGATED_RECORD_MAGIC));
 
 		this.md5.reset();
-		byte[] messageDigest = this.md5.digest(messageBody);
+		this.partitionKeyTable.writeTo(channel, this.md5);
+		this.explicitHashKeyTable.writeTo(channel, this.md5);
+		this.records.writeTo(channel, this.md5);
 
-		// The way Java's API works is that write(byte[]) throws IOException on
-		// a ByteArrayOutputStream, but
-		// write(byte[],int,int) doesn't so that's why we're using the long
-		// version of "write" here
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(getSizeBytes());
-		baos.write(AGGREGATED_RECORD_MAGIC, 0, AGGREGATED_RECORD_MAGIC.length);
-		baos.write(messageBody, 0, messageBody.length);
-		baos.write(messageDigest, 0, messageDigest.length);
+		writeFully(channel, ByteBuffer.wrap(this.md5.digest()));
+	}
 
-		return baos.toByteArray();
+	private static void writeFully(WritableByteChannel channel, ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
 	}
 
 	/**
@@ -161,13 +564,176 @@ public class AggRecord {
 	 * reused just like a fresh instance of this object.
 	 */
 	public void clear() {
+		if (this.state == STATE_IN_FLIGHT) {
+			throw new IllegalStateException("Aggregated record is in flight and cannot be cleared.");
+		}
+
 		this.md5.reset();
+		this.flushReason = null;
 		this.aggExplicitHashKey = "";
 		this.aggPartitionKey = "";
 		this.aggregatedMessageSizeBytes = 0;
 		this.explicitHashKeys.clear();
 		this.partitionKeys.clear();
-		this.aggregatedRecordBuilder = AggregatedRecord.newBuilder();
+		this.partitionKeyTable.clear();
+		this.explicitHashKeyTable.clear();
+		this.records.clear();
+		if (this.aggregateCompressor != null) {
+			this.aggregateCompressor.reset();
+		}
+		this.compressionFinished = false;
+		this.compressedSizeBytes = 0;
+		failUserRecords(new CancellationException("Aggregated record was cleared before its result was reported"));
+	}
+
+	/**
+	 * Get the reason this aggregated record was completed by a
+	 * RecordAggregator, e.g. because it was full or because it had been
+	 * buffered for too long.
+	 * 
+	 * @return The reason this record was completed, or null if it has not
+	 *         been completed by a RecordAggregator.
+	 */
+	public FlushReason getFlushReason() {
+		return this.flushReason;
+	}
+
+	/**
+	 * Report that this aggregated record has been written to Kinesis,
+	 * completing the handles of its tracked user records (see
+	 * RecordAggregator.addTrackedUserRecord). Must be called before the
+	 * record is recycled. KinesisRecordTransport, PutRecordsBatcher and
+	 * RecordEncoder's EncodedRecord do this for you; custom transports should
+	 * call it with the result of their request.
+	 * 
+	 * @param shardId
+	 *            The shard the record was written to.
+	 * @param sequenceNumber
+	 *            The sequence number Kinesis assigned to the record.
+	 */
+	public void completeUserRecords(String shardId, String sequenceNumber) {
+		UserRecordFutures futures = detachUserRecordFutures();
+		if (futures != null) {
+			futures.complete(shardId, sequenceNumber);
+		}
+	}
+
+	/**
+	 * Report that this aggregated record could not be written to Kinesis,
+	 * completing the handles of its tracked user records exceptionally.
+	 * 
+	 * @param cause
+	 *            Why the record could not be written.
+	 */
+	public void failUserRecords(Throwable cause) {
+		UserRecordFutures futures = detachUserRecordFutures();
+		if (futures != null) {
+			futures.fail(cause);
+		}
+	}
+
+	/**
+	 * Create the handle of the user record that was added last.
+	 * 
+	 * @return A future that completes once this record's result is reported.
+	 */
+	CompletableFuture<UserRecordResult> trackLastUserRecord() {
+		if (this.userRecordFutures == null) {
+			this.userRecordFutures = new UserRecordFutures(this.trackedUserRecordsHint);
+		}
+		return this.userRecordFutures.track(getNumUserRecords() - 1);
+	}
+
+	/**
+	 * Take over the handles of the tracked user records, so that they can be
+	 * completed after this record has been recycled.
+	 * 
+	 * @return The handles, or null if no user records are tracked.
+	 */
+	UserRecordFutures detachUserRecordFutures() {
+		UserRecordFutures futures = this.userRecordFutures;
+		if (futures != null) {
+			this.trackedUserRecordsHint = futures.size();
+			this.userRecordFutures = null;
+		}
+		return futures;
+	}
+
+	/**
+	 * Record why this aggregated record was completed.
+	 * 
+	 * @param flushReason
+	 *            The reason this record was completed.
+	 */
+	void setFlushReason(FlushReason flushReason) {
+		this.flushReason = flushReason;
+	}
+
+	/**
+	 * @return The pool this record belongs to, or null if it is not pooled.
+	 */
+	AggRecordPool getPool() {
+		return this.pool;
+	}
+
+	/**
+	 * Mark a pooled record as complete and in flight. From now on the record
+	 * can no longer be modified, and it is only reused once every one of its
+	 * holders has released it.
+	 * 
+	 * @param holders
+	 *            The number of holders that have to release this record.
+	 */
+	void seal(int holders) {
+		finishCompression();
+		if (this.pool == null) {
+			return;
+		}
+
+		this.references.set(holders);
+		this.state = STATE_IN_FLIGHT;
+	}
+
+	/**
+	 * Release one holder's reference to this in-flight record.
+	 * 
+	 * @return True if that was the last reference and the record can now be
+	 *         recycled.
+	 */
+	boolean releaseReference() {
+		if (this.state != STATE_IN_FLIGHT) {
+			throw new IllegalStateException("Aggregated record is not in flight and cannot be recycled.");
+		}
+
+		int remaining = this.references.decrementAndGet();
+		if (remaining < 0) {
+			throw new IllegalStateException("Aggregated record has already been recycled.");
+		}
+		return remaining == 0;
+	}
+
+	/**
+	 * Mark this record as idle in its pool; any further reads fail until the
+	 * record is reopened.
+	 */
+	void markRecycled() {
+		this.state = STATE_RECYCLED;
+	}
+
+	/**
+	 * Make a recycled record available for new user records again.
+	 */
+	void reopen() {
+		this.state = STATE_OPEN;
+	}
+
+	/**
+	 * Make sure this record is not sitting idle in its pool.
+	 */
+	private void checkNotRecycled() {
+		if (this.state == STATE_RECYCLED) {
+			throw new IllegalStateException("Aggregated record has been recycled and can no longer be read.");
+		}
 	}
 
 	/**
@@ -177,6 +743,7 @@ public class AggRecord {
 	 *         this aggregated record is empty.
 	 */
 	public String getPartitionKey() {
+		checkNotRecycled();
 		if (getNumUserRecords() == 0) {
 			return null;
 		}
@@ -191,6 +758,7 @@ public class AggRecord {
 	 *         this aggregated record is empty.
 	 */
 	public String getExplicitHashKey() {
+		checkNotRecycled();
 		if (getNumUserRecords() == 0) {
 			return null;
 		}
@@ -205,35 +773,47 @@ public class AggRecord {
 	 * can't accept any more user records). This calculation is highly dependent
 	 * on the Kinesis aggregated message format.
 	 * 
-	 * @param partitionKey
-	 *            The partition key of the new record to simulate adding
-	 * @param explicitHashKey
-	 *            The explicit hash key of the new record to simulate adding
-	 * @param data
-	 *            The raw data of the new record to simulate adding
+	 * @param partitionKeyIndex
+	 *            The index of the new record's partition key in the partition
+	 *            key table, or -1 if it has not been added to the table yet
+	 * @param partitionKeyLength
+	 *            The UTF-8 encoded length of the new record's partition key
+	 * @param explicitHashKeyIndex
+	 *            The index of the new record's explicit hash key in the
+	 *            explicit hash key table, -1 if it has not been added to the
+	 *            table yet, or NO_EXPLICIT_HASH_KEY if the new record has no
+	 *            explicit hash key field
+	 * @param explicitHashKeyLength
+	 *            The UTF-8 encoded length of the new record's explicit hash
+	 *            key
+	 * @param dataLength
+	 *            The length of the raw data of the new record to simulate
+	 *            adding
 	 * @return The new size of this existing record in bytes if a new user
 	 *         record with the specified parameters was added.
 	 * @see https://github.com/awslabs/amazon-kinesis-producer/blob/master/aggregation-format.md
 	 */
-	private int calculateRecordSize(String partitionKey, String explicitHashKey, byte[] data) {
+	int calculateRecordSize(int partitionKeyIndex, int partitionKeyLength, int explicitHashKeyIndex,
+			int explicitHashKeyLength, int dataLength) {
 		int messageSize = 0;
 
 		// has the partition key been added to the table of known PKs yet?
-		if (!this.partitionKeys.contains(partitionKey)) {
-			int pkLength = partitionKey.length();
+		if (partitionKeyIndex < 0) {
 			messageSize += 1; // (message index + wire type for PK table)
-			messageSize += calculateVarintSize(pkLength); // size of pk length
-															// value
-			messageSize += pkLength; // actual pk length
+			messageSize += calculateVarintSize(partitionKeyLength); // size of pk length
+																	// value
+			messageSize += partitionKeyLength; // actual pk length
+			partitionKeyIndex = this.partitionKeys.size();
 		}
 
 		// has the explicit hash key been added to the table of known EHKs yet?
-		if (!this.explicitHashKeys.contains(explicitHashKey)) {
-			int ehkLength = explicitHashKey.length();
+		boolean hasExplicitHashKey = explicitHashKeyIndex != NO_EXPLICIT_HASH_KEY;
+		if (hasExplicitHashKey && explicitHashKeyIndex < 0) {
 			messageSize += 1; // (message index + wire type for EHK table)
 			messageSize += calculateVarintSize(
-					ehkLength); /* size of ehk length value */
-			messageSize += ehkLength; // actual ehk length
+					explicitHashKeyLength); /* size of ehk length value */
+			messageSize += explicitHashKeyLength; // actual ehk length
+			explicitHashKeyIndex = this.explicitHashKeys.size();
 		}
 
 		// remaining calculations are for adding the new record to the list of
@@ -243,22 +823,21 @@ public class AggRecord {
 
 		// partition key field
 		innerRecordSize += 1; // (message index + wire type for PK index)
-		innerRecordSize += calculateVarintSize(this.partitionKeys
-				.getPotentialIndex(partitionKey)); /* size of pk index value */
+		innerRecordSize += calculateVarintSize(partitionKeyIndex); /* size of pk index value */
 
-		// explicit hash key field (this is optional)
-		if (explicitHashKey != null) {
+		// explicit hash key field (optional, left out for derived keys if
+		// configured)
+		if (hasExplicitHashKey) {
 			innerRecordSize += 1; // (message index + wire type for EHK index)
-			innerRecordSize += calculateVarintSize(this.explicitHashKeys.getPotentialIndex(
-					explicitHashKey)); /* size of ehk index value */
+			innerRecordSize += calculateVarintSize(explicitHashKeyIndex); /* size of ehk index value */
 		}
 
 		// data field
 		innerRecordSize += 1; // (message index + wire type for record data)
 
 		innerRecordSize += calculateVarintSize(
-				data.length); /* size of data length value */
-		innerRecordSize += data.length; // actual data length
+				dataLength); /* size of data length value */
+		innerRecordSize += dataLength; // actual data length
 
 		messageSize += 1; // (message index + wire type for record)
 		messageSize += calculateVarintSize(
@@ -319,59 +898,375 @@ public class AggRecord {
 	 *         aggregated record or false if this aggregated record is too full.
 	 */
 	public boolean addUserRecord(String partitionKey, String explicitHashKey, byte[] data) {
+		return addUserRecord(partitionKey, explicitHashKey, data, 0, data != null ? data.length : 0);
+	}
+
+	/**
+	 * Add a new user record to this existing aggregated record if there is
+	 * enough space (based on the defined Kinesis limits for a PutRecord call).
+	 * Only the specified range of the data array is added; the bytes are
+	 * copied exactly once, into this aggregated record.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the new user record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the new user record to add
+	 * @param data
+	 *            An array containing the raw data of the new user record to
+	 *            add
+	 * @param offset
+	 *            The index of the first byte of user record data in the array
+	 * @param length
+	 *            The number of bytes of user record data in the array
+	 * @return True if the new user record was successfully added to this
+	 *         aggregated record or false if this aggregated record is too full.
+	 */
+	public boolean addUserRecord(String partitionKey, String explicitHashKey, byte[] data, int offset, int length) {
+		validateDataRange(data, offset, length);
+		boolean hasExplicitHashKey = validateKeys(partitionKey, explicitHashKey);
+
+		return addUserRecordData(partitionKey, explicitHashKey, hasExplicitHashKey, data, offset, length);
+	}
+
+	/**
+	 * Add a new user record to this existing aggregated record if there is
+	 * enough space (based on the defined Kinesis limits for a PutRecord call).
+	 * The user record data is the remaining content of the buffer (between its
+	 * position and limit), which may be a direct buffer. The bytes are copied
+	 * exactly once, into this aggregated record, and the position of the
+	 * buffer is not changed.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the new user record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the new user record to add
+	 * @param data
+	 *            A buffer containing the raw data of the new user record to
+	 *            add
+	 * @return True if the new user record was successfully added to this
+	 *         aggregated record or false if this aggregated record is too full.
+	 */
+	public boolean addUserRecord(String partitionKey, String explicitHashKey, ByteBuffer data) {
+		int length = data != null ? data.remaining() : 0;
+		validateDataLength(length);
+		boolean hasExplicitHashKey = validateKeys(partitionKey, explicitHashKey);
+
+		return addUserRecordData(partitionKey, explicitHashKey, hasExplicitHashKey, data, length);
+	}
+
+	/**
+	 * Add a new user record to this existing aggregated record if there is
+	 * enough space (based on the defined Kinesis limits for a PutRecord call).
+	 * This variant accepts the explicit hash key as an unsigned 128-bit value
+	 * split into two 64-bit words, which avoids parsing and validating a
+	 * decimal string for callers that already have the hash in binary form.
+	 * The key is looked up in binary form too; its decimal form is only
+	 * produced if this aggregated record does not hold it yet.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the new user record to add
+	 * @param explicitHashKeyHigh
+	 *            The most significant 64 bits of the explicit hash key of the
+	 *            new user record to add
+	 * @param explicitHashKeyLow
+	 *            The least significant 64 bits of the explicit hash key of the
+	 *            new user record to add
+	 * @param data
+	 *            The raw data of the new user record to add
+	 * @return True if the new user record was successfully added to this
+	 *         aggregated record or false if this aggregated record is too full.
+	 */
+	public boolean addUserRecord(String partitionKey, long explicitHashKeyHigh, long explicitHashKeyLow, byte[] data) {
+		int length = data != null ? data.length : 0;
+		validateDataLength(length);
+		validatePartitionKey(partitionKey);
+		this.parsedHashKey[0] = explicitHashKeyHigh;
+		this.parsedHashKey[1] = explicitHashKeyLow;
+
+		return addUserRecordData(partitionKey, null, true, data, 0, length);
+	}
+
+	/**
+	 * Add a new user record to this existing aggregated record if there is
+	 * enough space (based on the defined Kinesis limits for a PutRecord call).
+	 * This variant accepts the explicit hash key as an unsigned 128-bit value
+	 * split into two 64-bit words and the data as a (possibly direct) buffer,
+	 * whose position is not changed.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the new user record to add
+	 * @param explicitHashKeyHigh
+	 *            The most significant 64 bits of the explicit hash key of the
+	 *            new user record to add
+	 * @param explicitHashKeyLow
+	 *            The least significant 64 bits of the explicit hash key of the
+	 *            new user record to add
+	 * @param data
+	 *            A buffer containing the raw data of the new user record to
+	 *            add
+	 * @return True if the new user record was successfully added to this
+	 *         aggregated record or false if this aggregated record is too full.
+	 */
+	public boolean addUserRecord(String partitionKey, long explicitHashKeyHigh, long explicitHashKeyLow,
+			ByteBuffer data) {
+		int length = data != null ? data.remaining() : 0;
+		validateDataLength(length);
+		validatePartitionKey(partitionKey);
+		this.parsedHashKey[0] = explicitHashKeyHigh;
+		this.parsedHashKey[1] = explicitHashKeyLow;
+
+		return addUserRecordData(partitionKey, null, true, data, length);
+	}
+
+	/**
+	 * Validate the partition key and explicit hash key of a new user record,
+	 * leaving the explicit hash key to use (calculated from the partition key
+	 * if necessary) in parsedHashKey.
+	 * 
+	 * @return Whether the new user record is written with an explicit hash
+	 *         key.
+	 */
+	private boolean validateKeys(String partitionKey, String explicitHashKey) {
+		validatePartitionKey(partitionKey);
+		if (explicitHashKey != null) {
+			validateExplicitHashKey(explicitHashKey);
+			return true;
+		} else if (this.omitDerivedExplicitHashKeys) {
+			return false;
+		}
+
 		// set the explicit hash key for the message to the partition key -
 		// required for encoding
-		explicitHashKey = explicitHashKey != null ? explicitHashKey : createExplicitHashKey(partitionKey);
+		this.partitionKeyHasher.hash(partitionKey, this.parsedHashKey);
+		return true;
+	}
 
-		// validate values from the provided message
-		validatePartitionKey(partitionKey);
-		validateExplicitHashKey(explicitHashKey);
-		validateData(data);
+	/**
+	 * Add a user record with validated keys whose data is a range of an
+	 * array, compressing the data first if user records are compressed. The
+	 * data is only copied if the user record fits.
+	 * 
+	 * @param explicitHashKey
+	 *            The decimal form of the explicit hash key in parsedHashKey
+	 *            if the caller has it, or null.
+	 * @param hasExplicitHashKey
+	 *            Whether the user record is written with the explicit hash
+	 *            key in parsedHashKey.
+	 */
+	private boolean addUserRecordData(String partitionKey, String explicitHashKey, boolean hasExplicitHashKey,
+			byte[] data, int offset, int length) {
+		if (this.userRecordCompressor != null) {
+			checkUncompressedLength(partitionKey, explicitHashKey, hasExplicitHashKey, length);
+			int compressedLength = this.userRecordCompressor.compress(data, offset, length);
+			if (compressedLength >= 0) {
+				data = this.userRecordCompressor.getOutput();
+				offset = 0;
+				length = compressedLength;
+			}
+		}
+		if (!reserveUserRecord(partitionKey, explicitHashKey, hasExplicitHashKey, length)) {
+			return false;
+		}
+
+		startUserRecord(partitionKey, length);
+		this.records.write(data, offset, length);
+		finishUserRecord(partitionKey);
+		return true;
+	}
+
+	/**
+	 * Add a user record with validated keys whose data is the remaining
+	 * content of a buffer, compressing the data first if user records are
+	 * compressed. The data is only copied if the user record fits.
+	 */
+	private boolean addUserRecordData(String partitionKey, String explicitHashKey, boolean hasExplicitHashKey,
+			ByteBuffer data, int length) {
+		if (this.userRecordCompressor != null && length > 0) {
+			checkUncompressedLength(partitionKey, explicitHashKey, hasExplicitHashKey, length);
+			int compressedLength = this.userRecordCompressor.compress(data);
+			if (compressedLength >= 0) {
+				return addUserRecordData(partitionKey, explicitHashKey, hasExplicitHashKey,
+						this.userRecordCompressor.getOutput(), 0, compressedLength);
+			}
+		}
+		if (!reserveUserRecord(partitionKey, explicitHashKey, hasExplicitHashKey, length)) {
+			return false;
+		}
+
+		startUserRecord(partitionKey, length);
+		if (length > 0) {
+			this.records.write(data);
+		}
+		finishUserRecord(partitionKey);
+		return true;
+	}
+
+	/**
+	 * Reject user record data that is too large to be compressed on its own,
+	 * however well it compresses.
+	 */
+	private void checkUncompressedLength(String partitionKey, String explicitHashKey, boolean hasExplicitHashKey,
+			int length) {
+		if (length > RecordCompression.MAX_UNCOMPRESSED_BYTES) {
+			throw new IllegalArgumentException("Input record (PK=" + partitionKey + ", EHK="
+					+ decimalExplicitHashKey(explicitHashKey, hasExplicitHashKey)
+					+ ", SizeBytes=" + length + ") is larger than the maximum size of compressed user record data of "
+					+ RecordCompression.MAX_UNCOMPRESSED_BYTES + " bytes");
+		}
+	}
+
+	/**
+	 * Check whether a new user record with already validated keys fits in
+	 * this aggregated record. If it does, the key table lookups and the size
+	 * of the new record are remembered for the appendUserRecord call that
+	 * must follow, so each key is only looked up once.
+	 * 
+	 * @return True if the new user record fits, false if this aggregated
+	 *         record is too full.
+	 */
+	private boolean reserveUserRecord(String partitionKey, String explicitHashKey, boolean hasExplicitHashKey,
+			int dataLength) {
+		if (this.state != STATE_OPEN || this.compressionFinished) {
+			throw new IllegalStateException("Aggregated record has been completed and can no longer be modified.");
+		}
+
+		int pkIndex = this.partitionKeys.indexOf(partitionKey);
+		int pkLength = pkIndex < 0 ? Utf8.encodedLength(partitionKey) : this.partitionKeys.getEncodedLength(pkIndex);
+		int ehkIndex = NO_EXPLICIT_HASH_KEY;
+		int ehkLength = 0;
+		String newExplicitHashKey = null;
+		if (hasExplicitHashKey) {
+			ehkIndex = this.explicitHashKeys.indexOf(this.parsedHashKey[0], this.parsedHashKey[1]);
+			if (ehkIndex < 0) {
+				newExplicitHashKey = decimalExplicitHashKey(explicitHashKey, true);
+				ehkLength = Utf8.encodedLength(newExplicitHashKey);
+			} else {
+				ehkLength = this.explicitHashKeys.getEncodedLength(ehkIndex);
+			}
+		}
 
 		// Validate new record size won't overflow max size for a
-		// PutRecordRequest
-		int sizeOfNewRecord = calculateRecordSize(partitionKey, explicitHashKey, data);
-		if (getSizeBytes() + sizeOfNewRecord > MAX_BYTES_PER_RECORD) {
+		// PutRecordRequest (or the smaller configured limit, which only
+		// applies once this record holds at least one user record). If the
+		// whole record is compressed, it only has to fit once compressed. The
+		// magic number and digest count even while this record is still
+		// empty, as they are written as soon as it holds a user record.
+		int sizeOfNewRecord = calculateRecordSize(pkIndex, pkLength, ehkIndex, ehkLength, dataLength);
+		int sizeLimit = getNumUserRecords() > 0 ? this.maxSizeBytes : MAX_BYTES_PER_RECORD;
+		int encodedSize = AGGREGATED_RECORD_MAGIC.length + this.aggregatedMessageSizeBytes + this.md5.getDigestLength();
+		if (encodedSize + sizeOfNewRecord > sizeLimit && (this.aggregateCompressor == null
+				|| !this.aggregateCompressor.fits(this.aggregatedMessageSizeBytes + sizeOfNewRecord, sizeLimit))) {
+			return false;
+		} else if (encodedSize + sizeOfNewRecord > RecordCompression.MAX_UNCOMPRESSED_BYTES
+				&& getNumUserRecords() > 0) {
+			// only reachable when compressed as a whole: the record has to
+			// inflate to a bounded size
 			return false;
 		} else if (sizeOfNewRecord > MAX_BYTES_PER_RECORD) {
 			throw new IllegalArgumentException(
-					"Input record (PK=" + partitionKey + ", EHK=" + explicitHashKey + ", SizeBytes=" + sizeOfNewRecord
+					"Input record (PK=" + partitionKey + ", EHK="
+							+ decimalExplicitHashKey(explicitHashKey, hasExplicitHashKey) + ", SizeBytes="
+							+ sizeOfNewRecord
 							+ ") is larger than the maximum size before Aggregation encoding of "
 							+ (MAX_BYTES_PER_RECORD - AGGREGATION_OVERHEAD_BYTES) + " bytes");
 		}
 
-		Record.Builder newRecord = Record.newBuilder()
-				.setData(data != null ? ByteString.copyFrom(data) : ByteString.EMPTY);
+		this.reservedPartitionKeyIndex = pkIndex;
+		this.reservedPartitionKeyLength = pkLength;
+		this.reservedExplicitHashKeyIndex = ehkIndex;
+		this.reservedExplicitHashKeyLength = ehkLength;
+		this.reservedExplicitHashKey = newExplicitHashKey;
+		this.reservedRecordSize = sizeOfNewRecord;
+		return true;
+	}
 
-		ExistenceIndexPair pkAddResult = this.partitionKeys.add(partitionKey);
-		if (pkAddResult.getFirst().booleanValue()) {
-			this.aggregatedRecordBuilder.addPartitionKeyTable(partitionKey);
+	/**
+	 * Start appending a new user record that was just accepted by
+	 * reserveUserRecord: add its keys to the key tables and write everything
+	 * but its data to the payload arena. The caller writes exactly dataLength
+	 * bytes of data and then calls finishUserRecord.
+	 */
+	private void startUserRecord(String partitionKey, int dataLength) {
+		int pkIndex = this.reservedPartitionKeyIndex;
+		if (pkIndex < 0) {
+			pkIndex = this.partitionKeys.add(partitionKey, this.reservedPartitionKeyLength);
+			writeKeyTableEntry(this.partitionKeyTable, AggregatedRecord.PARTITION_KEY_TABLE_FIELD_NUMBER, partitionKey,
+					this.reservedPartitionKeyLength);
 		}
-		newRecord.setPartitionKeyIndex(pkAddResult.getSecond());
 
-		ExistenceIndexPair ehkAddResult = this.explicitHashKeys.add(explicitHashKey);
-		if (ehkAddResult.getFirst().booleanValue()) {
-			this.aggregatedRecordBuilder.addExplicitHashKeyTable(explicitHashKey);
+		int ehkIndex = this.reservedExplicitHashKeyIndex;
+		if (ehkIndex != NO_EXPLICIT_HASH_KEY && ehkIndex < 0) {
+			ehkIndex = this.explicitHashKeys.add(this.parsedHashKey[0], this.parsedHashKey[1],
+					this.reservedExplicitHashKeyLength);
+			writeKeyTableEntry(this.explicitHashKeyTable, AggregatedRecord.EXPLICIT_HASH_KEY_TABLE_FIELD_NUMBER,
+					this.reservedExplicitHashKey, this.reservedExplicitHashKeyLength);
 		}
-		newRecord.setExplicitHashKeyIndex(ehkAddResult.getSecond());
 
-		this.aggregatedMessageSizeBytes += sizeOfNewRecord;
-		this.aggregatedRecordBuilder.addRecords(newRecord.build());
+		int recordSize = 1 + calculateVarintSize(pkIndex) + 1 + calculateVarintSize(dataLength) + dataLength;
+		if (ehkIndex != NO_EXPLICIT_HASH_KEY) {
+			recordSize += 1 + calculateVarintSize(ehkIndex);
+		}
+
+		// the fields in the order a generated Record would write them
+		this.records.reserve(1 + calculateVarintSize(recordSize) + recordSize);
+		this.records.startRecord();
+		this.records.writeTag(AggregatedRecord.RECORDS_FIELD_NUMBER, PayloadArena.WIRETYPE_LENGTH_DELIMITED);
+		this.records.writeVarint(recordSize);
+		this.records.writeTag(Record.PARTITION_KEY_INDEX_FIELD_NUMBER, PayloadArena.WIRETYPE_VARINT);
+		this.records.writeVarint(pkIndex);
+		if (ehkIndex != NO_EXPLICIT_HASH_KEY) {
+			this.records.writeTag(Record.EXPLICIT_HASH_KEY_INDEX_FIELD_NUMBER, PayloadArena.WIRETYPE_VARINT);
+			this.records.writeVarint(ehkIndex);
+		}
+		this.records.writeTag(Record.DATA_FIELD_NUMBER, PayloadArena.WIRETYPE_LENGTH_DELIMITED);
+		this.records.writeVarint(dataLength);
+	}
+
+	/**
+	 * Finish appending a new user record whose data has been written to the
+	 * payload arena.
+	 */
+	private void finishUserRecord(String partitionKey) {
+		this.aggregatedMessageSizeBytes += this.reservedRecordSize;
+		if (this.aggregateCompressor != null) {
+			this.aggregateCompressor.writeRecord(this.records);
+		}
 
 		// if this is the first record, we use its partition key and hash key
-		// for the entire agg record
-		if (this.aggregatedRecordBuilder.getRecordsCount() == 1) {
+		// for the entire agg record (its hash key is always new to the table;
+		// the partition key is hashed only here if the user record itself is
+		// written without a hash key)
+		if (getNumUserRecords() == 1) {
 			this.aggPartitionKey = partitionKey;
-			this.aggExplicitHashKey = explicitHashKey;
+			this.aggExplicitHashKey = this.reservedExplicitHashKeyIndex != NO_EXPLICIT_HASH_KEY
+					? this.reservedExplicitHashKey : createExplicitHashKey(partitionKey);
 		}
+		this.reservedExplicitHashKey = null;
+	}
 
-		return true;
+	/**
+	 * @return The decimal form of the explicit hash key of the user record
+	 *         being added: the one the caller passed if any, otherwise the one
+	 *         in parsedHashKey. Null if the user record has none.
+	 */
+	private String decimalExplicitHashKey(String explicitHashKey, boolean hasExplicitHashKey) {
+		if (explicitHashKey != null || !hasExplicitHashKey) {
+			return explicitHashKey;
+		}
+		return ExplicitHashKeys.toDecimalString(this.parsedHashKey[0], this.parsedHashKey[1], this.decimalDigits);
+	}
+
+	private static void writeKeyTableEntry(PayloadArena table, int fieldNumber, String key, int encodedLength) {
+		table.writeTag(fieldNumber, PayloadArena.WIRETYPE_LENGTH_DELIMITED);
+		table.writeVarint(encodedLength);
+		table.writeUtf8(key, encodedLength);
 	}
 
 	/**
 	 * Convert the aggregated data in this record into a single
-	 * PutRecordRequest. This method has no side effects (i.e. it will not clear
-	 * the current contents of the aggregated record).
+	 * PutRecordRequest. This method will not clear the current contents of
+	 * the aggregated record, but it seals a record that is compressed as a
+	 * whole (see toRecordBytes()).
 	 * 
 	 * @param streamName
 	 *            The Kinesis stream name where this PutRecordRequest will be
@@ -388,8 +1283,9 @@ public class AggRecord {
 
 	/**
 	 * Convert the aggregated data in this record into a single
-	 * PutRecordsRequestEntry. This method has no side effects (i.e. it will not
-	 * clear the current contents of the aggregated record).
+	 * PutRecordsRequestEntry. This method will not clear the current contents
+	 * of the aggregated record, but it seals a record that is compressed as a
+	 * whole (see toRecordBytes()).
 	 * 
 	 * @return A PutRecordsRequestEntry containing all the current data in this
 	 *         aggregated record that can be sent to Kinesis via a
@@ -401,17 +1297,37 @@ public class AggRecord {
 	}
 
 	/**
-	 * Validate the data portion of an input Kinesis user record.
+	 * Validate a range of an array holding the data portion of an input
+	 * Kinesis user record.
 	 * 
 	 * @param data
-	 *            A byte array containing Kinesis user record data.
+	 *            A byte array containing Kinesis user record data (may be
+	 *            null if the length is 0).
+	 * @param offset
+	 *            The index of the first byte of user record data in the array.
+	 * @param length
+	 *            The number of bytes of user record data in the array.
+	 */
+	private void validateDataRange(final byte[] data, final int offset, final int length) {
+		if (offset < 0 || length < 0 || (data == null ? length > 0 : offset > data.length - length)) {
+			throw new IllegalArgumentException("Invalid data range: offset " + offset + ", length " + length
+					+ ", array length " + (data != null ? data.length : 0));
+		}
+		validateDataLength(length);
+	}
+
+	/**
+	 * Validate the length of the data portion of an input Kinesis user record.
+	 * 
+	 * @param length
+	 *            The length in bytes of the Kinesis user record data.
 	 */
-	private void validateData(final byte[] data) {
+	private void validateDataLength(final int length) {
 		final int maxAllowableDataLength = MAX_BYTES_PER_RECORD - AGGREGATED_RECORD_MAGIC.length
 				- this.md5.getDigestLength();
-		if (data != null && data.length > (maxAllowableDataLength)) {
+		if (length > (maxAllowableDataLength)) {
 			throw new IllegalArgumentException("Data must be less than or equal to " + maxAllowableDataLength
-					+ " bytes in size, got " + data.length + " bytes");
+					+ " bytes in size, got " + length + " bytes");
 		}
 	}
 
@@ -421,7 +1337,7 @@ public class AggRecord {
 	 * @param partitionKey
 	 *            The string containing the input partition key to validate.
 	 */
-	private void validatePartitionKey(final String partitionKey) {
+	static void validatePartitionKey(final String partitionKey) {
 		if (partitionKey == null) {
 			throw new IllegalArgumentException("Partition key cannot be null");
 		}
@@ -431,12 +1347,6 @@ public class AggRecord {
 					"Invalid partition key. Length must be at least " + PARTITION_KEY_MIN_LENGTH + " and at most "
 							+ PARTITION_KEY_MAX_LENGTH + ", got length of " + partitionKey.length());
 		}
-
-		try {
-			partitionKey.getBytes(StandardCharsets.UTF_8);
-		} catch (Exception e) {
-			throw new IllegalArgumentException("Partition key must be valid " + StandardCharsets.UTF_8.displayName());
-		}
 	}
 
 	/**
@@ -450,17 +1360,7 @@ public class AggRecord {
 			return;
 		}
 
-		BigInteger b = null;
-		try {
-			b = new BigInteger(explicitHashKey);
-			if (b.compareTo(UINT_128_MAX) > 0 || b.compareTo(BigInteger.ZERO) < 0) {
-				throw new IllegalArgumentException(
-						"Invalid explicitHashKey, must be greater or equal to zero and less than or equal to (2^128 - 1), got "
-								+ explicitHashKey);
-			}
-		} catch (NumberFormatException e) {
-			throw new IllegalArgumentException("Invalid explicitHashKey, must be an integer, got " + explicitHashKey);
-		}
+		ExplicitHashKeys.parse(explicitHashKey, this.parsedHashKey);
 	}
 
 	/**
@@ -472,121 +1372,8 @@ public class AggRecord {
 	 * @return An explicit hash key based on the input partition key generated
 	 *         using an algorithm from the original KPL.
 	 */
-	private String createExplicitHashKey(final String partitionKey) {
-		BigInteger hashKey = BigInteger.ZERO;
-
-		this.md5.reset();
-		byte[] pkDigest = this.md5.digest(partitionKey.getBytes(StandardCharsets.UTF_8));
-
-		for (int i = 0; i < this.md5.getDigestLength(); i++) {
-			BigInteger p = new BigInteger(String.valueOf((int) pkDigest[i] & 0xFF)); // convert
-																						// to
-																						// unsigned
-																						// integer
-			BigInteger shifted = p.shiftLeft((16 - i - 1) * 8);
-			hashKey = hashKey.add(shifted);
-		}
-
-		return hashKey.toString(10);
-	}
-
-	/**
-	 * A class for tracking unique partition keys or explicit hash keys for an
-	 * aggregated Kinesis record. Also assists in keeping track of indexes for
-	 * their locations in the protobuf tables.
-	 */
-	private class KeySet {
-		/** The list of unique keys in this keyset. */
-		private List<String> keys;
-		/** A lookup mapping of key to index in protobuf table. */
-		private Map<String, Long> lookup;
-
-		/**
-		 * Create a new empty keyset.
-		 */
-		public KeySet() {
-			this.keys = new LinkedList<>();
-			this.lookup = new TreeMap<>();
-		}
-
-		/**
-		 * If the input key were added to this KeySet, determine what its
-		 * resulting index would be.
-		 * 
-		 * @param s
-		 *            The input string to potentially add to the KeySet
-		 * 
-		 * @return The table index that this string would occupy if it were
-		 *         added to this KeySet.
-		 */
-		public Long getPotentialIndex(String s) {
-			Long it = this.lookup.get(s);
-			if (it != null) {
-				return it;
-			}
-
-			return Long.valueOf(this.keys.size());
-		}
-
-		/**
-		 * Add a new key to this keyset.
-		 * 
-		 * @param s
-		 *            The key to add to the keyset.
-		 * 
-		 * @return A pair of <boolean,long>. The boolean is true if this key is
-		 *         not already in this keyset, false otherwise. The long
-		 *         indicates the index of the key.
-		 */
-		public ExistenceIndexPair add(String s) {
-			Long it = this.lookup.get(s);
-			if (it != null) {
-				return new ExistenceIndexPair(false, it);
-			}
-
-			if (!this.lookup.containsKey(s)) {
-				this.lookup.put(s, Long.valueOf(this.keys.size()));
-			}
-
-			this.keys.add(s);
-			return new ExistenceIndexPair(true, Long.valueOf(this.keys.size() - 1));
-		}
-
-		/**
-		 * @return True if this keyset contains the input key, false otherwise.
-		 */
-		public boolean contains(String s) {
-			return s != null && this.lookup.containsKey(s);
-		}
-
-		/**
-		 * Clear all the contents of this keyset.
-		 */
-		public void clear() {
-			this.keys.clear();
-			this.lookup.clear();
-		}
-	};
-
-	/**
-	 * A helper class for use with the KeySet that indicates whether or not a
-	 * key exists in the KeySet and what its saved index would be.
-	 */
-	private class ExistenceIndexPair {
-		private Boolean first;
-		private Long second;
-
-		public ExistenceIndexPair(Boolean first, Long second) {
-			this.first = first;
-			this.second = second;
-		}
-
-		public Boolean getFirst() {
-			return this.first;
-		}
-
-		public Long getSecond() {
-			return this.second;
-		}
+	String createExplicitHashKey(final String partitionKey) {
+		this.partitionKeyHasher.hash(partitionKey, this.parsedHashKey);
+		return ExplicitHashKeys.toDecimalString(this.parsedHashKey[0], this.parsedHashKey[1], this.decimalDigits);
 	}
 }
@@ -0,0 +1,128 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.amazonaws.annotation.ThreadSafe;
+
+/**
+ * A bounded pool of reusable aggregated records. Records are handed back to
+ * the pool once every holder has released them, cleared and then handed out
+ * again in place of newly allocated records.
+ * 
+ * This class is thread-safe: records are typically acquired on the producer
+ * thread and released on listener threads.
+ */
+@ThreadSafe
+final class AggRecordPool {
+	/** The idle records available for reuse. */
+	private final BlockingQueue<AggRecord> idleRecords;
+	/** The size limit of the records created by this pool. */
+	private final int maxRecordSizeBytes;
+	/** Whether and how records created by this pool are compressed. */
+	private final CompressionMode compressionMode;
+	/** The Deflater level records created by this pool compress with. */
+	private final int compressionLevel;
+	/** Whether records created by this pool omit derived explicit hash keys. */
+	private final boolean omitDerivedExplicitHashKeys;
+	/** Whether records created by this pool keep their user records off-heap. */
+	private final boolean offHeapPayloads;
+
+	/**
+	 * Create a new empty pool.
+	 * 
+	 * @param maxIdleRecords
+	 *            The maximum number of idle records to keep. Records released
+	 *            while the pool is full are left for the garbage collector.
+	 * @param maxRecordSizeBytes
+	 *            The size in bytes records created by this pool may grow to.
+	 * @param compressionMode
+	 *            Whether and how records created by this pool are compressed.
+	 * @param compressionLevel
+	 *            The Deflater level records created by this pool compress
+	 *            with.
+	 * @param omitDerivedExplicitHashKeys
+	 *            Whether records created by this pool write user records
+	 *            without an explicit hash key without one.
+	 * @param offHeapPayloads
+	 *            Whether records created by this pool keep their encoded user
+	 *            records in a direct buffer.
+	 */
+	AggRecordPool(int maxIdleRecords, int maxRecordSizeBytes, CompressionMode compressionMode, int compressionLevel,
+			boolean omitDerivedExplicitHashKeys, boolean offHeapPayloads) {
+		this.idleRecords = new ArrayBlockingQueue<>(maxIdleRecords);
+		this.maxRecordSizeBytes = maxRecordSizeBytes;
+		this.compressionMode = compressionMode;
+		this.compressionLevel = compressionLevel;
+		this.omitDerivedExplicitHashKeys = omitDerivedExplicitHashKeys;
+		this.offHeapPayloads = offHeapPayloads;
+	}
+
+	/**
+	 * @return An empty record owned by this pool, reusing an idle record if
+	 *         one is available.
+	 */
+	AggRecord acquire() {
+		AggRecord record = this.idleRecords.poll();
+		if (record == null) {
+			return new AggRecord(this, this.maxRecordSizeBytes, this.compressionMode, this.compressionLevel,
+					this.omitDerivedExplicitHashKeys, this.offHeapPayloads);
+		}
+
+		record.reopen();
+		return record;
+	}
+
+	/**
+	 * Hand back a record that was acquired but never sealed, for example
+	 * because the user record it was acquired for did not fit.
+	 * 
+	 * @param record
+	 *            The record to hand back.
+	 */
+	void giveBack(AggRecord record) {
+		if (record.getPool() != this) {
+			throw new IllegalArgumentException("Aggregated record was not created by this aggregator's record pool.");
+		}
+
+		record.markRecycled();
+		record.clear();
+		this.idleRecords.offer(record);
+	}
+
+	/**
+	 * Release one reference to a record that was handed out by this pool. The
+	 * record is cleared and becomes available for reuse once its last
+	 * reference is released.
+	 * 
+	 * @param record
+	 *            The record to release.
+	 */
+	void release(AggRecord record) {
+		if (record.getPool() != this) {
+			throw new IllegalArgumentException("Aggregated record was not created by this aggregator's record pool.");
+		}
+
+		if (record.releaseReference()) {
+			record.markRecycled();
+			record.clear();
+			this.idleRecords.offer(record);
+		}
+	}
+}
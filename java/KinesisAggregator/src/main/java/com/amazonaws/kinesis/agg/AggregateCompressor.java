@@ -0,0 +1,240 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import com.amazonaws.annotation.NotThreadSafe;
+
+/**
+ * Compresses an aggregated record for CompressionMode.AGGREGATE while user
+ * records are being added to it, so that the compressed size is known well
+ * enough to decide when the aggregated record is full.
+ * 
+ * Each user record is deflated as soon as it is added. The key tables can
+ * only be written once they are complete, so they follow the user records in
+ * the compressed protobuf message. Deflate does not say how much of its input
+ * it still holds back, so fits() works with an upper bound: the bytes written
+ * so far plus the worst case for everything not yet flushed. Only when that
+ * bound exceeds the limit does it sync-flush the stream to learn the exact
+ * size, which in practice only happens for the last few user records of each
+ * aggregated record.
+ * 
+ * This class is NOT thread-safe.
+ */
+@NotThreadSafe
+final class AggregateCompressor {
+	private static final int INITIAL_OUTPUT_BYTES = 64 * 1024;
+
+	/** Room for the zlib trailer and the headers of the last blocks. */
+	private static final int STREAM_OVERHEAD_BYTES = 16;
+
+	private final Deflater deflater;
+	/** The digest of the protobuf message, which ends the compressed stream. */
+	private final MessageDigest md5;
+	/** The header and the compressed bytes written so far. */
+	private byte[] output = new byte[INITIAL_OUTPUT_BYTES];
+	private int outputSize;
+	/** Holds the protobuf fields of a direct arena while they are deflated. */
+	private byte[] field = new byte[1024];
+	/** The number of bytes deflated since the stream was last flushed. */
+	private long unflushedBytes;
+	/** The number of bytes of user record fields deflated so far. */
+	private long recordFieldBytes;
+
+	/**
+	 * @param level
+	 *            The Deflater compression level.
+	 */
+	AggregateCompressor(int level) {
+		this.deflater = new Deflater(level);
+		try {
+			this.md5 = MessageDigest.getInstance(AggRecord.MESSAGE_DIGEST_NAME);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Could not create an MD5 message digest.", e);
+		}
+		System.arraycopy(RecordCompression.COMPRESSED_AGGREGATE_MAGIC, 0, this.output, 0,
+				RecordCompression.COMPRESSED_AGGREGATE_MAGIC.length);
+		this.output[RecordCompression.COMPRESSED_AGGREGATE_MAGIC.length] = RecordCompression.CODEC_DEFLATE;
+		reset();
+	}
+
+	/**
+	 * Start a new compressed aggregated record.
+	 */
+	void reset() {
+		this.deflater.reset();
+		this.md5.reset();
+		this.outputSize = RecordCompression.HEADER_LENGTH;
+		this.unflushedBytes = 0;
+		this.recordFieldBytes = 0;
+		deflate(AggRecord.AGGREGATED_RECORD_MAGIC, AggRecord.AGGREGATED_RECORD_MAGIC.length);
+	}
+
+	/**
+	 * Compress the user record that was just added to the aggregated record.
+	 * 
+	 * @param records
+	 *            The arena holding the encoded user records, whose last
+	 *            record is the one to compress.
+	 */
+	void writeRecord(PayloadArena records) {
+		int from = records.recordOffset(records.recordCount() - 1);
+		int size = records.size() - from;
+		write(records, from, size);
+		this.recordFieldBytes += size;
+	}
+
+	/**
+	 * Check whether the compressed aggregated record stays within a size
+	 * limit if its protobuf message grows to the specified size.
+	 * 
+	 * @param messageSizeBytes
+	 *            The uncompressed size of the protobuf message, including the
+	 *            user record about to be added and any keys it adds to the key
+	 *            tables.
+	 * @param sizeLimit
+	 *            The maximum size of the compressed aggregated record.
+	 * @return True if the compressed record is guaranteed to fit.
+	 */
+	boolean fits(int messageSizeBytes, int sizeLimit) {
+		long pendingBytes = pendingBytes(messageSizeBytes);
+		if (upperBound(pendingBytes) <= sizeLimit) {
+			return true;
+		} else if (this.unflushedBytes == 0) {
+			return false;
+		}
+
+		syncFlush();
+		return upperBound(pendingBytes) <= sizeLimit;
+	}
+
+	/**
+	 * @return The largest size the compressed aggregated record can have if
+	 *         its protobuf message is finished at the specified size.
+	 */
+	long sizeBound(int messageSizeBytes) {
+		return upperBound(pendingBytes(messageSizeBytes));
+	}
+
+	/**
+	 * @return The number of bytes still to compress if the protobuf message
+	 *         is finished at the specified size: the key tables, the records
+	 *         not yet written and the digest.
+	 */
+	private long pendingBytes(int messageSizeBytes) {
+		return messageSizeBytes - this.recordFieldBytes + this.md5.getDigestLength();
+	}
+
+	/**
+	 * @return The largest size the compressed aggregated record can have once
+	 *         the specified number of further bytes have been compressed.
+	 */
+	private long upperBound(long pendingBytes) {
+		long bytes = this.unflushedBytes + pendingBytes;
+		return this.outputSize + bytes + ((bytes + 7) >> 3) + ((bytes + 63) >> 6) + STREAM_OVERHEAD_BYTES;
+	}
+
+	/**
+	 * Compress the key tables and the digest and end the stream. The
+	 * compressed aggregated record is then available from getOutput().
+	 * 
+	 * @param partitionKeyTable
+	 *            The arena holding the encoded partition key table.
+	 * @param explicitHashKeyTable
+	 *            The arena holding the encoded explicit hash key table.
+	 * @return The size of the compressed aggregated record.
+	 */
+	int finish(PayloadArena partitionKeyTable, PayloadArena explicitHashKeyTable) {
+		write(partitionKeyTable, 0, partitionKeyTable.size());
+		write(explicitHashKeyTable, 0, explicitHashKeyTable.size());
+
+		byte[] digest = this.md5.digest();
+		deflate(digest, digest.length);
+		this.deflater.finish();
+		while (!this.deflater.finished()) {
+			ensureOutputSpace();
+			this.outputSize += this.deflater.deflate(this.output, this.outputSize, this.output.length - this.outputSize);
+		}
+		return this.outputSize;
+	}
+
+	/**
+	 * @return The buffer holding the compressed aggregated record after
+	 *         finish(), starting at index 0.
+	 */
+	byte[] getOutput() {
+		return this.output;
+	}
+
+	/**
+	 * Digest and deflate a range of encoded protobuf fields from an arena.
+	 */
+	private void write(PayloadArena arena, int from, int length) {
+		if (length == 0) {
+			return;
+		}
+
+		byte[] bytes = arena.array();
+		if (bytes == null) {
+			if (this.field.length < length) {
+				this.field = new byte[Math.max(length, this.field.length * 2)];
+			}
+			arena.copyTo(from, length, this.field, 0);
+			bytes = this.field;
+			from = 0;
+		}
+		this.md5.update(bytes, from, length);
+		deflate(bytes, from, length);
+	}
+
+	private void deflate(byte[] bytes, int length) {
+		deflate(bytes, 0, length);
+	}
+
+	private void deflate(byte[] bytes, int offset, int length) {
+		this.deflater.setInput(bytes, offset, length);
+		while (!this.deflater.needsInput()) {
+			ensureOutputSpace();
+			this.outputSize += this.deflater.deflate(this.output, this.outputSize, this.output.length - this.outputSize);
+		}
+		this.unflushedBytes += length;
+	}
+
+	/**
+	 * Write out everything the deflater holds back, so that the output size
+	 * is exact again.
+	 */
+	private void syncFlush() {
+		do {
+			ensureOutputSpace();
+			this.outputSize += this.deflater.deflate(this.output, this.outputSize,
+					this.output.length - this.outputSize, Deflater.SYNC_FLUSH);
+			// a flush is complete once it leaves space in the output buffer
+		} while (this.outputSize == this.output.length);
+		this.unflushedBytes = 0;
+	}
+
+	private void ensureOutputSpace() {
+		if (this.outputSize == this.output.length) {
+			this.output = Arrays.copyOf(this.output, this.output.length * 2);
+		}
+	}
+}
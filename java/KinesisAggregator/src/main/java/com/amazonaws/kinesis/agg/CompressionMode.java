@@ -0,0 +1,46 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+/**
+ * Whether and how a RecordAggregator compresses the records it aggregates.
+ * Compressed records are marked so that consumers can tell them apart from
+ * plain records; see RecordCompression for the format.
+ * 
+ * @see RecordAggregatorConfig#withCompression(CompressionMode)
+ */
+public enum CompressionMode {
+	/**
+	 * Records are not compressed. Aggregated records can be read by every
+	 * consumer that understands the Kinesis aggregated record format.
+	 */
+	NONE,
+	/**
+	 * The data of every user record is compressed on its own before it is
+	 * added to the aggregated record, so each user record stays independently
+	 * readable. Data that does not get smaller is stored as it is. Works best
+	 * for user records of a few KB or more.
+	 */
+	USER_RECORD,
+	/**
+	 * The whole aggregated record is compressed as one stream, so redundancy
+	 * across user records (e.g. repeated JSON field names) is removed as well.
+	 * Gives the best ratio for small user records. An aggregated record that
+	 * does not get smaller is sent uncompressed.
+	 */
+	AGGREGATE
+}
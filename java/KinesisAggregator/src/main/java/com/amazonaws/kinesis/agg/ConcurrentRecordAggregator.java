@@ -0,0 +1,434 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.amazonaws.annotation.ThreadSafe;
+import com.amazonaws.kinesis.agg.RecordAggregator.RecordCompleteListener;
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+
+/**
+ * A record aggregator that many producer threads can add user records to at
+ * the same time. User records are spread over a number of stripes by the hash
+ * of their partition key, and each stripe is an independent aggregator with
+ * its own lock and its own aggregated record, so threads adding user records
+ * with different partition keys rarely wait for each other and there is no
+ * lock shared by all threads. Completed records are handed to the registered
+ * listeners by the thread that completed them.
+ * 
+ * All user records with the same partition key go to the same stripe, so they
+ * are aggregated in the order they were added and aggregated records of a
+ * stripe are completed in order. Listeners see them in that order if their
+ * executor runs callbacks in submission order (e.g. a single thread executor
+ * or Runnable::run); the default common ForkJoin pool does not guarantee it.
+ * 
+ * More stripes reduce contention but leave more partially filled aggregated
+ * records open at any time, so with a maximum buffered time configured they
+ * lower the average fill ratio of flushed records. The number of stripes is
+ * rounded up to a power of two.
+ * 
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public class ConcurrentRecordAggregator implements AutoCloseable {
+	/** The aggregators user records are spread over. */
+	private final RecordAggregator[] stripes;
+	/** The mask that turns a partition key hash into a stripe index. */
+	private final int stripeMask;
+	/** The record pool shared by all stripes, or null if pooling is disabled. */
+	private final AggRecordPool recordPool;
+	/** The flusher shared by all stripes, or null if there is no time limit. */
+	private final ScheduledExecutorService flusher;
+
+	/**
+	 * Construct a new concurrent aggregator with the default configuration and
+	 * twice as many stripes as there are available processors.
+	 */
+	public ConcurrentRecordAggregator() {
+		this(new RecordAggregatorConfig());
+	}
+
+	/**
+	 * Construct a new concurrent aggregator with twice as many stripes as
+	 * there are available processors.
+	 * 
+	 * @param config
+	 *            The configuration options for the aggregated record of each
+	 *            stripe.
+	 */
+	public ConcurrentRecordAggregator(RecordAggregatorConfig config) {
+		this(config, 2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Construct a new concurrent aggregator.
+	 * 
+	 * @param config
+	 *            The configuration options for the aggregated record of each
+	 *            stripe.
+	 * @param stripeCount
+	 *            The number of independent aggregated records to spread user
+	 *            records over (rounded up to a power of two).
+	 */
+	public ConcurrentRecordAggregator(RecordAggregatorConfig config, int stripeCount) {
+		if (stripeCount <= 0) {
+			throw new IllegalArgumentException("Stripe count must be positive, got " + stripeCount);
+		}
+
+		int stripes = Integer.highestOneBit(stripeCount);
+		if (stripes < stripeCount) {
+			stripes <<= 1;
+		}
+
+		this.recordPool = RecordAggregator.createRecordPool(config);
+		this.flusher = RecordAggregator.createFlusher(config);
+		this.stripes = new RecordAggregator[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new RecordAggregator(config, this.recordPool, this.flusher, false);
+		}
+		this.stripeMask = stripes - 1;
+	}
+
+	/**
+	 * @return The number of stripes user records are spread over.
+	 */
+	public int getStripeCount() {
+		return this.stripes.length;
+	}
+
+	/**
+	 * @return The number of user records buffered across all stripes. Only a
+	 *         snapshot while other threads are adding user records.
+	 */
+	public int getNumUserRecords() {
+		int numUserRecords = 0;
+		for (RecordAggregator stripe : this.stripes) {
+			numUserRecords += stripe.getNumUserRecords();
+		}
+		return numUserRecords;
+	}
+
+	/**
+	 * Register a callback method to be notified when an aggregated record is
+	 * complete. Callbacks registered via this method are executed on a
+	 * separate thread from the common ForkJoin pool.
+	 * 
+	 * @param listener
+	 *            The listener to receive a callback when there is a complete
+	 *            aggregated record available (can be a lambda function).
+	 */
+	public void onRecordComplete(RecordCompleteListener listener) {
+		onRecordComplete(listener, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Register a callback method to be notified when an aggregated record is
+	 * complete and invoke the callback using the specified executor.
+	 * 
+	 * @param listener
+	 *            The listener to receive a callback when there is a complete
+	 *            aggregated record available (can be a lambda function).
+	 * @param executor
+	 *            The executor to use to execute the callback.
+	 */
+	public void onRecordComplete(RecordCompleteListener listener, Executor executor) {
+		for (RecordAggregator stripe : this.stripes) {
+			stripe.onRecordComplete(listener, executor);
+		}
+	}
+
+	/**
+	 * Clear all the listeners from this object that were registered with the
+	 * onRecordComplete method.
+	 */
+	public void clearListeners() {
+		for (RecordAggregator stripe : this.stripes) {
+			stripe.clearListeners();
+		}
+	}
+
+	/**
+	 * Add a new user record (will trigger a callback via onRecordComplete if
+	 * the aggregated record of its stripe is full). The user record data is
+	 * the remaining content of the record's data buffer.
+	 * 
+	 * @param userRecord
+	 *            The Kinesis user record to add
+	 * @return A AggRecord if the aggregated record of the user record's stripe
+	 *         was completed and is ready to be transmitted or null otherwise.
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record
+	 */
+	public AggRecord addUserRecord(UserRecord userRecord) throws Exception {
+		if (userRecord == null) {
+			throw new IllegalArgumentException("Input user record cannot be null.");
+		}
+		return stripeFor(userRecord.getPartitionKey()).addUserRecord(userRecord);
+	}
+
+	/**
+	 * Add a new user record (will trigger a callback via onRecordComplete if
+	 * the aggregated record of its stripe is full).
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param data
+	 *            The record data of the record to add
+	 * @return A AggRecord if the aggregated record of the user record's stripe
+	 *         was completed and is ready to be transmitted or null otherwise.
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record
+	 */
+	public AggRecord addUserRecord(String partitionKey, byte[] data) throws Exception {
+		return stripeFor(partitionKey).addUserRecord(partitionKey, null, data);
+	}
+
+	/**
+	 * Add a new user record (will trigger a callback via onRecordComplete if
+	 * the aggregated record of its stripe is full).
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add
+	 * @param data
+	 *            The record data of the record to add
+	 * @return A AggRecord if the aggregated record of the user record's stripe
+	 *         was completed and is ready to be transmitted or null otherwise.
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record
+	 */
+	public AggRecord addUserRecord(String partitionKey, String explicitHashKey, byte[] data) throws Exception {
+		return stripeFor(partitionKey).addUserRecord(partitionKey, explicitHashKey, data);
+	}
+
+	/**
+	 * Add a new user record (will trigger a callback via onRecordComplete if
+	 * the aggregated record of its stripe is full). Only the specified range
+	 * of the data array is added.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add
+	 * @param data
+	 *            An array containing the record data of the record to add
+	 * @param offset
+	 *            The index of the first byte of record data in the array
+	 * @param length
+	 *            The number of bytes of record data in the array
+	 * @return A AggRecord if the aggregated record of the user record's stripe
+	 *         was completed and is ready to be transmitted or null otherwise.
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record
+	 */
+	public AggRecord addUserRecord(String partitionKey, String explicitHashKey, byte[] data, int offset, int length)
+			throws Exception {
+		return stripeFor(partitionKey).addUserRecord(partitionKey, explicitHashKey, data, offset, length);
+	}
+
+	/**
+	 * Add a new user record (will trigger a callback via onRecordComplete if
+	 * the aggregated record of its stripe is full). The record data is the
+	 * remaining content of the (possibly direct) buffer, whose position is not
+	 * changed.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add
+	 * @param data
+	 *            A buffer containing the record data of the record to add
+	 * @return A AggRecord if the aggregated record of the user record's stripe
+	 *         was completed and is ready to be transmitted or null otherwise.
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record
+	 */
+	public AggRecord addUserRecord(String partitionKey, String explicitHashKey, ByteBuffer data) throws Exception {
+		return stripeFor(partitionKey).addUserRecord(partitionKey, explicitHashKey, data);
+	}
+
+	/**
+	 * Add a new user record (will trigger a callback via onRecordComplete if
+	 * the aggregated record of its stripe is full). The explicit hash key is
+	 * supplied as an unsigned 128-bit value split into two 64-bit words.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKeyHigh
+	 *            The most significant 64 bits of the explicit hash key of the
+	 *            record to add
+	 * @param explicitHashKeyLow
+	 *            The least significant 64 bits of the explicit hash key of the
+	 *            record to add
+	 * @param data
+	 *            The record data of the record to add
+	 * @return A AggRecord if the aggregated record of the user record's stripe
+	 *         was completed and is ready to be transmitted or null otherwise.
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record
+	 */
+	public AggRecord addUserRecord(String partitionKey, long explicitHashKeyHigh, long explicitHashKeyLow,
+			byte[] data) throws Exception {
+		return stripeFor(partitionKey).addUserRecord(partitionKey, explicitHashKeyHigh, explicitHashKeyLow, data);
+	}
+
+	/**
+	 * Add a new user record (will trigger a callback via onRecordComplete if
+	 * the aggregated record of its stripe is full). The explicit hash key is
+	 * supplied as an unsigned 128-bit value split into two 64-bit words and
+	 * the record data is the remaining content of the (possibly direct)
+	 * buffer, whose position is not changed.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKeyHigh
+	 *            The most significant 64 bits of the explicit hash key of the
+	 *            record to add
+	 * @param explicitHashKeyLow
+	 *            The least significant 64 bits of the explicit hash key of the
+	 *            record to add
+	 * @param data
+	 *            A buffer containing the record data of the record to add
+	 * @return A AggRecord if the aggregated record of the user record's stripe
+	 *         was completed and is ready to be transmitted or null otherwise.
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record
+	 */
+	public AggRecord addUserRecord(String partitionKey, long explicitHashKeyHigh, long explicitHashKeyLow,
+			ByteBuffer data) throws Exception {
+		return stripeFor(partitionKey).addUserRecord(partitionKey, explicitHashKeyHigh, explicitHashKeyLow, data);
+	}
+
+	/**
+	 * Add a new user record to the aggregated record of its stripe and get a
+	 * handle that completes once it has been written to Kinesis, as described
+	 * for RecordAggregator.addTrackedUserRecord.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add, or null
+	 * @param data
+	 *            The record data of the record to add
+	 * @return The handle of the user record.
+	 * @throws IllegalStateException
+	 *             If no listeners are registered.
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record
+	 */
+	public CompletableFuture<UserRecordResult> addTrackedUserRecord(String partitionKey, String explicitHashKey,
+			byte[] data) throws Exception {
+		return stripeFor(partitionKey).addTrackedUserRecord(partitionKey, explicitHashKey, data);
+	}
+
+	/**
+	 * Add a new user record to the aggregated record of its stripe and get a
+	 * handle that completes once it has been written to Kinesis, as described
+	 * for RecordAggregator.addTrackedUserRecord. The record data is the
+	 * remaining content of the buffer, whose position is not changed.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add, or null
+	 * @param data
+	 *            A buffer containing the record data of the record to add
+	 * @return The handle of the user record.
+	 * @throws IllegalStateException
+	 *             If no listeners are registered.
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record
+	 */
+	public CompletableFuture<UserRecordResult> addTrackedUserRecord(String partitionKey, String explicitHashKey,
+			ByteBuffer data) throws Exception {
+		return stripeFor(partitionKey).addTrackedUserRecord(partitionKey, explicitHashKey, data);
+	}
+
+	/**
+	 * Complete the aggregated records of all stripes (whether full or not) and
+	 * notify the listeners.
+	 */
+	public void flush() {
+		for (RecordAggregator stripe : this.stripes) {
+			stripe.flush();
+		}
+	}
+
+	/**
+	 * Get the current contents of every stripe as aggregated records (whether
+	 * full or not) and clear the stripes. The listeners are not notified.
+	 * 
+	 * @return The aggregated records of all non-empty stripes.
+	 */
+	public List<AggRecord> clearAndGet() {
+		List<AggRecord> records = new ArrayList<>();
+		for (RecordAggregator stripe : this.stripes) {
+			AggRecord record = stripe.clearAndGet();
+			if (record != null) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Hand a completed aggregated record back once it has been transmitted so
+	 * that it can be reused. This method only has an effect if record pooling
+	 * was enabled and follows the same rules as RecordAggregator.recycle(...).
+	 * 
+	 * @param aggRecord
+	 *            The completed aggregated record to recycle.
+	 */
+	public void recycle(AggRecord aggRecord) {
+		if (this.recordPool == null || aggRecord == null) {
+			return;
+		}
+
+		this.recordPool.release(aggRecord);
+	}
+
+	/**
+	 * Stop the background thread that flushes aged records, if a maximum
+	 * buffered time was configured. Any user records that are still buffered
+	 * are left in place, so call flush() first if they need to be
+	 * transmitted.
+	 */
+	@Override
+	public void close() {
+		if (this.flusher != null) {
+			this.flusher.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return The stripe that all user records with the partition key go to.
+	 */
+	private RecordAggregator stripeFor(String partitionKey) {
+		AggRecord.validatePartitionKey(partitionKey);
+
+		int hash = partitionKey.hashCode() * 0x9E3779B9;
+		return this.stripes[(hash ^ (hash >>> 16)) & this.stripeMask];
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.ByteBuffer;
+
+import com.amazonaws.annotation.ThreadSafe;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+
+/**
+ * A completed aggregated record that has been serialized, ready to be sent
+ * to Kinesis. Unlike an AggRecord it holds no builder state and is never
+ * recycled, so it can be kept and shared freely. Whoever sends it reports the
+ * result with completeUserRecords or failUserRecords, which completes the
+ * handles of its tracked user records.
+ * 
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public final class EncodedRecord {
+	private final String partitionKey;
+	private final String explicitHashKey;
+	private final byte[] data;
+	private final int numUserRecords;
+	private final FlushReason flushReason;
+	private final long sequenceNumber;
+	/** The handles of the tracked user records, or null. */
+	private final UserRecordFutures futures;
+
+	/**
+	 * Serialize a completed aggregated record.
+	 * 
+	 * @param aggRecord
+	 *            The completed aggregated record.
+	 * @param sequenceNumber
+	 *            The position of the record in the order records were
+	 *            completed.
+	 */
+	EncodedRecord(AggRecord aggRecord, long sequenceNumber) {
+		this.partitionKey = aggRecord.getPartitionKey();
+		this.explicitHashKey = aggRecord.getExplicitHashKey();
+		this.data = aggRecord.toRecordBytes();
+		this.numUserRecords = aggRecord.getNumUserRecords();
+		this.flushReason = aggRecord.getFlushReason();
+		this.sequenceNumber = sequenceNumber;
+		this.futures = aggRecord.detachUserRecordFutures();
+	}
+
+	/**
+	 * @return The partition key of the aggregated record.
+	 */
+	public String getPartitionKey() {
+		return this.partitionKey;
+	}
+
+	/**
+	 * @return The explicit hash key of the aggregated record.
+	 */
+	public String getExplicitHashKey() {
+		return this.explicitHashKey;
+	}
+
+	/**
+	 * @return A read-only view of the serialized aggregated record.
+	 */
+	public ByteBuffer getData() {
+		return ByteBuffer.wrap(this.data).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return The size in bytes of the serialized aggregated record.
+	 */
+	public int getSizeBytes() {
+		return this.data.length;
+	}
+
+	/**
+	 * @return The number of user records in the aggregated record.
+	 */
+	public int getNumUserRecords() {
+		return this.numUserRecords;
+	}
+
+	/**
+	 * @return Why the aggregated record was completed.
+	 */
+	public FlushReason getFlushReason() {
+		return this.flushReason;
+	}
+
+	/**
+	 * @return The position of this record in the order in which its encoder
+	 *         received completed records, starting at 0.
+	 */
+	public long getSequenceNumber() {
+		return this.sequenceNumber;
+	}
+
+	/**
+	 * Report that this record has been written to Kinesis, completing the
+	 * handles of its tracked user records. Has no effect if the result has
+	 * already been reported.
+	 * 
+	 * @param shardId
+	 *            The shard the record was written to.
+	 * @param sequenceNumber
+	 *            The sequence number Kinesis assigned to the record.
+	 */
+	public void completeUserRecords(String shardId, String sequenceNumber) {
+		if (this.futures != null) {
+			this.futures.complete(shardId, sequenceNumber);
+		}
+	}
+
+	/**
+	 * Report that this record could not be written to Kinesis, completing the
+	 * handles of its tracked user records exceptionally. Has no effect if the
+	 * result has already been reported.
+	 * 
+	 * @param cause
+	 *            Why the record could not be written.
+	 */
+	public void failUserRecords(Throwable cause) {
+		if (this.futures != null) {
+			this.futures.fail(cause);
+		}
+	}
+
+	/**
+	 * @return A PutRecordRequest for the serialized aggregated record.
+	 */
+	public PutRecordRequest toPutRecordRequest(String streamName) {
+		return new PutRecordRequest().withStreamName(streamName).withExplicitHashKey(this.explicitHashKey)
+				.withPartitionKey(this.partitionKey).withData(ByteBuffer.wrap(this.data));
+	}
+
+	/**
+	 * @return A PutRecordsRequestEntry for the serialized aggregated record.
+	 */
+	public PutRecordsRequestEntry toPutRecordsRequestEntry() {
+		return new PutRecordsRequestEntry().withExplicitHashKey(this.explicitHashKey)
+				.withPartitionKey(this.partitionKey).withData(ByteBuffer.wrap(this.data));
+	}
+}
@@ -0,0 +1,229 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.math.BigInteger;
+
+/**
+ * Helper methods for working with 128-bit Kinesis explicit hash keys as a pair
+ * of unsigned 64-bit words (high and low) instead of as BigIntegers. None of
+ * these methods allocate on their common paths, which matters because an
+ * explicit hash key is computed or validated for every user record.
+ */
+final class ExplicitHashKeys {
+	/** The maximum number of decimal digits in an unsigned 128-bit value. */
+	static final int MAX_DECIMAL_DIGITS = 39;
+
+	/** The number of bytes in a 128-bit explicit hash key. */
+	static final int HASH_KEY_BYTES = 16;
+
+	private static final long MASK_32 = 0xFFFFFFFFL;
+	private static final long CHUNK_DIVISOR = 1_000_000_000L;
+	private static final int CHUNK_DIGITS = 9;
+	private static final long MAX_HIGH_BEFORE_MULTIPLY = 0x1999999999999999L;
+	private static final BigInteger UINT_128_MAX = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+	private ExplicitHashKeys() {
+	}
+
+	/**
+	 * Read the high 64 bits of a big-endian 128-bit value (e.g. an MD5
+	 * digest).
+	 *
+	 * @param bytes
+	 *            The array holding the value.
+	 * @param offset
+	 *            The index of the first (most significant) byte of the value.
+	 * @return The most significant 64 bits of the value.
+	 */
+	static long high(byte[] bytes, int offset) {
+		return readLong(bytes, offset);
+	}
+
+	/**
+	 * Read the low 64 bits of a big-endian 128-bit value (e.g. an MD5
+	 * digest).
+	 *
+	 * @param bytes
+	 *            The array holding the value.
+	 * @param offset
+	 *            The index of the first (most significant) byte of the value.
+	 * @return The least significant 64 bits of the value.
+	 */
+	static long low(byte[] bytes, int offset) {
+		return readLong(bytes, offset + 8);
+	}
+
+	private static long readLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Compare two unsigned 128-bit values.
+	 *
+	 * @return A negative number, zero or a positive number if the first value
+	 *         is less than, equal to or greater than the second value.
+	 */
+	static int compare(long highA, long lowA, long highB, long lowB) {
+		int result = Long.compareUnsigned(highA, highB);
+		return result != 0 ? result : Long.compareUnsigned(lowA, lowB);
+	}
+
+	/**
+	 * Convert an unsigned 128-bit value to its base 10 string representation
+	 * (the same output as BigInteger.toString(10)).
+	 *
+	 * @param high
+	 *            The most significant 64 bits of the value.
+	 * @param low
+	 *            The least significant 64 bits of the value.
+	 * @param scratch
+	 *            A reusable buffer of at least MAX_DECIMAL_DIGITS characters.
+	 * @return The decimal representation of the value.
+	 */
+	static String toDecimalString(long high, long low, char[] scratch) {
+		if (high == 0 && low >= 0) {
+			return Long.toString(low);
+		}
+
+		// split into four 32-bit limbs and repeatedly divide by 10^9; each
+		// partial remainder stays below 10^9 so (remainder << 32 | limb) always
+		// fits in a signed long
+		long l3 = high >>> 32;
+		long l2 = high & MASK_32;
+		long l1 = low >>> 32;
+		long l0 = low & MASK_32;
+
+		int pos = scratch.length;
+		while ((l3 | l2 | l1) != 0 || l0 >= CHUNK_DIVISOR) {
+			long r = l3 % CHUNK_DIVISOR;
+			l3 = l3 / CHUNK_DIVISOR;
+			long n = (r << 32) | l2;
+			l2 = n / CHUNK_DIVISOR;
+			r = n % CHUNK_DIVISOR;
+			n = (r << 32) | l1;
+			l1 = n / CHUNK_DIVISOR;
+			r = n % CHUNK_DIVISOR;
+			n = (r << 32) | l0;
+			l0 = n / CHUNK_DIVISOR;
+			r = n % CHUNK_DIVISOR;
+
+			for (int i = 0; i < CHUNK_DIGITS; i++) {
+				scratch[--pos] = (char) ('0' + (r % 10));
+				r /= 10;
+			}
+		}
+
+		// the most significant chunk is written without leading zeros
+		do {
+			scratch[--pos] = (char) ('0' + (l0 % 10));
+			l0 /= 10;
+		} while (l0 != 0);
+
+		return new String(scratch, pos, scratch.length - pos);
+	}
+
+	/**
+	 * Parse and validate a base 10 explicit hash key, storing the result as two
+	 * unsigned 64-bit words. Accepts exactly the inputs that
+	 * {@code new BigInteger(explicitHashKey)} accepts and that fall in the
+	 * range [0, 2^128 - 1].
+	 *
+	 * @param explicitHashKey
+	 *            The explicit hash key to parse.
+	 * @param out
+	 *            A two element array that receives the high (index 0) and low
+	 *            (index 1) words of the parsed value.
+	 * @throws IllegalArgumentException
+	 *             If the input is not an integer or is out of range.
+	 */
+	static void parse(String explicitHashKey, long[] out) {
+		int length = explicitHashKey.length();
+		int start = 0;
+		boolean negative = false;
+		if (length > 0 && (explicitHashKey.charAt(0) == '-' || explicitHashKey.charAt(0) == '+')) {
+			negative = explicitHashKey.charAt(0) == '-';
+			start = 1;
+		}
+		if (start == length) {
+			throw notAnInteger(explicitHashKey);
+		}
+
+		long high = 0;
+		long low = 0;
+		for (int i = start; i < length; i++) {
+			int digit = explicitHashKey.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				// non-ASCII digits are rare enough to leave to BigInteger
+				parseSlow(explicitHashKey, out);
+				return;
+			}
+
+			// (high, low) = (high, low) * 10 + digit
+			long lowLow = (low & MASK_32) * 10 + digit;
+			long lowHigh = (low >>> 32) * 10 + (lowLow >>> 32);
+			low = (lowHigh << 32) | (lowLow & MASK_32);
+			long carry = lowHigh >>> 32;
+
+			if (Long.compareUnsigned(high, MAX_HIGH_BEFORE_MULTIPLY) > 0) {
+				throw outOfRange(explicitHashKey);
+			}
+			long multiplied = high * 10;
+			high = multiplied + carry;
+			if (Long.compareUnsigned(high, multiplied) < 0) {
+				throw outOfRange(explicitHashKey);
+			}
+		}
+
+		if (negative && (high | low) != 0) {
+			throw outOfRange(explicitHashKey);
+		}
+
+		out[0] = high;
+		out[1] = low;
+	}
+
+	private static void parseSlow(String explicitHashKey, long[] out) {
+		BigInteger b;
+		try {
+			b = new BigInteger(explicitHashKey);
+		} catch (NumberFormatException e) {
+			throw notAnInteger(explicitHashKey);
+		}
+
+		if (b.compareTo(UINT_128_MAX) > 0 || b.compareTo(BigInteger.ZERO) < 0) {
+			throw outOfRange(explicitHashKey);
+		}
+
+		out[0] = b.shiftRight(64).longValue();
+		out[1] = b.longValue();
+	}
+
+	private static IllegalArgumentException notAnInteger(String explicitHashKey) {
+		return new IllegalArgumentException("Invalid explicitHashKey, must be an integer, got " + explicitHashKey);
+	}
+
+	private static IllegalArgumentException outOfRange(String explicitHashKey) {
+		return new IllegalArgumentException(
+				"Invalid explicitHashKey, must be greater or equal to zero and less than or equal to (2^128 - 1), got "
+						+ explicitHashKey);
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.Arrays;
+
+import com.amazonaws.annotation.GuardedBy;
+import com.amazonaws.annotation.ThreadSafe;
+
+/**
+ * Statistics about how full completed aggregated records are, relative to a
+ * capacity such as the configured maximum aggregate size. The fill ratio of a
+ * record is its size divided by the capacity; Kinesis bills PUT payload units
+ * of 25 KB per record, so records that ship half-empty cost more units (and
+ * more requests) per user record than full ones.
+ * 
+ * A PackingRecordAggregator keeps one of these for the records it completes.
+ * To compare it with another aggregator, record the size of each completed
+ * record from a listener:
+ * 
+ * <pre>
+ * FillRatioStats stats = new FillRatioStats(config.getMaxAggregateSizeBytes());
+ * aggregator.onRecordComplete(aggRecord -&gt; stats.record(aggRecord.getSizeBytes()), Runnable::run);
+ * </pre>
+ * 
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public final class FillRatioStats {
+	/** The size of a Kinesis PUT payload unit in bytes. */
+	public static final int PUT_PAYLOAD_UNIT_BYTES = 25 * 1024;
+
+	/** The number of buckets the fill ratio histogram has. */
+	public static final int HISTOGRAM_BUCKETS = 10;
+
+	private final int capacityBytes;
+	@GuardedBy("this")
+	private long recordCount;
+	@GuardedBy("this")
+	private long totalBytes;
+	@GuardedBy("this")
+	private long putPayloadUnits;
+	@GuardedBy("this")
+	private long minBytes = Long.MAX_VALUE;
+	@GuardedBy("this")
+	private long maxBytes;
+	@GuardedBy("this")
+	private final long[] histogram = new long[HISTOGRAM_BUCKETS];
+
+	/**
+	 * @param capacityBytes
+	 *            The size in bytes that counts as a completely full record.
+	 */
+	public FillRatioStats(int capacityBytes) {
+		if (capacityBytes <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.capacityBytes = capacityBytes;
+	}
+
+	/**
+	 * Record the size of a completed aggregated record.
+	 * 
+	 * @param sizeBytes
+	 *            The size of the record in bytes.
+	 */
+	public synchronized void record(long sizeBytes) {
+		this.recordCount++;
+		this.totalBytes += sizeBytes;
+		this.putPayloadUnits += Math.max(1, (sizeBytes + PUT_PAYLOAD_UNIT_BYTES - 1) / PUT_PAYLOAD_UNIT_BYTES);
+		this.minBytes = Math.min(this.minBytes, sizeBytes);
+		this.maxBytes = Math.max(this.maxBytes, sizeBytes);
+		int bucket = (int) (sizeBytes * HISTOGRAM_BUCKETS / this.capacityBytes);
+		this.histogram[Math.max(0, Math.min(bucket, HISTOGRAM_BUCKETS - 1))]++;
+	}
+
+	/**
+	 * @return The size in bytes that counts as a completely full record.
+	 */
+	public int getCapacityBytes() {
+		return this.capacityBytes;
+	}
+
+	/**
+	 * @return The number of records recorded.
+	 */
+	public synchronized long getRecordCount() {
+		return this.recordCount;
+	}
+
+	/**
+	 * @return The total size of the records recorded, in bytes.
+	 */
+	public synchronized long getTotalBytes() {
+		return this.totalBytes;
+	}
+
+	/**
+	 * @return The number of 25 KB PUT payload units Kinesis bills for the
+	 *         records recorded.
+	 */
+	public synchronized long getPutPayloadUnits() {
+		return this.putPayloadUnits;
+	}
+
+	/**
+	 * @return The average fill ratio of the records recorded, or 0 if there
+	 *         are none.
+	 */
+	public synchronized double getMeanFillRatio() {
+		return this.recordCount == 0 ? 0 : (double) this.totalBytes / this.recordCount / this.capacityBytes;
+	}
+
+	/**
+	 * @return The fill ratio of the emptiest record recorded, or 0 if there
+	 *         are none.
+	 */
+	public synchronized double getMinFillRatio() {
+		return this.recordCount == 0 ? 0 : (double) this.minBytes / this.capacityBytes;
+	}
+
+	/**
+	 * @return The fill ratio of the fullest record recorded, or 0 if there
+	 *         are none.
+	 */
+	public synchronized double getMaxFillRatio() {
+		return (double) this.maxBytes / this.capacityBytes;
+	}
+
+	/**
+	 * @return The number of records recorded per tenth of the capacity: index
+	 *         0 counts records less than 10% full, index 9 those at least 90%
+	 *         full.
+	 */
+	public synchronized long[] getHistogram() {
+		return Arrays.copyOf(this.histogram, HISTOGRAM_BUCKETS);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("records=%d, meanFill=%.3f, minFill=%.3f, maxFill=%.3f, putPayloadUnits=%d, histogram=%s",
+				this.recordCount, getMeanFillRatio(), getMinFillRatio(), getMaxFillRatio(), this.putPayloadUnits,
+				Arrays.toString(this.histogram));
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+/**
+ * The reasons a RecordAggregator completes an aggregated record and hands it
+ * to its listeners (or returns it to the caller).
+ * 
+ * @see AggRecord#getFlushReason()
+ */
+public enum FlushReason {
+	/**
+	 * The next user record did not fit in the aggregated record, either
+	 * because of the Kinesis record size limit or the configured maximum
+	 * aggregate size.
+	 */
+	SIZE,
+	/**
+	 * The aggregated record reached the configured maximum number of user
+	 * records.
+	 */
+	COUNT,
+	/**
+	 * The oldest user record in the aggregated record had been buffered for
+	 * the configured maximum buffered time.
+	 */
+	AGE,
+	/**
+	 * The shards of the stream changed and the aggregated record was routed
+	 * with the previous shard map (only used by the ShardedRecordAggregator).
+	 */
+	RESHARD,
+	/**
+	 * The application asked for the aggregated record via clearAndGet() or
+	 * flush().
+	 */
+	MANUAL
+}
@@ -0,0 +1,171 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.Arrays;
+
+import com.amazonaws.annotation.NotThreadSafe;
+
+/**
+ * The table of unique explicit hash keys of an aggregated Kinesis record,
+ * keyed by their unsigned 128-bit values rather than their decimal strings.
+ * Keys are assigned consecutive indexes in the order they are added,
+ * matching their positions in the protobuf key table.
+ *
+ * Like KeyTable, lookups use an open-addressing hash index over an int array,
+ * but comparing a key costs two long comparisons, so looking up an explicit
+ * hash key allocates nothing and its decimal form only has to be produced
+ * when it is first added. The backing arrays are kept across clear() calls.
+ *
+ * This class is NOT thread-safe.
+ */
+@NotThreadSafe
+final class HashKeyTable {
+	/** The initial number of keys the table can hold before growing. */
+	private static final int INITIAL_KEY_CAPACITY = 16;
+
+	/** The most significant 64 bits of each key, ordered by index. */
+	private long[] highs;
+	/** The least significant 64 bits of each key, ordered by index. */
+	private long[] lows;
+	/** The UTF-8 encoded length of each key, ordered by index. */
+	private int[] encodedLengths;
+	/**
+	 * The open-addressing hash index. Each slot holds (key index + 1), or 0
+	 * if the slot is empty. Always at least twice as large as the key
+	 * capacity so the load factor stays at or below one half.
+	 */
+	private int[] slots;
+	/** The number of keys in this table. */
+	private int size;
+
+	/**
+	 * Create a new empty key table.
+	 */
+	HashKeyTable() {
+		this.highs = new long[INITIAL_KEY_CAPACITY];
+		this.lows = new long[INITIAL_KEY_CAPACITY];
+		this.encodedLengths = new int[INITIAL_KEY_CAPACITY];
+		this.slots = new int[INITIAL_KEY_CAPACITY * 2];
+		this.size = 0;
+	}
+
+	/**
+	 * @return The number of keys in this table.
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Find the index of a key in this table.
+	 *
+	 * @param high
+	 *            The most significant 64 bits of the key.
+	 * @param low
+	 *            The least significant 64 bits of the key.
+	 * @return The table index of the key, or -1 if the key is not in this
+	 *         table.
+	 */
+	int indexOf(long high, long low) {
+		final int mask = this.slots.length - 1;
+		for (int slot = hash(high, low) & mask;; slot = (slot + 1) & mask) {
+			final int entry = this.slots[slot];
+			if (entry == 0) {
+				return -1;
+			}
+
+			final int index = entry - 1;
+			if (this.lows[index] == low && this.highs[index] == high) {
+				return index;
+			}
+		}
+	}
+
+	/**
+	 * Add a key that is known not to be in this table yet.
+	 *
+	 * @param high
+	 *            The most significant 64 bits of the key.
+	 * @param low
+	 *            The least significant 64 bits of the key.
+	 * @param encodedLength
+	 *            The UTF-8 encoded length of the key's decimal form.
+	 * @return The index assigned to the key.
+	 */
+	int add(long high, long low, int encodedLength) {
+		if (this.size == this.highs.length) {
+			grow();
+		}
+
+		final int index = this.size++;
+		this.highs[index] = high;
+		this.lows[index] = low;
+		this.encodedLengths[index] = encodedLength;
+		insertSlot(hash(high, low), index);
+		return index;
+	}
+
+	/**
+	 * @return The UTF-8 encoded length of the key at the specified table
+	 *         index.
+	 */
+	int getEncodedLength(int index) {
+		return this.encodedLengths[index];
+	}
+
+	/**
+	 * Clear all the contents of this table while keeping its capacity.
+	 */
+	void clear() {
+		Arrays.fill(this.slots, 0);
+		this.size = 0;
+	}
+
+	/**
+	 * Double the capacity of this table and rebuild the hash index.
+	 */
+	private void grow() {
+		final int capacity = this.highs.length * 2;
+		this.highs = Arrays.copyOf(this.highs, capacity);
+		this.lows = Arrays.copyOf(this.lows, capacity);
+		this.encodedLengths = Arrays.copyOf(this.encodedLengths, capacity);
+		this.slots = new int[capacity * 2];
+		for (int i = 0; i < this.size; i++) {
+			insertSlot(hash(this.highs[i], this.lows[i]), i);
+		}
+	}
+
+	private void insertSlot(int hash, int index) {
+		final int mask = this.slots.length - 1;
+		int slot = hash & mask;
+		while (this.slots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		this.slots[slot] = index + 1;
+	}
+
+	/**
+	 * Fold both words of a key into a well spread hash. Explicit hash keys
+	 * derived from MD5 are uniform already, but hand-picked ones (such as
+	 * the starting hash keys of shards) differ only in a few high bits.
+	 */
+	private static int hash(long high, long low) {
+		final long h = (high * 0x9E3779B97F4A7C15L + low) * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
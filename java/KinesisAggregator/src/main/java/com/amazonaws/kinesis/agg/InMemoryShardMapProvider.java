@@ -0,0 +1,59 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import com.amazonaws.annotation.ThreadSafe;
+
+/**
+ * A shard map provider that serves a shard map held in memory. Useful for
+ * tests and for streams with a fixed, known shard layout; a reshard can be
+ * simulated by setting a new shard map.
+ * 
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public class InMemoryShardMapProvider implements ShardMapProvider {
+	/** The shard map to serve. */
+	private volatile ShardMap shardMap;
+
+	/**
+	 * @param shardMap
+	 *            The shard map to serve.
+	 */
+	public InMemoryShardMapProvider(ShardMap shardMap) {
+		setShardMap(shardMap);
+	}
+
+	@Override
+	public ShardMap getShardMap() {
+		return this.shardMap;
+	}
+
+	/**
+	 * Replace the shard map served by this provider, e.g. to simulate a
+	 * reshard.
+	 * 
+	 * @param shardMap
+	 *            The new shard map to serve.
+	 */
+	public void setShardMap(ShardMap shardMap) {
+		if (shardMap == null) {
+			throw new IllegalArgumentException("Shard map cannot be null");
+		}
+		this.shardMap = shardMap;
+	}
+}
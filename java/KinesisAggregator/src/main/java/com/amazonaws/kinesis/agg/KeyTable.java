@@ -0,0 +1,174 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.Arrays;
+
+import com.amazonaws.annotation.NotThreadSafe;
+
+/**
+ * A table of unique partition keys for an aggregated Kinesis record. Keys
+ * are assigned consecutive indexes in the order they are added, matching
+ * their positions in the protobuf key table. (Explicit hash keys are kept in
+ * a HashKeyTable.)
+ *
+ * Lookups use an open-addressing hash index (linear probing over an int
+ * array), so finding a key costs one hash and usually one equals() call rather
+ * than a walk of a sorted map. Adding a key that is already present allocates
+ * nothing, and the backing arrays are kept across clear() calls so a reused
+ * table stops allocating once it has grown to its working size.
+ *
+ * This class is NOT thread-safe.
+ */
+@NotThreadSafe
+final class KeyTable {
+	/** The initial number of keys the table can hold before growing. */
+	private static final int INITIAL_KEY_CAPACITY = 16;
+
+	/** The keys in this table, ordered by index. */
+	private String[] keys;
+	/** The UTF-8 encoded length of each key, ordered by index. */
+	private int[] encodedLengths;
+	/** The mixed hash code of each key, ordered by index. */
+	private int[] hashes;
+	/**
+	 * The open-addressing hash index. Each slot holds (key index + 1), or 0
+	 * if the slot is empty. Always at least twice as large as the key
+	 * capacity so the load factor stays at or below one half.
+	 */
+	private int[] slots;
+	/** The number of keys in this table. */
+	private int size;
+
+	/**
+	 * Create a new empty key table.
+	 */
+	KeyTable() {
+		this.keys = new String[INITIAL_KEY_CAPACITY];
+		this.encodedLengths = new int[INITIAL_KEY_CAPACITY];
+		this.hashes = new int[INITIAL_KEY_CAPACITY];
+		this.slots = new int[INITIAL_KEY_CAPACITY * 2];
+		this.size = 0;
+	}
+
+	/**
+	 * @return The number of keys in this table.
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Find the index of a key in this table.
+	 *
+	 * @param key
+	 *            The key to look up.
+	 * @return The table index of the key, or -1 if the key is not in this
+	 *         table (or is null).
+	 */
+	int indexOf(String key) {
+		if (key == null) {
+			return -1;
+		}
+
+		final int hash = mix(key.hashCode());
+		final int mask = this.slots.length - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			final int entry = this.slots[slot];
+			if (entry == 0) {
+				return -1;
+			}
+
+			final int index = entry - 1;
+			if (this.hashes[index] == hash && this.keys[index].equals(key)) {
+				return index;
+			}
+		}
+	}
+
+	/**
+	 * Add a key that is known not to be in this table yet.
+	 *
+	 * @param key
+	 *            The key to add.
+	 * @param encodedLength
+	 *            The UTF-8 encoded length of the key.
+	 * @return The index assigned to the key.
+	 */
+	int add(String key, int encodedLength) {
+		if (this.size == this.keys.length) {
+			grow();
+		}
+
+		final int index = this.size++;
+		final int hash = mix(key.hashCode());
+		this.keys[index] = key;
+		this.encodedLengths[index] = encodedLength;
+		this.hashes[index] = hash;
+		insertSlot(hash, index);
+		return index;
+	}
+
+	/**
+	 * @return The UTF-8 encoded length of the key at the specified table
+	 *         index.
+	 */
+	int getEncodedLength(int index) {
+		return this.encodedLengths[index];
+	}
+
+	/**
+	 * Clear all the contents of this table while keeping its capacity.
+	 */
+	void clear() {
+		Arrays.fill(this.keys, 0, this.size, null);
+		Arrays.fill(this.slots, 0);
+		this.size = 0;
+	}
+
+	/**
+	 * Double the capacity of this table and rebuild the hash index.
+	 */
+	private void grow() {
+		final int capacity = this.keys.length * 2;
+		this.keys = Arrays.copyOf(this.keys, capacity);
+		this.encodedLengths = Arrays.copyOf(this.encodedLengths, capacity);
+		this.hashes = Arrays.copyOf(this.hashes, capacity);
+		this.slots = new int[capacity * 2];
+		for (int i = 0; i < this.size; i++) {
+			insertSlot(this.hashes[i], i);
+		}
+	}
+
+	private void insertSlot(int hash, int index) {
+		final int mask = this.slots.length - 1;
+		int slot = hash & mask;
+		while (this.slots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		this.slots[slot] = index + 1;
+	}
+
+	/**
+	 * Spread the bits of a String hash code so that keys differing only in
+	 * their high bits still land in different slots.
+	 */
+	private static int mix(int hash) {
+		final int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import com.amazonaws.annotation.ThreadSafe;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+
+/**
+ * A RecordTransport that sends each aggregated record to a Kinesis stream with
+ * its own PutRecord call, and reports the result to the handles of its
+ * tracked user records.
+ * 
+ * This class is thread-safe as long as the Kinesis client is.
+ */
+@ThreadSafe
+public class KinesisRecordTransport implements RecordTransport {
+	/** The client to send records with. */
+	private final AmazonKinesis kinesisClient;
+	/** The stream to send records to. */
+	private final String streamName;
+
+	/**
+	 * Create a transport for a stream.
+	 * 
+	 * @param kinesisClient
+	 *            The client to send records with.
+	 * @param streamName
+	 *            The stream to send records to.
+	 */
+	public KinesisRecordTransport(AmazonKinesis kinesisClient, String streamName) {
+		if (kinesisClient == null || streamName == null) {
+			throw new IllegalArgumentException("Kinesis client and stream name cannot be null");
+		}
+
+		this.kinesisClient = kinesisClient;
+		this.streamName = streamName;
+	}
+
+	@Override
+	public void send(AggRecord aggRecord) {
+		PutRecordResult result = this.kinesisClient.putRecord(aggRecord.toPutRecordRequest(this.streamName));
+		aggRecord.completeUserRecords(result.getShardId(), result.getSequenceNumber());
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.annotation.ThreadSafe;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.StreamDescription;
+
+/**
+ * A shard map provider that reads the shards of a stream from the Kinesis
+ * DescribeStream API. The shard map is read once on construction and then
+ * only when refresh() is called, e.g. periodically from a scheduled executor
+ * or after Kinesis reports that records were sent to a closed shard.
+ * 
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public class KinesisShardMapProvider implements ShardMapProvider {
+	/** The client used to describe the stream. */
+	private final AmazonKinesis kinesisClient;
+	/** The name of the stream. */
+	private final String streamName;
+	/** The most recently read shard map. */
+	private volatile ShardMap shardMap;
+
+	/**
+	 * Create a provider and read the current shards of the stream.
+	 * 
+	 * @param kinesisClient
+	 *            The client to describe the stream with.
+	 * @param streamName
+	 *            The name of the stream.
+	 */
+	public KinesisShardMapProvider(AmazonKinesis kinesisClient, String streamName) {
+		this.kinesisClient = kinesisClient;
+		this.streamName = streamName;
+		refresh();
+	}
+
+	@Override
+	public ShardMap getShardMap() {
+		return this.shardMap;
+	}
+
+	/**
+	 * Read the current shards of the stream. If the set of open shards has not
+	 * changed, the previous shard map is kept so that aggregators keep their
+	 * open aggregated records.
+	 */
+	public synchronized void refresh() {
+		List<Shard> shards = new ArrayList<>();
+		String exclusiveStartShardId = null;
+		StreamDescription description;
+		do {
+			description = this.kinesisClient.describeStream(new DescribeStreamRequest()
+					.withStreamName(this.streamName).withExclusiveStartShardId(exclusiveStartShardId))
+					.getStreamDescription();
+			shards.addAll(description.getShards());
+			if (!shards.isEmpty()) {
+				exclusiveStartShardId = shards.get(shards.size() - 1).getShardId();
+			}
+		} while (description.isHasMoreShards());
+
+		ShardMap latest = ShardMap.fromShards(shards);
+		if (this.shardMap == null || !latest.equals(this.shardMap)) {
+			this.shardMap = latest;
+		}
+	}
+}
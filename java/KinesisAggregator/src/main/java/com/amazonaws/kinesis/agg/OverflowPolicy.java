@@ -0,0 +1,45 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+/**
+ * What a RecordSender does with a completed aggregated record when accepting
+ * it would exceed the configured maximum number of in-flight bytes.
+ * 
+ * @see RecordSenderConfig#withOverflowPolicy(OverflowPolicy)
+ */
+public enum OverflowPolicy {
+	/**
+	 * Block the thread handing over the record until enough in-flight records
+	 * have been sent (or have failed). If the sender is registered as a
+	 * listener with a direct executor, this blocks addUserRecord and so slows
+	 * producers down to the rate the stream accepts.
+	 */
+	BLOCK,
+	/**
+	 * Reject the record straight away: it is reported to the failure listener
+	 * and a RejectedExecutionException is thrown to the thread handing it over.
+	 */
+	FAIL_FAST,
+	/**
+	 * Drop the oldest records that are waiting to be sent to make room, and
+	 * report them to the failure listener. Records that are already being sent
+	 * or waiting for a retry are never dropped; if dropping every waiting
+	 * record would not make enough room, the new record is dropped instead.
+	 */
+	DROP_OLDEST
+}
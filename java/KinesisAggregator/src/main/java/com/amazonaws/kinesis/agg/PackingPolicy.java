@@ -0,0 +1,38 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+/**
+ * How a PackingRecordAggregator chooses which of its open aggregated records
+ * a new user record goes into.
+ * 
+ * @see PackingRecordAggregator
+ */
+public enum PackingPolicy {
+	/**
+	 * Put the user record into the oldest open aggregated record it fits in.
+	 * This keeps the open records close to the order user records arrived in
+	 * and lets the oldest records fill up (and be sent) first.
+	 */
+	FIRST_FIT,
+	/**
+	 * Put the user record into the open aggregated record with the least
+	 * space left that it still fits in, keeping the emptier records free for
+	 * large user records that arrive later.
+	 */
+	BEST_FIT
+}
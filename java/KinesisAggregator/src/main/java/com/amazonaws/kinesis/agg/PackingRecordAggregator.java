@@ -0,0 +1,570 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.annotation.GuardedBy;
+import com.amazonaws.annotation.ThreadSafe;
+import com.amazonaws.kinesis.agg.RecordAggregator.RecordCompleteListener;
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+
+/**
+ * A record aggregator that keeps several aggregated records open at once and
+ * packs each user record into one of them, so that aggregated records ship
+ * fuller when user record sizes vary a lot.
+ * 
+ * A RecordAggregator has a single open record and completes it as soon as
+ * the next user record doesn't fit. With a mix of small and large user
+ * records, a large user record that arrives when the open record is a little
+ * over half full completes it at barely half its capacity. Here the large
+ * user record opens (or goes into) another record instead, and the small
+ * user records that follow keep filling the first one. Which open record a
+ * user record goes into is decided by the PackingPolicy.
+ * 
+ * An open record is completed with:
+ * <ul>
+ * <li>FlushReason.SIZE once it has less space left than the smallest user
+ * record seen so far (only when compression is disabled, as compressed sizes
+ * can't be predicted), or when it is the fullest open record and a user
+ * record fits in none of them while the maximum number of open records are
+ * already open;</li>
+ * <li>FlushReason.COUNT when it reaches the maximum user record count;</li>
+ * <li>FlushReason.AGE once its first user record has been buffered for the
+ * maximum buffered time, which bounds how long packing can hold any user
+ * record back;</li>
+ * <li>FlushReason.MANUAL on flush().</li>
+ * </ul>
+ * All the limits of RecordAggregatorConfig apply to each open record
+ * individually, and the fill ratio of every completed record (relative to the
+ * maximum aggregate size) is collected in getFillRatioStats().
+ * 
+ * Because user records that arrive one after the other may end up in
+ * different aggregated records, which are then completed in a different
+ * order, the order of user records is not preserved, not even for user
+ * records with the same partition key. Use a RecordAggregator where that
+ * order matters.
+ * 
+ * Completed records are only delivered to the listeners registered via
+ * onRecordComplete, so at least one listener must be registered before user
+ * records are added.
+ * 
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public class PackingRecordAggregator implements AutoCloseable {
+	/** The default maximum number of open aggregated records. */
+	public static final int DEFAULT_MAX_OPEN_RECORDS = 4;
+
+	/** The maximum size of each aggregated record. */
+	private final int maxAggregateSizeBytes;
+	/** The maximum number of user records per aggregated record, or 0. */
+	private final int maxUserRecordCount;
+	/** The maximum buffered time per aggregated record, or 0. */
+	private final long maxBufferedTimeNanos;
+	/** The compression of the aggregated records. */
+	private final CompressionMode compressionMode;
+	/** The compression level of the aggregated records. */
+	private final int compressionLevel;
+	/** Whether derived explicit hash keys are left out of the records. */
+	private final boolean omitDerivedExplicitHashKeys;
+	/** Whether the records keep their user records off-heap. */
+	private final boolean offHeapPayloads;
+	/** The maximum number of aggregated records open at once. */
+	private final int maxOpenRecords;
+	/** How user records are placed into the open records. */
+	private final PackingPolicy policy;
+	/** The pool to take new records from, or null if pooling is disabled. */
+	private final AggRecordPool recordPool;
+	/** The executor that completes aged records, or null. */
+	private final ScheduledExecutorService flusher;
+	/** The listeners to notify when a record is complete. */
+	@GuardedBy("this")
+	private final List<ListenerExecutorPair> listeners;
+	/** Hashes partition keys into explicit hash keys. */
+	@GuardedBy("this")
+	private final PartitionKeyHasher partitionKeyHasher;
+	/** Scratch space for the words of a user record's explicit hash key. */
+	@GuardedBy("this")
+	private final long[] hashKey;
+	/** The open records, oldest first. */
+	@GuardedBy("this")
+	private final List<OpenRecord> openRecords;
+	/** The fill ratios of the completed records. */
+	private final FillRatioStats fillRatioStats;
+	/** The data length of the smallest user record added so far. */
+	@GuardedBy("this")
+	private int minDataLength = Integer.MAX_VALUE;
+
+	/**
+	 * Construct a new packing record aggregator with the default
+	 * configuration, DEFAULT_MAX_OPEN_RECORDS open records and
+	 * PackingPolicy.BEST_FIT.
+	 */
+	public PackingRecordAggregator() {
+		this(new RecordAggregatorConfig(), DEFAULT_MAX_OPEN_RECORDS, PackingPolicy.BEST_FIT);
+	}
+
+	/**
+	 * Construct a new packing record aggregator.
+	 * 
+	 * @param config
+	 *            The configuration options for each open aggregated record.
+	 *            The maximum buffered time should usually be set, as it is
+	 *            the only limit on how long a rarely chosen open record can
+	 *            hold its user records back.
+	 * @param maxOpenRecords
+	 *            The maximum number of aggregated records open at once; with
+	 *            1 this behaves like a RecordAggregator.
+	 * @param policy
+	 *            How to choose the open record for each user record.
+	 */
+	public PackingRecordAggregator(RecordAggregatorConfig config, int maxOpenRecords, PackingPolicy policy) {
+		if (maxOpenRecords < 1) {
+			throw new IllegalArgumentException("Maximum number of open records must be at least 1");
+		}
+		if (policy == null) {
+			throw new IllegalArgumentException("Packing policy cannot be null");
+		}
+
+		this.maxAggregateSizeBytes = config.getMaxAggregateSizeBytes();
+		this.maxUserRecordCount = config.getMaxUserRecordCount();
+		this.maxBufferedTimeNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxBufferedTimeMillis());
+		this.compressionMode = config.getCompression();
+		this.compressionLevel = config.getCompressionLevel();
+		this.omitDerivedExplicitHashKeys = config.isOmitDerivedExplicitHashKeys();
+		this.offHeapPayloads = config.isOffHeapPayloads();
+		this.maxOpenRecords = maxOpenRecords;
+		this.policy = policy;
+		this.recordPool = RecordAggregator.createRecordPool(config);
+		this.flusher = RecordAggregator.createFlusher(config);
+		this.listeners = new LinkedList<>();
+		this.hashKey = new long[2];
+		this.openRecords = new ArrayList<>(maxOpenRecords);
+		this.fillRatioStats = new FillRatioStats(this.maxAggregateSizeBytes);
+		try {
+			this.partitionKeyHasher = new PartitionKeyHasher(MessageDigest.getInstance(AggRecord.MESSAGE_DIGEST_NAME));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Could not create an MD5 message digest.", e);
+		}
+	}
+
+	/**
+	 * @return The fill ratios of the aggregated records completed so far.
+	 */
+	public FillRatioStats getFillRatioStats() {
+		return this.fillRatioStats;
+	}
+
+	/**
+	 * @return The number of aggregated records currently open.
+	 */
+	public synchronized int getOpenRecordCount() {
+		return this.openRecords.size();
+	}
+
+	/**
+	 * @return The number of user records buffered across all open records.
+	 */
+	public synchronized int getNumUserRecords() {
+		int numUserRecords = 0;
+		for (OpenRecord open : this.openRecords) {
+			numUserRecords += open.record.getNumUserRecords();
+		}
+		return numUserRecords;
+	}
+
+	/**
+	 * Register a callback method to be notified when an aggregated record is
+	 * complete. Callbacks registered via this method are executed on a
+	 * separate thread from the common ForkJoin pool.
+	 * 
+	 * @param listener
+	 *            The listener to receive a callback when there is a complete
+	 *            aggregated record available (can be a lambda function).
+	 */
+	public void onRecordComplete(RecordCompleteListener listener) {
+		onRecordComplete(listener, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Register a callback method to be notified when an aggregated record is
+	 * complete and invoke the callback using the specified executor.
+	 * 
+	 * @param listener
+	 *            The listener to receive a callback when there is a complete
+	 *            aggregated record available (can be a lambda function).
+	 * @param executor
+	 *            The executor to use to execute the callback.
+	 */
+	public synchronized void onRecordComplete(RecordCompleteListener listener, Executor executor) {
+		this.listeners.add(new ListenerExecutorPair(listener, executor));
+	}
+
+	/**
+	 * Clear all the listeners from this object that were registered with the
+	 * onRecordComplete method.
+	 */
+	public synchronized void clearListeners() {
+		this.listeners.clear();
+	}
+
+	/**
+	 * Add a new user record. The user record data is the remaining content of
+	 * the record's data buffer.
+	 * 
+	 * @param userRecord
+	 *            The Kinesis user record to add.
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record.
+	 */
+	public void addUserRecord(UserRecord userRecord) throws Exception {
+		if (userRecord == null) {
+			throw new IllegalArgumentException("Input user record cannot be null.");
+		}
+		addUserRecord(userRecord.getPartitionKey(), userRecord.getExplicitHashKey(), userRecord.getData());
+	}
+
+	/**
+	 * Add a new user record whose explicit hash key is the hash of its
+	 * partition key.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param data
+	 *            The record data of the record to add
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record.
+	 */
+	public void addUserRecord(String partitionKey, byte[] data) throws Exception {
+		addUserRecord(partitionKey, null, data);
+	}
+
+	/**
+	 * Add a new user record.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add, or null
+	 * @param data
+	 *            The record data of the record to add
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record.
+	 */
+	public synchronized void addUserRecord(String partitionKey, String explicitHashKey, byte[] data)
+			throws Exception {
+		add(partitionKey, explicitHashKey, data, null, data != null ? data.length : 0);
+	}
+
+	/**
+	 * Add a new user record whose data is the remaining content of a
+	 * (possibly direct) buffer, whose position is not changed.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add, or null
+	 * @param data
+	 *            A buffer containing the record data of the record to add
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record.
+	 */
+	public synchronized void addUserRecord(String partitionKey, String explicitHashKey, ByteBuffer data)
+			throws Exception {
+		add(partitionKey, explicitHashKey, null, data, data != null ? data.remaining() : 0);
+	}
+
+	/**
+	 * Complete all the open records (whether full or not) and notify the
+	 * listeners. This method is useful for flushing buffered user records
+	 * before shutting down.
+	 */
+	public synchronized void flush() {
+		while (!this.openRecords.isEmpty()) {
+			complete(this.openRecords.get(0), FlushReason.MANUAL);
+		}
+	}
+
+	/**
+	 * Hand a completed aggregated record back once it has been transmitted so
+	 * that it can be reused. This method only has an effect if record pooling
+	 * was enabled and follows the same rules as RecordAggregator.recycle(...).
+	 * 
+	 * @param aggRecord
+	 *            The completed aggregated record to recycle.
+	 */
+	public void recycle(AggRecord aggRecord) {
+		if (this.recordPool == null || aggRecord == null) {
+			return;
+		}
+
+		this.recordPool.release(aggRecord);
+	}
+
+	/**
+	 * Stop the background thread that completes aged records, if a maximum
+	 * buffered time was configured. Any user records that are still buffered
+	 * are left in place, so call flush() first if they need to be
+	 * transmitted.
+	 */
+	@Override
+	public void close() {
+		if (this.flusher != null) {
+			this.flusher.shutdownNow();
+		}
+	}
+
+	/**
+	 * Validate a new user record and work out its hash key, leaving it in the
+	 * hashKey scratch array so that it is only computed once however many open
+	 * records are tried (unless it is left out of the records anyway). Also
+	 * completes the open records that have aged.
+	 */
+	private void prepare(String partitionKey, String explicitHashKey, int dataLength) {
+		if (this.listeners.isEmpty()) {
+			throw new IllegalStateException(
+					"A PackingRecordAggregator only delivers records to listeners; register one with onRecordComplete");
+		}
+
+		AggRecord.validatePartitionKey(partitionKey);
+		if (explicitHashKey != null) {
+			ExplicitHashKeys.parse(explicitHashKey, this.hashKey);
+		} else if (!this.omitDerivedExplicitHashKeys) {
+			this.partitionKeyHasher.hash(partitionKey, this.hashKey);
+		}
+
+		if (this.maxBufferedTimeNanos > 0) {
+			long now = System.nanoTime();
+			for (int i = this.openRecords.size() - 1; i >= 0; i--) {
+				OpenRecord open = this.openRecords.get(i);
+				if (now - open.startNanos >= this.maxBufferedTimeNanos) {
+					complete(open, FlushReason.AGE);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add a user record to the open record the packing policy picks, or to a
+	 * newly opened record if it fits in none of them. The data is either an
+	 * array or a buffer, and the other one is null.
+	 */
+	private void add(String partitionKey, String explicitHashKey, byte[] array, ByteBuffer buffer, int length)
+			throws Exception {
+		prepare(partitionKey, explicitHashKey, length);
+		for (OpenRecord open : candidates(length)) {
+			if (addTo(open.record, partitionKey, explicitHashKey, array, buffer)) {
+				userRecordAdded(open, length);
+				return;
+			}
+		}
+
+		// fill the new record before making room for it, so that a user
+		// record too large even for an empty record completes nothing
+		AggRecord record = newRecord();
+		boolean added = false;
+		try {
+			added = addTo(record, partitionKey, explicitHashKey, array, buffer);
+		} finally {
+			if (!added) {
+				discardRecord(record);
+			}
+		}
+		if (!added) {
+			throw RecordAggregator.unableToAdd(partitionKey, explicitHashKey, length);
+		}
+		userRecordAdded(openRecord(record), length);
+	}
+
+	/**
+	 * Try to add a user record to a record, with the hash key prepared by
+	 * prepare(). The data is either an array or a buffer, and the other one
+	 * is null.
+	 * 
+	 * @return True if the user record fits.
+	 */
+	private boolean addTo(AggRecord record, String partitionKey, String explicitHashKey, byte[] array,
+			ByteBuffer buffer) {
+		if (explicitHashKey == null && this.omitDerivedExplicitHashKeys) {
+			return buffer != null ? record.addUserRecord(partitionKey, null, buffer)
+					: record.addUserRecord(partitionKey, null, array);
+		}
+		return buffer != null ? record.addUserRecord(partitionKey, this.hashKey[0], this.hashKey[1], buffer)
+				: record.addUserRecord(partitionKey, this.hashKey[0], this.hashKey[1], array);
+	}
+
+	/**
+	 * @return The open records to try a user record with, in the order of
+	 *         the packing policy. Without compression, records that have less
+	 *         space left than the user record's data are skipped.
+	 */
+	private List<OpenRecord> candidates(int dataLength) {
+		List<OpenRecord> candidates = new ArrayList<>(this.openRecords.size());
+		for (OpenRecord open : this.openRecords) {
+			if (this.compressionMode != CompressionMode.NONE || spaceLeft(open) >= dataLength) {
+				candidates.add(open);
+			}
+		}
+		if (this.policy == PackingPolicy.BEST_FIT) {
+			candidates.sort((a, b) -> Long.compare(spaceLeft(a), spaceLeft(b)));
+		}
+		return candidates;
+	}
+
+	/**
+	 * @return A new empty record, from the pool if pooling is enabled.
+	 */
+	private AggRecord newRecord() {
+		return this.recordPool != null ? this.recordPool.acquire()
+				: new AggRecord(null, this.maxAggregateSizeBytes, this.compressionMode, this.compressionLevel,
+						this.omitDerivedExplicitHashKeys, this.offHeapPayloads);
+	}
+
+	/**
+	 * Hand a new record that was never opened back to the pool.
+	 */
+	private void discardRecord(AggRecord record) {
+		if (this.recordPool != null) {
+			this.recordPool.giveBack(record);
+		}
+	}
+
+	/**
+	 * Open a record that already holds its first user record, completing the
+	 * fullest open record first if the maximum number of records are open.
+	 */
+	private OpenRecord openRecord(AggRecord record) {
+		if (this.openRecords.size() >= this.maxOpenRecords) {
+			OpenRecord fullest = this.openRecords.get(0);
+			for (OpenRecord open : this.openRecords) {
+				if (spaceLeft(open) < spaceLeft(fullest)) {
+					fullest = open;
+				}
+			}
+			complete(fullest, FlushReason.SIZE);
+		}
+
+		OpenRecord open = new OpenRecord(record);
+		this.openRecords.add(open);
+		if (this.flusher != null && !this.flusher.isShutdown()) {
+			open.ageFlush = this.flusher.schedule(() -> completeExpiredRecord(open), this.maxBufferedTimeNanos,
+					TimeUnit.NANOSECONDS);
+		}
+		return open;
+	}
+
+	/**
+	 * Called after a user record has been added to an open record: completes
+	 * the record if it has reached the maximum user record count or can no
+	 * longer take even the smallest user record seen so far.
+	 */
+	private void userRecordAdded(OpenRecord open, int dataLength) {
+		this.minDataLength = Math.min(this.minDataLength, dataLength);
+		if (this.maxUserRecordCount > 0 && open.record.getNumUserRecords() >= this.maxUserRecordCount) {
+			complete(open, FlushReason.COUNT);
+		} else if (this.compressionMode == CompressionMode.NONE && spaceLeft(open) < this.minDataLength) {
+			complete(open, FlushReason.SIZE);
+		}
+	}
+
+	/**
+	 * Run on the flusher thread once an open record has been buffered for the
+	 * maximum buffered time. Completes the record unless it has already been
+	 * completed, or there are no listeners to hand it to.
+	 */
+	private synchronized void completeExpiredRecord(OpenRecord open) {
+		if (!this.listeners.isEmpty() && this.openRecords.contains(open)) {
+			complete(open, FlushReason.AGE);
+		}
+	}
+
+	/**
+	 * Remove an open record and notify all the listeners that it is complete.
+	 */
+	private void complete(OpenRecord open, FlushReason reason) {
+		this.openRecords.remove(open);
+		open.cancelAgeFlush();
+		final AggRecord completeRecord = open.record;
+		completeRecord.setFlushReason(reason);
+		completeRecord.seal(Math.max(this.listeners.size(), 1));
+		this.fillRatioStats.record(completeRecord.getSizeBytes());
+
+		for (ListenerExecutorPair pair : this.listeners) {
+			pair.executor.execute(() -> {
+				pair.listener.recordComplete(completeRecord);
+			});
+		}
+	}
+
+	/**
+	 * @return The number of bytes an open record can still grow by before it
+	 *         reaches the maximum aggregate size.
+	 */
+	private long spaceLeft(OpenRecord open) {
+		return this.maxAggregateSizeBytes - open.record.getSizeBytes();
+	}
+
+	/**
+	 * An open aggregated record, the time it was opened and its scheduled
+	 * age flush.
+	 */
+	private static final class OpenRecord {
+		private final AggRecord record;
+		private final long startNanos;
+		/**
+		 * The age flush scheduled for this record, or null. It holds on to
+		 * the record until it is cancelled.
+		 */
+		private ScheduledFuture<?> ageFlush;
+
+		OpenRecord(AggRecord record) {
+			this.record = record;
+			this.startNanos = System.nanoTime();
+		}
+
+		void cancelAgeFlush() {
+			if (this.ageFlush != null) {
+				this.ageFlush.cancel(false);
+				this.ageFlush = null;
+			}
+		}
+	}
+
+	/**
+	 * A listener and the executor to execute its callbacks with.
+	 */
+	private static final class ListenerExecutorPair {
+		private final RecordCompleteListener listener;
+		private final Executor executor;
+
+		ListenerExecutorPair(RecordCompleteListener listener, Executor executor) {
+			this.listener = listener;
+			this.executor = executor;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+import com.amazonaws.annotation.NotThreadSafe;
+
+/**
+ * Computes the 128-bit hash key Kinesis derives from a partition key (the MD5
+ * digest of its UTF-8 bytes) without allocating, using scratch buffers owned
+ * by the hasher.
+ * 
+ * This class is NOT thread-safe.
+ */
+@NotThreadSafe
+final class PartitionKeyHasher {
+	/** The digest to hash partition keys with (may be shared and reset). */
+	private final MessageDigest md5;
+	/** Scratch space for UTF-8 encoding a partition key before hashing it. */
+	private final byte[] partitionKeyBytes;
+	/** Scratch space for the MD5 digest of a partition key. */
+	private final byte[] partitionKeyDigest;
+
+	/**
+	 * @param md5
+	 *            The MD5 digest to use. It is reset before every use, so it
+	 *            can be shared with other work done on the same thread.
+	 */
+	PartitionKeyHasher(MessageDigest md5) {
+		this.md5 = md5;
+		this.partitionKeyBytes = new byte[AggRecord.PARTITION_KEY_MAX_LENGTH * Utf8.MAX_BYTES_PER_CHAR];
+		this.partitionKeyDigest = new byte[ExplicitHashKeys.HASH_KEY_BYTES];
+	}
+
+	/**
+	 * Hash a partition key the way Kinesis does to pick its shard.
+	 * 
+	 * @param partitionKey
+	 *            A valid partition key (at most PARTITION_KEY_MAX_LENGTH
+	 *            characters).
+	 * @param out
+	 *            A two element array that receives the high (index 0) and low
+	 *            (index 1) words of the hash key.
+	 */
+	void hash(String partitionKey, long[] out) {
+		int length = Utf8.encode(partitionKey, this.partitionKeyBytes);
+
+		this.md5.reset();
+		this.md5.update(this.partitionKeyBytes, 0, length);
+		try {
+			this.md5.digest(this.partitionKeyDigest, 0, this.partitionKeyDigest.length);
+		} catch (DigestException e) {
+			throw new IllegalStateException("Could not calculate an MD5 message digest.", e);
+		}
+
+		out[0] = ExplicitHashKeys.high(this.partitionKeyDigest, 0);
+		out[1] = ExplicitHashKeys.low(this.partitionKeyDigest, 0);
+	}
+}
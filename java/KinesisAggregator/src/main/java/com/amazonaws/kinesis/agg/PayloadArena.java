@@ -0,0 +1,292 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import com.amazonaws.annotation.NotThreadSafe;
+
+/**
+ * A growable slab of already encoded protobuf fields. An AggRecord appends
+ * each user record to an arena as a complete AggregatedRecord.records field
+ * (and each new key to a key table arena), so a user record costs its encoded
+ * bytes plus one int offset instead of a Record object, a ByteString and
+ * their entries in the builder lists. Encoding the aggregated record is then
+ * a bulk copy of each arena that digests the bytes as they are copied.
+ * 
+ * The slab is either a heap array or a direct buffer. A direct arena keeps the
+ * user record data of large records out of the Java heap, and can be written
+ * to a channel without being copied. Arenas keep their capacity when they are
+ * cleared, so a pooled record stops allocating once it has grown to the size
+ * of its largest use.
+ * 
+ * This class is NOT thread-safe.
+ */
+@NotThreadSafe
+final class PayloadArena {
+	static final int WIRETYPE_VARINT = 0;
+	static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+	private static final int MIN_CAPACITY = 1024;
+	private static final int INITIAL_RECORD_CAPACITY = 64;
+
+	/**
+	 * How many bytes are copied before they are digested, so that they are
+	 * still in the CPU cache when the digest reads them.
+	 */
+	private static final int DIGEST_CHUNK_BYTES = 16 * 1024;
+
+	/** Whether the slab is a direct buffer rather than a heap array. */
+	private final boolean direct;
+	/** The slab of a heap arena, or null. */
+	private byte[] array;
+	/**
+	 * The slab of a direct arena, or null. Its position is always the size of
+	 * the arena.
+	 */
+	private ByteBuffer buffer;
+	/** The number of bytes appended so far. */
+	private int size;
+	/** The offset of each record started with startRecord(). */
+	private int[] recordOffsets;
+	/** The number of records started with startRecord(). */
+	private int recordCount;
+
+	/**
+	 * @param direct
+	 *            Whether to keep the slab in a direct buffer instead of a heap
+	 *            array.
+	 */
+	PayloadArena(boolean direct) {
+		this.direct = direct;
+		if (direct) {
+			this.buffer = ByteBuffer.allocateDirect(0);
+		} else {
+			this.array = new byte[0];
+		}
+	}
+
+	/**
+	 * @return The number of bytes in the arena.
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return The number of records started in the arena.
+	 */
+	int recordCount() {
+		return this.recordCount;
+	}
+
+	/**
+	 * @return The offset in the arena at which a record starts.
+	 */
+	int recordOffset(int index) {
+		return this.recordOffsets[index];
+	}
+
+	/**
+	 * @return The slab of a heap arena, whose first size() bytes are in use,
+	 *         or null if the arena is direct.
+	 */
+	byte[] array() {
+		return this.array;
+	}
+
+	/**
+	 * Remove all bytes and records, keeping the capacity.
+	 */
+	void clear() {
+		this.size = 0;
+		this.recordCount = 0;
+		if (this.direct) {
+			this.buffer.clear();
+		}
+	}
+
+	/**
+	 * Start a new record at the current end of the arena.
+	 */
+	void startRecord() {
+		if (this.recordOffsets == null) {
+			this.recordOffsets = new int[INITIAL_RECORD_CAPACITY];
+		} else if (this.recordCount == this.recordOffsets.length) {
+			this.recordOffsets = Arrays.copyOf(this.recordOffsets, this.recordCount * 2);
+		}
+		this.recordOffsets[this.recordCount++] = this.size;
+	}
+
+	/**
+	 * Make room for at least the specified number of further bytes.
+	 */
+	void reserve(int length) {
+		int required = this.size + length;
+		int capacity = this.direct ? this.buffer.capacity() : this.array.length;
+		if (required <= capacity) {
+			return;
+		}
+
+		int newCapacity = Math.max(required, Math.max(MIN_CAPACITY, capacity * 2));
+		if (this.direct) {
+			ByteBuffer grown = ByteBuffer.allocateDirect(newCapacity);
+			this.buffer.flip();
+			grown.put(this.buffer);
+			this.buffer = grown;
+		} else {
+			this.array = Arrays.copyOf(this.array, newCapacity);
+		}
+	}
+
+	/**
+	 * Append a protobuf field tag.
+	 */
+	void writeTag(int fieldNumber, int wireType) {
+		writeVarint((fieldNumber << 3) | wireType);
+	}
+
+	/**
+	 * Append an unsigned varint.
+	 */
+	void writeVarint(long value) {
+		reserve(10);
+		while ((value & ~0x7FL) != 0) {
+			writeByte((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		writeByte((byte) value);
+	}
+
+	private void writeByte(byte b) {
+		if (this.direct) {
+			this.buffer.put(b);
+		} else {
+			this.array[this.size] = b;
+		}
+		this.size++;
+	}
+
+	/**
+	 * Append a range of an array.
+	 */
+	void write(byte[] bytes, int offset, int length) {
+		reserve(length);
+		if (this.direct) {
+			this.buffer.put(bytes, offset, length);
+		} else {
+			System.arraycopy(bytes, offset, this.array, this.size, length);
+		}
+		this.size += length;
+	}
+
+	/**
+	 * Append the remaining content of a buffer without changing its position.
+	 */
+	void write(ByteBuffer bytes) {
+		int length = bytes.remaining();
+		reserve(length);
+		if (this.direct) {
+			this.buffer.put(bytes.duplicate());
+		} else {
+			bytes.duplicate().get(this.array, this.size, length);
+		}
+		this.size += length;
+	}
+
+	/**
+	 * Append a string as UTF-8.
+	 * 
+	 * @param encodedLength
+	 *            The UTF-8 encoded length of the string.
+	 */
+	void writeUtf8(String s, int encodedLength) {
+		if (this.direct) {
+			byte[] encoded = new byte[s.length() * Utf8.MAX_BYTES_PER_CHAR];
+			write(encoded, 0, Utf8.encode(s, encoded, 0));
+		} else {
+			reserve(encodedLength);
+			this.size = Utf8.encode(s, this.array, this.size);
+		}
+	}
+
+	/**
+	 * Copy a range of the arena into an array.
+	 */
+	void copyTo(int from, int length, byte[] target, int targetOffset) {
+		if (this.direct) {
+			ByteBuffer source = this.buffer.duplicate();
+			source.limit(from + length).position(from);
+			source.get(target, targetOffset, length);
+		} else {
+			System.arraycopy(this.array, from, target, targetOffset, length);
+		}
+	}
+
+	/**
+	 * Copy the whole arena into an array, updating a digest with the bytes
+	 * while they are still in the cache.
+	 * 
+	 * @return The offset in the target after the copied bytes.
+	 */
+	int copyTo(byte[] target, int targetOffset, MessageDigest digest) {
+		for (int from = 0; from < this.size; from += DIGEST_CHUNK_BYTES) {
+			int length = Math.min(DIGEST_CHUNK_BYTES, this.size - from);
+			copyTo(from, length, target, targetOffset + from);
+			digest.update(target, targetOffset + from, length);
+		}
+		return targetOffset + this.size;
+	}
+
+	/**
+	 * Copy the whole arena into a buffer at its position, advancing the
+	 * position and updating a digest with the bytes.
+	 */
+	void copyTo(ByteBuffer target, MessageDigest digest) {
+		ByteBuffer source = contents();
+		digest.update(source.duplicate());
+		target.put(source);
+	}
+
+	/**
+	 * Write the whole arena to a blocking channel, updating a digest with the
+	 * bytes. A direct arena is handed to the channel without being copied.
+	 */
+	void writeTo(WritableByteChannel channel, MessageDigest digest) throws IOException {
+		ByteBuffer source = contents();
+		digest.update(source.duplicate());
+		while (source.hasRemaining()) {
+			channel.write(source);
+		}
+	}
+
+	/**
+	 * @return A new buffer over the bytes of the arena.
+	 */
+	private ByteBuffer contents() {
+		if (this.direct) {
+			ByteBuffer source = this.buffer.duplicate();
+			source.flip();
+			return source;
+		}
+		return ByteBuffer.wrap(this.array, 0, this.size);
+	}
+}
@@ -0,0 +1,462 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.annotation.GuardedBy;
+import com.amazonaws.annotation.ThreadSafe;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.AmazonKinesisException;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * Collects completed aggregated records into PutRecords requests, so that up
+ * to 500 records (and 5 MB) reach Kinesis in a single round trip instead of
+ * one PutRecord call each.
+ * 
+ * A request is sent as soon as enough records are waiting to fill it, by the
+ * thread whose record filled it. A partially filled batch is sent once its
+ * oldest record has waited for the configured maximum batch delay, or when
+ * flush() or close() is called. Requests are sent one at a time, in the order
+ * their records were added.
+ * 
+ * PutRecords can succeed for some records and fail for others. Only the
+ * records that failed are queued again, ahead of the records still waiting,
+ * until they have used up their attempts; after that they are reported to the
+ * FailureListener. Nothing is sent while the records at the front of the
+ * queue are waiting out their retry backoff, so a stream that rejects records
+ * is not sent the next batch straight away. Once the backoff has passed, a
+ * background thread sends the rejected records, together with whatever is
+ * waiting behind them, even if no more records are added.
+ * 
+ * This class is thread-safe, so it can be called directly from the callbacks
+ * of a RecordAggregator.
+ */
+@ThreadSafe
+public class PutRecordsBatcher implements AutoCloseable {
+	/**
+	 * A listener for records that could not be sent to Kinesis.
+	 */
+	public interface FailureListener {
+		/**
+		 * Called when a record has used up all its attempts.
+		 * 
+		 * @param entry
+		 *            The record that could not be sent.
+		 * @param errorCode
+		 *            The error code of the last attempt (the exception class
+		 *            name if the whole request failed).
+		 * @param errorMessage
+		 *            The error message of the last attempt.
+		 */
+		void recordFailed(PutRecordsRequestEntry entry, String errorCode, String errorMessage);
+	}
+
+	/** The client to send requests with. */
+	private final AmazonKinesis kinesisClient;
+	/** The stream to send records to. */
+	private final String streamName;
+	/** The listener for records that could not be sent. */
+	private final FailureListener failureListener;
+	private final int maxRecordsPerRequest;
+	private final int maxBytesPerRequest;
+	private final int maxAttempts;
+	private final long retryBackoffMillis;
+	private final long retryBackoffNanos;
+	private final long maxBatchDelayMillis;
+	/**
+	 * The thread that sends batches that waited too long and records whose
+	 * retry backoff has passed.
+	 */
+	private final ScheduledExecutorService flusher;
+	/** Held while a request is being sent, so requests go out in order. */
+	private final Object sendLock = new Object();
+	/** The records waiting to be sent, oldest first. */
+	@GuardedBy("this")
+	private final Deque<PendingRecord> pendingRecords = new ArrayDeque<>();
+	/** The total size of the records waiting to be sent. */
+	@GuardedBy("this")
+	private long pendingBytes;
+	private final AtomicLong sentRecordCount = new AtomicLong();
+	private final AtomicLong failedRecordCount = new AtomicLong();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong listenerErrorCount = new AtomicLong();
+
+	/**
+	 * Create a batcher with the default configuration.
+	 * 
+	 * @param kinesisClient
+	 *            The client to send PutRecords requests with.
+	 * @param streamName
+	 *            The stream to send records to.
+	 * @param failureListener
+	 *            The listener for records that could not be sent.
+	 */
+	public PutRecordsBatcher(AmazonKinesis kinesisClient, String streamName, FailureListener failureListener) {
+		this(kinesisClient, streamName, failureListener, new PutRecordsBatcherConfig());
+	}
+
+	/**
+	 * Create a batcher.
+	 * 
+	 * @param kinesisClient
+	 *            The client to send PutRecords requests with.
+	 * @param streamName
+	 *            The stream to send records to.
+	 * @param failureListener
+	 *            The listener for records that could not be sent.
+	 * @param config
+	 *            The configuration options for this batcher.
+	 */
+	public PutRecordsBatcher(AmazonKinesis kinesisClient, String streamName, FailureListener failureListener,
+			PutRecordsBatcherConfig config) {
+		if (kinesisClient == null || streamName == null || failureListener == null) {
+			throw new IllegalArgumentException("Kinesis client, stream name and failure listener cannot be null");
+		}
+
+		this.kinesisClient = kinesisClient;
+		this.streamName = streamName;
+		this.failureListener = failureListener;
+		this.maxRecordsPerRequest = config.getMaxRecordsPerRequest();
+		this.maxBytesPerRequest = config.getMaxBytesPerRequest();
+		this.maxAttempts = config.getMaxAttempts();
+		this.retryBackoffMillis = config.getRetryBackoffMillis();
+		this.retryBackoffNanos = TimeUnit.MILLISECONDS.toNanos(this.retryBackoffMillis);
+		this.maxBatchDelayMillis = config.getMaxBatchDelayMillis();
+		this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "PutRecordsBatcher-flusher");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Add a completed aggregated record to the next PutRecords request. Empty
+	 * records are ignored. The record's bytes are copied, so a pooled record
+	 * can be recycled as soon as this method returns. The handles of its
+	 * tracked user records complete once it has been sent or given up on.
+	 * 
+	 * @param aggRecord
+	 *            The aggregated record to send.
+	 */
+	public void add(AggRecord aggRecord) {
+		if (aggRecord == null || aggRecord.getNumUserRecords() == 0) {
+			return;
+		}
+		add(aggRecord.toPutRecordsRequestEntry(), aggRecord.detachUserRecordFutures());
+	}
+
+	/**
+	 * Add a record to the next PutRecords request. If this fills the request,
+	 * it is sent by the calling thread before this method returns.
+	 * 
+	 * @param entry
+	 *            The record to send.
+	 */
+	public void add(PutRecordsRequestEntry entry) {
+		add(entry, null);
+	}
+
+	/**
+	 * Queue an entry, together with the handles of the tracked user records
+	 * it carries, which are completed once the entry has been sent or given
+	 * up on.
+	 */
+	private void add(PutRecordsRequestEntry entry, UserRecordFutures futures) {
+		int sizeBytes = entry.getData().remaining() + Utf8.encodedLength(entry.getPartitionKey());
+
+		boolean full;
+		boolean first;
+		synchronized (this) {
+			first = this.pendingRecords.isEmpty();
+			this.pendingRecords.addLast(new PendingRecord(entry, sizeBytes, futures));
+			this.pendingBytes += sizeBytes;
+			full = isBatchFull();
+		}
+
+		if (first && this.maxBatchDelayMillis > 0) {
+			scheduleFlush(this.maxBatchDelayMillis);
+		}
+		if (full) {
+			sendBatches(false, false);
+		}
+	}
+
+	/**
+	 * Send every waiting record, including partial batches, and keep retrying
+	 * failed records (after the configured backoff) until every record has
+	 * either been sent or used up its attempts.
+	 */
+	public void flush() {
+		sendBatches(true, true);
+	}
+
+	/**
+	 * Flush all waiting records and stop the background thread.
+	 */
+	@Override
+	public void close() {
+		this.flusher.shutdownNow();
+		flush();
+	}
+
+	/**
+	 * @return The number of records waiting to be sent.
+	 */
+	public synchronized int getPendingRecordCount() {
+		return this.pendingRecords.size();
+	}
+
+	/**
+	 * @return The number of records Kinesis has accepted.
+	 */
+	public long getSentRecordCount() {
+		return this.sentRecordCount.get();
+	}
+
+	/**
+	 * @return The number of records that used up their attempts.
+	 */
+	public long getFailedRecordCount() {
+		return this.failedRecordCount.get();
+	}
+
+	/**
+	 * @return The number of PutRecords requests sent.
+	 */
+	public long getRequestCount() {
+		return this.requestCount.get();
+	}
+
+	/**
+	 * @return The number of times the FailureListener threw an exception.
+	 *         These exceptions do not stop the other records of a request
+	 *         from being completed or retried.
+	 */
+	public long getListenerErrorCount() {
+		return this.listenerErrorCount.get();
+	}
+
+	@GuardedBy("this")
+	private boolean isBatchFull() {
+		return this.pendingRecords.size() >= this.maxRecordsPerRequest || this.pendingBytes >= this.maxBytesPerRequest;
+	}
+
+	/**
+	 * Send batches of waiting records until no full batch (or, if partial
+	 * batches are allowed, no record) is left.
+	 * 
+	 * @param sendPartial
+	 *            Whether to send batches that are not full.
+	 * @param untilDone
+	 *            Whether to wait and retry failed records until they are sent
+	 *            or out of attempts.
+	 */
+	private void sendBatches(boolean sendPartial, boolean untilDone) {
+		synchronized (this.sendLock) {
+			List<PendingRecord> batch;
+			// flush() sleeps out the backoff itself below
+			while ((batch = takeBatch(sendPartial, !untilDone)) != null) {
+				if (!send(batch)) {
+					continue;
+				}
+
+				if (!untilDone) {
+					// don't hammer the stream with the records it just
+					// rejected; they go out with the first request after
+					// their backoff, sent by the background thread if
+					// nothing else sends one before
+					scheduleFlush(Math.max(this.retryBackoffMillis, 1));
+					return;
+				}
+				if (this.retryBackoffMillis > 0) {
+					try {
+						Thread.sleep(this.retryBackoffMillis);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Send all waiting records after a delay, unless this batcher is closed.
+	 */
+	private void scheduleFlush(long delayMillis) {
+		if (!this.flusher.isShutdown()) {
+			this.flusher.schedule(() -> sendBatches(true, false), delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Remove the next batch of records from the front of the queue.
+	 * 
+	 * @param sendPartial
+	 *            Whether to take a batch that is not full.
+	 * @param respectBackoff
+	 *            Whether to hold back while the record at the front of the
+	 *            queue is waiting out its retry backoff.
+	 * @return The records to send in the next request, or null if there is no
+	 *         batch to send.
+	 */
+	private synchronized List<PendingRecord> takeBatch(boolean sendPartial, boolean respectBackoff) {
+		if (this.pendingRecords.isEmpty() || (!sendPartial && !isBatchFull())) {
+			return null;
+		}
+		PendingRecord first = this.pendingRecords.peekFirst();
+		if (respectBackoff && first.backingOff && first.notBeforeNanos - System.nanoTime() > 0) {
+			return null;
+		}
+
+		List<PendingRecord> batch = new ArrayList<>(Math.min(this.pendingRecords.size(), this.maxRecordsPerRequest));
+		long batchBytes = 0;
+		while (!this.pendingRecords.isEmpty() && batch.size() < this.maxRecordsPerRequest && (batch.isEmpty()
+				|| batchBytes + this.pendingRecords.peekFirst().sizeBytes <= this.maxBytesPerRequest)) {
+			PendingRecord record = this.pendingRecords.removeFirst();
+			batch.add(record);
+			batchBytes += record.sizeBytes;
+		}
+		this.pendingBytes -= batchBytes;
+		return batch;
+	}
+
+	/**
+	 * Send one PutRecords request and queue the records that failed again.
+	 * 
+	 * @return True if any record was queued again for another attempt.
+	 */
+	private boolean send(List<PendingRecord> batch) {
+		List<PutRecordsRequestEntry> entries = new ArrayList<>(batch.size());
+		for (PendingRecord record : batch) {
+			record.attempts++;
+			entries.add(record.entry);
+		}
+
+		List<PendingRecord> retries = new ArrayList<>();
+		this.requestCount.incrementAndGet();
+		PutRecordsResult result;
+		try {
+			result = this.kinesisClient
+					.putRecords(new PutRecordsRequest().withStreamName(this.streamName).withRecords(entries));
+		} catch (RuntimeException e) {
+			result = null;
+			for (PendingRecord record : batch) {
+				retryOrFail(record, e.getClass().getName(), e.getMessage(), e, retries);
+			}
+		}
+		if (result != null) {
+			List<PutRecordsResultEntry> resultEntries = result.getRecords();
+			for (int i = 0; i < batch.size(); i++) {
+				PutRecordsResultEntry resultEntry = resultEntries.get(i);
+				if (resultEntry.getErrorCode() == null) {
+					this.sentRecordCount.incrementAndGet();
+					PendingRecord record = batch.get(i);
+					if (record.futures != null) {
+						record.futures.complete(resultEntry.getShardId(), resultEntry.getSequenceNumber());
+					}
+				} else {
+					retryOrFail(batch.get(i), resultEntry.getErrorCode(), resultEntry.getErrorMessage(), null,
+							retries);
+				}
+			}
+		}
+
+		if (retries.isEmpty()) {
+			return false;
+		}
+
+		final long notBeforeNanos = System.nanoTime() + this.retryBackoffNanos;
+		synchronized (this) {
+			for (int i = retries.size() - 1; i >= 0; i--) {
+				retries.get(i).backingOff = true;
+				retries.get(i).notBeforeNanos = notBeforeNanos;
+				this.pendingRecords.addFirst(retries.get(i));
+				this.pendingBytes += retries.get(i).sizeBytes;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Queue a record that failed for another attempt, or give up on it if it
+	 * has used up its attempts. An exception from the FailureListener is
+	 * counted rather than thrown, so that it does not stop the other records
+	 * of the request from being completed or retried.
+	 * 
+	 * @param cause
+	 *            The exception the request failed with, or null if only
+	 *            this record failed.
+	 */
+	private void retryOrFail(PendingRecord record, String errorCode, String errorMessage, RuntimeException cause,
+			List<PendingRecord> retries) {
+		if (record.attempts < this.maxAttempts) {
+			retries.add(record);
+		} else {
+			this.failedRecordCount.incrementAndGet();
+			if (record.futures != null) {
+				if (cause == null) {
+					AmazonKinesisException failure = new AmazonKinesisException(errorMessage);
+					failure.setErrorCode(errorCode);
+					cause = failure;
+				}
+				record.futures.fail(cause);
+			}
+			try {
+				this.failureListener.recordFailed(record.entry, errorCode, errorMessage);
+			} catch (RuntimeException e) {
+				this.listenerErrorCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * A record waiting to be sent.
+	 */
+	private static final class PendingRecord {
+		private final PutRecordsRequestEntry entry;
+		private final int sizeBytes;
+		/** The handles of the tracked user records in the entry, or null. */
+		private final UserRecordFutures futures;
+		private int attempts;
+		/** Whether the record was rejected and is waiting out its backoff. */
+		private boolean backingOff;
+		/**
+		 * The System.nanoTime() before which a rejected record is not sent
+		 * again. Only meaningful while backingOff is set.
+		 */
+		private long notBeforeNanos;
+
+		PendingRecord(PutRecordsRequestEntry entry, int sizeBytes, UserRecordFutures futures) {
+			this.entry = entry;
+			this.sizeBytes = sizeBytes;
+			this.futures = futures;
+		}
+	}
+}
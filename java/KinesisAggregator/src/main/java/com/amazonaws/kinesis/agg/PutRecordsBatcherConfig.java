@@ -0,0 +1,182 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import com.amazonaws.annotation.NotThreadSafe;
+
+/**
+ * Configuration options for a PutRecordsBatcher. The defaults fill every
+ * PutRecords request up to the Kinesis limits and give each record three
+ * attempts.
+ * 
+ * This class is NOT thread-safe.
+ */
+@NotThreadSafe
+public class PutRecordsBatcherConfig {
+	/** The maximum number of records in a PutRecords request. */
+	public static final int MAX_RECORDS_PER_REQUEST = 500;
+
+	/** The maximum total size of the records in a PutRecords request. */
+	public static final int MAX_BYTES_PER_REQUEST = 5 * 1024 * 1024;
+
+	/** The default maximum time a record waits for a batch (no limit). */
+	public static final long DEFAULT_MAX_BATCH_DELAY_MILLIS = 0;
+
+	/** The default number of times a record is sent before it fails. */
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+	/** The default delay before retrying failed records while flushing. */
+	public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 100;
+
+	private int maxRecordsPerRequest = MAX_RECORDS_PER_REQUEST;
+	private int maxBytesPerRequest = MAX_BYTES_PER_REQUEST;
+	private long maxBatchDelayMillis = DEFAULT_MAX_BATCH_DELAY_MILLIS;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long retryBackoffMillis = DEFAULT_RETRY_BACKOFF_MILLIS;
+
+	/**
+	 * @return The maximum number of records in a single PutRecords request.
+	 */
+	public int getMaxRecordsPerRequest() {
+		return this.maxRecordsPerRequest;
+	}
+
+	/**
+	 * Limit the number of records in a single PutRecords request. A request
+	 * is sent as soon as this many records are waiting.
+	 * 
+	 * @param maxRecordsPerRequest
+	 *            The maximum number of records per request, between 1 and
+	 *            MAX_RECORDS_PER_REQUEST.
+	 * @return This configuration object.
+	 */
+	public PutRecordsBatcherConfig withMaxRecordsPerRequest(int maxRecordsPerRequest) {
+		if (maxRecordsPerRequest <= 0 || maxRecordsPerRequest > MAX_RECORDS_PER_REQUEST) {
+			throw new IllegalArgumentException("Max records per request must be between 1 and "
+					+ MAX_RECORDS_PER_REQUEST + ", got " + maxRecordsPerRequest);
+		}
+		this.maxRecordsPerRequest = maxRecordsPerRequest;
+		return this;
+	}
+
+	/**
+	 * @return The maximum total size in bytes of the records (data and
+	 *         partition keys) in a single PutRecords request.
+	 */
+	public int getMaxBytesPerRequest() {
+		return this.maxBytesPerRequest;
+	}
+
+	/**
+	 * Limit the total size of the records (data and partition keys) in a
+	 * single PutRecords request. A request is sent as soon as this many bytes
+	 * are waiting.
+	 * 
+	 * @param maxBytesPerRequest
+	 *            The maximum size in bytes of a request, between
+	 *            AggRecord.MAX_BYTES_PER_RECORD and MAX_BYTES_PER_REQUEST.
+	 * @return This configuration object.
+	 */
+	public PutRecordsBatcherConfig withMaxBytesPerRequest(int maxBytesPerRequest) {
+		if (maxBytesPerRequest < AggRecord.MAX_BYTES_PER_RECORD || maxBytesPerRequest > MAX_BYTES_PER_REQUEST) {
+			throw new IllegalArgumentException("Max bytes per request must be between " + AggRecord.MAX_BYTES_PER_RECORD
+					+ " and " + MAX_BYTES_PER_REQUEST + ", got " + maxBytesPerRequest);
+		}
+		this.maxBytesPerRequest = maxBytesPerRequest;
+		return this;
+	}
+
+	/**
+	 * @return The maximum time in milliseconds a record waits for its batch to
+	 *         fill up before the batch is sent anyway (0 means no limit).
+	 */
+	public long getMaxBatchDelayMillis() {
+		return this.maxBatchDelayMillis;
+	}
+
+	/**
+	 * Limit how long a record can wait for a partially filled batch. Once the
+	 * oldest waiting record has waited this long, a background thread sends
+	 * everything that is waiting. Without a limit, partial batches are only
+	 * sent by flush() or close().
+	 * 
+	 * @param maxBatchDelayMillis
+	 *            The maximum time in milliseconds a record waits (0 means no
+	 *            limit).
+	 * @return This configuration object.
+	 */
+	public PutRecordsBatcherConfig withMaxBatchDelayMillis(long maxBatchDelayMillis) {
+		if (maxBatchDelayMillis < 0) {
+			throw new IllegalArgumentException("Max batch delay cannot be negative, got " + maxBatchDelayMillis);
+		}
+		this.maxBatchDelayMillis = maxBatchDelayMillis;
+		return this;
+	}
+
+	/**
+	 * @return The number of times a record is sent before it is reported as
+	 *         failed.
+	 */
+	public int getMaxAttempts() {
+		return this.maxAttempts;
+	}
+
+	/**
+	 * Set how many times a record is sent before it is reported as failed.
+	 * Records that Kinesis rejects (e.g. because their shard was throttled)
+	 * are queued again ahead of the other waiting records until they run out
+	 * of attempts.
+	 * 
+	 * @param maxAttempts
+	 *            The maximum number of attempts per record (at least 1).
+	 * @return This configuration object.
+	 */
+	public PutRecordsBatcherConfig withMaxAttempts(int maxAttempts) {
+		if (maxAttempts <= 0) {
+			throw new IllegalArgumentException("Max attempts must be positive, got " + maxAttempts);
+		}
+		this.maxAttempts = maxAttempts;
+		return this;
+	}
+
+	/**
+	 * @return The delay in milliseconds before rejected records are sent
+	 *         again.
+	 */
+	public long getRetryBackoffMillis() {
+		return this.retryBackoffMillis;
+	}
+
+	/**
+	 * Set how long to wait before sending records again that Kinesis
+	 * rejected. flush() sleeps for this long between attempts. Outside of
+	 * flush(), no request is sent until this delay has passed; the rejected
+	 * records then go out with the next full batch, or from the background
+	 * thread if no full batch is sent before.
+	 * 
+	 * @param retryBackoffMillis
+	 *            The delay in milliseconds.
+	 * @return This configuration object.
+	 */
+	public PutRecordsBatcherConfig withRetryBackoffMillis(long retryBackoffMillis) {
+		if (retryBackoffMillis < 0) {
+			throw new IllegalArgumentException("Retry backoff cannot be negative, got " + retryBackoffMillis);
+		}
+		this.retryBackoffMillis = retryBackoffMillis;
+		return this;
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import com.amazonaws.annotation.ThreadSafe;
+
+/**
+ * A RecordTransport that waits for a ShardRateLimiter before handing each
+ * record to another transport, so a RecordSender paces its sends to the shard
+ * limits:
+ * 
+ * <pre>
+ * RecordTransport transport = new RateLimitedTransport(new KinesisRecordTransport(kinesisClient, streamName),
+ * 		new ShardRateLimiter(new KinesisShardMapProvider(kinesisClient, streamName)));
+ * </pre>
+ * 
+ * A sender thread waiting for a hot shard does not send records for other
+ * shards in the meantime, so give the sender enough in-flight requests to keep
+ * the other shards busy.
+ * 
+ * This class is thread-safe as long as the wrapped transport is.
+ */
+@ThreadSafe
+public class RateLimitedTransport implements RecordTransport {
+	/** The transport that sends the records. */
+	private final RecordTransport transport;
+	/** The limiter that paces the records. */
+	private final ShardRateLimiter rateLimiter;
+
+	/**
+	 * @param transport
+	 *            The transport that sends the records.
+	 * @param rateLimiter
+	 *            The limiter that paces the records.
+	 */
+	public RateLimitedTransport(RecordTransport transport, ShardRateLimiter rateLimiter) {
+		if (transport == null || rateLimiter == null) {
+			throw new IllegalArgumentException("Transport and rate limiter cannot be null");
+		}
+
+		this.transport = transport;
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * @return The limiter that paces the records, e.g. to read its metrics.
+	 */
+	public ShardRateLimiter getRateLimiter() {
+		return this.rateLimiter;
+	}
+
+	@Override
+	public void send(AggRecord aggRecord) throws Exception {
+		this.rateLimiter.acquire(aggRecord);
+		this.transport.send(aggRecord);
+	}
+}
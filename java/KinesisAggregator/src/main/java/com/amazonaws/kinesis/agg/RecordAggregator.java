@@ -16,24 +16,42 @@
  */
 package com.amazonaws.kinesis.agg;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import com.amazonaws.annotation.NotThreadSafe;
+import com.amazonaws.annotation.GuardedBy;
+import com.amazonaws.annotation.ThreadSafe;
 import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
 
 /**
  * A class for taking multiple Kinesis user records and aggregating them into
  * more efficiently-packed records using the Kinesis aggregated record format.
  * 
- * This class is NOT thread-safe.
+ * By default an aggregated record is only completed when it is full, but
+ * RecordAggregatorConfig can also limit how many user records it holds, how
+ * large it grows and how long its user records stay buffered. Every completed
+ * record reports which of these limits completed it via
+ * AggRecord.getFlushReason().
+ * 
+ * This class is thread-safe: every method synchronizes on the aggregator,
+ * which also keeps the background thread that flushes aged records in step
+ * with the threads adding user records. Because all callers contend for that
+ * one lock, producers adding user records from many threads should use the
+ * ConcurrentRecordAggregator instead.
  * 
  * @see <a href="https://github.com/awslabs/amazon-kinesis-producer/blob/master/aggregation-format.md">https://github.com/awslabs/amazon-kinesis-producer/blob/master/aggregation-format.md</a>
  */
-@NotThreadSafe
-public class RecordAggregator {
+@ThreadSafe
+public class RecordAggregator implements AutoCloseable {
 	/**
 	 * A listener interface for receiving notifications when this aggregated
 	 * record has reached its maximum allowable size.
@@ -50,23 +68,136 @@ public class RecordAggregator {
 	}
 
 	/** The current aggregated record being constructed. */
+	@GuardedBy("this")
 	private AggRecord currentRecord;
 	/** The list of listeners to notify when a record is complete. */
+	@GuardedBy("this")
 	private List<ListenerExecutorPair> listeners;
+	/** The pool of recycled records to reuse, or null if pooling is disabled. */
+	private final AggRecordPool recordPool;
+	/** The maximum number of user records per aggregated record, or 0. */
+	private final int maxUserRecordCount;
+	/** The size in bytes an aggregated record may grow to. */
+	private final int maxAggregateSizeBytes;
+	/** Whether and how aggregated records are compressed. */
+	private final CompressionMode compressionMode;
+	/** The Deflater level to compress aggregated records with. */
+	private final int compressionLevel;
+	/** Whether derived explicit hash keys are left out of aggregated records. */
+	private final boolean omitDerivedExplicitHashKeys;
+	/** Whether aggregated records keep their user records off-heap. */
+	private final boolean offHeapPayloads;
+	/** The maximum time to buffer a user record in nanoseconds, or 0. */
+	private final long maxBufferedTimeNanos;
+	/** The thread that flushes aged records, or null if there is no limit. */
+	private final ScheduledExecutorService flusher;
+	/** Whether closing this aggregator should shut down the flusher. */
+	private final boolean ownsFlusher;
+	/**
+	 * Incremented whenever the current record is completed or cleared, so a
+	 * scheduled age flush can tell whether its record is still current.
+	 */
+	@GuardedBy("this")
+	private long currentGeneration;
+	/** The age flush scheduled for the current record, or null. */
+	@GuardedBy("this")
+	private ScheduledFuture<?> currentAgeFlush;
+	/** When the first user record was added to the current record. */
+	@GuardedBy("this")
+	private long currentRecordStartNanos;
+	/** Whether the user record being added should get a handle. */
+	@GuardedBy("this")
+	private boolean trackingUserRecord;
+	/** The handle of the tracked user record that was just added. */
+	@GuardedBy("this")
+	private CompletableFuture<UserRecordResult> trackedUserRecord;
 
 	/**
 	 * Construct a new empty record aggregator instance.
 	 */
 	public RecordAggregator() {
-		this.currentRecord = new AggRecord();
+		this(new RecordAggregatorConfig());
+	}
+
+	/**
+	 * Construct a new empty record aggregator instance with the specified
+	 * configuration.
+	 * 
+	 * @param config
+	 *            The configuration options for this aggregator.
+	 */
+	public RecordAggregator(RecordAggregatorConfig config) {
+		this(config, createRecordPool(config), createFlusher(config), true);
+	}
+
+	/**
+	 * Construct a new empty record aggregator instance that may share its
+	 * record pool and flusher thread with other aggregators.
+	 * 
+	 * @param config
+	 *            The configuration options for this aggregator.
+	 * @param recordPool
+	 *            The pool to take new records from, or null to disable
+	 *            pooling.
+	 * @param flusher
+	 *            The executor that flushes aged records, or null if the
+	 *            configuration has no maximum buffered time.
+	 * @param ownsFlusher
+	 *            Whether closing this aggregator shuts down the flusher.
+	 */
+	RecordAggregator(RecordAggregatorConfig config, AggRecordPool recordPool, ScheduledExecutorService flusher,
+			boolean ownsFlusher) {
+		this.maxUserRecordCount = config.getMaxUserRecordCount();
+		this.maxAggregateSizeBytes = config.getMaxAggregateSizeBytes();
+		this.compressionMode = config.getCompression();
+		this.compressionLevel = config.getCompressionLevel();
+		this.omitDerivedExplicitHashKeys = config.isOmitDerivedExplicitHashKeys();
+		this.offHeapPayloads = config.isOffHeapPayloads();
+		this.maxBufferedTimeNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxBufferedTimeMillis());
+		this.recordPool = recordPool;
+		this.flusher = flusher;
+		this.ownsFlusher = ownsFlusher;
+		this.currentRecord = newRecord();
 		this.listeners = new LinkedList<>();
 	}
 
+	/**
+	 * @return A new record pool for the configuration, or null if pooling is
+	 *         disabled.
+	 */
+	static AggRecordPool createRecordPool(RecordAggregatorConfig config) {
+		return config.getRecordPoolSize() > 0
+				? new AggRecordPool(config.getRecordPoolSize(), config.getMaxAggregateSizeBytes(),
+						config.getCompression(), config.getCompressionLevel(), config.isOmitDerivedExplicitHashKeys(),
+						config.isOffHeapPayloads())
+				: null;
+	}
+
+	/**
+	 * @return A new single daemon thread executor to flush aged records with,
+	 *         or null if the configuration has no maximum buffered time.
+	 *         Cancelled age flushes are removed from its queue straight away,
+	 *         so records completed early don't leave tasks behind.
+	 */
+	static ScheduledExecutorService createFlusher(RecordAggregatorConfig config) {
+		if (config.getMaxBufferedTimeMillis() == 0) {
+			return null;
+		}
+
+		ScheduledThreadPoolExecutor flusher = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "RecordAggregator-flusher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.setRemoveOnCancelPolicy(true);
+		return flusher;
+	}
+
 	/**
 	 * @return The number of user records currently contained in this aggregated
 	 *         record.
 	 */
-	public int getNumUserRecords() {
+	public synchronized int getNumUserRecords() {
 		return this.currentRecord.getNumUserRecords();
 	}
 
@@ -75,7 +206,7 @@ public class RecordAggregator {
 	 *         less than the Kinesis-defined maximum size for a PutRecordRequest
 	 *         (i.e. 1MB as of 3/26/2016).
 	 */
-	public long getSizeBytes() {
+	public synchronized long getSizeBytes() {
 		return this.currentRecord.getSizeBytes();
 	}
 
@@ -85,15 +216,64 @@ public class RecordAggregator {
 	 * 
 	 * NOTE: Will not affect any registered listeners.
 	 */
-	public void clearRecord() {
-		this.currentRecord = new AggRecord();
+	public synchronized void clearRecord() {
+		retireCurrentRecord();
+		this.currentRecord.failUserRecords(
+				new CancellationException("Aggregated record was cleared before its result was reported"));
+		if (this.recordPool != null) {
+			// the current record has never been handed out, so reuse it
+			this.currentRecord.clear();
+		} else {
+			this.currentRecord = new AggRecord(null, this.maxAggregateSizeBytes, this.compressionMode,
+					this.compressionLevel, this.omitDerivedExplicitHashKeys, this.offHeapPayloads);
+		}
+	}
+
+	/**
+	 * Hand a completed aggregated record back to this aggregator once it has
+	 * been transmitted, so that it can be reused for new user records. This
+	 * method only has an effect if record pooling was enabled via
+	 * RecordAggregatorConfig.withRecordPoolSize(...) and is safe to call from
+	 * any thread.
+	 * 
+	 * When pooling is enabled, a completed record is shared by every listener
+	 * registered with onRecordComplete at the time it was completed, and each
+	 * of those listeners must call this method exactly once when it has
+	 * finished with the record. If no listeners are registered (or the record
+	 * came from clearAndGet), the caller that received the record owns it and
+	 * must recycle it. The record is only cleared and reused after its last
+	 * holder has recycled it, so it can never change while it is still in
+	 * flight; a record must not be used again after it has been recycled.
+	 * 
+	 * @param aggRecord
+	 *            The completed aggregated record to recycle.
+	 * @throws IllegalArgumentException
+	 *             If the record was not created by this aggregator.
+	 * @throws IllegalStateException
+	 *             If the record has already been recycled by all its holders.
+	 */
+	public void recycle(AggRecord aggRecord) {
+		if (this.recordPool == null || aggRecord == null) {
+			return;
+		}
+
+		this.recordPool.release(aggRecord);
+	}
+
+	/**
+	 * @return A new empty record to aggregate user records into.
+	 */
+	private AggRecord newRecord() {
+		return this.recordPool != null ? this.recordPool.acquire()
+				: new AggRecord(null, this.maxAggregateSizeBytes, this.compressionMode, this.compressionLevel,
+						this.omitDerivedExplicitHashKeys, this.offHeapPayloads);
 	}
 
 	/**
 	 * Clear all the listeners from this object that were registered with the
 	 * onRecordComplete method.
 	 */
-	public void clearListeners() {
+	public synchronized void clearListeners() {
 		this.listeners.clear();
 	}
 
@@ -120,7 +300,7 @@ public class RecordAggregator {
 	 * @param executor
 	 *            The executor to use to execute the callback.
 	 */
-	public void onRecordComplete(RecordCompleteListener listener, Executor executor) {
+	public synchronized void onRecordComplete(RecordCompleteListener listener, Executor executor) {
 		this.listeners.add(new ListenerExecutorPair(listener, executor));
 	}
 
@@ -131,22 +311,73 @@ public class RecordAggregator {
 	 * you need to transmit it before it is full (e.g. you're shutting down or
 	 * haven't transmitted in a while).
 	 * 
+	 * The listeners registered via onRecordComplete are not notified; use
+	 * flush() to hand the current record to them instead.
+	 * 
 	 * @return This current object as an aggregated record or null if this
 	 *         object is currently empty.
 	 */
-	public AggRecord clearAndGet() {
+	public synchronized AggRecord clearAndGet() {
 		if (getNumUserRecords() == 0) {
 			return null;
 		}
 
 		AggRecord out = this.currentRecord;
-		clearRecord();
+		out.setFlushReason(FlushReason.MANUAL);
+		out.seal(1);
+		this.currentRecord = newRecord();
+		retireCurrentRecord();
 		return out;
 	}
 
+	/**
+	 * Complete the current aggregated record (whether full or not) and notify
+	 * the listeners registered via onRecordComplete, exactly as if it had
+	 * filled up. This method is useful for flushing buffered user records
+	 * before shutting down.
+	 * 
+	 * @return The aggregated record that was completed or null if this object
+	 *         is currently empty.
+	 */
+	public AggRecord flush() {
+		return flush(FlushReason.MANUAL);
+	}
+
+	/**
+	 * Complete the current aggregated record (whether full or not) and notify
+	 * the listeners.
+	 * 
+	 * @param reason
+	 *            The reason to report for the completed record.
+	 * @return The aggregated record that was completed or null if this object
+	 *         is currently empty.
+	 */
+	synchronized AggRecord flush(FlushReason reason) {
+		if (getNumUserRecords() == 0) {
+			return null;
+		}
+
+		return completeCurrentRecord(reason);
+	}
+
+	/**
+	 * Stop the background thread that flushes aged records, if a maximum
+	 * buffered time was configured. Any user records that are still buffered
+	 * are left in place, so call flush() or clearAndGet() first if they need
+	 * to be transmitted.
+	 */
+	@Override
+	public void close() {
+		if (this.flusher != null && this.ownsFlusher) {
+			this.flusher.shutdownNow();
+		}
+	}
+
 	/**
 	 * Add a new user record to this aggregated record (will trigger a callback
-	 * via onRecordComplete if aggregated record is full).
+	 * via onRecordComplete if aggregated record is full). The user record data
+	 * is the remaining content of the record's data buffer (between its
+	 * position and limit), which may be a direct buffer.
 	 *
 	 * @param userRecord
 	 *            The Kinesis user record to add to this aggregated record
@@ -157,13 +388,8 @@ public class RecordAggregator {
 	public AggRecord addUserRecord(UserRecord userRecord) throws Exception {
 		if (userRecord == null) {
 			throw new IllegalArgumentException("Input user record cannot be null.");
-		} else if (!userRecord.getData().hasArray()) {
-			throw new IllegalStateException(
-					"The addUserRecord method only works for UserRecord objects whose data ByteBuffer "
-							+ " has a backing byte[] available.");
 		}
-		return addUserRecord(userRecord.getPartitionKey(), userRecord.getExplicitHashKey(),
-				userRecord.getData().array());
+		return addUserRecord(userRecord.getPartitionKey(), userRecord.getExplicitHashKey(), userRecord.getData());
 	}
 
 	/**
@@ -197,32 +423,420 @@ public class RecordAggregator {
      * @throws Exception If the user record can't be added to the current agg record
 	 */
 	public AggRecord addUserRecord(String partitionKey, String explicitHashKey, byte[] data) throws Exception {
-		boolean success = this.currentRecord.addUserRecord(partitionKey, explicitHashKey, data);
+		return addUserRecord(partitionKey, explicitHashKey, data, 0, data != null ? data.length : 0);
+	}
 
-		if (success) {
-			// we were able to add the current data to the in-flight record
-			return null;
-		} else {
-			// this record is full, let all the listeners know
-			final AggRecord completeRecord = this.currentRecord;
-			for (ListenerExecutorPair pair : this.listeners) {
-				pair.getExecutor().execute(() -> {
-					pair.getListener().recordComplete(completeRecord);
-				});
+	/**
+	 * Add a new user record to this aggregated record (will trigger a callback
+	 * via onRecordComplete if aggregated record is full). Only the specified
+	 * range of the data array is added.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add
+	 * @param data
+	 *            An array containing the record data of the record to add
+	 * @param offset
+	 *            The index of the first byte of record data in the array
+	 * @param length
+	 *            The number of bytes of record data in the array
+	 * @return A AggRecord if this aggregated record is full and ready to be
+	 *         transmitted or null otherwise.
+	 * @throws Exception If the user record can't be added to the current agg record
+	 */
+	public synchronized AggRecord addUserRecord(String partitionKey, String explicitHashKey, byte[] data, int offset,
+			int length) throws Exception {
+		boolean expired = isCurrentRecordExpired();
+		if (!expired && this.currentRecord.addUserRecord(partitionKey, explicitHashKey, data, offset, length)) {
+			return userRecordAdded(null);
+		}
+
+		// the current record has aged out or is full; add the new user record
+		// to a new empty record first, so that nothing is completed if it
+		// doesn't even fit there
+		AggRecord nextRecord = newRecord();
+		try {
+			if (!nextRecord.addUserRecord(partitionKey, explicitHashKey, data, offset, length)) {
+				throw unableToAdd(partitionKey, explicitHashKey, length);
 			}
+		} catch (Exception e) {
+			discardRecord(nextRecord);
+			throw e;
+		}
+		return rotateTo(nextRecord, expired);
+	}
 
-			// current record is full; clear it out, make a new empty one and
-			// add the new user record
-			clearRecord();
-			success = this.currentRecord.addUserRecord(partitionKey, explicitHashKey, data);
+	/**
+	 * Add a new user record to this aggregated record (will trigger a callback
+	 * via onRecordComplete if aggregated record is full). The record data is
+	 * the remaining content of the buffer (between its position and limit),
+	 * which may be a direct buffer; the buffer's position is not changed.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add
+	 * @param data
+	 *            A buffer containing the record data of the record to add
+	 * @return A AggRecord if this aggregated record is full and ready to be
+	 *         transmitted or null otherwise.
+	 * @throws Exception If the user record can't be added to the current agg record
+	 */
+	public synchronized AggRecord addUserRecord(String partitionKey, String explicitHashKey, ByteBuffer data)
+			throws Exception {
+		boolean expired = isCurrentRecordExpired();
+		if (!expired && this.currentRecord.addUserRecord(partitionKey, explicitHashKey, data)) {
+			return userRecordAdded(null);
+		}
 
-			if (!success) {
-				throw new Exception(String.format("Unable to add User Record %s, %s with data length %s", partitionKey,
-						explicitHashKey, data.length));
+		AggRecord nextRecord = newRecord();
+		try {
+			if (!nextRecord.addUserRecord(partitionKey, explicitHashKey, data)) {
+				throw unableToAdd(partitionKey, explicitHashKey, data != null ? data.remaining() : 0);
 			}
+		} catch (Exception e) {
+			discardRecord(nextRecord);
+			throw e;
+		}
+		return rotateTo(nextRecord, expired);
+	}
 
-			return completeRecord;
+	/**
+	 * Add a new user record to this aggregated record (will trigger a callback
+	 * via onRecordComplete if aggregated record is full). The explicit hash
+	 * key is supplied as an unsigned 128-bit value split into two 64-bit
+	 * words.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKeyHigh
+	 *            The most significant 64 bits of the explicit hash key of the
+	 *            record to add
+	 * @param explicitHashKeyLow
+	 *            The least significant 64 bits of the explicit hash key of the
+	 *            record to add
+	 * @param data
+	 *            The record data of the record to add
+	 * @return A AggRecord if this aggregated record is full and ready to be
+	 *         transmitted or null otherwise.
+	 * @throws Exception If the user record can't be added to the current agg record
+	 */
+	public synchronized AggRecord addUserRecord(String partitionKey, long explicitHashKeyHigh, long explicitHashKeyLow,
+			byte[] data) throws Exception {
+		boolean expired = isCurrentRecordExpired();
+		if (!expired && this.currentRecord.addUserRecord(partitionKey, explicitHashKeyHigh, explicitHashKeyLow, data)) {
+			return userRecordAdded(null);
+		}
+
+		AggRecord nextRecord = newRecord();
+		try {
+			if (!nextRecord.addUserRecord(partitionKey, explicitHashKeyHigh, explicitHashKeyLow, data)) {
+				throw unableToAdd(partitionKey, explicitHashKeyHigh, explicitHashKeyLow, data != null ? data.length : 0);
+			}
+		} catch (Exception e) {
+			discardRecord(nextRecord);
+			throw e;
 		}
+		return rotateTo(nextRecord, expired);
+	}
+
+	/**
+	 * Add a new user record to this aggregated record (will trigger a callback
+	 * via onRecordComplete if aggregated record is full). The explicit hash
+	 * key is supplied as an unsigned 128-bit value split into two 64-bit
+	 * words and the record data is the remaining content of the (possibly
+	 * direct) buffer, whose position is not changed.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKeyHigh
+	 *            The most significant 64 bits of the explicit hash key of the
+	 *            record to add
+	 * @param explicitHashKeyLow
+	 *            The least significant 64 bits of the explicit hash key of the
+	 *            record to add
+	 * @param data
+	 *            A buffer containing the record data of the record to add
+	 * @return A AggRecord if this aggregated record is full and ready to be
+	 *         transmitted or null otherwise.
+	 * @throws Exception If the user record can't be added to the current agg record
+	 */
+	public synchronized AggRecord addUserRecord(String partitionKey, long explicitHashKeyHigh, long explicitHashKeyLow,
+			ByteBuffer data) throws Exception {
+		boolean expired = isCurrentRecordExpired();
+		if (!expired && this.currentRecord.addUserRecord(partitionKey, explicitHashKeyHigh, explicitHashKeyLow, data)) {
+			return userRecordAdded(null);
+		}
+
+		AggRecord nextRecord = newRecord();
+		try {
+			if (!nextRecord.addUserRecord(partitionKey, explicitHashKeyHigh, explicitHashKeyLow, data)) {
+				throw unableToAdd(partitionKey, explicitHashKeyHigh, explicitHashKeyLow,
+						data != null ? data.remaining() : 0);
+			}
+		} catch (Exception e) {
+			discardRecord(nextRecord);
+			throw e;
+		}
+		return rotateTo(nextRecord, expired);
+	}
+
+	/**
+	 * Add a new user record and get a handle that completes once the
+	 * aggregated record carrying it has been written to Kinesis, with the
+	 * shard ID, the sequence number of the aggregated record and the
+	 * sub-sequence number of the user record, like the KPL's
+	 * UserRecordResult. The handle completes exceptionally if the aggregated
+	 * record could not be written, or was cleared without being completed.
+	 * 
+	 * The handle is completed by whatever sends the completed aggregated
+	 * record: KinesisRecordTransport (used by RecordSender),
+	 * PutRecordsBatcher.add(AggRecord) and EncodedRecord.completeUserRecords
+	 * do this, and custom code calls AggRecord.completeUserRecords or
+	 * failUserRecords. Completed records therefore have to reach a listener,
+	 * so at least one must be registered via onRecordComplete. Only tracked
+	 * user records carry the cost of a handle, so tracked and untracked user
+	 * records can be mixed freely.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add, or null
+	 * @param data
+	 *            The record data of the record to add
+	 * @return The handle of the user record.
+	 * @throws IllegalStateException
+	 *             If no listeners are registered.
+	 * @throws Exception
+	 *             If the user record can't be added to the current agg record
+	 */
+	public CompletableFuture<UserRecordResult> addTrackedUserRecord(String partitionKey, String explicitHashKey,
+			byte[] data) throws Exception {
+		return addTrackedUserRecord(partitionKey, explicitHashKey, data, 0, data != null ? data.length : 0);
+	}
+
+	/**
+	 * Add a new user record and get a handle that completes once it has been
+	 * written to Kinesis, as described for addTrackedUserRecord(String,
+	 * String, byte[]). Only the specified range of the data array is added.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add, or null
+	 * @param data
+	 *            An array containing the record data of the record to add
+	 * @param offset
+	 *            The index of the first byte of record data in the array
+	 * @param length
+	 *            The number of bytes of record data in the array
+	 * @return The handle of the user record.
+	 * @throws IllegalStateException
+	 *             If no listeners are registered.
+	 * @throws Exception
+	 *             If the user record can't be added to the current agg record
+	 */
+	public synchronized CompletableFuture<UserRecordResult> addTrackedUserRecord(String partitionKey,
+			String explicitHashKey, byte[] data, int offset, int length) throws Exception {
+		checkTrackable();
+		this.trackingUserRecord = true;
+		try {
+			addUserRecord(partitionKey, explicitHashKey, data, offset, length);
+			return this.trackedUserRecord;
+		} finally {
+			this.trackingUserRecord = false;
+			this.trackedUserRecord = null;
+		}
+	}
+
+	/**
+	 * Add a new user record and get a handle that completes once it has been
+	 * written to Kinesis, as described for addTrackedUserRecord(String,
+	 * String, byte[]). The record data is the remaining content of the
+	 * buffer, which may be a direct buffer; the buffer's position is not
+	 * changed.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add, or null
+	 * @param data
+	 *            A buffer containing the record data of the record to add
+	 * @return The handle of the user record.
+	 * @throws IllegalStateException
+	 *             If no listeners are registered.
+	 * @throws Exception
+	 *             If the user record can't be added to the current agg record
+	 */
+	public synchronized CompletableFuture<UserRecordResult> addTrackedUserRecord(String partitionKey,
+			String explicitHashKey, ByteBuffer data) throws Exception {
+		checkTrackable();
+		this.trackingUserRecord = true;
+		try {
+			addUserRecord(partitionKey, explicitHashKey, data);
+			return this.trackedUserRecord;
+		} finally {
+			this.trackingUserRecord = false;
+			this.trackedUserRecord = null;
+		}
+	}
+
+	/**
+	 * Tracked user records need a listener to send their aggregated record
+	 * and report its result.
+	 */
+	private void checkTrackable() {
+		if (this.listeners.isEmpty()) {
+			throw new IllegalStateException(
+					"Tracked user records require a listener registered via onRecordComplete");
+		}
+	}
+
+	/**
+	 * @return The exception thrown when a user record doesn't even fit in a
+	 *         new, empty aggregated record.
+	 */
+	static Exception unableToAdd(String partitionKey, String explicitHashKey, int dataLength) {
+		return new Exception(String.format("Unable to add User Record %s, %s with data length %s", partitionKey,
+				explicitHashKey, dataLength));
+	}
+
+	static Exception unableToAdd(String partitionKey, long explicitHashKeyHigh, long explicitHashKeyLow,
+			int dataLength) {
+		return unableToAdd(partitionKey, ExplicitHashKeys.toDecimalString(explicitHashKeyHigh, explicitHashKeyLow,
+				new char[ExplicitHashKeys.MAX_DECIMAL_DIGITS]), dataLength);
+	}
+
+	/**
+	 * Called after a user record has been added to the current record: starts
+	 * the buffered time clock when the record was the first one, and completes
+	 * the current record if it has reached the maximum user record count.
+	 * 
+	 * @param completeRecord
+	 *            The aggregated record completed while adding the user record,
+	 *            or null.
+	 * @return The aggregated record to return from addUserRecord, or null.
+	 */
+	private AggRecord userRecordAdded(AggRecord completeRecord) {
+		final int numUserRecords = this.currentRecord.getNumUserRecords();
+		if (this.trackingUserRecord) {
+			// before the record can be completed and handed to a listener
+			this.trackedUserRecord = this.currentRecord.trackLastUserRecord();
+		}
+		if (numUserRecords == 1 && this.maxBufferedTimeNanos > 0) {
+			this.currentRecordStartNanos = System.nanoTime();
+			if (!this.flusher.isShutdown()) {
+				final long generation = this.currentGeneration;
+				this.currentAgeFlush = this.flusher.schedule(() -> flushExpiredRecord(generation),
+						this.maxBufferedTimeNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		// the current record can only have been started by this user record
+		// when it was just completed, and then it holds a single user record;
+		// a count limit of one never leaves user records buffered, so at most
+		// one record is completed per call
+		if (this.maxUserRecordCount > 0 && numUserRecords >= this.maxUserRecordCount) {
+			return completeCurrentRecord(FlushReason.COUNT);
+		}
+		return completeRecord;
+	}
+
+	/**
+	 * @return Whether the oldest user record of the current record has been
+	 *         buffered for longer than the maximum buffered time. This catches
+	 *         aged records the background flusher left in place because there
+	 *         were no listeners to hand them to.
+	 */
+	private boolean isCurrentRecordExpired() {
+		return this.maxBufferedTimeNanos > 0 && this.currentRecord.getNumUserRecords() > 0
+				&& System.nanoTime() - this.currentRecordStartNanos >= this.maxBufferedTimeNanos;
+	}
+
+	/**
+	 * Complete the current record, which has aged out or could not take the
+	 * new user record, and replace it with the record the new user record was
+	 * added to instead.
+	 * 
+	 * @return The aggregated record to return from addUserRecord, or null.
+	 */
+	private AggRecord rotateTo(AggRecord nextRecord, boolean expired) {
+		return userRecordAdded(completeCurrentRecord(expired ? FlushReason.AGE : FlushReason.SIZE, nextRecord));
+	}
+
+	/**
+	 * Drop a record made by newRecord() that is not used after all.
+	 */
+	private void discardRecord(AggRecord record) {
+		if (this.recordPool != null) {
+			this.recordPool.giveBack(record);
+		}
+	}
+
+	/**
+	 * Run on the flusher thread once the first user record of a record has
+	 * been buffered for the maximum buffered time. Completes that record and
+	 * notifies the listeners, unless the record has already been completed or
+	 * cleared, or there are no listeners to hand it to.
+	 * 
+	 * @param generation
+	 *            The generation of the record the flush was scheduled for.
+	 */
+	private synchronized void flushExpiredRecord(long generation) {
+		if (generation == this.currentGeneration && !this.listeners.isEmpty()) {
+			completeCurrentRecord(FlushReason.AGE);
+		}
+	}
+
+	/**
+	 * Called when the current record has been completed or cleared: moves on
+	 * to the next generation and cancels the record's pending age flush.
+	 */
+	private void retireCurrentRecord() {
+		this.currentGeneration++;
+		if (this.currentAgeFlush != null) {
+			this.currentAgeFlush.cancel(false);
+			this.currentAgeFlush = null;
+		}
+	}
+
+	/**
+	 * Notify all the listeners that the current aggregated record is complete
+	 * and replace it with a new empty record.
+	 * 
+	 * @param reason
+	 *            The reason the current record is being completed.
+	 * @return The aggregated record that was just completed.
+	 */
+	private AggRecord completeCurrentRecord(FlushReason reason) {
+		return completeCurrentRecord(reason, newRecord());
+	}
+
+	/**
+	 * Notify all the listeners that the current aggregated record is complete
+	 * and replace it with the specified record.
+	 * 
+	 * @param reason
+	 *            The reason the current record is being completed.
+	 * @param nextRecord
+	 *            The record to aggregate the following user records into.
+	 * @return The aggregated record that was just completed.
+	 */
+	private AggRecord completeCurrentRecord(FlushReason reason, AggRecord nextRecord) {
+		final AggRecord completeRecord = this.currentRecord;
+		completeRecord.setFlushReason(reason);
+		completeRecord.seal(Math.max(this.listeners.size(), 1));
+		this.currentRecord = nextRecord;
+		retireCurrentRecord();
+
+		for (ListenerExecutorPair pair : this.listeners) {
+			pair.getExecutor().execute(() -> {
+				pair.getListener().recordComplete(completeRecord);
+			});
+		}
+
+		return completeRecord;
 	}
 
 	/**
@@ -0,0 +1,304 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.zip.Deflater;
+
+import com.amazonaws.annotation.NotThreadSafe;
+
+/**
+ * Configuration options for a RecordAggregator. All options default to the
+ * behavior of a RecordAggregator created with its no-argument constructor.
+ * 
+ * This class is NOT thread-safe.
+ */
+@NotThreadSafe
+public class RecordAggregatorConfig {
+	/** The default number of completed records kept for reuse (none). */
+	public static final int DEFAULT_RECORD_POOL_SIZE = 0;
+
+	/** The default maximum time a user record is buffered for (no limit). */
+	public static final long DEFAULT_MAX_BUFFERED_TIME_MILLIS = 0;
+
+	/** The default maximum number of user records per aggregate (no limit). */
+	public static final int DEFAULT_MAX_USER_RECORD_COUNT = 0;
+
+	/** The default maximum size of an aggregate (the Kinesis record limit). */
+	public static final int DEFAULT_MAX_AGGREGATE_SIZE_BYTES = AggRecord.MAX_BYTES_PER_RECORD;
+
+	/** The default compression mode (aggregated records are not compressed). */
+	public static final CompressionMode DEFAULT_COMPRESSION = CompressionMode.NONE;
+
+	/** The default compression level (the Deflater default). */
+	public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * By default user records without an explicit hash key are written with
+	 * the hash of their partition key.
+	 */
+	public static final boolean DEFAULT_OMIT_DERIVED_EXPLICIT_HASH_KEYS = false;
+
+	/** By default buffered user records are kept in the Java heap. */
+	public static final boolean DEFAULT_OFF_HEAP_PAYLOADS = false;
+
+	/** The maximum number of recycled aggregated records kept for reuse. */
+	private int recordPoolSize = DEFAULT_RECORD_POOL_SIZE;
+	/** The maximum time to buffer a user record before flushing it. */
+	private long maxBufferedTimeMillis = DEFAULT_MAX_BUFFERED_TIME_MILLIS;
+	/** The maximum number of user records in a single aggregate. */
+	private int maxUserRecordCount = DEFAULT_MAX_USER_RECORD_COUNT;
+	/** The maximum size of a single aggregate. */
+	private int maxAggregateSizeBytes = DEFAULT_MAX_AGGREGATE_SIZE_BYTES;
+	/** Whether and how aggregated records are compressed. */
+	private CompressionMode compression = DEFAULT_COMPRESSION;
+	/** The Deflater level to compress with. */
+	private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+	/** Whether user records without an explicit hash key are written without one. */
+	private boolean omitDerivedExplicitHashKeys = DEFAULT_OMIT_DERIVED_EXPLICIT_HASH_KEYS;
+	/** Whether buffered user records are kept in direct buffers. */
+	private boolean offHeapPayloads = DEFAULT_OFF_HEAP_PAYLOADS;
+
+	/**
+	 * @return The maximum number of recycled aggregated records the
+	 *         aggregator keeps for reuse (0 means pooling is disabled).
+	 */
+	public int getRecordPoolSize() {
+		return this.recordPoolSize;
+	}
+
+	/**
+	 * Enable pooling of aggregated records. When pooling is enabled, completed
+	 * records must be handed back via RecordAggregator.recycle(...) once they
+	 * have been transmitted so their buffers can be reused.
+	 * 
+	 * @param recordPoolSize
+	 *            The maximum number of recycled records to keep for reuse (0
+	 *            disables pooling).
+	 * @return This configuration object.
+	 */
+	public RecordAggregatorConfig withRecordPoolSize(int recordPoolSize) {
+		if (recordPoolSize < 0) {
+			throw new IllegalArgumentException("Record pool size cannot be negative, got " + recordPoolSize);
+		}
+		this.recordPoolSize = recordPoolSize;
+		return this;
+	}
+
+	/**
+	 * @return The maximum time in milliseconds a user record is buffered for
+	 *         before its aggregated record is flushed (0 means no limit).
+	 */
+	public long getMaxBufferedTimeMillis() {
+		return this.maxBufferedTimeMillis;
+	}
+
+	/**
+	 * Limit how long a user record can sit in a partially filled aggregated
+	 * record. Once the oldest user record in the current aggregated record has
+	 * been buffered for this long, a background thread completes the record
+	 * and notifies the listeners registered via onRecordComplete (or, if
+	 * there are none, the next addUserRecord call returns it). Lower values
+	 * reduce latency at the cost of less densely packed records, like the KPL
+	 * RecordMaxBufferedTime setting.
+	 * 
+	 * An aggregator with a maximum buffered time owns a background thread, so
+	 * it should be closed when it is no longer needed.
+	 * 
+	 * @param maxBufferedTimeMillis
+	 *            The maximum time in milliseconds to buffer a user record (0
+	 *            means no limit).
+	 * @return This configuration object.
+	 */
+	public RecordAggregatorConfig withMaxBufferedTimeMillis(long maxBufferedTimeMillis) {
+		if (maxBufferedTimeMillis < 0) {
+			throw new IllegalArgumentException("Max buffered time cannot be negative, got " + maxBufferedTimeMillis);
+		}
+		this.maxBufferedTimeMillis = maxBufferedTimeMillis;
+		return this;
+	}
+
+	/**
+	 * @return The maximum number of user records in a single aggregated record
+	 *         (0 means no limit).
+	 */
+	public int getMaxUserRecordCount() {
+		return this.maxUserRecordCount;
+	}
+
+	/**
+	 * Limit the number of user records in a single aggregated record. The
+	 * current aggregated record is completed as soon as it holds this many
+	 * user records.
+	 * 
+	 * @param maxUserRecordCount
+	 *            The maximum number of user records per aggregated record (0
+	 *            means no limit).
+	 * @return This configuration object.
+	 */
+	public RecordAggregatorConfig withMaxUserRecordCount(int maxUserRecordCount) {
+		if (maxUserRecordCount < 0) {
+			throw new IllegalArgumentException("Max user record count cannot be negative, got " + maxUserRecordCount);
+		}
+		this.maxUserRecordCount = maxUserRecordCount;
+		return this;
+	}
+
+	/**
+	 * @return The maximum size in bytes of a single aggregated record.
+	 */
+	public int getMaxAggregateSizeBytes() {
+		return this.maxAggregateSizeBytes;
+	}
+
+	/**
+	 * Limit the size of a single aggregated record to less than the Kinesis
+	 * maximum record size. The current aggregated record is completed when the
+	 * next user record would make it larger than this. A single user record
+	 * that is larger than this limit (but within the Kinesis limit) is still
+	 * accepted into an aggregated record of its own.
+	 * 
+	 * @param maxAggregateSizeBytes
+	 *            The maximum size in bytes of an aggregated record, between 1
+	 *            and AggRecord.MAX_BYTES_PER_RECORD.
+	 * @return This configuration object.
+	 */
+	public RecordAggregatorConfig withMaxAggregateSizeBytes(int maxAggregateSizeBytes) {
+		if (maxAggregateSizeBytes <= 0 || maxAggregateSizeBytes > AggRecord.MAX_BYTES_PER_RECORD) {
+			throw new IllegalArgumentException("Max aggregate size must be between 1 and "
+					+ AggRecord.MAX_BYTES_PER_RECORD + " bytes, got " + maxAggregateSizeBytes);
+		}
+		this.maxAggregateSizeBytes = maxAggregateSizeBytes;
+		return this;
+	}
+
+	/**
+	 * @return Whether and how aggregated records are compressed.
+	 */
+	public CompressionMode getCompression() {
+		return this.compression;
+	}
+
+	/**
+	 * Compress aggregated records, either each user record's data on its own
+	 * (CompressionMode.USER_RECORD) or each aggregated record as a whole
+	 * (CompressionMode.AGGREGATE). Size limits then apply to the compressed
+	 * sizes, so more user records fit into each aggregated record. Compressed
+	 * records can only be read by RecordDeaggregator, which decompresses them
+	 * transparently; consumers that use the KCL directly cannot read them.
+	 * 
+	 * @param compression
+	 *            The compression mode.
+	 * @return This configuration object.
+	 */
+	public RecordAggregatorConfig withCompression(CompressionMode compression) {
+		if (compression == null) {
+			throw new IllegalArgumentException("Compression mode cannot be null");
+		}
+		this.compression = compression;
+		return this;
+	}
+
+	/**
+	 * @return The Deflater level aggregated records are compressed with.
+	 */
+	public int getCompressionLevel() {
+		return this.compressionLevel;
+	}
+
+	/**
+	 * Set the Deflater compression level, trading throughput for smaller
+	 * records. Only has an effect if compression is enabled.
+	 * 
+	 * @param compressionLevel
+	 *            Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9),
+	 *            Deflater.NO_COMPRESSION (0) or Deflater.DEFAULT_COMPRESSION
+	 *            (-1).
+	 * @return This configuration object.
+	 */
+	public RecordAggregatorConfig withCompressionLevel(int compressionLevel) {
+		if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Compression level must be between " + Deflater.DEFAULT_COMPRESSION
+					+ " and " + Deflater.BEST_COMPRESSION + ", got " + compressionLevel);
+		}
+		this.compressionLevel = compressionLevel;
+		return this;
+	}
+
+	/**
+	 * @return Whether user records added without an explicit hash key are
+	 *         written without one.
+	 */
+	public boolean isOmitDerivedExplicitHashKeys() {
+		return this.omitDerivedExplicitHashKeys;
+	}
+
+	/**
+	 * Write user records that are added without an explicit hash key without
+	 * one, instead of with the MD5 hash of their partition key. The
+	 * aggregation format makes the explicit hash key of each user record
+	 * optional, and the KCL then hashes the partition key itself wherever it
+	 * needs the hash key (e.g. to filter user records by shard). This saves
+	 * the MD5 hash of every user record but the first of each aggregated
+	 * record, and the explicit hash key table entry (about 40 bytes per
+	 * distinct partition key) and index of every user record, so more user
+	 * records fit into each aggregated record. The aggregated record itself is
+	 * still sent with the hash key of its first user record.
+	 * 
+	 * UserRecord.getExplicitHashKey() returns null for user records written
+	 * this way, so leave this disabled if consumers read that value.
+	 * 
+	 * @param omitDerivedExplicitHashKeys
+	 *            True to leave out derived explicit hash keys.
+	 * @return This configuration object.
+	 */
+	public RecordAggregatorConfig withOmitDerivedExplicitHashKeys(boolean omitDerivedExplicitHashKeys) {
+		this.omitDerivedExplicitHashKeys = omitDerivedExplicitHashKeys;
+		return this;
+	}
+
+	/**
+	 * @return Whether aggregated records keep their buffered user records in
+	 *         direct buffers outside the Java heap.
+	 */
+	public boolean isOffHeapPayloads() {
+		return this.offHeapPayloads;
+	}
+
+	/**
+	 * Keep the buffered user records of each aggregated record in a direct
+	 * buffer instead of a heap array. An aggregated record holds up to 1 MB
+	 * of user record data until it is sent, so with many open records (e.g.
+	 * one per shard) this takes most of the aggregator's memory out of the
+	 * garbage collected heap. writeTo(WritableByteChannel) and
+	 * writeTo(ByteBuffer) then copy the data straight from the direct buffer,
+	 * while toRecordBytes() and toPutRecordRequest() still copy it into a new
+	 * heap array.
+	 * 
+	 * Direct buffers are costly to allocate and are only freed once their
+	 * record is garbage collected, so combine this with record pooling
+	 * (withRecordPoolSize), which reuses each record's buffer once it has
+	 * grown to size.
+	 * 
+	 * @param offHeapPayloads
+	 *            True to keep buffered user records off-heap.
+	 * @return This configuration object.
+	 */
+	public RecordAggregatorConfig withOffHeapPayloads(boolean offHeapPayloads) {
+		this.offHeapPayloads = offHeapPayloads;
+		return this;
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+/**
+ * The format of compressed records written by a RecordAggregator configured
+ * with a CompressionMode other than NONE.
+ * 
+ * A compressed aggregated record (CompressionMode.AGGREGATE) is the 4 byte
+ * magic F3 89 9A C3, one byte identifying the codec, and the compressed
+ * stream of a standard aggregated record (magic F3 89 9A C2, protobuf message
+ * and MD5 digest). Inside the stream the protobuf message lists the user
+ * records before the key tables, which protobuf parsers accept, so that user
+ * records can be compressed as they are added.
+ * 
+ * The data of a compressed user record (CompressionMode.USER_RECORD) is the 4
+ * byte magic F3 89 9A C4, one byte identifying the codec, and the compressed
+ * stream of the original data. User record data that does not get smaller is
+ * stored as it is, unless it happens to start with this magic.
+ * 
+ * The only codec is CODEC_DEFLATE: a zlib stream (RFC 1950), which includes
+ * an Adler-32 checksum of the uncompressed bytes and can be read with
+ * java.util.zip.Inflater or any zlib binding.
+ * 
+ * Neither magic is a valid start of UTF-8 text, so consumers that do not
+ * decompress can still tell compressed records apart from text payloads
+ * such as JSON. The RecordDeaggregator decompresses both kinds
+ * transparently.
+ */
+public final class RecordCompression {
+	/** The codec id of zlib compressed records. */
+	public static final byte CODEC_DEFLATE = 1;
+
+	/**
+	 * The most bytes a compressed aggregated record or compressed user record
+	 * inflates to: 16 times the Kinesis record size limit. Aggregated records
+	 * are completed before their protobuf message grows past it, and user
+	 * record data larger than this cannot be compressed. The
+	 * RecordDeaggregator reads a compressed stream that inflates to more as a
+	 * plain record, so a small record of highly compressible data cannot make
+	 * either side buffer an unbounded amount of memory.
+	 */
+	public static final int MAX_UNCOMPRESSED_BYTES = 16 * AggRecord.MAX_BYTES_PER_RECORD;
+
+	/** The length of the magic and codec id in front of compressed bytes. */
+	static final int HEADER_LENGTH = 5;
+
+	static final byte[] COMPRESSED_AGGREGATE_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a,
+			(byte) 0xc3 };
+
+	static final byte[] COMPRESSED_USER_RECORD_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a,
+			(byte) 0xc4 };
+
+	private RecordCompression() {
+	}
+
+	/**
+	 * @param recordData
+	 *            The data of a Kinesis record.
+	 * @return True if the data is a compressed aggregated record.
+	 */
+	public static boolean isCompressedAggregate(byte[] recordData) {
+		return startsWith(recordData, 0, recordData.length, COMPRESSED_AGGREGATE_MAGIC);
+	}
+
+	/**
+	 * @param userRecordData
+	 *            The data of a user record.
+	 * @return True if the data is a compressed user record.
+	 */
+	public static boolean isCompressedUserRecord(byte[] userRecordData) {
+		return startsWith(userRecordData, 0, userRecordData.length, COMPRESSED_USER_RECORD_MAGIC);
+	}
+
+	static boolean startsWith(byte[] data, int offset, int length, byte[] magic) {
+		if (length < HEADER_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if (data[offset + i] != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,398 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.amazonaws.annotation.GuardedBy;
+import com.amazonaws.annotation.ThreadSafe;
+import com.amazonaws.kinesis.agg.RecordAggregator.RecordCompleteListener;
+
+/**
+ * Serializes completed aggregated records on a pool of worker threads and
+ * hands the ready-to-send bytes to a listener, in the order in which the
+ * records were completed.
+ * 
+ * Serializing an aggregated record (building the protobuf message, encoding
+ * it and computing its MD5 digest) takes time proportional to its size. A
+ * listener that calls toRecordBytes() does that work on whichever thread
+ * runs the listener, and with a direct executor on the producer thread that
+ * just completed the record. The encoder moves it to its worker threads:
+ * receiving a completed record only assigns it the next sequence number, so
+ * the producer goes straight back to filling the next record. Records are
+ * encoded in parallel, held back until all the records completed before
+ * them have been delivered, and then passed to the listener one at a time.
+ * 
+ * The encoder is a RecordCompleteListener. Register it with a direct
+ * executor, so that records are numbered in the order the aggregator
+ * completes them and a full encoder pushes back on addUserRecord:
+ * 
+ * <pre>
+ * aggregator.onRecordComplete(encoder, Runnable::run);
+ * </pre>
+ * 
+ * The encoder recycles pooled records as soon as they have been serialized,
+ * so it counts as the one holder that must recycle each record it receives.
+ * 
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public class RecordEncoder implements RecordCompleteListener, AutoCloseable {
+	/**
+	 * A listener for encoded records. Calls are never concurrent and follow
+	 * the order in which the records were completed.
+	 */
+	public interface EncodedRecordListener {
+		/**
+		 * Called with each encoded record.
+		 * 
+		 * @param encodedRecord
+		 *            The encoded record, ready to send.
+		 */
+		void recordEncoded(EncodedRecord encodedRecord);
+
+		/**
+		 * Called in place of recordEncoded if a record could not be encoded,
+		 * and after recordEncoded if that threw an exception or error. The
+		 * handles of the record's tracked user records have already been
+		 * failed with the same exception. Does nothing by default.
+		 * 
+		 * @param sequenceNumber
+		 *            The sequence number of the record.
+		 * @param cause
+		 *            The exception thrown while encoding the record, or by
+		 *            recordEncoded.
+		 */
+		default void recordFailed(long sequenceNumber, Throwable cause) {
+		}
+	}
+
+	/** The default number of records that may wait for delivery per thread. */
+	public static final int DEFAULT_MAX_PENDING_RECORDS_PER_THREAD = 2;
+
+	/** The listener to deliver encoded records to. */
+	private final EncodedRecordListener listener;
+	/** The threads that encode records. */
+	private final ExecutorService workers;
+	/** The maximum number of records received but not yet delivered. */
+	private final int maxPendingRecords;
+
+	private final Lock lock = new ReentrantLock();
+	/** Signalled when records have been delivered. */
+	private final Condition recordsDelivered = this.lock.newCondition();
+	/**
+	 * The outcome of each record that has been encoded but not delivered yet,
+	 * by sequence number: an EncodedRecord or the Throwable that prevented it.
+	 */
+	@GuardedBy("lock")
+	private final Map<Long, Object> encodedRecords = new HashMap<>();
+	/** The sequence number of the next record received. */
+	@GuardedBy("lock")
+	private long nextSequenceNumber;
+	/** The sequence number of the next record to deliver. */
+	@GuardedBy("lock")
+	private long nextDelivery;
+	/** Whether a worker thread is delivering records to the listener. */
+	@GuardedBy("lock")
+	private boolean delivering;
+	/** Whether close() has been called; no more records are accepted. */
+	@GuardedBy("lock")
+	private boolean closed;
+
+	private final AtomicLong encodedRecordCount = new AtomicLong();
+	private final AtomicLong failedRecordCount = new AtomicLong();
+
+	/**
+	 * Create an encoder with one worker thread per available processor.
+	 * 
+	 * @param listener
+	 *            The listener to deliver encoded records to.
+	 */
+	public RecordEncoder(EncodedRecordListener listener) {
+		this(listener, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create an encoder and start its worker threads.
+	 * 
+	 * @param listener
+	 *            The listener to deliver encoded records to.
+	 * @param threads
+	 *            The number of worker threads.
+	 */
+	public RecordEncoder(EncodedRecordListener listener, int threads) {
+		this(listener, threads, threads * DEFAULT_MAX_PENDING_RECORDS_PER_THREAD);
+	}
+
+	/**
+	 * Create an encoder and start its worker threads.
+	 * 
+	 * @param listener
+	 *            The listener to deliver encoded records to.
+	 * @param threads
+	 *            The number of worker threads.
+	 * @param maxPendingRecords
+	 *            The maximum number of records that have been received but
+	 *            not yet delivered. Once it is reached, recordComplete blocks
+	 *            until the oldest record has been delivered.
+	 */
+	public RecordEncoder(EncodedRecordListener listener, int threads, int maxPendingRecords) {
+		if (listener == null) {
+			throw new IllegalArgumentException("Listener cannot be null");
+		}
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Thread count must be positive, got " + threads);
+		}
+		if (maxPendingRecords < threads) {
+			throw new IllegalArgumentException("Max pending records must be at least the thread count " + threads
+					+ ", got " + maxPendingRecords);
+		}
+
+		this.listener = listener;
+		this.maxPendingRecords = maxPendingRecords;
+		final AtomicInteger threadNumber = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "RecordEncoder-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Accept a completed record for encoding. Blocks while the maximum number
+	 * of records are waiting to be delivered. Empty records are recycled
+	 * without being delivered.
+	 * 
+	 * @param aggRecord
+	 *            The completed record.
+	 * @throws IllegalStateException
+	 *             If this encoder has been closed, or the calling thread was
+	 *             interrupted while waiting. The record has been recycled.
+	 */
+	@Override
+	public void recordComplete(AggRecord aggRecord) {
+		if (aggRecord == null) {
+			return;
+		}
+		if (aggRecord.getNumUserRecords() == 0) {
+			release(aggRecord);
+			return;
+		}
+
+		final long sequenceNumber;
+		this.lock.lock();
+		try {
+			while (!this.closed && this.nextSequenceNumber - this.nextDelivery >= this.maxPendingRecords) {
+				try {
+					this.recordsDelivered.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					release(aggRecord);
+					throw new IllegalStateException("Interrupted while waiting for room in the record encoder", e);
+				}
+			}
+			if (this.closed) {
+				release(aggRecord);
+				throw new IllegalStateException("Record encoder is closed");
+			}
+			sequenceNumber = this.nextSequenceNumber++;
+		} finally {
+			this.lock.unlock();
+		}
+
+		this.workers.execute(() -> encode(aggRecord, sequenceNumber));
+	}
+
+	/**
+	 * Wait until every record received so far has been delivered.
+	 * 
+	 * @throws InterruptedException
+	 *             If the calling thread was interrupted while waiting.
+	 */
+	public void flush() throws InterruptedException {
+		this.lock.lock();
+		try {
+			final long target = this.nextSequenceNumber;
+			while (this.nextDelivery < target) {
+				this.recordsDelivered.await();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop accepting records, wait until every received record has been
+	 * delivered and stop the worker threads.
+	 */
+	@Override
+	public void close() {
+		this.lock.lock();
+		try {
+			this.closed = true;
+			this.recordsDelivered.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+
+		try {
+			flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			this.workers.shutdown();
+		}
+	}
+
+	/**
+	 * @return The number of records that have been received but not yet
+	 *         delivered.
+	 */
+	public int getPendingRecordCount() {
+		this.lock.lock();
+		try {
+			return (int) (this.nextSequenceNumber - this.nextDelivery);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of records the listener accepted without throwing.
+	 */
+	public long getEncodedRecordCount() {
+		return this.encodedRecordCount.get();
+	}
+
+	/**
+	 * @return The number of records that could not be encoded or whose
+	 *         listener call threw an exception.
+	 */
+	public long getFailedRecordCount() {
+		return this.failedRecordCount.get();
+	}
+
+	/**
+	 * Encode a record on a worker thread, then deliver every record that is
+	 * ready, unless another worker thread is already delivering. That thread
+	 * will then deliver this record too once its turn comes.
+	 */
+	private void encode(AggRecord aggRecord, long sequenceNumber) {
+		Object outcome;
+		try {
+			outcome = new EncodedRecord(aggRecord, sequenceNumber);
+		} catch (Throwable e) {
+			// an outcome has to be stored even for an Error, or every later
+			// record would wait for this one forever
+			aggRecord.failUserRecords(e);
+			outcome = e;
+		} finally {
+			release(aggRecord);
+		}
+
+		this.lock.lock();
+		try {
+			this.encodedRecords.put(sequenceNumber, outcome);
+			if (this.delivering) {
+				return;
+			}
+			this.delivering = true;
+		} finally {
+			this.lock.unlock();
+		}
+
+		deliverReadyRecords();
+	}
+
+	/**
+	 * Deliver records in sequence until the next one has not been encoded
+	 * yet. The listener is called without holding the lock, so records keep
+	 * being received and encoded while it runs.
+	 */
+	private void deliverReadyRecords() {
+		Object outcome;
+		long sequenceNumber;
+		while (true) {
+			this.lock.lock();
+			try {
+				sequenceNumber = this.nextDelivery;
+				outcome = this.encodedRecords.remove(sequenceNumber);
+				if (outcome == null) {
+					this.delivering = false;
+					return;
+				}
+			} finally {
+				this.lock.unlock();
+			}
+
+			try {
+				if (outcome instanceof EncodedRecord) {
+					deliver((EncodedRecord) outcome);
+				} else {
+					this.failedRecordCount.incrementAndGet();
+					this.listener.recordFailed(sequenceNumber, (Throwable) outcome);
+				}
+			} catch (Throwable e) {
+				// the listener must not stop later records from being
+				// delivered, not even with an Error: this thread would leave
+				// delivering set, and flush() and close() would block forever
+			} finally {
+				this.lock.lock();
+				try {
+					this.nextDelivery++;
+					this.recordsDelivered.signalAll();
+				} finally {
+					this.lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hand an encoded record to the listener. If the listener throws, the
+	 * record counts as failed: its tracked user records are failed with the
+	 * exception or error, which is then reported to recordFailed.
+	 */
+	private void deliver(EncodedRecord encodedRecord) {
+		try {
+			this.listener.recordEncoded(encodedRecord);
+			this.encodedRecordCount.incrementAndGet();
+		} catch (Throwable e) {
+			this.failedRecordCount.incrementAndGet();
+			encodedRecord.failUserRecords(e);
+			this.listener.recordFailed(encodedRecord.getSequenceNumber(), e);
+		}
+	}
+
+	/**
+	 * Recycle a record if it is pooled.
+	 */
+	private static void release(AggRecord aggRecord) {
+		AggRecordPool pool = aggRecord.getPool();
+		if (pool != null) {
+			pool.release(aggRecord);
+		}
+	}
+}
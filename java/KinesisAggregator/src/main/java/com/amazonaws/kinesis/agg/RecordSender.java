@@ -0,0 +1,552 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.amazonaws.annotation.GuardedBy;
+import com.amazonaws.annotation.ThreadSafe;
+import com.amazonaws.kinesis.agg.RecordAggregator.RecordCompleteListener;
+
+/**
+ * Sends completed aggregated records through a RecordTransport from a fixed
+ * number of sender threads, while bounding the memory held by records that
+ * have not been sent yet.
+ * 
+ * Every record the sender accepts counts against the maximum number of
+ * in-flight bytes until it has been sent or given up on, including while it
+ * waits for a sender thread or for a retry. When a new record would exceed
+ * the limit, the configured OverflowPolicy either blocks the caller, rejects
+ * the record or drops the oldest waiting records. Failed sends are retried
+ * with exponential backoff and full jitter: the delay before the n-th retry is
+ * picked at random between zero and min(maxBackoff, initialBackoff * 2^(n-1)).
+ * 
+ * The sender is a RecordCompleteListener. Register it with a direct executor
+ * so that a full sender pushes back on addUserRecord, instead of completed
+ * records piling up in the executor's unbounded queue:
+ * 
+ * <pre>
+ * aggregator.onRecordComplete(sender, Runnable::run);
+ * </pre>
+ * 
+ * The sender recycles pooled records once it is done with them, so it counts
+ * as the one holder that must recycle each record it receives. Records that
+ * could not be sent are reported to the FailureListener before they are
+ * recycled.
+ * 
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public class RecordSender implements RecordCompleteListener, AutoCloseable {
+	/**
+	 * A listener for records that could not be sent.
+	 */
+	public interface FailureListener {
+		/**
+		 * Called when a record has used up all its attempts, or was rejected or
+		 * dropped by the overflow policy. The record must not be used after
+		 * this method returns.
+		 * 
+		 * @param aggRecord
+		 *            The record that could not be sent.
+		 * @param cause
+		 *            The exception thrown by the last attempt, or a
+		 *            RejectedExecutionException for records that were never
+		 *            attempted.
+		 */
+		void recordFailed(AggRecord aggRecord, Throwable cause);
+	}
+
+	/** The transport to send records with. */
+	private final RecordTransport transport;
+	/** The listener for records that could not be sent. */
+	private final FailureListener failureListener;
+	private final long maxInFlightBytes;
+	private final OverflowPolicy overflowPolicy;
+	private final int maxAttempts;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+	/** The threads that call the transport. */
+	private final Thread[] senderThreads;
+	/** The thread that hands records back to the sender threads after their backoff. */
+	private final ScheduledExecutorService retryScheduler;
+
+	private final Lock lock = new ReentrantLock();
+	/** Signalled when in-flight records have been settled. */
+	private final Condition recordsSettled = this.lock.newCondition();
+	/** Signalled when a record is waiting for a sender thread. */
+	private final Condition recordWaiting = this.lock.newCondition();
+	/** The records waiting for a sender thread, oldest first. */
+	@GuardedBy("lock")
+	private final Deque<PendingRecord> waitingRecords = new ArrayDeque<>();
+	/** The total size of the accepted records that have not been settled. */
+	@GuardedBy("lock")
+	private long inFlightBytes;
+	/** The number of accepted records that have not been settled. */
+	@GuardedBy("lock")
+	private int inFlightRecords;
+	/** Whether close() has been called; no more records are accepted. */
+	@GuardedBy("lock")
+	private boolean closed;
+	/** Whether the sender threads should exit once they run out of records. */
+	@GuardedBy("lock")
+	private boolean stopped;
+
+	private final AtomicLong sentRecordCount = new AtomicLong();
+	private final AtomicLong failedRecordCount = new AtomicLong();
+	private final AtomicLong retryCount = new AtomicLong();
+	private final AtomicLong listenerErrorCount = new AtomicLong();
+
+	/**
+	 * Create a sender with the default configuration.
+	 * 
+	 * @param transport
+	 *            The transport to send records with.
+	 * @param failureListener
+	 *            The listener for records that could not be sent.
+	 */
+	public RecordSender(RecordTransport transport, FailureListener failureListener) {
+		this(transport, failureListener, new RecordSenderConfig());
+	}
+
+	/**
+	 * Create a sender and start its sender threads.
+	 * 
+	 * @param transport
+	 *            The transport to send records with.
+	 * @param failureListener
+	 *            The listener for records that could not be sent.
+	 * @param config
+	 *            The configuration options for this sender.
+	 */
+	public RecordSender(RecordTransport transport, FailureListener failureListener, RecordSenderConfig config) {
+		if (transport == null || failureListener == null) {
+			throw new IllegalArgumentException("Transport and failure listener cannot be null");
+		}
+
+		this.transport = transport;
+		this.failureListener = failureListener;
+		this.maxInFlightBytes = config.getMaxInFlightBytes();
+		this.overflowPolicy = config.getOverflowPolicy();
+		this.maxAttempts = config.getMaxAttempts();
+		this.initialBackoffMillis = config.getInitialBackoffMillis();
+		this.maxBackoffMillis = config.getMaxBackoffMillis();
+		this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "RecordSender-retry");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		this.senderThreads = new Thread[config.getMaxInFlightRequests()];
+		for (int i = 0; i < this.senderThreads.length; i++) {
+			this.senderThreads[i] = new Thread(this::runSender, "RecordSender-" + i);
+			this.senderThreads[i].setDaemon(true);
+			this.senderThreads[i].start();
+		}
+	}
+
+	/**
+	 * Hand a completed record to this sender; equivalent to send(aggRecord).
+	 */
+	@Override
+	public void recordComplete(AggRecord aggRecord) {
+		send(aggRecord);
+	}
+
+	/**
+	 * Accept a record for sending. If the record would exceed the in-flight
+	 * bytes limit, the overflow policy decides whether this method blocks,
+	 * throws or drops records. Empty records are recycled without being sent.
+	 * 
+	 * @param aggRecord
+	 *            The record to send.
+	 * @throws RejectedExecutionException
+	 *             If the overflow policy is FAIL_FAST and there is no room for
+	 *             the record. The record has been reported to the failure
+	 *             listener.
+	 * @throws IllegalStateException
+	 *             If this sender has been closed. The record has been
+	 *             recycled and its tracked user records failed.
+	 */
+	public void send(AggRecord aggRecord) {
+		if (aggRecord == null) {
+			return;
+		}
+		if (aggRecord.getNumUserRecords() == 0) {
+			release(aggRecord);
+			return;
+		}
+
+		PendingRecord record = new PendingRecord(aggRecord, aggRecord.getSizeBytes());
+		List<PendingRecord> droppedRecords = new ArrayList<>(0);
+		RuntimeException rejection;
+		this.lock.lock();
+		try {
+			rejection = admit(record, droppedRecords);
+		} finally {
+			this.lock.unlock();
+		}
+
+		for (PendingRecord dropped : droppedRecords) {
+			reportFailure(dropped, new RejectedExecutionException(
+					"Dropped to make room for newer records; in-flight bytes limit is " + this.maxInFlightBytes));
+			release(dropped.aggRecord);
+		}
+		if (rejection instanceof IllegalStateException) {
+			// the caller learns of the failure from the exception
+			aggRecord.failUserRecords(rejection);
+			release(aggRecord);
+			throw rejection;
+		}
+		if (rejection != null) {
+			reportFailure(record, rejection);
+			release(aggRecord);
+			if (this.overflowPolicy == OverflowPolicy.FAIL_FAST) {
+				throw rejection;
+			}
+		}
+	}
+
+	/**
+	 * Wait until every record accepted so far has been sent or given up on.
+	 * 
+	 * @throws InterruptedException
+	 *             If the calling thread was interrupted while waiting.
+	 */
+	public void flush() throws InterruptedException {
+		this.lock.lock();
+		try {
+			while (this.inFlightRecords > 0) {
+				this.recordsSettled.await();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop accepting records, wait until every accepted record has been sent
+	 * or given up on, and stop the sender threads. Callers blocked in send()
+	 * are woken up and get an IllegalStateException. If the calling thread is
+	 * interrupted while waiting, records still waiting for a sender thread or
+	 * a retry are reported to the failure listener instead of being sent.
+	 */
+	@Override
+	public void close() {
+		this.lock.lock();
+		try {
+			this.closed = true;
+			this.recordsSettled.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+
+		List<PendingRecord> abandonedRecords = new ArrayList<>();
+		try {
+			flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			this.lock.lock();
+			try {
+				this.stopped = true;
+				abandonedRecords.addAll(this.waitingRecords);
+				for (PendingRecord record : abandonedRecords) {
+					settle(record);
+				}
+				this.waitingRecords.clear();
+				this.recordWaiting.signalAll();
+			} finally {
+				this.lock.unlock();
+			}
+			// records that are still backing off are handed back after the
+			// sender has stopped, and then reported as failed
+			this.retryScheduler.shutdown();
+		}
+
+		for (PendingRecord record : abandonedRecords) {
+			reportFailure(record, new RejectedExecutionException("Record sender was closed"));
+			release(record.aggRecord);
+		}
+	}
+
+	/**
+	 * @return The total size in bytes of the records that have been accepted
+	 *         but not yet sent or given up on.
+	 */
+	public long getInFlightBytes() {
+		this.lock.lock();
+		try {
+			return this.inFlightBytes;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of records that have been accepted but not yet sent
+	 *         or given up on.
+	 */
+	public int getInFlightRecordCount() {
+		this.lock.lock();
+		try {
+			return this.inFlightRecords;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of records the transport has sent.
+	 */
+	public long getSentRecordCount() {
+		return this.sentRecordCount.get();
+	}
+
+	/**
+	 * @return The number of records reported to the failure listener.
+	 */
+	public long getFailedRecordCount() {
+		return this.failedRecordCount.get();
+	}
+
+	/**
+	 * @return The number of times a failed send was scheduled to be retried.
+	 */
+	public long getRetryCount() {
+		return this.retryCount.get();
+	}
+
+	/**
+	 * @return The number of exceptions thrown by the failure listener.
+	 */
+	public long getListenerErrorCount() {
+		return this.listenerErrorCount.get();
+	}
+
+	/**
+	 * Wait for room for a new record according to the overflow policy and
+	 * queue it.
+	 * 
+	 * @param record
+	 *            The record to queue.
+	 * @param droppedRecords
+	 *            Receives the waiting records dropped to make room.
+	 * @return The reason the record was not queued: a
+	 *         RejectedExecutionException, or an IllegalStateException if this
+	 *         sender is closed. Null if the record was queued.
+	 */
+	@GuardedBy("lock")
+	private RuntimeException admit(PendingRecord record, List<PendingRecord> droppedRecords) {
+		// a record larger than the limit is still accepted on its own, or it
+		// could never be sent at all
+		while (!this.closed && this.inFlightRecords > 0
+				&& this.inFlightBytes + record.sizeBytes > this.maxInFlightBytes) {
+			switch (this.overflowPolicy) {
+			case BLOCK:
+				try {
+					this.recordsSettled.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return new RejectedExecutionException("Interrupted while waiting for room in the record sender", e);
+				}
+				break;
+			case DROP_OLDEST:
+				if (this.waitingRecords.isEmpty()) {
+					return new RejectedExecutionException("Dropped because every in-flight record is being sent; "
+							+ "in-flight bytes limit is " + this.maxInFlightBytes);
+				}
+				PendingRecord oldest = this.waitingRecords.removeFirst();
+				settle(oldest);
+				droppedRecords.add(oldest);
+				break;
+			default:
+				return new RejectedExecutionException("Record sender is full; " + this.inFlightBytes + " of "
+						+ this.maxInFlightBytes + " in-flight bytes are in use");
+			}
+		}
+		if (this.closed) {
+			return new IllegalStateException("Record sender is closed");
+		}
+
+		this.waitingRecords.addLast(record);
+		this.inFlightBytes += record.sizeBytes;
+		this.inFlightRecords++;
+		this.recordWaiting.signal();
+		return null;
+	}
+
+	/**
+	 * The loop run by every sender thread: take the oldest waiting record and
+	 * try to send it, until the sender is stopped.
+	 */
+	private void runSender() {
+		while (true) {
+			PendingRecord record;
+			this.lock.lock();
+			try {
+				while (this.waitingRecords.isEmpty()) {
+					if (this.stopped) {
+						return;
+					}
+					this.recordWaiting.awaitUninterruptibly();
+				}
+				record = this.waitingRecords.removeFirst();
+			} finally {
+				this.lock.unlock();
+			}
+
+			attempt(record);
+		}
+	}
+
+	private void attempt(PendingRecord record) {
+		record.attempts++;
+		try {
+			this.transport.send(record.aggRecord);
+		} catch (Exception e) {
+			retryOrFail(record, e);
+			return;
+		}
+
+		this.sentRecordCount.incrementAndGet();
+		finish(record);
+	}
+
+	private void retryOrFail(PendingRecord record, Exception cause) {
+		if (record.attempts < this.maxAttempts) {
+			try {
+				this.retryScheduler.schedule(() -> requeue(record, cause), backoffMillis(record.attempts),
+						TimeUnit.MILLISECONDS);
+				this.retryCount.incrementAndGet();
+				return;
+			} catch (RejectedExecutionException e) {
+				// the sender is closing and takes no more retries
+			}
+		}
+
+		reportFailure(record, cause);
+		finish(record);
+	}
+
+	/**
+	 * Queue a record whose backoff has elapsed ahead of the other waiting
+	 * records, or fail it if the sender has stopped in the meantime.
+	 */
+	private void requeue(PendingRecord record, Exception cause) {
+		this.lock.lock();
+		try {
+			if (!this.stopped) {
+				this.waitingRecords.addFirst(record);
+				this.recordWaiting.signal();
+				return;
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		reportFailure(record, cause);
+		finish(record);
+	}
+
+	/**
+	 * Pick the delay before the next attempt of a record at random below its
+	 * exponentially growing backoff bound.
+	 * 
+	 * @param attempts
+	 *            The number of attempts the record has had so far.
+	 */
+	private long backoffMillis(int attempts) {
+		long bound = Math.min(this.maxBackoffMillis, this.initialBackoffMillis << Math.min(attempts - 1, 30));
+		return bound > 0 ? ThreadLocalRandom.current().nextLong(bound + 1) : 0;
+	}
+
+	/**
+	 * Settle a record that has been sent or given up on and recycle it.
+	 */
+	private void finish(PendingRecord record) {
+		this.lock.lock();
+		try {
+			settle(record);
+		} finally {
+			this.lock.unlock();
+		}
+		release(record.aggRecord);
+	}
+
+	/**
+	 * Remove a record that has been sent or given up on from the in-flight
+	 * totals.
+	 */
+	@GuardedBy("lock")
+	private void settle(PendingRecord record) {
+		this.inFlightBytes -= record.sizeBytes;
+		this.inFlightRecords--;
+		this.recordsSettled.signalAll();
+	}
+
+	/**
+	 * Fail a record's tracked user records and report it to the failure
+	 * listener. An exception from the listener is counted rather than
+	 * propagated, so that a broken listener cannot take a sender thread down
+	 * with it.
+	 */
+	private void reportFailure(PendingRecord record, Throwable cause) {
+		this.failedRecordCount.incrementAndGet();
+		record.aggRecord.failUserRecords(cause);
+		try {
+			this.failureListener.recordFailed(record.aggRecord, cause);
+		} catch (RuntimeException e) {
+			this.listenerErrorCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Release this sender's reference to a pooled record.
+	 */
+	private static void release(AggRecord aggRecord) {
+		AggRecordPool pool = aggRecord.getPool();
+		if (pool != null) {
+			pool.release(aggRecord);
+		}
+	}
+
+	/**
+	 * A record that has been accepted but not yet settled.
+	 */
+	private static final class PendingRecord {
+		private final AggRecord aggRecord;
+		private final int sizeBytes;
+		private int attempts;
+
+		PendingRecord(AggRecord aggRecord, int sizeBytes) {
+			this.aggRecord = aggRecord;
+			this.sizeBytes = sizeBytes;
+		}
+	}
+}
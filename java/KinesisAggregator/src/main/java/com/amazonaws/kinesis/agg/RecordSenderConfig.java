@@ -0,0 +1,200 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import com.amazonaws.annotation.NotThreadSafe;
+
+/**
+ * Configuration options for a RecordSender. The defaults send up to 4 records
+ * at a time, hold at most 32 MB of records in memory, block callers when that
+ * limit is reached and give each record five attempts.
+ * 
+ * This class is NOT thread-safe.
+ */
+@NotThreadSafe
+public class RecordSenderConfig {
+	/** The default number of records that are sent concurrently. */
+	public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 4;
+
+	/** The default total size of the records a sender holds in memory. */
+	public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 32L * 1024 * 1024;
+
+	/** The default policy when the in-flight bytes limit is reached. */
+	public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+
+	/** The default number of times a record is sent before it fails. */
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+	/** The default upper bound of the delay before the first retry. */
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100;
+
+	/** The default upper bound of the delay before any retry. */
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 10000;
+
+	private int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+	private long maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+	private OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+	private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+	/**
+	 * @return The maximum number of records that are sent concurrently.
+	 */
+	public int getMaxInFlightRequests() {
+		return this.maxInFlightRequests;
+	}
+
+	/**
+	 * Limit the number of records that are sent concurrently. The sender
+	 * starts this many threads to call the transport.
+	 * 
+	 * @param maxInFlightRequests
+	 *            The maximum number of concurrent transport calls (at least
+	 *            1).
+	 * @return This configuration object.
+	 */
+	public RecordSenderConfig withMaxInFlightRequests(int maxInFlightRequests) {
+		if (maxInFlightRequests <= 0) {
+			throw new IllegalArgumentException("Max in-flight requests must be positive, got " + maxInFlightRequests);
+		}
+		this.maxInFlightRequests = maxInFlightRequests;
+		return this;
+	}
+
+	/**
+	 * @return The maximum total size in bytes of the records the sender has
+	 *         accepted but not yet sent or given up on.
+	 */
+	public long getMaxInFlightBytes() {
+		return this.maxInFlightBytes;
+	}
+
+	/**
+	 * Limit the total size of the records the sender has accepted but not yet
+	 * sent or given up on, including records waiting for a retry. When a new
+	 * record would exceed this limit, the overflow policy decides what
+	 * happens. A record larger than the limit is still accepted when nothing
+	 * else is in flight.
+	 * 
+	 * @param maxInFlightBytes
+	 *            The maximum number of in-flight bytes (at least 1).
+	 * @return This configuration object.
+	 */
+	public RecordSenderConfig withMaxInFlightBytes(long maxInFlightBytes) {
+		if (maxInFlightBytes <= 0) {
+			throw new IllegalArgumentException("Max in-flight bytes must be positive, got " + maxInFlightBytes);
+		}
+		this.maxInFlightBytes = maxInFlightBytes;
+		return this;
+	}
+
+	/**
+	 * @return What happens to a record that would exceed the in-flight bytes
+	 *         limit.
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return this.overflowPolicy;
+	}
+
+	/**
+	 * Choose what happens to a record that would exceed the in-flight bytes
+	 * limit.
+	 * 
+	 * @param overflowPolicy
+	 *            The policy to apply.
+	 * @return This configuration object.
+	 */
+	public RecordSenderConfig withOverflowPolicy(OverflowPolicy overflowPolicy) {
+		if (overflowPolicy == null) {
+			throw new IllegalArgumentException("Overflow policy cannot be null");
+		}
+		this.overflowPolicy = overflowPolicy;
+		return this;
+	}
+
+	/**
+	 * @return The number of times a record is sent before it is reported as
+	 *         failed.
+	 */
+	public int getMaxAttempts() {
+		return this.maxAttempts;
+	}
+
+	/**
+	 * Set how many times a record is sent before it is reported as failed.
+	 * 
+	 * @param maxAttempts
+	 *            The maximum number of attempts per record (at least 1).
+	 * @return This configuration object.
+	 */
+	public RecordSenderConfig withMaxAttempts(int maxAttempts) {
+		if (maxAttempts <= 0) {
+			throw new IllegalArgumentException("Max attempts must be positive, got " + maxAttempts);
+		}
+		this.maxAttempts = maxAttempts;
+		return this;
+	}
+
+	/**
+	 * @return The upper bound in milliseconds of the delay before the first
+	 *         retry of a record.
+	 */
+	public long getInitialBackoffMillis() {
+		return this.initialBackoffMillis;
+	}
+
+	/**
+	 * Set the upper bound of the delay before the first retry of a record.
+	 * The bound doubles with every further attempt, up to the maximum backoff,
+	 * and the actual delay is picked at random below it so that records that
+	 * failed together are not all retried at the same moment.
+	 * 
+	 * @param initialBackoffMillis
+	 *            The initial backoff bound in milliseconds.
+	 * @return This configuration object.
+	 */
+	public RecordSenderConfig withInitialBackoffMillis(long initialBackoffMillis) {
+		if (initialBackoffMillis < 0) {
+			throw new IllegalArgumentException("Initial backoff cannot be negative, got " + initialBackoffMillis);
+		}
+		this.initialBackoffMillis = initialBackoffMillis;
+		return this;
+	}
+
+	/**
+	 * @return The upper bound in milliseconds of the delay before any retry.
+	 */
+	public long getMaxBackoffMillis() {
+		return this.maxBackoffMillis;
+	}
+
+	/**
+	 * Cap the exponentially growing backoff bound.
+	 * 
+	 * @param maxBackoffMillis
+	 *            The maximum backoff bound in milliseconds.
+	 * @return This configuration object.
+	 */
+	public RecordSenderConfig withMaxBackoffMillis(long maxBackoffMillis) {
+		if (maxBackoffMillis < 0) {
+			throw new IllegalArgumentException("Max backoff cannot be negative, got " + maxBackoffMillis);
+		}
+		this.maxBackoffMillis = maxBackoffMillis;
+		return this;
+	}
+}
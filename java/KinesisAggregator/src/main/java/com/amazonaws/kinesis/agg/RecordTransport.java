@@ -0,0 +1,45 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+/**
+ * Transmits completed aggregated records for a RecordSender. Implementations
+ * send one record per call, synchronously, and signal failure by throwing;
+ * the sender takes care of concurrency limits and retries. A stub transport
+ * makes it possible to test a sending pipeline without a Kinesis stream.
+ * 
+ * Implementations must be thread-safe, since the sender calls them from
+ * several threads at once, and must not keep a reference to the record after
+ * returning, since pooled records are recycled as soon as they are sent.
+ * Implementations that learn the shard and sequence number of the record
+ * should report them with AggRecord.completeUserRecords before returning, so
+ * that the handles of tracked user records complete.
+ * 
+ * @see KinesisRecordTransport
+ */
+public interface RecordTransport {
+	/**
+	 * Transmit an aggregated record.
+	 * 
+	 * @param aggRecord
+	 *            The record to transmit.
+	 * @throws Exception
+	 *             If the record could not be transmitted. The sender retries
+	 *             the record until it runs out of attempts.
+	 */
+	void send(AggRecord aggRecord) throws Exception;
+}
@@ -0,0 +1,275 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import com.amazonaws.annotation.Immutable;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * A snapshot of the open shards of a Kinesis stream and the hash key range
+ * each of them owns. Used by the ShardedRecordAggregator to find the shard a
+ * user record will be stored in from its explicit hash key (or the MD5 hash
+ * of its partition key).
+ * 
+ * Hash keys are looked up with a binary search over the starting hash keys of
+ * the shards, which are held as pairs of unsigned 64-bit words, so a lookup
+ * never allocates.
+ * 
+ * This class is immutable and thread-safe.
+ */
+@Immutable
+public final class ShardMap {
+	private static final BigInteger HASH_KEY_SPACE = BigInteger.ONE.shiftLeft(128);
+
+	/** The shard ids, ordered by starting hash key. */
+	private final String[] shardIds;
+	/** The hash key ranges of the shards, ordered by starting hash key. */
+	private final long[] startingHashKeyHigh;
+	private final long[] startingHashKeyLow;
+	private final long[] endingHashKeyHigh;
+	private final long[] endingHashKeyLow;
+
+	private ShardMap(List<ShardRange> ranges) {
+		ranges.sort(Comparator.comparing((ShardRange r) -> r.startingHashKey));
+
+		int size = ranges.size();
+		this.shardIds = new String[size];
+		this.startingHashKeyHigh = new long[size];
+		this.startingHashKeyLow = new long[size];
+		this.endingHashKeyHigh = new long[size];
+		this.endingHashKeyLow = new long[size];
+		for (int i = 0; i < size; i++) {
+			ShardRange range = ranges.get(i);
+			if (i > 0 && range.startingHashKey.compareTo(ranges.get(i - 1).endingHashKey) <= 0) {
+				throw new IllegalArgumentException("Hash key range of shard " + range.shardId
+						+ " overlaps the hash key range of shard " + ranges.get(i - 1).shardId);
+			}
+
+			this.shardIds[i] = range.shardId;
+			this.startingHashKeyHigh[i] = range.startingHashKey.shiftRight(64).longValue();
+			this.startingHashKeyLow[i] = range.startingHashKey.longValue();
+			this.endingHashKeyHigh[i] = range.endingHashKey.shiftRight(64).longValue();
+			this.endingHashKeyLow[i] = range.endingHashKey.longValue();
+		}
+	}
+
+	/**
+	 * Create a shard map from the shards of a stream, as returned by the
+	 * Kinesis DescribeStream API. Closed shards (those with an ending sequence
+	 * number) no longer accept records and are left out of the map.
+	 * 
+	 * @param shards
+	 *            The shards of the stream.
+	 * @return A shard map of the open shards.
+	 * @throws IllegalArgumentException
+	 *             If a hash key range is invalid or the ranges of two open
+	 *             shards overlap.
+	 */
+	public static ShardMap fromShards(Collection<Shard> shards) {
+		List<ShardRange> ranges = new ArrayList<>(shards.size());
+		for (Shard shard : shards) {
+			if (shard.getSequenceNumberRange() != null
+					&& shard.getSequenceNumberRange().getEndingSequenceNumber() != null) {
+				continue;
+			}
+
+			ranges.add(new ShardRange(shard.getShardId(), parseHashKey(shard.getHashKeyRange().getStartingHashKey()),
+					parseHashKey(shard.getHashKeyRange().getEndingHashKey())));
+		}
+		return new ShardMap(ranges);
+	}
+
+	/**
+	 * Create a shard map that splits the hash key space evenly between a number
+	 * of shards, the way Kinesis does when a stream is created. The shards are
+	 * named like Kinesis names them ("shardId-000000000000" and up). This is
+	 * mostly useful for tests and for simulating a stream locally.
+	 * 
+	 * @param shardCount
+	 *            The number of shards.
+	 * @return A shard map of evenly sized shards covering all hash keys.
+	 */
+	public static ShardMap uniform(int shardCount) {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("Shard count must be positive, got " + shardCount);
+		}
+
+		List<ShardRange> ranges = new ArrayList<>(shardCount);
+		BigInteger count = BigInteger.valueOf(shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			BigInteger start = HASH_KEY_SPACE.multiply(BigInteger.valueOf(i)).divide(count);
+			BigInteger end = HASH_KEY_SPACE.multiply(BigInteger.valueOf(i + 1)).divide(count).subtract(BigInteger.ONE);
+			ranges.add(new ShardRange(String.format("shardId-%012d", i), start, end));
+		}
+		return new ShardMap(ranges);
+	}
+
+	private static BigInteger parseHashKey(String hashKey) {
+		// validates the range of the hash key
+		ExplicitHashKeys.parse(hashKey, new long[2]);
+		return new BigInteger(hashKey);
+	}
+
+	/**
+	 * @return The number of open shards in this map.
+	 */
+	public int size() {
+		return this.shardIds.length;
+	}
+
+	/**
+	 * @return The id of the shard at the specified index (shards are ordered
+	 *         by their hash key ranges).
+	 */
+	public String getShardId(int index) {
+		return this.shardIds[index];
+	}
+
+	/**
+	 * @return The first hash key owned by the shard at the specified index, as
+	 *         a decimal string.
+	 */
+	public String getStartingHashKey(int index) {
+		return ExplicitHashKeys.toDecimalString(this.startingHashKeyHigh[index], this.startingHashKeyLow[index],
+				new char[ExplicitHashKeys.MAX_DECIMAL_DIGITS]);
+	}
+
+	/**
+	 * @return The last hash key owned by the shard at the specified index, as
+	 *         a decimal string.
+	 */
+	public String getEndingHashKey(int index) {
+		return ExplicitHashKeys.toDecimalString(this.endingHashKeyHigh[index], this.endingHashKeyLow[index],
+				new char[ExplicitHashKeys.MAX_DECIMAL_DIGITS]);
+	}
+
+	/**
+	 * Find the shard that owns a hash key.
+	 * 
+	 * @param hashKeyHigh
+	 *            The most significant 64 bits of the hash key.
+	 * @param hashKeyLow
+	 *            The least significant 64 bits of the hash key.
+	 * @return The index of the shard that owns the hash key, or -1 if no open
+	 *         shard in this map owns it.
+	 */
+	public int indexOf(long hashKeyHigh, long hashKeyLow) {
+		// find the last shard whose range starts at or before the hash key
+		int low = 0;
+		int high = this.shardIds.length - 1;
+		int candidate = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (ExplicitHashKeys.compare(this.startingHashKeyHigh[mid], this.startingHashKeyLow[mid], hashKeyHigh,
+					hashKeyLow) <= 0) {
+				candidate = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		if (candidate < 0 || ExplicitHashKeys.compare(hashKeyHigh, hashKeyLow, this.endingHashKeyHigh[candidate],
+				this.endingHashKeyLow[candidate]) > 0) {
+			return -1;
+		}
+		return candidate;
+	}
+
+	/**
+	 * Find the shard that owns an explicit hash key.
+	 * 
+	 * @param explicitHashKey
+	 *            The hash key as a decimal string.
+	 * @return The index of the shard that owns the hash key, or -1 if no open
+	 *         shard in this map owns it.
+	 */
+	public int indexOf(String explicitHashKey) {
+		long[] words = new long[2];
+		ExplicitHashKeys.parse(explicitHashKey, words);
+		return indexOf(words[0], words[1]);
+	}
+
+	/**
+	 * Find a shard by its id.
+	 * 
+	 * @param shardId
+	 *            The id of the shard.
+	 * @return The index of the shard, or -1 if there is no open shard with
+	 *         that id in this map.
+	 */
+	public int indexOfShard(String shardId) {
+		for (int i = 0; i < this.shardIds.length; i++) {
+			if (this.shardIds[i].equals(shardId)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Two shard maps are equal if they contain the same shards with the same
+	 * hash key ranges.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ShardMap)) {
+			return false;
+		}
+
+		ShardMap other = (ShardMap) obj;
+		return Arrays.equals(this.shardIds, other.shardIds)
+				&& Arrays.equals(this.startingHashKeyHigh, other.startingHashKeyHigh)
+				&& Arrays.equals(this.startingHashKeyLow, other.startingHashKeyLow)
+				&& Arrays.equals(this.endingHashKeyHigh, other.endingHashKeyHigh)
+				&& Arrays.equals(this.endingHashKeyLow, other.endingHashKeyLow);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(this.shardIds);
+	}
+
+	/**
+	 * The id and hash key range of a shard while a map is being built.
+	 */
+	private static final class ShardRange {
+		private final String shardId;
+		private final BigInteger startingHashKey;
+		private final BigInteger endingHashKey;
+
+		ShardRange(String shardId, BigInteger startingHashKey, BigInteger endingHashKey) {
+			if (startingHashKey.compareTo(endingHashKey) > 0) {
+				throw new IllegalArgumentException("Starting hash key of shard " + shardId
+						+ " is greater than its ending hash key");
+			}
+			this.shardId = shardId;
+			this.startingHashKey = startingHashKey;
+			this.endingHashKey = endingHashKey;
+		}
+	}
+}
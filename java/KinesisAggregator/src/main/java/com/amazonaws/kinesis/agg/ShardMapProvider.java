@@ -0,0 +1,37 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+/**
+ * A source of the current shard map of a Kinesis stream, used by the
+ * ShardedRecordAggregator to route user records to shards.
+ * 
+ * getShardMap() is called for every user record, so implementations should
+ * return a cached map and refresh it separately. An implementation must keep
+ * returning the same ShardMap instance until the shards of the stream change
+ * (e.g. after a reshard); when a different instance is returned, the
+ * aggregator flushes the aggregated records of shards that are no longer open
+ * and starts routing with the new map.
+ * 
+ * Implementations must be thread-safe.
+ */
+public interface ShardMapProvider {
+	/**
+	 * @return The current map of the open shards of the stream.
+	 */
+	ShardMap getShardMap();
+}
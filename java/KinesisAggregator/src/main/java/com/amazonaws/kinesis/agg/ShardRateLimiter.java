@@ -0,0 +1,196 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.annotation.GuardedBy;
+import com.amazonaws.annotation.ThreadSafe;
+
+/**
+ * Paces aggregated records to the write limits of the shard they will land
+ * on, so that a burst of records for one hot shard is spread out instead of
+ * being rejected with ProvisionedThroughputExceededException and retried
+ * blindly.
+ * 
+ * Every shard has two token buckets, one for bytes and one for records, that
+ * refill at the configured rates and hold one second's worth of tokens. An
+ * aggregated record takes its size in bytes and one record from the buckets of
+ * the shard that owns its explicit hash key; when either bucket is in debt,
+ * acquire() sleeps until it is paid off. With aggregation the byte limit is
+ * usually the one that matters. Records whose hash key no shard owns (e.g.
+ * while the shard map is out of date) are not paced.
+ * 
+ * The limits are per limiter, so if several producers write to the same
+ * stream, divide the shard limits between them.
+ * 
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public class ShardRateLimiter {
+	/** The default write limit per shard in bytes per second. */
+	public static final long DEFAULT_MAX_BYTES_PER_SECOND = 1024 * 1024;
+
+	/** The default write limit per shard in records per second. */
+	public static final int DEFAULT_MAX_RECORDS_PER_SECOND = 1000;
+
+	/** The source of the current shard map. */
+	private final ShardMapProvider shardMapProvider;
+	private final long maxBytesPerSecond;
+	private final int maxRecordsPerSecond;
+	/** The buckets of every shard seen so far, by shard id. */
+	private final ConcurrentMap<String, ShardBuckets> shardBuckets = new ConcurrentHashMap<>();
+
+	private final AtomicLong acquiredRecordCount = new AtomicLong();
+	private final AtomicLong throttledRecordCount = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	/**
+	 * Create a limiter with the default Kinesis shard limits of 1 MB and 1000
+	 * records per second.
+	 * 
+	 * @param shardMapProvider
+	 *            The source of the shards to pace records for.
+	 */
+	public ShardRateLimiter(ShardMapProvider shardMapProvider) {
+		this(shardMapProvider, DEFAULT_MAX_BYTES_PER_SECOND, DEFAULT_MAX_RECORDS_PER_SECOND);
+	}
+
+	/**
+	 * Create a limiter.
+	 * 
+	 * @param shardMapProvider
+	 *            The source of the shards to pace records for.
+	 * @param maxBytesPerSecond
+	 *            The number of bytes per second to allow for each shard.
+	 * @param maxRecordsPerSecond
+	 *            The number of records per second to allow for each shard.
+	 */
+	public ShardRateLimiter(ShardMapProvider shardMapProvider, long maxBytesPerSecond, int maxRecordsPerSecond) {
+		if (shardMapProvider == null) {
+			throw new IllegalArgumentException("Shard map provider cannot be null");
+		}
+		if (maxBytesPerSecond <= 0 || maxRecordsPerSecond <= 0) {
+			throw new IllegalArgumentException("Shard rate limits must be positive, got " + maxBytesPerSecond
+					+ " bytes and " + maxRecordsPerSecond + " records per second");
+		}
+
+		this.shardMapProvider = shardMapProvider;
+		this.maxBytesPerSecond = maxBytesPerSecond;
+		this.maxRecordsPerSecond = maxRecordsPerSecond;
+	}
+
+	/**
+	 * Wait until an aggregated record can be sent to its shard without
+	 * exceeding the shard's limits.
+	 * 
+	 * @param aggRecord
+	 *            The record about to be sent.
+	 * @return The number of nanoseconds this call waited.
+	 * @throws InterruptedException
+	 *             If the calling thread was interrupted while waiting. The
+	 *             record's tokens have been taken regardless.
+	 */
+	public long acquire(AggRecord aggRecord) throws InterruptedException {
+		long waitNanos = reserve(aggRecord, System.nanoTime());
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+		return waitNanos;
+	}
+
+	/**
+	 * Take the tokens for an aggregated record from its shard's buckets and
+	 * record how long it has to wait.
+	 * 
+	 * @param aggRecord
+	 *            The record about to be sent.
+	 * @param nowNanos
+	 *            The current time on the System.nanoTime() clock.
+	 * @return The number of nanoseconds to wait before sending the record.
+	 */
+	long reserve(AggRecord aggRecord, long nowNanos) {
+		this.acquiredRecordCount.incrementAndGet();
+		ShardMap shardMap = this.shardMapProvider.getShardMap();
+		int shard = shardMap.indexOf(aggRecord.getExplicitHashKey());
+		if (shard < 0) {
+			return 0;
+		}
+
+		ShardBuckets buckets = this.shardBuckets.computeIfAbsent(shardMap.getShardId(shard),
+				shardId -> new ShardBuckets(nowNanos));
+		long waitNanos = buckets.reserve(aggRecord.getSizeBytes(), nowNanos);
+		if (waitNanos > 0) {
+			this.throttledRecordCount.incrementAndGet();
+			this.totalWaitNanos.addAndGet(waitNanos);
+			this.maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+		}
+		return waitNanos;
+	}
+
+	/**
+	 * @return The number of records that passed through this limiter.
+	 */
+	public long getAcquiredRecordCount() {
+		return this.acquiredRecordCount.get();
+	}
+
+	/**
+	 * @return The number of records that had to wait for their shard.
+	 */
+	public long getThrottledRecordCount() {
+		return this.throttledRecordCount.get();
+	}
+
+	/**
+	 * @return The total time in nanoseconds records waited for their shard.
+	 */
+	public long getTotalWaitNanos() {
+		return this.totalWaitNanos.get();
+	}
+
+	/**
+	 * @return The longest time in nanoseconds a single record waited for its
+	 *         shard.
+	 */
+	public long getMaxWaitNanos() {
+		return this.maxWaitNanos.get();
+	}
+
+	/**
+	 * The byte and record buckets of a single shard.
+	 */
+	private final class ShardBuckets {
+		@GuardedBy("this")
+		private final TokenBucket bytes;
+		@GuardedBy("this")
+		private final TokenBucket records;
+
+		ShardBuckets(long nowNanos) {
+			this.bytes = new TokenBucket(maxBytesPerSecond, nowNanos);
+			this.records = new TokenBucket(maxRecordsPerSecond, nowNanos);
+		}
+
+		synchronized long reserve(int sizeBytes, long nowNanos) {
+			return Math.max(this.bytes.reserve(sizeBytes, nowNanos), this.records.reserve(1, nowNanos));
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.amazonaws.annotation.NotThreadSafe;
+import com.amazonaws.kinesis.agg.RecordAggregator.RecordCompleteListener;
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+
+/**
+ * A record aggregator that keeps a separate aggregated record for every open
+ * shard of a stream. Each user record is routed by its explicit hash key (or
+ * the MD5 hash of its partition key, exactly as Kinesis would route it) to the
+ * aggregated record of the shard that owns that hash key. Every aggregated
+ * record therefore only contains user records of a single shard, and its own
+ * explicit hash key (that of its first user record) lies inside that shard's
+ * hash key range, so Kinesis stores the aggregated record on the same shard
+ * the user records would have been stored on without aggregation.
+ * 
+ * The shards come from a ShardMapProvider. When the provider returns a new
+ * shard map (e.g. after a reshard), the aggregated records of shards that are
+ * no longer open are completed with FlushReason.RESHARD and user records are
+ * routed with the new map; the aggregated records of shards that are still
+ * open are kept.
+ * 
+ * Completed records are only delivered to the listeners registered via
+ * onRecordComplete, so at least one listener must be registered before user
+ * records are added. All the limits of RecordAggregatorConfig apply to each
+ * shard's aggregated record individually.
+ * 
+ * This class is NOT thread-safe.
+ */
+@NotThreadSafe
+public class ShardedRecordAggregator implements AutoCloseable {
+	/** The source of the shard map to route user records with. */
+	private final ShardMapProvider shardMapProvider;
+	/** The configuration shared by the aggregators of all shards. */
+	private final RecordAggregatorConfig config;
+	/** The record pool shared by all shards, or null if pooling is disabled. */
+	private final AggRecordPool recordPool;
+	/** The flusher shared by all shards, or null if there is no time limit. */
+	private final ScheduledExecutorService flusher;
+	/** The listeners to notify when a record is complete. */
+	private final List<ListenerExecutorPair> listeners;
+	/** Hashes partition keys into explicit hash keys. */
+	private final PartitionKeyHasher partitionKeyHasher;
+	/** Scratch space for the words of a user record's explicit hash key. */
+	private final long[] hashKey;
+	/** The shard map user records are currently routed with. */
+	private ShardMap shardMap;
+	/**
+	 * The aggregator of each shard in the current shard map, by shard index,
+	 * created when the first user record for the shard arrives.
+	 */
+	private RecordAggregator[] shardAggregators;
+
+	/**
+	 * Construct a new sharded record aggregator with the default
+	 * configuration.
+	 * 
+	 * @param shardMapProvider
+	 *            The source of the shard map to route user records with.
+	 */
+	public ShardedRecordAggregator(ShardMapProvider shardMapProvider) {
+		this(shardMapProvider, new RecordAggregatorConfig());
+	}
+
+	/**
+	 * Construct a new sharded record aggregator.
+	 * 
+	 * @param shardMapProvider
+	 *            The source of the shard map to route user records with.
+	 * @param config
+	 *            The configuration options for the aggregated record of each
+	 *            shard.
+	 */
+	public ShardedRecordAggregator(ShardMapProvider shardMapProvider, RecordAggregatorConfig config) {
+		if (shardMapProvider == null) {
+			throw new IllegalArgumentException("Shard map provider cannot be null");
+		}
+
+		this.shardMapProvider = shardMapProvider;
+		this.config = config;
+		this.recordPool = RecordAggregator.createRecordPool(config);
+		this.flusher = RecordAggregator.createFlusher(config);
+		this.listeners = new LinkedList<>();
+		this.hashKey = new long[2];
+		try {
+			this.partitionKeyHasher = new PartitionKeyHasher(MessageDigest.getInstance(AggRecord.MESSAGE_DIGEST_NAME));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Could not create an MD5 message digest.", e);
+		}
+
+		this.shardMap = shardMapProvider.getShardMap();
+		this.shardAggregators = new RecordAggregator[this.shardMap.size()];
+	}
+
+	/**
+	 * @return The shard map user records are currently routed with.
+	 */
+	public ShardMap getShardMap() {
+		return this.shardMap;
+	}
+
+	/**
+	 * @return The number of user records buffered across all shards.
+	 */
+	public int getNumUserRecords() {
+		int numUserRecords = 0;
+		for (RecordAggregator aggregator : this.shardAggregators) {
+			if (aggregator != null) {
+				numUserRecords += aggregator.getNumUserRecords();
+			}
+		}
+		return numUserRecords;
+	}
+
+	/**
+	 * Register a callback method to be notified when an aggregated record is
+	 * complete. Callbacks registered via this method are executed on a
+	 * separate thread from the common ForkJoin pool.
+	 * 
+	 * @param listener
+	 *            The listener to receive a callback when there is a complete
+	 *            aggregated record available (can be a lambda function).
+	 */
+	public void onRecordComplete(RecordCompleteListener listener) {
+		onRecordComplete(listener, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Register a callback method to be notified when an aggregated record is
+	 * complete and invoke the callback using the specified executor.
+	 * 
+	 * @param listener
+	 *            The listener to receive a callback when there is a complete
+	 *            aggregated record available (can be a lambda function).
+	 * @param executor
+	 *            The executor to use to execute the callback.
+	 */
+	public void onRecordComplete(RecordCompleteListener listener, Executor executor) {
+		this.listeners.add(new ListenerExecutorPair(listener, executor));
+		for (RecordAggregator aggregator : this.shardAggregators) {
+			if (aggregator != null) {
+				aggregator.onRecordComplete(listener, executor);
+			}
+		}
+	}
+
+	/**
+	 * Clear all the listeners from this object that were registered with the
+	 * onRecordComplete method.
+	 */
+	public void clearListeners() {
+		this.listeners.clear();
+		for (RecordAggregator aggregator : this.shardAggregators) {
+			if (aggregator != null) {
+				aggregator.clearListeners();
+			}
+		}
+	}
+
+	/**
+	 * Add a new user record, routing it by its explicit hash key (or the hash
+	 * of its partition key if it has none). The user record data is the
+	 * remaining content of the record's data buffer.
+	 * 
+	 * @param userRecord
+	 *            The Kinesis user record to add.
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record.
+	 */
+	public void addUserRecord(UserRecord userRecord) throws Exception {
+		if (userRecord == null) {
+			throw new IllegalArgumentException("Input user record cannot be null.");
+		}
+		addUserRecord(userRecord.getPartitionKey(), userRecord.getExplicitHashKey(), userRecord.getData());
+	}
+
+	/**
+	 * Add a new user record, routing it by the hash of its partition key.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param data
+	 *            The record data of the record to add
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record.
+	 */
+	public void addUserRecord(String partitionKey, byte[] data) throws Exception {
+		addUserRecord(partitionKey, null, data);
+	}
+
+	/**
+	 * Add a new user record, routing it by its explicit hash key (or the hash
+	 * of its partition key if it has none).
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add, or null
+	 * @param data
+	 *            The record data of the record to add
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record.
+	 */
+	public void addUserRecord(String partitionKey, String explicitHashKey, byte[] data) throws Exception {
+		RecordAggregator aggregator = route(partitionKey, explicitHashKey);
+		if (explicitHashKey == null && this.config.isOmitDerivedExplicitHashKeys()) {
+			aggregator.addUserRecord(partitionKey, null, data);
+		} else {
+			aggregator.addUserRecord(partitionKey, this.hashKey[0], this.hashKey[1], data);
+		}
+	}
+
+	/**
+	 * Add a new user record, routing it by its explicit hash key (or the hash
+	 * of its partition key if it has none). The record data is the remaining
+	 * content of the (possibly direct) buffer, whose position is not changed.
+	 * 
+	 * @param partitionKey
+	 *            The partition key of the record to add
+	 * @param explicitHashKey
+	 *            The explicit hash key of the record to add, or null
+	 * @param data
+	 *            A buffer containing the record data of the record to add
+	 * @throws Exception
+	 *             If the user record can't be added to an aggregated record.
+	 */
+	public void addUserRecord(String partitionKey, String explicitHashKey, ByteBuffer data) throws Exception {
+		RecordAggregator aggregator = route(partitionKey, explicitHashKey);
+		if (explicitHashKey == null && this.config.isOmitDerivedExplicitHashKeys()) {
+			aggregator.addUserRecord(partitionKey, null, data);
+		} else {
+			aggregator.addUserRecord(partitionKey, this.hashKey[0], this.hashKey[1], data);
+		}
+	}
+
+	/**
+	 * Complete the aggregated records of all shards (whether full or not) and
+	 * notify the listeners. This method is useful for flushing buffered user
+	 * records before shutting down.
+	 */
+	public void flush() {
+		for (RecordAggregator aggregator : this.shardAggregators) {
+			if (aggregator != null) {
+				aggregator.flush(FlushReason.MANUAL);
+			}
+		}
+	}
+
+	/**
+	 * Hand a completed aggregated record back once it has been transmitted so
+	 * that it can be reused. This method only has an effect if record pooling
+	 * was enabled and follows the same rules as RecordAggregator.recycle(...).
+	 * 
+	 * @param aggRecord
+	 *            The completed aggregated record to recycle.
+	 */
+	public void recycle(AggRecord aggRecord) {
+		if (this.recordPool == null || aggRecord == null) {
+			return;
+		}
+
+		this.recordPool.release(aggRecord);
+	}
+
+	/**
+	 * Stop the background thread that flushes aged records, if a maximum
+	 * buffered time was configured. Any user records that are still buffered
+	 * are left in place, so call flush() first if they need to be
+	 * transmitted.
+	 */
+	@Override
+	public void close() {
+		if (this.flusher != null) {
+			this.flusher.shutdownNow();
+		}
+	}
+
+	/**
+	 * Work out the hash key of a user record, leaving it in the hashKey
+	 * scratch array, and find the aggregator of the shard that owns it.
+	 */
+	private RecordAggregator route(String partitionKey, String explicitHashKey) {
+		if (this.listeners.isEmpty()) {
+			throw new IllegalStateException(
+					"A ShardedRecordAggregator only delivers records to listeners; register one with onRecordComplete");
+		}
+
+		AggRecord.validatePartitionKey(partitionKey);
+		if (explicitHashKey != null) {
+			ExplicitHashKeys.parse(explicitHashKey, this.hashKey);
+		} else {
+			this.partitionKeyHasher.hash(partitionKey, this.hashKey);
+		}
+
+		ShardMap latest = this.shardMapProvider.getShardMap();
+		if (latest != this.shardMap) {
+			reshard(latest);
+		}
+
+		int index = this.shardMap.indexOf(this.hashKey[0], this.hashKey[1]);
+		if (index < 0) {
+			throw new IllegalStateException("No open shard owns the hash key of user record " + partitionKey + ", "
+					+ ExplicitHashKeys.toDecimalString(this.hashKey[0], this.hashKey[1],
+							new char[ExplicitHashKeys.MAX_DECIMAL_DIGITS]));
+		}
+
+		RecordAggregator aggregator = this.shardAggregators[index];
+		if (aggregator == null) {
+			aggregator = new RecordAggregator(this.config, this.recordPool, this.flusher, false);
+			for (ListenerExecutorPair pair : this.listeners) {
+				aggregator.onRecordComplete(pair.listener, pair.executor);
+			}
+			this.shardAggregators[index] = aggregator;
+		}
+		return aggregator;
+	}
+
+	/**
+	 * Switch to a new shard map. The aggregators of shards that are still
+	 * open keep their aggregated records; the aggregated records of all other
+	 * shards are completed and handed to the listeners.
+	 */
+	private void reshard(ShardMap latest) {
+		RecordAggregator[] latestAggregators = new RecordAggregator[latest.size()];
+		for (int i = 0; i < this.shardAggregators.length; i++) {
+			RecordAggregator aggregator = this.shardAggregators[i];
+			if (aggregator == null) {
+				continue;
+			}
+
+			int latestIndex = latest.indexOfShard(this.shardMap.getShardId(i));
+			if (latestIndex >= 0
+					&& latest.getStartingHashKey(latestIndex).equals(this.shardMap.getStartingHashKey(i))
+					&& latest.getEndingHashKey(latestIndex).equals(this.shardMap.getEndingHashKey(i))) {
+				latestAggregators[latestIndex] = aggregator;
+			} else {
+				aggregator.flush(FlushReason.RESHARD);
+			}
+		}
+
+		this.shardMap = latest;
+		this.shardAggregators = latestAggregators;
+	}
+
+	/**
+	 * A listener and the executor to execute its callbacks with.
+	 */
+	private static final class ListenerExecutorPair {
+		private final RecordCompleteListener listener;
+		private final Executor executor;
+
+		ListenerExecutorPair(RecordCompleteListener listener, Executor executor) {
+			this.listener = listener;
+			this.executor = executor;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import com.amazonaws.annotation.NotThreadSafe;
+
+/**
+ * A token bucket that hands out reservations rather than refusing requests.
+ * Tokens accrue at a fixed rate up to one second's worth. A reservation takes
+ * its tokens straight away, even if that leaves the bucket in debt, and
+ * reports how long the caller has to wait for the debt to be paid off. Callers
+ * that honour the waits are therefore served in the order they reserved, at
+ * the configured rate, and a request larger than the bucket still gets
+ * through after a proportionally long wait.
+ * 
+ * This class is NOT thread-safe.
+ */
+@NotThreadSafe
+final class TokenBucket {
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	/** The number of tokens added per second. */
+	private final double tokensPerSecond;
+	/** The number of tokens the bucket can hold. */
+	private final double capacity;
+	/** The number of tokens available, negative while in debt. */
+	private double tokens;
+	/** The time the tokens were last brought up to date. */
+	private long lastRefillNanos;
+
+	/**
+	 * Create a full bucket.
+	 * 
+	 * @param tokensPerSecond
+	 *            The rate at which tokens are added, which is also the
+	 *            capacity of the bucket.
+	 * @param nowNanos
+	 *            The current time on the System.nanoTime() clock.
+	 */
+	TokenBucket(double tokensPerSecond, long nowNanos) {
+		this.tokensPerSecond = tokensPerSecond;
+		this.capacity = tokensPerSecond;
+		this.tokens = tokensPerSecond;
+		this.lastRefillNanos = nowNanos;
+	}
+
+	/**
+	 * Take tokens from the bucket.
+	 * 
+	 * @param amount
+	 *            The number of tokens to take.
+	 * @param nowNanos
+	 *            The current time on the System.nanoTime() clock.
+	 * @return The number of nanoseconds the caller must wait before using the
+	 *         tokens, 0 if they were available.
+	 */
+	long reserve(double amount, long nowNanos) {
+		refill(nowNanos);
+		this.tokens -= amount;
+		return this.tokens >= 0 ? 0 : (long) Math.ceil(-this.tokens / this.tokensPerSecond * NANOS_PER_SECOND);
+	}
+
+	private void refill(long nowNanos) {
+		long elapsedNanos = nowNanos - this.lastRefillNanos;
+		if (elapsedNanos > 0) {
+			this.tokens = Math.min(this.capacity,
+					this.tokens + elapsedNanos / NANOS_PER_SECOND * this.tokensPerSecond);
+			this.lastRefillNanos = nowNanos;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import com.amazonaws.annotation.NotThreadSafe;
+
+/**
+ * Compresses the data of single user records for CompressionMode.USER_RECORD.
+ * The deflater and scratch buffers are reused from one user record to the
+ * next, and the compressed data stays in the output buffer until the caller
+ * has copied it, so compressing allocates nothing.
+ * 
+ * This class is NOT thread-safe.
+ */
+@NotThreadSafe
+final class UserRecordCompressor {
+	private static final int INITIAL_BUFFER_BYTES = 4 * 1024;
+
+	private final Deflater deflater;
+	/** Receives the header and the compressed bytes. */
+	private byte[] output = new byte[INITIAL_BUFFER_BYTES];
+	/** Holds the data of direct buffers, which a Java 8 Deflater cannot read. */
+	private byte[] input = new byte[0];
+
+	/**
+	 * @param level
+	 *            The Deflater compression level.
+	 */
+	UserRecordCompressor(int level) {
+		this.deflater = new Deflater(level);
+		System.arraycopy(RecordCompression.COMPRESSED_USER_RECORD_MAGIC, 0, this.output, 0,
+				RecordCompression.COMPRESSED_USER_RECORD_MAGIC.length);
+		this.output[RecordCompression.COMPRESSED_USER_RECORD_MAGIC.length] = RecordCompression.CODEC_DEFLATE;
+	}
+
+	/**
+	 * Compress the remaining content of a buffer without changing its
+	 * position.
+	 * 
+	 * @return The size of the compressed data with its header in getOutput(),
+	 *         or -1 if the original data should be stored instead.
+	 */
+	int compress(ByteBuffer data) {
+		int length = data.remaining();
+		if (data.hasArray()) {
+			return compress(data.array(), data.arrayOffset() + data.position(), length);
+		}
+
+		if (this.input.length < length) {
+			this.input = new byte[length];
+		}
+		data.duplicate().get(this.input, 0, length);
+		return compress(this.input, 0, length);
+	}
+
+	/**
+	 * Compress a range of an array.
+	 * 
+	 * @return The size of the compressed data with its header in getOutput(),
+	 *         or -1 if the original data should be stored instead because
+	 *         compressing does not make it smaller.
+	 */
+	int compress(byte[] data, int offset, int length) {
+		if (length == 0) {
+			return -1;
+		}
+
+		// data that looks compressed must be compressed, or the reader would
+		// try to decompress it
+		boolean mustCompress = RecordCompression.startsWith(data, offset, length,
+				RecordCompression.COMPRESSED_USER_RECORD_MAGIC);
+
+		this.deflater.reset();
+		this.deflater.setInput(data, offset, length);
+		this.deflater.finish();
+		int size = RecordCompression.HEADER_LENGTH;
+		while (!this.deflater.finished()) {
+			if (size >= length && !mustCompress) {
+				return -1;
+			}
+			if (size == this.output.length) {
+				this.output = Arrays.copyOf(this.output, this.output.length * 2);
+			}
+			size += this.deflater.deflate(this.output, size, this.output.length - size);
+		}
+
+		return size < length || mustCompress ? size : -1;
+	}
+
+	/**
+	 * @return The buffer holding the compressed data of the last user record
+	 *         compressed, starting at index 0. It is overwritten by the next
+	 *         call to compress().
+	 */
+	byte[] getOutput() {
+		return this.output;
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import com.amazonaws.annotation.NotThreadSafe;
+
+/**
+ * The completion handles of the tracked user records in one aggregated
+ * record. Only tracked user records cost anything: the handles and their
+ * sub-sequence numbers are kept in two parallel arrays, which an aggregated
+ * record only allocates once its first user record is tracked.
+ * 
+ * Handles are added by the producer while the aggregated record is open, and
+ * completed by whoever sends it once it has been completed, so the two never
+ * overlap. This class is NOT thread-safe.
+ */
+@NotThreadSafe
+final class UserRecordFutures {
+	/** The smallest number of handles to make room for. */
+	private static final int MIN_CAPACITY = 8;
+
+	private CompletableFuture<UserRecordResult>[] futures;
+	private int[] subSequenceNumbers;
+	private int size;
+
+	/**
+	 * @param initialCapacity
+	 *            The number of handles to make room for, e.g. as many as the
+	 *            previous aggregated record had, so that a steady stream of
+	 *            tracked user records never grows the arrays.
+	 */
+	@SuppressWarnings("unchecked")
+	UserRecordFutures(int initialCapacity) {
+		int capacity = Math.max(initialCapacity, MIN_CAPACITY);
+		this.futures = new CompletableFuture[capacity];
+		this.subSequenceNumbers = new int[capacity];
+	}
+
+	/**
+	 * @return The number of handles.
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Create the handle of a user record.
+	 * 
+	 * @param subSequenceNumber
+	 *            The index of the user record within the aggregated record.
+	 * @return The handle of the user record.
+	 */
+	CompletableFuture<UserRecordResult> track(int subSequenceNumber) {
+		if (this.size == this.futures.length) {
+			this.futures = Arrays.copyOf(this.futures, this.size * 2);
+			this.subSequenceNumbers = Arrays.copyOf(this.subSequenceNumbers, this.size * 2);
+		}
+
+		CompletableFuture<UserRecordResult> future = new CompletableFuture<>();
+		this.futures[this.size] = future;
+		this.subSequenceNumbers[this.size] = subSequenceNumber;
+		this.size++;
+		return future;
+	}
+
+	/**
+	 * Complete every handle with the result of the aggregated record.
+	 * Handles that have already been completed are left unchanged.
+	 */
+	void complete(String shardId, String sequenceNumber) {
+		for (int i = 0; i < this.size; i++) {
+			this.futures[i].complete(new UserRecordResult(shardId, sequenceNumber, this.subSequenceNumbers[i]));
+		}
+	}
+
+	/**
+	 * Complete every handle exceptionally. Handles that have already been
+	 * completed are left unchanged.
+	 */
+	void fail(Throwable cause) {
+		for (int i = 0; i < this.size; i++) {
+			this.futures[i].completeExceptionally(cause);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import com.amazonaws.annotation.Immutable;
+
+/**
+ * The outcome of a tracked user record that has been written to Kinesis: the
+ * shard and sequence number of the aggregated record that carried it, and
+ * its position within that record. Consumers see the user record with the
+ * same sequence number and sub-sequence number after deaggregation.
+ * 
+ * This class is immutable.
+ */
+@Immutable
+public final class UserRecordResult {
+	private final String shardId;
+	private final String sequenceNumber;
+	private final long subSequenceNumber;
+
+	UserRecordResult(String shardId, String sequenceNumber, long subSequenceNumber) {
+		this.shardId = shardId;
+		this.sequenceNumber = sequenceNumber;
+		this.subSequenceNumber = subSequenceNumber;
+	}
+
+	/**
+	 * @return The ID of the shard the aggregated record was written to.
+	 */
+	public String getShardId() {
+		return this.shardId;
+	}
+
+	/**
+	 * @return The sequence number Kinesis assigned to the aggregated record.
+	 */
+	public String getSequenceNumber() {
+		return this.sequenceNumber;
+	}
+
+	/**
+	 * @return The index of the user record within the aggregated record.
+	 */
+	public long getSubSequenceNumber() {
+		return this.subSequenceNumber;
+	}
+
+	@Override
+	public String toString() {
+		return "UserRecordResult(shardId=" + this.shardId + ", sequenceNumber=" + this.sequenceNumber
+				+ ", subSequenceNumber=" + this.subSequenceNumber + ")";
+	}
+}
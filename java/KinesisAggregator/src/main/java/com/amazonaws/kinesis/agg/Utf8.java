@@ -0,0 +1,115 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+/**
+ * Allocation-free UTF-8 helpers. The output of these methods matches
+ * {@code String.getBytes(StandardCharsets.UTF_8)} exactly, including the
+ * replacement of unpaired surrogates with a single '?' byte.
+ */
+final class Utf8 {
+	/** The maximum number of UTF-8 bytes produced for a single UTF-16 char. */
+	static final int MAX_BYTES_PER_CHAR = 3;
+
+	private static final byte REPLACEMENT_BYTE = (byte) '?';
+
+	private Utf8() {
+	}
+
+	/**
+	 * Calculate the number of bytes needed to encode a string as UTF-8.
+	 *
+	 * @param s
+	 *            The string to measure.
+	 * @return The length of the string in bytes once UTF-8 encoded.
+	 */
+	static int encodedLength(String s) {
+		int length = s.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				continue;
+			} else if (c < 0x800) {
+				bytes += 1;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				// a surrogate pair is two chars and four bytes
+				bytes += 2;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				// unpaired surrogates are replaced with a single byte
+				continue;
+			} else {
+				bytes += 2;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Encode a string as UTF-8 into an existing buffer.
+	 *
+	 * @param s
+	 *            The string to encode.
+	 * @param buffer
+	 *            The buffer to write into, which must have room for at least
+	 *            {@code s.length() * MAX_BYTES_PER_CHAR} bytes.
+	 * @return The number of bytes written.
+	 */
+	static int encode(String s, byte[] buffer) {
+		return encode(s, buffer, 0);
+	}
+
+	/**
+	 * Encode a string as UTF-8 into an existing buffer at an offset.
+	 *
+	 * @param s
+	 *            The string to encode.
+	 * @param buffer
+	 *            The buffer to write into, which must have room for the
+	 *            encoded length of the string after the offset.
+	 * @param offset
+	 *            The index in the buffer to write the first byte to.
+	 * @return The index in the buffer after the last byte written.
+	 */
+	static int encode(String s, byte[] buffer, int offset) {
+		int length = s.length();
+		int pos = offset;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buffer[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[pos++] = (byte) (0xC0 | (c >> 6));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				buffer[pos++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				buffer[pos++] = REPLACEMENT_BYTE;
+			} else {
+				buffer[pos++] = (byte) (0xE0 | (c >> 12));
+				buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return pos;
+	}
+}
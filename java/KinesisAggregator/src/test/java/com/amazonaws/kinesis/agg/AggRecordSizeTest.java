@@ -0,0 +1,140 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Property tests for the size accounting of AggRecord: the size it predicts
+ * while user records are added must always be exactly the length of its
+ * encoding, whatever the keys and data look like, so that records can be
+ * packed right up to their size limit.
+ */
+public class AggRecordSizeTest {
+    private static final int MAX_DATA_BYTES = AggRecord.MAX_BYTES_PER_RECORD - 20;
+
+    /**
+     * @return A partition key of 1 to 256 chars drawn from one of several
+     *         alphabets, including multi-byte and unpaired surrogate chars.
+     */
+    private static String randomKey(Random random) {
+        final char[] chars = new char[1 + random.nextInt(AggRecord.PARTITION_KEY_MAX_LENGTH)];
+        final int alphabet = random.nextInt(4);
+        for (int i = 0; i < chars.length; i++) {
+            switch (alphabet) {
+            case 0:
+                chars[i] = (char) ('a' + random.nextInt(26));
+                break;
+            case 1:
+                chars[i] = (char) (0x80 + random.nextInt(0x780)); // 2 bytes
+                break;
+            case 2:
+                chars[i] = (char) (0x800 + random.nextInt(0xd000)); // 3 bytes
+                break;
+            default:
+                chars[i] = (char) random.nextInt(Character.MAX_VALUE + 1);
+                break;
+            }
+        }
+        return new String(chars);
+    }
+
+    private static String randomExplicitHashKey(Random random) {
+        return new BigInteger(128, random).toString(10);
+    }
+
+    @Test
+    public void predictedSizeShouldAlwaysEqualEncodedLength() {
+        final Random random = new Random(42);
+        for (int run = 0; run < 100; run++) {
+            // small user records fill small records, large ones fill records
+            // of up to the Kinesis limit, so that every record stays quick to
+            // encode after each user record
+            final boolean large = random.nextBoolean();
+            final int limit = large ? AggRecord.MAX_BYTES_PER_RECORD - random.nextInt(100_000)
+                    : 1024 + random.nextInt(64 * 1024);
+            final int maxData = large ? 50_000 : 300;
+            final AggRecord record = new AggRecord(null, limit, CompressionMode.NONE, Deflater.DEFAULT_COMPRESSION,
+                    random.nextBoolean());
+
+            // reuse some keys so that the key tables are hit as well
+            final String[] keys = new String[1 + random.nextInt(50)];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = randomKey(random);
+            }
+
+            int rejected = 0;
+            while (rejected < 3) {
+                final String partitionKey = keys[random.nextInt(keys.length)];
+                final String explicitHashKey = random.nextInt(4) == 0 ? randomExplicitHashKey(random) : null;
+                final int sizeBefore = record.getSizeBytes();
+                if (record.addUserRecord(partitionKey, explicitHashKey, new byte[random.nextInt(maxData)])) {
+                    Assert.assertEquals(record.toRecordBytes().length, record.getSizeBytes());
+                    Assert.assertTrue(record.getSizeBytes() <= limit || record.getNumUserRecords() == 1);
+                } else {
+                    Assert.assertEquals(sizeBefore, record.getSizeBytes());
+                    rejected++;
+                }
+            }
+            Assert.assertEquals(record.toRecordBytes().length, record.getSizeBytes());
+            Assert.assertTrue(record.getSizeBytes() <= limit || record.getNumUserRecords() == 1);
+        }
+    }
+
+    @Test
+    public void shouldPackRightUpToTheKinesisLimit() {
+        // the largest single user record that fits: everything but the data
+        // takes 4 (magic) + 16 (digest) + 3 (partition key table entry) + 4
+        // (record tag and length) + 2 (partition key index) + 4 (data tag and
+        // length) bytes, and the explicit hash key is left out
+        final int overhead = 4 + 16 + 3 + 4 + 2 + 4;
+        final int maxData = AggRecord.MAX_BYTES_PER_RECORD - overhead;
+
+        final AggRecord full = new AggRecord(null, AggRecord.MAX_BYTES_PER_RECORD, CompressionMode.NONE,
+                Deflater.DEFAULT_COMPRESSION, true);
+        Assert.assertTrue(full.addUserRecord("a", null, new byte[maxData]));
+        Assert.assertEquals(AggRecord.MAX_BYTES_PER_RECORD, full.getSizeBytes());
+        Assert.assertEquals(AggRecord.MAX_BYTES_PER_RECORD, full.toRecordBytes().length);
+        Assert.assertFalse(full.addUserRecord("a", null, new byte[0]));
+
+        // one byte more would make the record exceed the limit, even though
+        // the empty record doesn't count the magic number and digest yet
+        final AggRecord overfull = new AggRecord(null, AggRecord.MAX_BYTES_PER_RECORD, CompressionMode.NONE,
+                Deflater.DEFAULT_COMPRESSION, true);
+        Assert.assertFalse(overfull.addUserRecord("a", null, new byte[maxData + 1]));
+        Assert.assertEquals(0, overfull.getNumUserRecords());
+    }
+
+    @Test
+    public void shouldNeverExceedTheKinesisLimitWithLargeFirstRecords() {
+        final Random random = new Random(7);
+        for (int i = 0; i < 50; i++) {
+            final String partitionKey = randomKey(random);
+            final AggRecord record = new AggRecord();
+            final int dataLength = MAX_DATA_BYTES - random.nextInt(2000);
+            if (record.addUserRecord(partitionKey, null, new byte[dataLength])) {
+                Assert.assertTrue(record.toRecordBytes().length <= AggRecord.MAX_BYTES_PER_RECORD);
+                Assert.assertEquals(record.toRecordBytes().length, record.getSizeBytes());
+            }
+        }
+    }
+}
@@ -19,9 +19,17 @@ package com.amazonaws.kinesis.agg;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 
+import java.io.File;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.zip.Deflater;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.StringUtils;
@@ -30,6 +38,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import com.amazonaws.services.kinesis.clientlibrary.types.Messages.AggregatedRecord;
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+
 @RunWith(Parameterized.class)
 public class AggRecordTest {
 
@@ -71,4 +82,271 @@ public class AggRecordTest {
         Assert.assertThat(record.getExplicitHashKey(), equalTo(expectedHashKeyDecimal));
     }
 
+    @Test
+    public void shouldEncodeIdenticallyToProtobufSerialization() throws Exception {
+        final AggRecord record = new AggRecord();
+        record.addUserRecord(partitionKey, null, "dummy data".getBytes(StandardCharsets.UTF_8));
+        record.addUserRecord("another key", null, new byte[1000]);
+        record.addUserRecord(partitionKey, "123456789", new byte[0]);
+
+        final byte[] encoded = record.toRecordBytes();
+        final byte[] magic = Arrays.copyOfRange(encoded, 0, 4);
+        final byte[] body = Arrays.copyOfRange(encoded, 4, encoded.length - 16);
+        final byte[] digest = Arrays.copyOfRange(encoded, encoded.length - 16, encoded.length);
+
+        Assert.assertArrayEquals(new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a, (byte) 0xc2 }, magic);
+        Assert.assertArrayEquals(DigestUtils.md5(body), digest);
+
+        final AggregatedRecord parsed = AggregatedRecord.parseFrom(body);
+        Assert.assertArrayEquals(parsed.toByteArray(), body);
+        Assert.assertThat(parsed.getRecordsCount(), is(3));
+        Assert.assertThat(parsed.getPartitionKeyTable(0), equalTo(partitionKey));
+        Assert.assertThat(parsed.getExplicitHashKeyTable(2), equalTo("123456789"));
+    }
+
+    @Test
+    public void shouldEncodeIntoReusableBuffer() {
+        final AggRecord record = new AggRecord();
+        record.addUserRecord(partitionKey, null, "dummy data".getBytes(StandardCharsets.UTF_8));
+
+        final byte[] expected = record.toRecordBytes();
+        final byte[] buffer = new byte[expected.length + 10];
+        final int written = record.toRecordBytes(buffer, 10);
+
+        Assert.assertThat(written, is(expected.length));
+        Assert.assertArrayEquals(expected, Arrays.copyOfRange(buffer, 10, 10 + written));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUndersizedBuffer() {
+        final AggRecord record = new AggRecord();
+        record.addUserRecord(partitionKey, null, "dummy data".getBytes(StandardCharsets.UTF_8));
+        record.toRecordBytes(new byte[10], 0);
+    }
+
+    @Test
+    public void shouldAcceptBinaryHashKeys() {
+        final BigInteger hashKey = new BigInteger(DigestUtils.md5Hex(partitionKey), 16);
+
+        final AggRecord record = new AggRecord();
+        record.addUserRecord(partitionKey, hashKey.shiftRight(64).longValue(), hashKey.longValue(),
+                "dummy data".getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertThat(record.getExplicitHashKey(), equalTo(hashKey.toString(10)));
+    }
+
+    @Test
+    public void shouldAddOnlyTheRemainingBytesOfBuffers() {
+        final byte[] payload = "0123456789".getBytes(StandardCharsets.UTF_8);
+
+        final AggRecord expected = new AggRecord();
+        expected.addUserRecord(partitionKey, null, Arrays.copyOfRange(payload, 2, 7));
+
+        final AggRecord fromArrayRange = new AggRecord();
+        fromArrayRange.addUserRecord(partitionKey, null, payload, 2, 5);
+        Assert.assertArrayEquals(expected.toRecordBytes(), fromArrayRange.toRecordBytes());
+
+        final ByteBuffer heap = ByteBuffer.wrap(payload);
+        heap.position(2).limit(7);
+        final AggRecord fromHeapBuffer = new AggRecord();
+        fromHeapBuffer.addUserRecord(partitionKey, null, heap.slice());
+        Assert.assertArrayEquals(expected.toRecordBytes(), fromHeapBuffer.toRecordBytes());
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(payload.length);
+        direct.put(payload);
+        direct.position(2).limit(7);
+        final AggRecord fromDirectBuffer = new AggRecord();
+        fromDirectBuffer.addUserRecord(partitionKey, null, direct);
+        Assert.assertArrayEquals(expected.toRecordBytes(), fromDirectBuffer.toRecordBytes());
+        Assert.assertThat(direct.position(), is(2));
+        Assert.assertThat(direct.limit(), is(7));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidArrayRanges() {
+        new AggRecord().addUserRecord(partitionKey, null, new byte[10], 5, 6);
+    }
+
+    @Test
+    public void shouldWriteIdenticalBytesToHeapAndDirectBuffers() {
+        final AggRecord record = new AggRecord();
+        record.addUserRecord(partitionKey, null, "dummy data".getBytes(StandardCharsets.UTF_8));
+        record.addUserRecord("another key", null, new byte[20000]);
+        final byte[] expected = record.toRecordBytes();
+
+        for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate(expected.length + 10),
+                ByteBuffer.allocateDirect(expected.length + 10) }) {
+            buffer.position(10);
+            final int written = record.writeTo(buffer);
+
+            Assert.assertThat(written, is(expected.length));
+            Assert.assertThat(buffer.position(), is(10 + expected.length));
+            buffer.flip().position(10);
+            final byte[] actual = new byte[buffer.remaining()];
+            buffer.get(actual);
+            Assert.assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUndersizedByteBuffer() {
+        final AggRecord record = new AggRecord();
+        record.addUserRecord(partitionKey, null, "dummy data".getBytes(StandardCharsets.UTF_8));
+        record.writeTo(ByteBuffer.allocateDirect(10));
+    }
+
+    @Test
+    public void shouldWriteIdenticalBytesToChannel() throws Exception {
+        final AggRecord record = new AggRecord();
+        record.addUserRecord(partitionKey, null, "dummy data".getBytes(StandardCharsets.UTF_8));
+        record.addUserRecord("another key", null, new byte[20000]);
+        final byte[] expected = record.toRecordBytes();
+
+        final File file = File.createTempFile("aggrecord", ".bin");
+        file.deleteOnExit();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            Assert.assertThat(record.writeTo(channel), is(expected.length));
+            Assert.assertThat(record.writeTo(channel), is(expected.length));
+        }
+
+        final byte[] actual = Files.readAllBytes(file.toPath());
+        Assert.assertArrayEquals(expected, Arrays.copyOfRange(actual, 0, expected.length));
+        Assert.assertArrayEquals(expected, Arrays.copyOfRange(actual, expected.length, actual.length));
+    }
+
+    private static void addMixedUserRecords(AggRecord record, String partitionKey) {
+        for (int i = 0; i < 200; i++) {
+            final byte[] data = StringUtils.repeat("data " + i, i % 50).getBytes(StandardCharsets.UTF_8);
+            final String key = i % 2 == 0 ? partitionKey : "key-" + (i % 17);
+            final String explicitHashKey = i % 5 == 0 ? Integer.toString(i) : null;
+            if (i % 3 == 0) {
+                final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+                direct.put(data).flip();
+                Assert.assertTrue(record.addUserRecord(key, explicitHashKey, direct));
+            } else {
+                Assert.assertTrue(record.addUserRecord(key, explicitHashKey, data));
+            }
+        }
+    }
+
+    @Test
+    public void shouldEncodeIdenticallyWithOffHeapPayloads() throws Exception {
+        for (CompressionMode mode : CompressionMode.values()) {
+            final AggRecord heap = new AggRecord(null, AggRecord.MAX_BYTES_PER_RECORD, mode,
+                    Deflater.DEFAULT_COMPRESSION, false, false);
+            final AggRecord offHeap = new AggRecord(null, AggRecord.MAX_BYTES_PER_RECORD, mode,
+                    Deflater.DEFAULT_COMPRESSION, false, true);
+
+            // the second round reuses the arenas that grew in the first
+            for (int round = 0; round < 2; round++) {
+                heap.clear();
+                offHeap.clear();
+                addMixedUserRecords(heap, partitionKey);
+                addMixedUserRecords(offHeap, partitionKey);
+                Assert.assertThat(offHeap.getNumUserRecords(), is(heap.getNumUserRecords()));
+                Assert.assertThat(offHeap.getSizeBytes(), is(heap.getSizeBytes()));
+
+                final byte[] expected = heap.toRecordBytes();
+                Assert.assertArrayEquals(expected, offHeap.toRecordBytes());
+
+                final ByteBuffer direct = ByteBuffer.allocateDirect(expected.length);
+                Assert.assertThat(offHeap.writeTo(direct), is(expected.length));
+                direct.flip();
+                final byte[] written = new byte[direct.remaining()];
+                direct.get(written);
+                Assert.assertArrayEquals(expected, written);
+
+                final File file = File.createTempFile("aggrecord", ".bin");
+                file.deleteOnExit();
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    Assert.assertThat(offHeap.writeTo(channel), is(expected.length));
+                }
+                Assert.assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+            }
+        }
+    }
+
+    private static AggRecord omittingDerivedHashKeys(int maxSizeBytes) {
+        return new AggRecord(null, maxSizeBytes, CompressionMode.NONE, Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    @Test
+    public void shouldOmitDerivedExplicitHashKeys() throws Exception {
+        final AggRecord expected = new AggRecord();
+        final AggRecord record = omittingDerivedHashKeys(AggRecord.MAX_BYTES_PER_RECORD);
+        for (AggRecord r : Arrays.asList(expected, record)) {
+            r.addUserRecord(partitionKey, null, "dummy data".getBytes(StandardCharsets.UTF_8));
+            r.addUserRecord("another key", null, new byte[1000]);
+            r.addUserRecord(partitionKey, "123456789", new byte[0]);
+        }
+
+        // the aggregated record is still routed by its first user record
+        Assert.assertThat(record.getExplicitHashKey(), equalTo(expected.getExplicitHashKey()));
+
+        final byte[] encoded = record.toRecordBytes();
+        Assert.assertThat(record.getSizeBytes(), is(encoded.length));
+        Assert.assertThat(encoded.length < expected.getSizeBytes(), is(true));
+
+        final AggregatedRecord parsed = AggregatedRecord.parseFrom(Arrays.copyOfRange(encoded, 4, encoded.length - 16));
+        Assert.assertThat(parsed.getExplicitHashKeyTableCount(), is(1));
+        Assert.assertThat(parsed.getRecords(0).hasExplicitHashKeyIndex(), is(false));
+        Assert.assertThat(parsed.getRecords(1).hasExplicitHashKeyIndex(), is(false));
+        Assert.assertThat(parsed.getRecords(2).getExplicitHashKeyIndex(), is(0L));
+
+        // the KCL reads the user records back, only without the hash keys it
+        // derives from the partition keys itself
+        final List<UserRecord> expectedUserRecords = TestRecords.deaggregate(expected);
+        final List<UserRecord> userRecords = TestRecords.deaggregate(record);
+        Assert.assertThat(userRecords.size(), is(3));
+        for (int i = 0; i < userRecords.size(); i++) {
+            Assert.assertThat(userRecords.get(i).getPartitionKey(),
+                    equalTo(expectedUserRecords.get(i).getPartitionKey()));
+            Assert.assertThat(userRecords.get(i).getData(), equalTo(expectedUserRecords.get(i).getData()));
+        }
+        Assert.assertNull(userRecords.get(0).getExplicitHashKey());
+        Assert.assertNull(userRecords.get(1).getExplicitHashKey());
+        Assert.assertThat(userRecords.get(2).getExplicitHashKey(), equalTo("123456789"));
+    }
+
+    @Test
+    public void shouldLookUpBinaryExplicitHashKeysWithoutTheirDecimalForm() throws Exception {
+        // 2^127 + 5, once in binary and once in decimal form
+        final long high = Long.MIN_VALUE;
+        final long low = 5;
+        final String decimal = "170141183460469231731687303715884105733";
+        final AggRecord record = new AggRecord();
+        record.addUserRecord(partitionKey, high, low, new byte[10]);
+        record.addUserRecord(partitionKey, decimal, new byte[10]);
+        record.addUserRecord(partitionKey, high, low, ByteBuffer.allocate(10));
+        record.addUserRecord(partitionKey, 0, 7, new byte[10]);
+        Assert.assertThat(record.getExplicitHashKey(), equalTo(decimal));
+
+        final byte[] encoded = record.toRecordBytes();
+        Assert.assertThat(record.getSizeBytes(), is(encoded.length));
+        final AggregatedRecord parsed = AggregatedRecord.parseFrom(Arrays.copyOfRange(encoded, 4, encoded.length - 16));
+        Assert.assertThat(parsed.getExplicitHashKeyTableList(), equalTo(Arrays.asList(decimal, "7")));
+
+        final List<UserRecord> userRecords = TestRecords.deaggregate(record);
+        Assert.assertThat(userRecords.size(), is(4));
+        for (int i = 0; i < 3; i++) {
+            Assert.assertThat(userRecords.get(i).getExplicitHashKey(), equalTo(decimal));
+        }
+        Assert.assertThat(userRecords.get(3).getExplicitHashKey(), equalTo("7"));
+    }
+
+    @Test
+    public void shouldPredictSizeExactlyWithoutDerivedExplicitHashKeys() {
+        // fill the record right up to the limit with user records whose key
+        // table entries, indexes and length prefixes vary in size
+        final int limit = 64 * 1024;
+        final AggRecord record = omittingDerivedHashKeys(limit);
+        int i = 0;
+        while (record.addUserRecord(i % 3 == 0 ? partitionKey : "key-" + (i % 300),
+                i % 7 == 0 ? Integer.toString(i) : null, new byte[i % 200])) {
+            Assert.assertThat(record.getSizeBytes(), is(record.toRecordBytes().length));
+            i++;
+        }
+        Assert.assertThat(record.getSizeBytes() <= limit, is(true));
+        Assert.assertThat(record.getSizeBytes(), is(record.toRecordBytes().length));
+    }
 }
@@ -0,0 +1,286 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+
+public class CompressionTest
+{
+    private static final byte[] STANDARD_MAGIC = new byte[] { (byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2 };
+    
+    private static byte[] json(int i)
+    {
+        StringBuilder json = new StringBuilder("{\"id\":").append(i).append(",\"events\":[");
+        for (int j = 0; j < 10; j++)
+        {
+            json.append("{\"type\":\"page_view\",\"path\":\"/products/").append(j)
+                    .append("\",\"referrer\":\"https://www.example.com/\"},");
+        }
+        return json.append("{}]}").toString().getBytes();
+    }
+    
+    private static byte[] inflate(byte[] data) throws Exception
+    {
+        Assert.assertEquals(RecordCompression.CODEC_DEFLATE, data[4]);
+        Inflater inflater = new Inflater();
+        inflater.setInput(data, RecordCompression.HEADER_LENGTH, data.length - RecordCompression.HEADER_LENGTH);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!inflater.finished())
+        {
+            out.write(buffer, 0, inflater.inflate(buffer));
+        }
+        Assert.assertEquals(0, inflater.getRemaining());
+        inflater.end();
+        return out.toByteArray();
+    }
+    
+    private static List<UserRecord> deaggregate(AggRecord aggRecord) throws Exception
+    {
+        byte[] bytes = aggRecord.toRecordBytes();
+        Assert.assertEquals(aggRecord.getSizeBytes(), bytes.length);
+        if (RecordCompression.isCompressedAggregate(bytes))
+        {
+            bytes = inflate(bytes);
+        }
+        Assert.assertArrayEquals(STANDARD_MAGIC, Arrays.copyOf(bytes, 4));
+        
+        List<UserRecord> userRecords = TestRecords.deaggregate(aggRecord.getPartitionKey(), ByteBuffer.wrap(bytes));
+        Assert.assertEquals(aggRecord.getNumUserRecords(), userRecords.size());
+        return userRecords;
+    }
+    
+    private static List<AggRecord> aggregate(RecordAggregatorConfig config, List<byte[]> payloads) throws Exception
+    {
+        RecordAggregator aggregator = new RecordAggregator(config);
+        List<AggRecord> completed = new ArrayList<>();
+        aggregator.onRecordComplete(completed::add, Runnable::run);
+        for (int i = 0; i < payloads.size(); i++)
+        {
+            aggregator.addUserRecord("pk-" + (i % 7), i % 3 == 0 ? "12345678901234567890" : null, payloads.get(i));
+        }
+        aggregator.flush();
+        return completed;
+    }
+    
+    private static void assertRoundTrip(List<AggRecord> completed, List<byte[]> payloads) throws Exception
+    {
+        int i = 0;
+        for (AggRecord aggRecord : completed)
+        {
+            for (UserRecord userRecord : deaggregate(aggRecord))
+            {
+                byte[] data = new byte[userRecord.getData().remaining()];
+                userRecord.getData().get(data);
+                if (RecordCompression.isCompressedUserRecord(data))
+                {
+                    data = inflate(data);
+                }
+                Assert.assertEquals("pk-" + (i % 7), userRecord.getPartitionKey());
+                if (i % 3 == 0)
+                {
+                    Assert.assertEquals("12345678901234567890", userRecord.getExplicitHashKey());
+                }
+                Assert.assertArrayEquals(payloads.get(i), data);
+                i++;
+            }
+        }
+        Assert.assertEquals(payloads.size(), i);
+    }
+    
+    private static List<byte[]> jsonPayloads(int count)
+    {
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            payloads.add(json(i));
+        }
+        return payloads;
+    }
+    
+    @Test
+    public void testAggregateCompressionRoundTrip() throws Exception
+    {
+        List<byte[]> payloads = jsonPayloads(5000);
+        List<AggRecord> completed = aggregate(
+                new RecordAggregatorConfig().withCompression(CompressionMode.AGGREGATE), payloads);
+        
+        Assert.assertEquals(1, completed.size());
+        AggRecord aggRecord = completed.get(0);
+        byte[] bytes = aggRecord.toRecordBytes();
+        Assert.assertTrue(RecordCompression.isCompressedAggregate(bytes));
+        Assert.assertTrue(bytes.length < aggRecord.getNumUserRecords() * json(0).length / 5);
+        assertRoundTrip(completed, payloads);
+        
+        // every output path writes the same compressed bytes
+        byte[] array = new byte[bytes.length + 3];
+        Assert.assertEquals(bytes.length, aggRecord.toRecordBytes(array, 3));
+        Assert.assertArrayEquals(bytes, Arrays.copyOfRange(array, 3, array.length));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        aggRecord.writeTo(buffer);
+        buffer.flip();
+        Assert.assertEquals(ByteBuffer.wrap(bytes), buffer);
+    }
+    
+    @Test
+    public void testReadingAnAggregateCompressedRecordSealsIt() throws Exception
+    {
+        AggRecord aggRecord = new AggRecord(null, AggRecord.MAX_BYTES_PER_RECORD, CompressionMode.AGGREGATE,
+                RecordAggregatorConfig.DEFAULT_COMPRESSION_LEVEL);
+        Assert.assertTrue(aggRecord.addUserRecord("pk", null, json(0)));
+        aggRecord.toRecordBytes();
+        try
+        {
+            aggRecord.addUserRecord("pk", null, json(1));
+            Assert.fail("A sealed record should reject new user records");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        Assert.assertEquals(1, aggRecord.getNumUserRecords());
+    }
+    
+    @Test
+    public void testUserRecordCompressionRoundTrip() throws Exception
+    {
+        List<byte[]> payloads = jsonPayloads(1000);
+        payloads.add(new byte[0]);
+        payloads.add(new byte[] { 1, 2, 3 });
+        List<AggRecord> completed = aggregate(
+                new RecordAggregatorConfig().withCompression(CompressionMode.USER_RECORD), payloads);
+        
+        Assert.assertEquals(1, completed.size());
+        Assert.assertTrue(completed.get(0).getSizeBytes() < 1000 * json(0).length / 4);
+        assertRoundTrip(completed, payloads);
+    }
+    
+    @Test
+    public void testRecordsRotateOnCompressedSize() throws Exception
+    {
+        int limit = 20 * 1024;
+        int uncompressedPerRecord = limit / json(0).length;
+        for (CompressionMode mode : new CompressionMode[] { CompressionMode.USER_RECORD, CompressionMode.AGGREGATE })
+        {
+            List<byte[]> payloads = jsonPayloads(2000);
+            List<AggRecord> completed = aggregate(
+                    new RecordAggregatorConfig().withMaxAggregateSizeBytes(limit).withCompression(mode), payloads);
+            
+            Assert.assertTrue(completed.size() > 1);
+            for (AggRecord aggRecord : completed)
+            {
+                Assert.assertTrue(aggRecord.toRecordBytes().length <= limit);
+            }
+            Assert.assertTrue(completed.get(0).getNumUserRecords() > 2 * uncompressedPerRecord);
+            assertRoundTrip(completed, payloads);
+        }
+    }
+    
+    @Test
+    public void testAggregatesAreLimitedInUncompressedSize() throws Exception
+    {
+        // 20 MB of zeros would compress into a single small record
+        byte[] zeros = new byte[100000];
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+        {
+            payloads.add(zeros);
+        }
+        List<AggRecord> completed = aggregate(
+                new RecordAggregatorConfig().withCompression(CompressionMode.AGGREGATE), payloads);
+        
+        Assert.assertEquals(2, completed.size());
+        Assert.assertTrue(completed.get(0).getNumUserRecords() > 160);
+        Assert.assertTrue(completed.get(0).getSizeBytes() < 64 * 1024);
+        Assert.assertTrue(inflate(completed.get(0).toRecordBytes()).length <= RecordCompression.MAX_UNCOMPRESSED_BYTES);
+        assertRoundTrip(completed, payloads);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testUserRecordDataIsLimitedInUncompressedSize() throws Exception
+    {
+        RecordAggregator aggregator = new RecordAggregator(
+                new RecordAggregatorConfig().withCompression(CompressionMode.USER_RECORD));
+        aggregator.addUserRecord("pk", new byte[RecordCompression.MAX_UNCOMPRESSED_BYTES + 1]);
+    }
+    
+    @Test
+    public void testIncompressibleDataFallsBackToStandardEncoding() throws Exception
+    {
+        Random random = new Random(7);
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < 400; i++)
+        {
+            byte[] data = new byte[5000];
+            random.nextBytes(data);
+            payloads.add(data);
+        }
+        
+        for (CompressionMode mode : new CompressionMode[] { CompressionMode.USER_RECORD, CompressionMode.AGGREGATE })
+        {
+            List<AggRecord> completed = aggregate(new RecordAggregatorConfig().withCompression(mode), payloads);
+            Assert.assertEquals(2, completed.size());
+            for (AggRecord aggRecord : completed)
+            {
+                byte[] bytes = aggRecord.toRecordBytes();
+                Assert.assertTrue(bytes.length <= AggRecord.MAX_BYTES_PER_RECORD);
+                Assert.assertArrayEquals(STANDARD_MAGIC, Arrays.copyOf(bytes, 4));
+            }
+            assertRoundTrip(completed, payloads);
+        }
+    }
+    
+    @Test
+    public void testPooledCompressedRecordsAreReset() throws Exception
+    {
+        List<byte[]> payloads = jsonPayloads(3000);
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withRecordPoolSize(2)
+                .withMaxAggregateSizeBytes(10 * 1024).withCompression(CompressionMode.AGGREGATE));
+        List<byte[]> sent = new ArrayList<>();
+        int userRecords = 0;
+        for (int i = 0; i < payloads.size(); i++)
+        {
+            AggRecord aggRecord = aggregator.addUserRecord("pk-" + (i % 7), i % 3 == 0 ? "12345678901234567890" : null,
+                    payloads.get(i));
+            if (aggRecord != null)
+            {
+                userRecords += deaggregate(aggRecord).size();
+                sent.add(aggRecord.toRecordBytes());
+                aggregator.recycle(aggRecord);
+            }
+        }
+        Assert.assertTrue(sent.size() > 2);
+        Assert.assertEquals(payloads.size(), userRecords + aggregator.getNumUserRecords());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompressionLevelIsValidated()
+    {
+        new RecordAggregatorConfig().withCompressionLevel(10);
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+
+public class ConcurrentRecordAggregatorTest
+{
+    private static final int THREADS = 8;
+    private static final int KEYS_PER_THREAD = 16;
+    private static final int RECORDS_PER_THREAD = 20_000;
+    
+    @Test
+    public void testStripeCountIsRoundedUpToAPowerOfTwo()
+    {
+        Assert.assertEquals(8, new ConcurrentRecordAggregator(new RecordAggregatorConfig(), 5).getStripeCount());
+        Assert.assertEquals(1, new ConcurrentRecordAggregator(new RecordAggregatorConfig(), 1).getStripeCount());
+    }
+    
+    @Test
+    public void testConcurrentProducersKeepPerPartitionKeyOrder() throws Exception
+    {
+        ConcurrentRecordAggregator aggregator = new ConcurrentRecordAggregator(
+                new RecordAggregatorConfig().withMaxUserRecordCount(100), 4);
+        List<AggRecord> completed = Collections.synchronizedList(new ArrayList<>());
+        aggregator.onRecordComplete(completed::add, Runnable::run);
+        
+        ExecutorService threadPool = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> running = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int thread = t;
+            running.add(threadPool.submit(() -> {
+                for (int i = 0; i < RECORDS_PER_THREAD; i++)
+                {
+                    String partitionKey = "key-" + thread + "-" + (i % KEYS_PER_THREAD);
+                    aggregator.addUserRecord(partitionKey, ByteBuffer.allocate(4).putInt(0, i).array());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : running)
+        {
+            f.get();
+        }
+        threadPool.shutdown();
+        aggregator.flush();
+        Assert.assertEquals(0, aggregator.getNumUserRecords());
+        
+        // every partition key's records must come out in the order they were added
+        Map<String, Integer> lastSequence = new HashMap<>();
+        int total = 0;
+        for (AggRecord aggRecord : completed)
+        {
+            for (UserRecord userRecord : TestRecords.deaggregate(aggRecord))
+            {
+                int sequence = userRecord.getData().getInt(userRecord.getData().position());
+                Integer previous = lastSequence.put(userRecord.getPartitionKey(), sequence);
+                if (previous != null)
+                {
+                    Assert.assertTrue(sequence > previous);
+                }
+                total++;
+            }
+        }
+        Assert.assertEquals(THREADS * RECORDS_PER_THREAD, total);
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExplicitHashKeysTest {
+
+    private static final BigInteger TWO_TO_THE_64 = BigInteger.ONE.shiftLeft(64);
+
+    private static final BigInteger MAX_VALID_HASHKEY = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+    private static BigInteger toBigInteger(long high, long low) {
+        BigInteger h = new BigInteger(Long.toUnsignedString(high));
+        BigInteger l = new BigInteger(Long.toUnsignedString(low));
+        return h.multiply(TWO_TO_THE_64).add(l);
+    }
+
+    @Test
+    public void shouldFormatLikeBigInteger() {
+        final char[] scratch = new char[ExplicitHashKeys.MAX_DECIMAL_DIGITS];
+        final long[][] edgeCases = { { 0, 0 }, { 0, 1 }, { 0, Long.MAX_VALUE }, { 0, -1 }, { 1, 0 }, { -1, -1 },
+                { Long.MIN_VALUE, 0 }, { 0, 999_999_999L }, { 0, 1_000_000_000L } };
+        for (long[] edgeCase : edgeCases) {
+            Assert.assertEquals(toBigInteger(edgeCase[0], edgeCase[1]).toString(),
+                    ExplicitHashKeys.toDecimalString(edgeCase[0], edgeCase[1], scratch));
+        }
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long high = random.nextInt(4) == 0 ? 0 : random.nextLong();
+            long low = random.nextLong();
+            Assert.assertEquals(toBigInteger(high, low).toString(),
+                    ExplicitHashKeys.toDecimalString(high, low, scratch));
+        }
+    }
+
+    @Test
+    public void shouldParseLikeBigInteger() {
+        final long[] parsed = new long[2];
+        final Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long high = random.nextLong();
+            long low = random.nextLong();
+            ExplicitHashKeys.parse(toBigInteger(high, low).toString(), parsed);
+            Assert.assertEquals(high, parsed[0]);
+            Assert.assertEquals(low, parsed[1]);
+        }
+
+        ExplicitHashKeys.parse(MAX_VALID_HASHKEY.toString(), parsed);
+        Assert.assertEquals(-1L, parsed[0]);
+        Assert.assertEquals(-1L, parsed[1]);
+
+        ExplicitHashKeys.parse("-0", parsed);
+        Assert.assertEquals(0L, parsed[0] | parsed[1]);
+
+        ExplicitHashKeys.parse("+000123", parsed);
+        Assert.assertEquals(0L, parsed[0]);
+        Assert.assertEquals(123L, parsed[1]);
+    }
+
+    @Test
+    public void shouldRejectInvalidHashKeys() {
+        final String[] invalid = { "", "-", "+", "abc", "12a", "1.5", "-1", "+-1",
+                MAX_VALID_HASHKEY.add(BigInteger.ONE).toString(), MAX_VALID_HASHKEY.shiftLeft(4).toString(),
+                MAX_VALID_HASHKEY.multiply(BigInteger.TEN).toString() };
+        for (String hashKey : invalid) {
+            try {
+                ExplicitHashKeys.parse(hashKey, new long[2]);
+                Assert.fail("Expected " + hashKey + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void shouldCompareAsUnsigned() {
+        Assert.assertTrue(ExplicitHashKeys.compare(0, -1, 1, 0) < 0);
+        Assert.assertTrue(ExplicitHashKeys.compare(-1, 0, 1, 0) > 0);
+        Assert.assertTrue(ExplicitHashKeys.compare(5, -1, 5, 1) > 0);
+        Assert.assertEquals(0, ExplicitHashKeys.compare(7, 7, 7, 7));
+    }
+}
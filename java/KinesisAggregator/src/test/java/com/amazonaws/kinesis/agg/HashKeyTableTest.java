@@ -0,0 +1,70 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HashKeyTableTest {
+
+    @Test
+    public void shouldAssignIndexesInInsertionOrder() {
+        final HashKeyTable table = new HashKeyTable();
+        final Random random = new Random(42);
+        final long[] highs = new long[1000];
+        final long[] lows = new long[1000];
+        for (int i = 0; i < highs.length; i++) {
+            highs[i] = random.nextLong();
+            lows[i] = random.nextLong();
+            Assert.assertEquals(-1, table.indexOf(highs[i], lows[i]));
+            Assert.assertEquals(i, table.add(highs[i], lows[i], 39));
+        }
+        Assert.assertEquals(1000, table.size());
+
+        for (int i = 0; i < highs.length; i++) {
+            Assert.assertEquals(i, table.indexOf(highs[i], lows[i]));
+            Assert.assertEquals(39, table.getEncodedLength(i));
+        }
+    }
+
+    @Test
+    public void shouldTellKeysApartByBothWords() {
+        // the starting hash keys of evenly split shards differ only in their
+        // high bits
+        final HashKeyTable table = new HashKeyTable();
+        for (int i = 0; i < 64; i++) {
+            Assert.assertEquals(i, table.add((long) i << 58, 0, 1));
+        }
+        Assert.assertEquals(-1, table.indexOf(0, 1L << 58));
+        Assert.assertEquals(-1, table.indexOf(1, 0));
+        for (int i = 0; i < 64; i++) {
+            Assert.assertEquals(i, table.indexOf((long) i << 58, 0));
+        }
+    }
+
+    @Test
+    public void shouldBeEmptyAfterClear() {
+        final HashKeyTable table = new HashKeyTable();
+        table.add(1, 2, 20);
+        table.clear();
+        Assert.assertEquals(0, table.size());
+        Assert.assertEquals(-1, table.indexOf(1, 2));
+        Assert.assertEquals(0, table.add(3, 4, 20));
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KeyTableTest {
+
+    @Test
+    public void shouldAssignIndexesInInsertionOrder() {
+        final KeyTable table = new KeyTable();
+        final String[] keys = new String[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = UUID.randomUUID().toString();
+            Assert.assertEquals(-1, table.indexOf(keys[i]));
+            Assert.assertEquals(i, add(table, keys[i]));
+            Assert.assertEquals(i, add(table, keys[i]));
+        }
+        Assert.assertEquals(1000, table.size());
+
+        for (int i = 0; i < keys.length; i++) {
+            Assert.assertEquals(i, table.indexOf(keys[i]));
+        }
+    }
+
+    @Test
+    public void shouldCacheEncodedLengths() {
+        final KeyTable table = new KeyTable();
+        final String[] keys = { "abc", "日本語", "😀" };
+        for (String key : keys) {
+            final int index = add(table, key);
+            Assert.assertEquals(key.getBytes(StandardCharsets.UTF_8).length, table.getEncodedLength(index));
+        }
+    }
+
+    @Test
+    public void shouldHandleCollidingHashCodes() {
+        // "Aa" and "BB" share a String hash code
+        final KeyTable table = new KeyTable();
+        Assert.assertEquals(0, add(table, "Aa"));
+        Assert.assertEquals(1, add(table, "BB"));
+        Assert.assertEquals(0, table.indexOf("Aa"));
+        Assert.assertEquals(1, table.indexOf("BB"));
+    }
+
+    @Test
+    public void shouldBeEmptyAfterClear() {
+        final KeyTable table = new KeyTable();
+        for (int i = 0; i < 100; i++) {
+            add(table, "key-" + i);
+        }
+        table.clear();
+
+        Assert.assertEquals(0, table.size());
+        Assert.assertEquals(-1, table.indexOf("key-1"));
+        Assert.assertEquals(-1, table.indexOf(null));
+        Assert.assertEquals(0, add(table, "key-1"));
+    }
+
+    /**
+     * Add a key to the table if it is not already present, the same way
+     * AggRecord does, and return its index.
+     */
+    private static int add(KeyTable table, String key) {
+        final int index = table.indexOf(key);
+        return index >= 0 ? index : table.add(key, Utf8.encodedLength(key));
+    }
+}
@@ -22,25 +22,31 @@ import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
 import com.amazonaws.kinesis.agg.RecordAggregator.RecordCompleteListener;
 
+/**
+ * Randomized and multi-threaded aggregation tests. Not run as part of the
+ * normal test suite because they take a while; run them with
+ * {@code mvn test -Dtest=MonteCarloTestAggregation}.
+ */
 public class MonteCarloTestAggregation {
 	private final class IncrementCountListener implements RecordCompleteListener {
-		private Integer userRecordCount = 0;
+		private final AtomicInteger userRecordCount = new AtomicInteger();
 
 		public void recordComplete(AggRecord aggRecord) {
 			if (aggRecord.getNumUserRecords() == 0) {
 				System.err.println("Received empty Aggregation Record");
 			} else {
-				this.userRecordCount += aggRecord.getNumUserRecords();
+				this.userRecordCount.addAndGet(aggRecord.getNumUserRecords());
 			}
 		}
 
 		public Integer getCount() {
-			return this.userRecordCount;
+			return this.userRecordCount.get();
 		}
 	}
 
@@ -67,7 +73,7 @@ public class MonteCarloTestAggregation {
 		public void run() {
 			Random r = new Random();
 			RecordAggregator agg = new RecordAggregator();
-			agg.onRecordComplete(listener);
+			agg.onRecordComplete(listener, Runnable::run);
 
 			for (int i = 0; i < maxTests; i++) {
 				// generate a random partition key
@@ -122,15 +128,10 @@ public class MonteCarloTestAggregation {
 
 		System.out.println("All threads running");
 
-		int runningCount = threads;
-		while (runningCount != 0) {
-			runningCount = 0;
-			for (Future f : running) {
-				if (!f.isDone()) {
-					runningCount++;
-				}
-			}
+		for (Future f : running) {
+			f.get();
 		}
+		threadPool.shutdown();
 
 		System.out.println("Tests Completed");
 
@@ -0,0 +1,260 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+
+public class PackingRecordAggregatorTest
+{
+    private static final int SMALL = 2 * 1024;
+    private static final int MIN_LARGE = 300 * 1024;
+    private static final int MAX_LARGE = 700 * 1024;
+    
+    /**
+     * Mostly small user records with a large one every so often, which a
+     * single open aggregate ships about half-empty.
+     */
+    private static int[] bimodalSizes(int count)
+    {
+        Random random = new Random(42);
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            sizes[i] = random.nextInt(100) < 2 ? MIN_LARGE + random.nextInt(MAX_LARGE - MIN_LARGE) : SMALL;
+        }
+        return sizes;
+    }
+    
+    private static FillRatioStats runPacking(int[] sizes, int maxOpenRecords, PackingPolicy policy,
+            List<AggRecord> completed) throws Exception
+    {
+        PackingRecordAggregator aggregator = new PackingRecordAggregator(new RecordAggregatorConfig(),
+                maxOpenRecords, policy);
+        aggregator.onRecordComplete(completed::add, Runnable::run);
+        for (int i = 0; i < sizes.length; i++)
+        {
+            aggregator.addUserRecord("pk_" + i, new byte[sizes[i]]);
+        }
+        aggregator.flush();
+        aggregator.close();
+        return aggregator.getFillRatioStats();
+    }
+    
+    @Test
+    public void testEveryUserRecordIsDeliveredExactlyOnce() throws Exception
+    {
+        int[] sizes = bimodalSizes(3000);
+        for (PackingPolicy policy : PackingPolicy.values())
+        {
+            List<AggRecord> completed = new ArrayList<>();
+            FillRatioStats stats = runPacking(sizes, 4, policy, completed);
+            
+            Set<String> seen = new HashSet<>();
+            for (AggRecord aggRecord : completed)
+            {
+                Assert.assertTrue(aggRecord.getSizeBytes() <= AggRecord.MAX_BYTES_PER_RECORD);
+                for (UserRecord userRecord : TestRecords.deaggregate(aggRecord))
+                {
+                    int index = Integer.parseInt(userRecord.getPartitionKey().substring(3));
+                    Assert.assertTrue(seen.add(userRecord.getPartitionKey()));
+                    Assert.assertEquals(sizes[index], userRecord.getData().remaining());
+                }
+            }
+            Assert.assertEquals(sizes.length, seen.size());
+            Assert.assertEquals(completed.size(), stats.getRecordCount());
+        }
+    }
+    
+    @Test
+    public void testPackingFillsRecordsBetterThanASingleOpenRecord() throws Exception
+    {
+        int[] sizes = bimodalSizes(5000);
+        
+        RecordAggregator single = new RecordAggregator();
+        FillRatioStats singleStats = new FillRatioStats(RecordAggregatorConfig.DEFAULT_MAX_AGGREGATE_SIZE_BYTES);
+        single.onRecordComplete(aggRecord -> singleStats.record(aggRecord.getSizeBytes()), Runnable::run);
+        for (int i = 0; i < sizes.length; i++)
+        {
+            single.addUserRecord("pk_" + i, null, new byte[sizes[i]]);
+        }
+        single.flush();
+        
+        FillRatioStats firstFit = runPacking(sizes, 4, PackingPolicy.FIRST_FIT, new ArrayList<>());
+        FillRatioStats bestFit = runPacking(sizes, 4, PackingPolicy.BEST_FIT, new ArrayList<>());
+        
+        Assert.assertTrue(firstFit.toString(), firstFit.getRecordCount() < singleStats.getRecordCount());
+        Assert.assertTrue(bestFit.toString(), bestFit.getRecordCount() < singleStats.getRecordCount());
+        Assert.assertTrue(bestFit.getMeanFillRatio() > singleStats.getMeanFillRatio());
+        Assert.assertTrue(bestFit.getPutPayloadUnits() <= singleStats.getPutPayloadUnits());
+    }
+    
+    @Test
+    public void testSingleOpenRecordBehavesLikeARecordAggregator() throws Exception
+    {
+        int[] sizes = bimodalSizes(2000);
+        
+        List<Integer> expected = new ArrayList<>();
+        RecordAggregator single = new RecordAggregator();
+        single.onRecordComplete(aggRecord -> expected.add(aggRecord.getNumUserRecords()), Runnable::run);
+        for (int i = 0; i < sizes.length; i++)
+        {
+            single.addUserRecord("pk_" + i, null, new byte[sizes[i]]);
+        }
+        single.flush();
+        
+        List<AggRecord> completed = new ArrayList<>();
+        runPacking(sizes, 1, PackingPolicy.BEST_FIT, completed);
+        List<Integer> actual = new ArrayList<>();
+        for (AggRecord aggRecord : completed)
+        {
+            actual.add(aggRecord.getNumUserRecords());
+        }
+        Assert.assertEquals(expected, actual);
+    }
+    
+    @Test
+    public void testRecordsAreCompletedByCountAndSize() throws Exception
+    {
+        PackingRecordAggregator aggregator = new PackingRecordAggregator(
+                new RecordAggregatorConfig().withMaxUserRecordCount(3), 2, PackingPolicy.FIRST_FIT);
+        List<AggRecord> completed = new ArrayList<>();
+        aggregator.onRecordComplete(completed::add, Runnable::run);
+        
+        for (int i = 0; i < 3; i++)
+        {
+            aggregator.addUserRecord("pk", new byte[100]);
+        }
+        Assert.assertEquals(1, completed.size());
+        Assert.assertEquals(FlushReason.COUNT, completed.get(0).getFlushReason());
+        Assert.assertEquals(0, aggregator.getOpenRecordCount());
+        
+        // a record too full for the smallest user record seen is completed
+        // straight away
+        aggregator.addUserRecord("pk", new byte[AggRecord.MAX_BYTES_PER_RECORD - 100]);
+        Assert.assertEquals(2, completed.size());
+        Assert.assertEquals(FlushReason.SIZE, completed.get(1).getFlushReason());
+        Assert.assertEquals(0, aggregator.getOpenRecordCount());
+        aggregator.close();
+    }
+    
+    @Test
+    public void testFullestRecordIsCompletedWhenTooManyAreOpen() throws Exception
+    {
+        PackingRecordAggregator aggregator = new PackingRecordAggregator(new RecordAggregatorConfig(), 2,
+                PackingPolicy.BEST_FIT);
+        List<AggRecord> completed = new ArrayList<>();
+        aggregator.onRecordComplete(completed::add, Runnable::run);
+        
+        aggregator.addUserRecord("s", new byte[1024]);
+        aggregator.addUserRecord("a", new byte[500 * 1024]);
+        aggregator.addUserRecord("b", new byte[700 * 1024]);
+        Assert.assertEquals(2, aggregator.getOpenRecordCount());
+        aggregator.addUserRecord("c", new byte[600 * 1024]);
+        Assert.assertEquals(1, completed.size());
+        Assert.assertEquals(FlushReason.SIZE, completed.get(0).getFlushReason());
+        Assert.assertEquals("b", completed.get(0).getPartitionKey());
+        Assert.assertEquals(2, aggregator.getOpenRecordCount());
+        
+        // best fit puts the user record next to the 600 KB one, not the
+        // 501 KB one
+        aggregator.addUserRecord("d", new byte[300 * 1024]);
+        Assert.assertEquals(2, aggregator.getOpenRecordCount());
+        aggregator.flush();
+        Assert.assertEquals(3, completed.size());
+        Assert.assertEquals("s", completed.get(1).getPartitionKey());
+        Assert.assertEquals(2, completed.get(1).getNumUserRecords());
+        Assert.assertEquals("c", completed.get(2).getPartitionKey());
+        Assert.assertEquals(2, completed.get(2).getNumUserRecords());
+        aggregator.close();
+    }
+    
+    @Test
+    public void testUserRecordTooLargeForAnEmptyRecordCompletesNothing() throws Exception
+    {
+        PackingRecordAggregator aggregator = new PackingRecordAggregator(
+                new RecordAggregatorConfig().withRecordPoolSize(2), 1, PackingPolicy.FIRST_FIT);
+        List<AggRecord> completed = new ArrayList<>();
+        aggregator.onRecordComplete(completed::add, Runnable::run);
+        
+        aggregator.addUserRecord("a", new byte[10]);
+        try
+        {
+            // fits the data limit but not an empty aggregated record
+            aggregator.addUserRecord("b", new byte[AggRecord.MAX_BYTES_PER_RECORD - 20]);
+            Assert.fail("the user record should not fit");
+        }
+        catch (Exception e)
+        {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Unable to add User Record"));
+        }
+        // the open record was not completed to make room for it
+        Assert.assertTrue(completed.isEmpty());
+        Assert.assertEquals(1, aggregator.getOpenRecordCount());
+        
+        aggregator.flush();
+        Assert.assertEquals(1, completed.size());
+        Assert.assertEquals("a", completed.get(0).getPartitionKey());
+        Assert.assertEquals(1, completed.get(0).getNumUserRecords());
+        aggregator.close();
+    }
+    
+    @Test
+    public void testAgedRecordsAreCompleted() throws Exception
+    {
+        PackingRecordAggregator aggregator = new PackingRecordAggregator(
+                new RecordAggregatorConfig().withMaxBufferedTimeMillis(50), 4, PackingPolicy.FIRST_FIT);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<AggRecord> completed = Collections.synchronizedList(new ArrayList<>());
+        aggregator.onRecordComplete(aggRecord -> {
+            completed.add(aggRecord);
+            latch.countDown();
+        }, Runnable::run);
+        
+        aggregator.addUserRecord("pk", new byte[10]);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(FlushReason.AGE, completed.get(0).getFlushReason());
+        Assert.assertEquals(0, aggregator.getOpenRecordCount());
+        aggregator.close();
+    }
+    
+    @Test
+    public void testUserRecordsNeedAListener() throws Exception
+    {
+        PackingRecordAggregator aggregator = new PackingRecordAggregator();
+        try
+        {
+            aggregator.addUserRecord("pk", new byte[10]);
+            Assert.fail("Expected an IllegalStateException");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+    }
+}
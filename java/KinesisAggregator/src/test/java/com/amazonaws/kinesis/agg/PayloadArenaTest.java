@@ -0,0 +1,120 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.protobuf.CodedOutputStream;
+
+public class PayloadArenaTest {
+
+    private static byte[] contents(PayloadArena arena) {
+        final byte[] bytes = new byte[arena.size()];
+        arena.copyTo(0, bytes.length, bytes, 0);
+        return bytes;
+    }
+
+    @Test
+    public void shouldWriteVarintsLikeProtobuf() throws Exception {
+        final long[] values = { 0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, 1L << 35, -1L };
+        for (boolean direct : new boolean[] { false, true }) {
+            final PayloadArena arena = new PayloadArena(direct);
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            final CodedOutputStream out = CodedOutputStream.newInstance(expected);
+            for (long value : values) {
+                arena.writeVarint(value);
+                out.writeUInt64NoTag(value);
+            }
+            arena.writeTag(3, PayloadArena.WIRETYPE_LENGTH_DELIMITED);
+            out.writeTag(3, PayloadArena.WIRETYPE_LENGTH_DELIMITED);
+            out.flush();
+            Assert.assertArrayEquals(expected.toByteArray(), contents(arena));
+        }
+    }
+
+    @Test
+    public void shouldGrowAndKeepCapacityWhenCleared() {
+        for (boolean direct : new boolean[] { false, true }) {
+            final PayloadArena arena = new PayloadArena(direct);
+            final byte[] chunk = new byte[777];
+            for (int i = 0; i < 100; i++) {
+                Arrays.fill(chunk, (byte) i);
+                arena.startRecord();
+                arena.write(chunk, 0, chunk.length);
+            }
+            Assert.assertEquals(100 * 777, arena.size());
+            Assert.assertEquals(100, arena.recordCount());
+            Assert.assertEquals(42 * 777, arena.recordOffset(42));
+
+            final byte[] record = new byte[777];
+            arena.copyTo(arena.recordOffset(42), 777, record, 0);
+            Arrays.fill(chunk, (byte) 42);
+            Assert.assertArrayEquals(chunk, record);
+
+            arena.clear();
+            Assert.assertEquals(0, arena.size());
+            Assert.assertEquals(0, arena.recordCount());
+            arena.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+            Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, contents(arena));
+        }
+    }
+
+    @Test
+    public void shouldCopyAndDigestTheSameBytesEverywhere() throws Exception {
+        for (boolean direct : new boolean[] { false, true }) {
+            final PayloadArena arena = new PayloadArena(direct);
+            final String key = "日本語 partition key 😀";
+            arena.writeUtf8(key, Utf8.encodedLength(key));
+            final ByteBuffer source = ByteBuffer.allocateDirect(100_000);
+            for (int i = 0; i < source.capacity(); i++) {
+                source.put((byte) i);
+            }
+            source.flip();
+            arena.write(source);
+            Assert.assertEquals(0, source.position());
+
+            final byte[] expected = contents(arena);
+            Assert.assertArrayEquals(key.getBytes(StandardCharsets.UTF_8),
+                    Arrays.copyOf(expected, Utf8.encodedLength(key)));
+            final byte[] expectedDigest = MessageDigest.getInstance("MD5").digest(expected);
+
+            final MessageDigest md5 = MessageDigest.getInstance("MD5");
+            final byte[] array = new byte[expected.length + 5];
+            Assert.assertEquals(array.length, arena.copyTo(array, 5, md5));
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(array, 5, array.length));
+            Assert.assertArrayEquals(expectedDigest, md5.digest());
+
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(expected.length);
+            arena.copyTo(buffer, md5);
+            Assert.assertFalse(buffer.hasRemaining());
+            Assert.assertArrayEquals(expectedDigest, md5.digest());
+
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            arena.writeTo(Channels.newChannel(stream), md5);
+            Assert.assertArrayEquals(expected, stream.toByteArray());
+            Assert.assertArrayEquals(expectedDigest, md5.digest());
+        }
+    }
+}
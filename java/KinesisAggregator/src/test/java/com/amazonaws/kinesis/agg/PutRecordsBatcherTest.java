@@ -0,0 +1,270 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.AbstractAmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+
+public class PutRecordsBatcherTest
+{
+    /**
+     * A Kinesis client that records every PutRecords request and rejects the
+     * records whose partition keys are in the rejected set.
+     */
+    private static class StubKinesis extends AbstractAmazonKinesis
+    {
+        final List<List<String>> requests = Collections.synchronizedList(new ArrayList<>());
+        final Set<String> rejected = Collections.synchronizedSet(new HashSet<>());
+        final CountDownLatch firstRequest = new CountDownLatch(1);
+        
+        @Override
+        public PutRecordsResult putRecords(PutRecordsRequest request)
+        {
+            List<String> keys = new ArrayList<>();
+            List<PutRecordsResultEntry> results = new ArrayList<>();
+            int failed = 0;
+            for (PutRecordsRequestEntry entry : request.getRecords())
+            {
+                keys.add(entry.getPartitionKey());
+                if (this.rejected.contains(entry.getPartitionKey()))
+                {
+                    failed++;
+                    results.add(new PutRecordsResultEntry().withErrorCode("ProvisionedThroughputExceededException")
+                            .withErrorMessage("Rate exceeded"));
+                }
+                else
+                {
+                    results.add(new PutRecordsResultEntry().withShardId("shardId-000000000000")
+                            .withSequenceNumber(Integer.toString(keys.size())));
+                }
+            }
+            this.requests.add(keys);
+            this.firstRequest.countDown();
+            return new PutRecordsResult().withRecords(results).withFailedRecordCount(failed);
+        }
+    }
+    
+    private static PutRecordsRequestEntry entry(String partitionKey, int dataSize)
+    {
+        return new PutRecordsRequestEntry().withPartitionKey(partitionKey).withData(ByteBuffer.allocate(dataSize));
+    }
+    
+    private static PutRecordsBatcher.FailureListener collectInto(List<String> failures)
+    {
+        return (entry, errorCode, errorMessage) -> failures.add(entry.getPartitionKey());
+    }
+    
+    @Test
+    public void testFullRequestIsSentAtRecordLimit()
+    {
+        StubKinesis kinesis = new StubKinesis();
+        List<String> failures = new ArrayList<>();
+        PutRecordsBatcher batcher = new PutRecordsBatcher(kinesis, "stream", collectInto(failures));
+        
+        for (int i = 0; i < 1200; i++)
+        {
+            batcher.add(entry("pk" + i, 10));
+        }
+        Assert.assertEquals(2, kinesis.requests.size());
+        Assert.assertEquals(500, kinesis.requests.get(0).size());
+        Assert.assertEquals(500, kinesis.requests.get(1).size());
+        Assert.assertEquals(200, batcher.getPendingRecordCount());
+        
+        batcher.flush();
+        Assert.assertEquals(3, kinesis.requests.size());
+        Assert.assertEquals(200, kinesis.requests.get(2).size());
+        Assert.assertEquals("pk1000", kinesis.requests.get(2).get(0));
+        Assert.assertEquals(1200, batcher.getSentRecordCount());
+        Assert.assertTrue(failures.isEmpty());
+    }
+    
+    @Test
+    public void testRequestsStayWithinByteLimit()
+    {
+        StubKinesis kinesis = new StubKinesis();
+        PutRecordsBatcher batcher = new PutRecordsBatcher(kinesis, "stream", collectInto(new ArrayList<>()));
+        
+        // six records of 1 MB do not fit into one 5 MB request
+        for (int i = 0; i < 6; i++)
+        {
+            batcher.add(entry("pk" + i, AggRecord.MAX_BYTES_PER_RECORD - 16));
+        }
+        Assert.assertEquals(1, kinesis.requests.size());
+        Assert.assertEquals(5, kinesis.requests.get(0).size());
+        Assert.assertEquals(1, batcher.getPendingRecordCount());
+    }
+    
+    @Test
+    public void testOnlyFailedRecordsAreRetried()
+    {
+        StubKinesis kinesis = new StubKinesis();
+        List<String> failures = new ArrayList<>();
+        PutRecordsBatcher batcher = new PutRecordsBatcher(kinesis, "stream", collectInto(failures),
+                new PutRecordsBatcherConfig().withMaxRecordsPerRequest(4).withRetryBackoffMillis(0));
+        
+        kinesis.rejected.add("b");
+        kinesis.rejected.add("d");
+        batcher.add(entry("a", 10));
+        batcher.add(entry("b", 10));
+        batcher.add(entry("c", 10));
+        batcher.add(entry("d", 10));
+        Assert.assertEquals(1, kinesis.requests.size());
+        Assert.assertEquals(2, batcher.getPendingRecordCount());
+        
+        // the retried records go first, in their original order
+        kinesis.rejected.clear();
+        batcher.add(entry("e", 10));
+        batcher.add(entry("f", 10));
+        Assert.assertEquals(2, kinesis.requests.size());
+        Assert.assertEquals(Arrays.asList("b", "d", "e", "f"), kinesis.requests.get(1));
+        Assert.assertEquals(6, batcher.getSentRecordCount());
+        Assert.assertTrue(failures.isEmpty());
+    }
+    
+    /**
+     * Wait for the background thread to have sent the given number of
+     * requests.
+     */
+    private static void awaitRequests(StubKinesis kinesis, int count) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (kinesis.requests.size() < count && System.nanoTime() - deadline < 0)
+        {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, kinesis.requests.size());
+    }
+    
+    @Test
+    public void testRejectedRecordsWaitOutTheirBackoff() throws Exception
+    {
+        StubKinesis kinesis = new StubKinesis();
+        try (PutRecordsBatcher batcher = new PutRecordsBatcher(kinesis, "stream", collectInto(new ArrayList<>()),
+                new PutRecordsBatcherConfig().withMaxRecordsPerRequest(2).withRetryBackoffMillis(200)))
+        {
+            kinesis.rejected.add("b");
+            batcher.add(entry("a", 10));
+            batcher.add(entry("b", 10));
+            Assert.assertEquals(1, kinesis.requests.size());
+            
+            // a full batch is held back while the rejected record backs off
+            kinesis.rejected.clear();
+            batcher.add(entry("c", 10));
+            batcher.add(entry("d", 10));
+            Assert.assertEquals(1, kinesis.requests.size());
+            Assert.assertEquals(3, batcher.getPendingRecordCount());
+            
+            // then the background thread sends everything, without a flush
+            awaitRequests(kinesis, 3);
+            Assert.assertEquals(Arrays.asList("b", "c"), kinesis.requests.get(1));
+            Assert.assertEquals(Collections.singletonList("d"), kinesis.requests.get(2));
+            Assert.assertEquals(0, batcher.getPendingRecordCount());
+        }
+    }
+    
+    @Test
+    public void testFailureListenerExceptionsDoNotResendAcceptedRecords()
+    {
+        StubKinesis kinesis = new StubKinesis();
+        List<String> failures = new ArrayList<>();
+        PutRecordsBatcher batcher = new PutRecordsBatcher(kinesis, "stream", (entry, errorCode, errorMessage) -> {
+            failures.add(entry.getPartitionKey());
+            throw new IllegalStateException("listener failed");
+        }, new PutRecordsBatcherConfig().withMaxAttempts(1).withMaxRecordsPerRequest(3));
+        
+        kinesis.rejected.add("b");
+        batcher.add(entry("a", 10));
+        batcher.add(entry("b", 10));
+        batcher.add(entry("c", 10));
+        
+        Assert.assertEquals(1, kinesis.requests.size());
+        Assert.assertEquals(Collections.singletonList("b"), failures);
+        Assert.assertEquals(2, batcher.getSentRecordCount());
+        Assert.assertEquals(1, batcher.getFailedRecordCount());
+        Assert.assertEquals(1, batcher.getListenerErrorCount());
+        Assert.assertEquals(0, batcher.getPendingRecordCount());
+    }
+    
+    @Test
+    public void testRecordFailsAfterMaxAttempts()
+    {
+        StubKinesis kinesis = new StubKinesis();
+        List<String> failures = new ArrayList<>();
+        PutRecordsBatcher batcher = new PutRecordsBatcher(kinesis, "stream", collectInto(failures),
+                new PutRecordsBatcherConfig().withMaxAttempts(3).withRetryBackoffMillis(0));
+        
+        kinesis.rejected.add("bad");
+        batcher.add(entry("good", 10));
+        batcher.add(entry("bad", 10));
+        batcher.flush();
+        
+        Assert.assertEquals(3, kinesis.requests.size());
+        Assert.assertEquals(Collections.singletonList("bad"), kinesis.requests.get(2));
+        Assert.assertEquals(Collections.singletonList("bad"), failures);
+        Assert.assertEquals(1, batcher.getSentRecordCount());
+        Assert.assertEquals(1, batcher.getFailedRecordCount());
+        Assert.assertEquals(0, batcher.getPendingRecordCount());
+    }
+    
+    @Test
+    public void testMaxBatchDelaySendsPartialBatch() throws Exception
+    {
+        StubKinesis kinesis = new StubKinesis();
+        try (PutRecordsBatcher batcher = new PutRecordsBatcher(kinesis, "stream", collectInto(new ArrayList<>()),
+                new PutRecordsBatcherConfig().withMaxBatchDelayMillis(50)))
+        {
+            batcher.add(entry("a", 10));
+            batcher.add(entry("b", 10));
+            Assert.assertTrue(kinesis.firstRequest.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(Arrays.asList("a", "b"), kinesis.requests.get(0));
+        }
+    }
+    
+    @Test
+    public void testAggRecordsAreBatched() throws Exception
+    {
+        StubKinesis kinesis = new StubKinesis();
+        PutRecordsBatcher batcher = new PutRecordsBatcher(kinesis, "stream", collectInto(new ArrayList<>()));
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withMaxUserRecordCount(1));
+        aggregator.onRecordComplete(batcher::add, Runnable::run);
+        
+        for (int i = 0; i < 10; i++)
+        {
+            aggregator.addUserRecord("pk" + i, new byte[10]);
+        }
+        batcher.add(aggregator.clearAndGet());
+        batcher.flush();
+        Assert.assertEquals(1, kinesis.requests.size());
+        Assert.assertEquals(10, kinesis.requests.get(0).size());
+    }
+}
@@ -16,12 +16,21 @@
  */
 package com.amazonaws.kinesis.agg;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import com.amazonaws.kinesis.agg.RecordAggregator;
 import com.amazonaws.kinesis.agg.AggRecord;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.kinesis.model.Record;
+
 public class RecordAggregatorTest
 {
     protected final String ALPHABET = "abcdefghijklmnopqrstuvwxyz";
@@ -51,4 +60,271 @@ public class RecordAggregatorTest
         
         Assert.assertEquals(1, record.getNumUserRecords());
     }
+    
+    @Test
+    public void testPooledRecordIsReusedAfterRecycle() throws Exception
+    {
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withRecordPoolSize(2));
+        
+        aggregator.addUserRecord("partition_key", new byte[600_000]);
+        AggRecord first = aggregator.addUserRecord("partition_key", new byte[600_000]);
+        Assert.assertNotNull(first);
+        Assert.assertEquals(1, first.getNumUserRecords());
+        
+        // an in-flight record can't be modified
+        try
+        {
+            first.addUserRecord("partition_key", null, new byte[1]);
+            Assert.fail("Expected in-flight record to reject new user records");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        
+        aggregator.recycle(first);
+        
+        // a recycled record can't be read any more
+        try
+        {
+            first.toRecordBytes();
+            Assert.fail("Expected recycled record to reject reads");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        
+        AggRecord second = aggregator.addUserRecord("partition_key", new byte[600_000]);
+        Assert.assertNotNull(second);
+        Assert.assertNotSame(first, second);
+        
+        // the recycled record is now the one being filled
+        AggRecord third = aggregator.clearAndGet();
+        Assert.assertSame(first, third);
+        Assert.assertEquals(1, third.getNumUserRecords());
+    }
+    
+    @Test
+    public void testPooledRecordWaitsForAllListeners() throws Exception
+    {
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withRecordPoolSize(2));
+        List<AggRecord> completed = new ArrayList<>();
+        aggregator.onRecordComplete(completed::add, Runnable::run);
+        aggregator.onRecordComplete(completed::add, Runnable::run);
+        
+        aggregator.addUserRecord("partition_key", new byte[600_000]);
+        AggRecord first = aggregator.addUserRecord("partition_key", new byte[600_000]);
+        Assert.assertEquals(2, completed.size());
+        
+        // one listener is still sending, so the record must not be reused
+        aggregator.recycle(completed.get(0));
+        Assert.assertEquals(1, first.getNumUserRecords());
+        Assert.assertTrue(first.toRecordBytes().length > 600_000);
+        
+        aggregator.recycle(completed.get(1));
+        Assert.assertEquals(0, first.getNumUserRecords());
+        
+        try
+        {
+            aggregator.recycle(first);
+            Assert.fail("Expected a second recycle of the same record to fail");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecycleRejectsForeignRecords() throws Exception
+    {
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withRecordPoolSize(1));
+        RecordAggregator other = new RecordAggregator(new RecordAggregatorConfig().withRecordPoolSize(1));
+        
+        other.addUserRecord("partition_key", new byte[1]);
+        aggregator.recycle(other.clearAndGet());
+    }
+    
+    @Test
+    public void testUserRecordWithDirectBuffer() throws Exception
+    {
+        ByteBuffer data = ByteBuffer.allocateDirect(64);
+        data.put(ALPHABET.getBytes(StandardCharsets.UTF_8));
+        data.flip();
+        UserRecord userRecord = new UserRecord(new Record().withPartitionKey("partition_key").withData(data));
+        
+        RecordAggregator aggregator = new RecordAggregator();
+        aggregator.addUserRecord(userRecord);
+        
+        RecordAggregator expected = new RecordAggregator();
+        expected.addUserRecord("partition_key", ALPHABET.getBytes(StandardCharsets.UTF_8));
+        
+        Assert.assertArrayEquals(expected.clearAndGet().toRecordBytes(), aggregator.clearAndGet().toRecordBytes());
+        Assert.assertEquals(0, data.position());
+    }
+    
+    @Test
+    public void testMaxUserRecordCountCompletesRecord() throws Exception
+    {
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withMaxUserRecordCount(3));
+        List<AggRecord> completed = new ArrayList<>();
+        aggregator.onRecordComplete(completed::add, Runnable::run);
+        
+        Assert.assertNull(aggregator.addUserRecord("partition_key", new byte[10]));
+        Assert.assertNull(aggregator.addUserRecord("partition_key", new byte[10]));
+        AggRecord record = aggregator.addUserRecord("partition_key", new byte[10]);
+        
+        Assert.assertNotNull(record);
+        Assert.assertEquals(3, record.getNumUserRecords());
+        Assert.assertEquals(FlushReason.COUNT, record.getFlushReason());
+        Assert.assertEquals(1, completed.size());
+        Assert.assertEquals(0, aggregator.getNumUserRecords());
+    }
+    
+    @Test
+    public void testMaxAggregateSizeCompletesRecord() throws Exception
+    {
+        RecordAggregator aggregator = new RecordAggregator(
+                new RecordAggregatorConfig().withMaxAggregateSizeBytes(1000));
+        
+        // a single user record larger than the limit still gets a record of its own
+        Assert.assertNull(aggregator.addUserRecord("partition_key", new byte[2000]));
+        AggRecord large = aggregator.addUserRecord("partition_key", new byte[400]);
+        Assert.assertEquals(1, large.getNumUserRecords());
+        Assert.assertEquals(FlushReason.SIZE, large.getFlushReason());
+        
+        Assert.assertNull(aggregator.addUserRecord("partition_key", new byte[400]));
+        AggRecord record = aggregator.addUserRecord("partition_key", new byte[400]);
+        Assert.assertEquals(2, record.getNumUserRecords());
+        Assert.assertTrue(record.getSizeBytes() <= 1000);
+        Assert.assertEquals(FlushReason.SIZE, record.getFlushReason());
+    }
+    
+    @Test
+    public void testMaxBufferedTimeFlushesToListeners() throws Exception
+    {
+        LinkedBlockingQueue<AggRecord> completed = new LinkedBlockingQueue<>();
+        try (RecordAggregator aggregator = new RecordAggregator(
+                new RecordAggregatorConfig().withMaxBufferedTimeMillis(50)))
+        {
+            aggregator.onRecordComplete(completed::add, Runnable::run);
+            
+            long start = System.nanoTime();
+            aggregator.addUserRecord("partition_key", new byte[10]);
+            aggregator.addUserRecord("partition_key", new byte[10]);
+            
+            AggRecord record = completed.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(record);
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+            Assert.assertEquals(2, record.getNumUserRecords());
+            Assert.assertEquals(FlushReason.AGE, record.getFlushReason());
+            Assert.assertEquals(0, aggregator.getNumUserRecords());
+        }
+    }
+    
+    @Test
+    public void testMaxBufferedTimeWithoutListenersReturnsAgedRecord() throws Exception
+    {
+        try (RecordAggregator aggregator = new RecordAggregator(
+                new RecordAggregatorConfig().withMaxBufferedTimeMillis(20)))
+        {
+            aggregator.addUserRecord("partition_key", new byte[10]);
+            Thread.sleep(100);
+            Assert.assertEquals(1, aggregator.getNumUserRecords());
+            
+            AggRecord record = aggregator.addUserRecord("partition_key", new byte[10]);
+            Assert.assertNotNull(record);
+            Assert.assertEquals(1, record.getNumUserRecords());
+            Assert.assertEquals(FlushReason.AGE, record.getFlushReason());
+            Assert.assertEquals(1, aggregator.getNumUserRecords());
+        }
+    }
+    
+    @Test
+    public void testUserRecordTooLargeForAnEmptyRecordCompletesNothing() throws Exception
+    {
+        // fits the data limit but not an empty aggregated record
+        byte[] tooLarge = new byte[AggRecord.MAX_BYTES_PER_RECORD - 20];
+        try (RecordAggregator aggregator = new RecordAggregator(
+                new RecordAggregatorConfig().withMaxBufferedTimeMillis(20).withRecordPoolSize(2)))
+        {
+            // the aged record is kept rather than completed and lost
+            aggregator.addUserRecord("partition_key", new byte[10]);
+            Thread.sleep(100);
+            try
+            {
+                aggregator.addUserRecord("partition_key", tooLarge);
+                Assert.fail("the user record should not fit");
+            }
+            catch (Exception e)
+            {
+                Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Unable to add User Record"));
+            }
+            Assert.assertEquals(1, aggregator.getNumUserRecords());
+            AggRecord record = aggregator.addUserRecord("partition_key", new byte[10]);
+            Assert.assertEquals(FlushReason.AGE, record.getFlushReason());
+            Assert.assertEquals(1, record.getNumUserRecords());
+            
+            // and listeners are not handed an empty record
+            List<AggRecord> completed = new ArrayList<>();
+            aggregator.onRecordComplete(completed::add, Runnable::run);
+            aggregator.clearRecord();
+            try
+            {
+                aggregator.addUserRecord("partition_key", tooLarge);
+                Assert.fail("the user record should not fit");
+            }
+            catch (Exception e)
+            {
+                Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Unable to add User Record"));
+            }
+            Assert.assertTrue(completed.isEmpty());
+            Assert.assertEquals(0, aggregator.getNumUserRecords());
+        }
+    }
+    
+    @Test
+    public void testCompletedRecordsCancelTheirAgeFlush() throws Exception
+    {
+        RecordAggregatorConfig config = new RecordAggregatorConfig().withMaxBufferedTimeMillis(60000);
+        ScheduledThreadPoolExecutor flusher = (ScheduledThreadPoolExecutor) RecordAggregator.createFlusher(config);
+        try (RecordAggregator aggregator = new RecordAggregator(config, null, flusher, true))
+        {
+            aggregator.onRecordComplete(record -> { }, Runnable::run);
+            for (int i = 0; i < 1000; i++)
+            {
+                aggregator.addUserRecord("partition_key", new byte[10]);
+                Assert.assertEquals(1, flusher.getQueue().size());
+                Assert.assertNotNull(aggregator.flush());
+                Assert.assertEquals(0, flusher.getQueue().size());
+            }
+            
+            aggregator.addUserRecord("partition_key", new byte[10]);
+            Assert.assertNotNull(aggregator.clearAndGet());
+            aggregator.addUserRecord("partition_key", new byte[10]);
+            aggregator.clearRecord();
+            Assert.assertEquals(0, flusher.getQueue().size());
+        }
+    }
+    
+    @Test
+    public void testManualFlushReasons() throws Exception
+    {
+        RecordAggregator aggregator = new RecordAggregator();
+        List<AggRecord> completed = new ArrayList<>();
+        aggregator.onRecordComplete(completed::add, Runnable::run);
+        
+        Assert.assertNull(aggregator.flush());
+        
+        aggregator.addUserRecord("partition_key", new byte[10]);
+        AggRecord flushed = aggregator.flush();
+        Assert.assertEquals(FlushReason.MANUAL, flushed.getFlushReason());
+        Assert.assertEquals(1, completed.size());
+        
+        aggregator.addUserRecord("partition_key", new byte[10]);
+        AggRecord cleared = aggregator.clearAndGet();
+        Assert.assertEquals(FlushReason.MANUAL, cleared.getFlushReason());
+        Assert.assertEquals(1, completed.size());
+    }
 }
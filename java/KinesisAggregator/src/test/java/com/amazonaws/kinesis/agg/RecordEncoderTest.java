@@ -0,0 +1,274 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+
+public class RecordEncoderTest
+{
+    @Test
+    public void testRecordsAreDeliveredInCompletionOrder() throws Exception
+    {
+        List<EncodedRecord> delivered = Collections.synchronizedList(new ArrayList<>());
+        RecordAggregator aggregator = new RecordAggregator();
+        try (RecordEncoder encoder = new RecordEncoder(delivered::add, 4))
+        {
+            aggregator.onRecordComplete(encoder, Runnable::run);
+            
+            // alternate large and small records so that later records are
+            // often encoded before earlier ones
+            for (int i = 0; i < 200; i++)
+            {
+                int userRecords = i % 2 == 0 ? 2000 : 1;
+                for (int j = 0; j < userRecords; j++)
+                {
+                    aggregator.addUserRecord("pk-" + i + "-" + j, new byte[100]);
+                }
+                aggregator.flush();
+            }
+            encoder.flush();
+            
+            Assert.assertEquals(0, encoder.getPendingRecordCount());
+            Assert.assertEquals(200, encoder.getEncodedRecordCount());
+        }
+        
+        Assert.assertEquals(200, delivered.size());
+        for (int i = 0; i < delivered.size(); i++)
+        {
+            EncodedRecord encodedRecord = delivered.get(i);
+            Assert.assertEquals(i, encodedRecord.getSequenceNumber());
+            Assert.assertEquals(FlushReason.MANUAL, encodedRecord.getFlushReason());
+            List<UserRecord> userRecords = TestRecords.deaggregate(encodedRecord);
+            Assert.assertEquals(encodedRecord.getNumUserRecords(), userRecords.size());
+            Assert.assertEquals(i % 2 == 0 ? 2000 : 1, userRecords.size());
+            Assert.assertEquals("pk-" + i + "-0", userRecords.get(0).getPartitionKey());
+        }
+    }
+    
+    @Test
+    public void testEncodedBytesMatchRecordBytes() throws Exception
+    {
+        AggRecord aggRecord = new AggRecord();
+        for (int i = 0; i < 100; i++)
+        {
+            aggRecord.addUserRecord("pk-" + i, i % 2 == 0 ? "1234567890" : null, new byte[] { (byte) i });
+        }
+        
+        EncodedRecord encodedRecord = new EncodedRecord(aggRecord, 7);
+        ByteBuffer data = encodedRecord.getData();
+        Assert.assertTrue(data.isReadOnly());
+        Assert.assertEquals(ByteBuffer.wrap(aggRecord.toRecordBytes()), data);
+        Assert.assertEquals(aggRecord.getSizeBytes(), encodedRecord.getSizeBytes());
+        Assert.assertEquals(aggRecord.getPartitionKey(), encodedRecord.getPartitionKey());
+        Assert.assertEquals(aggRecord.getExplicitHashKey(), encodedRecord.getExplicitHashKey());
+        Assert.assertEquals(ByteBuffer.wrap(aggRecord.toRecordBytes()),
+                encodedRecord.toPutRecordRequest("stream").getData());
+    }
+    
+    @Test
+    public void testPooledRecordsAreRecycledAfterEncoding() throws Exception
+    {
+        List<EncodedRecord> delivered = Collections.synchronizedList(new ArrayList<>());
+        RecordAggregator aggregator = new RecordAggregator(
+                new RecordAggregatorConfig().withRecordPoolSize(4).withMaxUserRecordCount(10));
+        try (RecordEncoder encoder = new RecordEncoder(delivered::add, 2))
+        {
+            aggregator.onRecordComplete(encoder, Runnable::run);
+            for (int i = 0; i < 1000; i++)
+            {
+                aggregator.addUserRecord("pk-" + i, new byte[10]);
+            }
+            encoder.flush();
+        }
+        
+        Assert.assertEquals(100, delivered.size());
+        for (int i = 0; i < delivered.size(); i++)
+        {
+            List<UserRecord> userRecords = TestRecords.deaggregate(delivered.get(i));
+            Assert.assertEquals(10, userRecords.size());
+            Assert.assertEquals("pk-" + (i * 10), userRecords.get(0).getPartitionKey());
+        }
+    }
+    
+    @Test
+    public void testPendingRecordsAreBounded() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+        List<EncodedRecord> delivered = Collections.synchronizedList(new ArrayList<>());
+        RecordEncoder encoder = new RecordEncoder(encodedRecord -> {
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            delivered.add(encodedRecord);
+        }, 1, 2);
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withMaxUserRecordCount(1));
+        aggregator.onRecordComplete(encoder, Runnable::run);
+        
+        Thread producer = new Thread(() -> {
+            try
+            {
+                for (int i = 0; i < 3; i++)
+                {
+                    aggregator.addUserRecord("pk-" + i, new byte[10]);
+                }
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+        });
+        producer.start();
+        producer.join(200);
+        
+        // the third record waits for the listener to accept the first
+        Assert.assertTrue(producer.isAlive());
+        Assert.assertEquals(2, encoder.getPendingRecordCount());
+        
+        release.countDown();
+        producer.join(TimeUnit.SECONDS.toMillis(10));
+        Assert.assertFalse(producer.isAlive());
+        encoder.close();
+        Assert.assertEquals(3, delivered.size());
+    }
+    
+    @Test
+    public void testFailingListenerDoesNotStopDelivery() throws Exception
+    {
+        List<Long> delivered = Collections.synchronizedList(new ArrayList<>());
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withMaxUserRecordCount(1));
+        try (RecordEncoder encoder = new RecordEncoder(encodedRecord -> {
+            delivered.add(encodedRecord.getSequenceNumber());
+            throw new IllegalStateException("listener failure");
+        }, 2))
+        {
+            aggregator.onRecordComplete(encoder, Runnable::run);
+            for (int i = 0; i < 20; i++)
+            {
+                aggregator.addUserRecord("pk-" + i, new byte[10]);
+            }
+            encoder.flush();
+        }
+        
+        Assert.assertEquals(20, delivered.size());
+        for (int i = 0; i < delivered.size(); i++)
+        {
+            Assert.assertEquals(i, delivered.get(i).longValue());
+        }
+    }
+    
+    @Test
+    public void testListenerExceptionsFailTheRecord() throws Exception
+    {
+        List<Long> failed = Collections.synchronizedList(new ArrayList<>());
+        IllegalStateException failure = new IllegalStateException("listener failure");
+        RecordEncoder.EncodedRecordListener listener = new RecordEncoder.EncodedRecordListener()
+        {
+            @Override
+            public void recordEncoded(EncodedRecord encodedRecord)
+            {
+                if (encodedRecord.getSequenceNumber() % 2 == 1)
+                {
+                    throw failure;
+                }
+            }
+            
+            @Override
+            public void recordFailed(long sequenceNumber, Throwable cause)
+            {
+                Assert.assertSame(failure, cause);
+                failed.add(sequenceNumber);
+            }
+        };
+        
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withMaxUserRecordCount(1));
+        List<CompletableFuture<UserRecordResult>> results = new ArrayList<>();
+        try (RecordEncoder encoder = new RecordEncoder(listener, 2))
+        {
+            aggregator.onRecordComplete(encoder, Runnable::run);
+            for (int i = 0; i < 10; i++)
+            {
+                results.add(aggregator.addTrackedUserRecord("pk-" + i, null, new byte[10]));
+            }
+            encoder.flush();
+            
+            Assert.assertEquals(5, encoder.getEncodedRecordCount());
+            Assert.assertEquals(5, encoder.getFailedRecordCount());
+        }
+        
+        Assert.assertEquals(Arrays.asList(1L, 3L, 5L, 7L, 9L), failed);
+        for (int i = 0; i < results.size(); i++)
+        {
+            Assert.assertEquals(i % 2 == 1, results.get(i).isCompletedExceptionally());
+        }
+    }
+    
+    @Test(timeout = 10000)
+    public void testListenerErrorsDoNotStallDelivery() throws Exception
+    {
+        List<Long> delivered = Collections.synchronizedList(new ArrayList<>());
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withMaxUserRecordCount(1));
+        List<CompletableFuture<UserRecordResult>> results = new ArrayList<>();
+        try (RecordEncoder encoder = new RecordEncoder(encodedRecord -> {
+            delivered.add(encodedRecord.getSequenceNumber());
+            throw new Error("listener error");
+        }, 2))
+        {
+            aggregator.onRecordComplete(encoder, Runnable::run);
+            for (int i = 0; i < 10; i++)
+            {
+                results.add(aggregator.addTrackedUserRecord("pk-" + i, null, new byte[10]));
+            }
+            encoder.flush();
+            
+            Assert.assertEquals(10, delivered.size());
+            Assert.assertEquals(10, encoder.getFailedRecordCount());
+        }
+        
+        for (CompletableFuture<UserRecordResult> result : results)
+        {
+            Assert.assertTrue(result.isCompletedExceptionally());
+        }
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void testClosedEncoderRejectsRecords() throws Exception
+    {
+        RecordEncoder encoder = new RecordEncoder(encodedRecord -> {}, 1);
+        encoder.close();
+        
+        AggRecord aggRecord = new AggRecord();
+        aggRecord.addUserRecord("pk", null, new byte[10]);
+        encoder.recordComplete(aggRecord);
+    }
+}
@@ -0,0 +1,306 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RecordSenderTest
+{
+    /**
+     * A transport that records the partition keys it was asked to send, fails
+     * the first few attempts and can be held up until released.
+     */
+    private static class StubTransport implements RecordTransport
+    {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch release;
+        volatile int failuresLeft;
+        
+        StubTransport(boolean blocked)
+        {
+            this.release = new CountDownLatch(blocked ? 1 : 0);
+        }
+        
+        @Override
+        public void send(AggRecord aggRecord) throws Exception
+        {
+            this.attempts.incrementAndGet();
+            this.release.await();
+            if (this.failuresLeft > 0)
+            {
+                this.failuresLeft--;
+                throw new RuntimeException("Rate exceeded");
+            }
+            this.sent.add(aggRecord.getPartitionKey());
+        }
+    }
+    
+    private static AggRecord aggRecord(String partitionKey, int dataSize)
+    {
+        AggRecord aggRecord = new AggRecord();
+        aggRecord.addUserRecord(partitionKey, null, new byte[dataSize]);
+        return aggRecord;
+    }
+    
+    private static RecordSender.FailureListener collectInto(List<String> failures)
+    {
+        return (aggRecord, cause) -> failures.add(aggRecord.getPartitionKey());
+    }
+    
+    @Test
+    public void testRecordsAreSent() throws Exception
+    {
+        StubTransport transport = new StubTransport(false);
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        try (RecordSender sender = new RecordSender(transport, collectInto(failures)))
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                sender.send(aggRecord("pk" + i, 100));
+            }
+            sender.send(new AggRecord());
+            sender.flush();
+            
+            Assert.assertEquals(100, transport.sent.size());
+            Assert.assertEquals(100, sender.getSentRecordCount());
+            Assert.assertEquals(0, sender.getInFlightBytes());
+            Assert.assertTrue(failures.isEmpty());
+        }
+    }
+    
+    @Test
+    public void testFailedSendsAreRetried() throws Exception
+    {
+        StubTransport transport = new StubTransport(false);
+        transport.failuresLeft = 2;
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        try (RecordSender sender = new RecordSender(transport, collectInto(failures),
+                new RecordSenderConfig().withMaxInFlightRequests(1).withInitialBackoffMillis(1)))
+        {
+            sender.send(aggRecord("pk", 100));
+            sender.flush();
+            
+            Assert.assertEquals(3, transport.attempts.get());
+            Assert.assertEquals(2, sender.getRetryCount());
+            Assert.assertEquals(Collections.singletonList("pk"), transport.sent);
+            Assert.assertTrue(failures.isEmpty());
+        }
+    }
+    
+    @Test
+    public void testRecordFailsAfterMaxAttempts() throws Exception
+    {
+        StubTransport transport = new StubTransport(false);
+        transport.failuresLeft = Integer.MAX_VALUE;
+        List<Throwable> causes = Collections.synchronizedList(new ArrayList<>());
+        try (RecordSender sender = new RecordSender(transport, (aggRecord, cause) -> causes.add(cause),
+                new RecordSenderConfig().withMaxAttempts(3).withInitialBackoffMillis(0)))
+        {
+            sender.send(aggRecord("pk", 100));
+            sender.flush();
+            
+            Assert.assertEquals(3, transport.attempts.get());
+            Assert.assertEquals(1, sender.getFailedRecordCount());
+            Assert.assertEquals("Rate exceeded", causes.get(0).getMessage());
+        }
+    }
+    
+    @Test
+    public void testBlockPolicyAppliesBackpressureToAddUserRecord() throws Exception
+    {
+        StubTransport transport = new StubTransport(true);
+        RecordSender sender = new RecordSender(transport, collectInto(new ArrayList<>()), new RecordSenderConfig()
+                .withMaxInFlightRequests(1).withMaxInFlightBytes(2500).withOverflowPolicy(OverflowPolicy.BLOCK));
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withMaxUserRecordCount(1));
+        aggregator.onRecordComplete(sender, Runnable::run);
+        
+        ExecutorService producer = Executors.newSingleThreadExecutor();
+        Future<?> adds = producer.submit(() ->
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                aggregator.addUserRecord("pk" + i, new byte[1000]);
+            }
+            return null;
+        });
+        
+        // two records fit into the limit, so the third add blocks
+        Thread.sleep(200);
+        Assert.assertFalse(adds.isDone());
+        Assert.assertEquals(2, sender.getInFlightRecordCount());
+        Assert.assertTrue(sender.getInFlightBytes() <= 2500);
+        
+        transport.release.countDown();
+        adds.get(5, TimeUnit.SECONDS);
+        sender.close();
+        producer.shutdown();
+        Assert.assertEquals(10, transport.sent.size());
+        Assert.assertEquals("pk0", transport.sent.get(0));
+        Assert.assertEquals("pk9", transport.sent.get(9));
+    }
+    
+    @Test
+    public void testFailFastPolicyRejectsRecord() throws Exception
+    {
+        StubTransport transport = new StubTransport(true);
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        RecordSender sender = new RecordSender(transport, collectInto(failures), new RecordSenderConfig()
+                .withMaxInFlightRequests(1).withMaxInFlightBytes(2500).withOverflowPolicy(OverflowPolicy.FAIL_FAST));
+        
+        sender.send(aggRecord("a", 1000));
+        sender.send(aggRecord("b", 1000));
+        try
+        {
+            sender.send(aggRecord("c", 1000));
+            Assert.fail("Expected the full sender to reject the record");
+        }
+        catch (RejectedExecutionException e)
+        {
+            // expected
+        }
+        Assert.assertEquals(Collections.singletonList("c"), failures);
+        
+        transport.release.countDown();
+        sender.close();
+        Assert.assertEquals(2, transport.sent.size());
+    }
+    
+    @Test
+    public void testDropOldestPolicyDropsWaitingRecords() throws Exception
+    {
+        StubTransport transport = new StubTransport(true);
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        RecordSender sender = new RecordSender(transport, collectInto(failures), new RecordSenderConfig()
+                .withMaxInFlightRequests(1).withMaxInFlightBytes(3500).withOverflowPolicy(OverflowPolicy.DROP_OLDEST));
+        
+        sender.send(aggRecord("a", 1000));
+        while (transport.attempts.get() == 0)
+        {
+            Thread.sleep(1);
+        }
+        // "a" is being sent, so "b" is the oldest record that can be dropped
+        sender.send(aggRecord("b", 1000));
+        sender.send(aggRecord("c", 1000));
+        sender.send(aggRecord("d", 1000));
+        Assert.assertEquals(Collections.singletonList("b"), failures);
+        
+        transport.release.countDown();
+        sender.close();
+        Assert.assertEquals(Arrays.asList("a", "c", "d"), transport.sent);
+    }
+    
+    @Test
+    public void testPooledRecordsAreRecycled() throws Exception
+    {
+        StubTransport transport = new StubTransport(false);
+        RecordAggregator aggregator = new RecordAggregator(
+                new RecordAggregatorConfig().withRecordPoolSize(2).withMaxUserRecordCount(1));
+        try (RecordSender sender = new RecordSender(transport, collectInto(new ArrayList<>())))
+        {
+            aggregator.onRecordComplete(sender, Runnable::run);
+            for (int i = 0; i < 100; i++)
+            {
+                aggregator.addUserRecord("pk" + i, new byte[10]);
+            }
+            sender.flush();
+        }
+        // a record recycled while still in flight would have been sent with
+        // another record's partition key
+        Assert.assertEquals(100, new HashSet<>(transport.sent).size());
+    }
+    
+    @Test
+    public void testRecordSentAfterCloseIsRecycledAndFailed() throws Exception
+    {
+        StubTransport transport = new StubTransport(false);
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        RecordSender sender = new RecordSender(transport, collectInto(failures));
+        sender.close();
+        
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withRecordPoolSize(1));
+        aggregator.onRecordComplete(sender, Runnable::run);
+        CompletableFuture<UserRecordResult> handle = aggregator.addTrackedUserRecord("pk", null, new byte[10]);
+        AggRecord aggRecord = aggregator.clearAndGet();
+        try
+        {
+            sender.send(aggRecord);
+            Assert.fail("Expected the closed sender to reject the record");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        try
+        {
+            handle.get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected the handle to fail");
+        }
+        catch (ExecutionException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        // the sender already recycled the record for its only holder
+        try
+        {
+            aggregator.recycle(aggRecord);
+            Assert.fail("Expected the record to have been recycled");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        Assert.assertTrue(failures.isEmpty());
+    }
+    
+    @Test
+    public void testFailureListenerExceptionsAreCounted() throws Exception
+    {
+        StubTransport transport = new StubTransport(false);
+        transport.failuresLeft = Integer.MAX_VALUE;
+        try (RecordSender sender = new RecordSender(transport, (aggRecord, cause) ->
+        {
+            throw new IllegalStateException("listener failed");
+        }, new RecordSenderConfig().withMaxInFlightRequests(1).withMaxAttempts(1)))
+        {
+            sender.send(aggRecord("a", 100));
+            sender.send(aggRecord("b", 100));
+            sender.flush();
+            
+            // the sender thread survived the first exception to fail "b" too
+            Assert.assertEquals(2, transport.attempts.get());
+            Assert.assertEquals(2, sender.getFailedRecordCount());
+            Assert.assertEquals(2, sender.getListenerErrorCount());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+import com.amazonaws.services.kinesis.model.SequenceNumberRange;
+import com.amazonaws.services.kinesis.model.Shard;
+
+public class ShardMapTest {
+
+    private static final BigInteger MAX_HASH_KEY = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+    private static Shard shard(String shardId, BigInteger start, BigInteger end, String endingSequenceNumber) {
+        return new Shard().withShardId(shardId)
+                .withHashKeyRange(new HashKeyRange().withStartingHashKey(start.toString())
+                        .withEndingHashKey(end.toString()))
+                .withSequenceNumberRange(new SequenceNumberRange().withStartingSequenceNumber("1")
+                        .withEndingSequenceNumber(endingSequenceNumber));
+    }
+
+    private static int indexOf(ShardMap map, BigInteger hashKey) {
+        return map.indexOf(hashKey.shiftRight(64).longValue(), hashKey.longValue());
+    }
+
+    @Test
+    public void uniformMapShouldCoverTheWholeHashKeySpace() {
+        final ShardMap map = ShardMap.uniform(3);
+
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals("shardId-000000000000", map.getShardId(0));
+        Assert.assertEquals("0", map.getStartingHashKey(0));
+        Assert.assertEquals(MAX_HASH_KEY.toString(), map.getEndingHashKey(2));
+        for (int i = 1; i < map.size(); i++) {
+            Assert.assertEquals(new BigInteger(map.getEndingHashKey(i - 1)).add(BigInteger.ONE),
+                    new BigInteger(map.getStartingHashKey(i)));
+        }
+
+        Assert.assertEquals(0, indexOf(map, BigInteger.ZERO));
+        Assert.assertEquals(2, indexOf(map, MAX_HASH_KEY));
+        for (int i = 0; i < map.size(); i++) {
+            Assert.assertEquals(i, indexOf(map, new BigInteger(map.getStartingHashKey(i))));
+            Assert.assertEquals(i, indexOf(map, new BigInteger(map.getEndingHashKey(i))));
+            Assert.assertEquals(i, map.indexOf(map.getEndingHashKey(i)));
+        }
+    }
+
+    @Test
+    public void shouldSkipClosedShardsAndReportGaps() {
+        final BigInteger half = BigInteger.ONE.shiftLeft(127);
+        final ShardMap map = ShardMap.fromShards(Arrays.asList(
+                shard("shardId-000000000002", half, MAX_HASH_KEY, null),
+                shard("shardId-000000000000", BigInteger.ZERO, MAX_HASH_KEY, "100"),
+                shard("shardId-000000000001", BigInteger.ZERO, BigInteger.TEN, null)));
+
+        Assert.assertEquals(2, map.size());
+        Assert.assertEquals("shardId-000000000001", map.getShardId(0));
+        Assert.assertEquals("shardId-000000000002", map.getShardId(1));
+        Assert.assertEquals(1, map.indexOfShard("shardId-000000000002"));
+        Assert.assertEquals(-1, map.indexOfShard("shardId-000000000000"));
+
+        Assert.assertEquals(0, indexOf(map, BigInteger.TEN));
+        Assert.assertEquals(-1, indexOf(map, BigInteger.valueOf(11)));
+        Assert.assertEquals(1, indexOf(map, half));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectOverlappingShards() {
+        ShardMap.fromShards(Arrays.asList(shard("shardId-000000000000", BigInteger.ZERO, BigInteger.TEN, null),
+                shard("shardId-000000000001", BigInteger.TEN, MAX_HASH_KEY, null)));
+    }
+
+    @Test
+    public void shouldCompareByShardsAndRanges() {
+        Assert.assertEquals(ShardMap.uniform(4), ShardMap.uniform(4));
+        Assert.assertNotEquals(ShardMap.uniform(4), ShardMap.uniform(5));
+    }
+}
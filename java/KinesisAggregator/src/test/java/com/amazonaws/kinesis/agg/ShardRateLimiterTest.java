@@ -0,0 +1,112 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShardRateLimiterTest
+{
+    private static final ShardMap SHARDS = ShardMap.uniform(2);
+    
+    private static AggRecord aggRecord(int shard, int dataSize)
+    {
+        AggRecord aggRecord = new AggRecord();
+        aggRecord.addUserRecord("pk", SHARDS.getStartingHashKey(shard), new byte[dataSize]);
+        return aggRecord;
+    }
+    
+    @Test
+    public void testByteLimitIsEnforcedPerShard()
+    {
+        ShardRateLimiter limiter = new ShardRateLimiter(new InMemoryShardMapProvider(SHARDS));
+        AggRecord shard0 = aggRecord(0, 100 * 1024);
+        long sizeBytes = shard0.getSizeBytes();
+        long now = 0;
+        
+        // one second's worth of bytes goes through straight away
+        int burst = (int) (ShardRateLimiter.DEFAULT_MAX_BYTES_PER_SECOND / sizeBytes);
+        for (int i = 0; i < burst; i++)
+        {
+            Assert.assertEquals(0, limiter.reserve(shard0, now));
+        }
+        
+        // the next record waits until its bytes have accrued, and the one
+        // after it waits behind it
+        long firstWait = limiter.reserve(shard0, now);
+        long secondWait = limiter.reserve(shard0, now);
+        Assert.assertTrue(firstWait > 0 && firstWait < TimeUnit.MILLISECONDS.toNanos(100));
+        long expectedStep = TimeUnit.SECONDS.toNanos(1) * sizeBytes / ShardRateLimiter.DEFAULT_MAX_BYTES_PER_SECOND;
+        Assert.assertEquals(expectedStep, secondWait - firstWait, 1000);
+        
+        // the other shard is not affected
+        Assert.assertEquals(0, limiter.reserve(aggRecord(1, 100 * 1024), now));
+        
+        // once the debt has been paid off, records go through again
+        Assert.assertEquals(0, limiter.reserve(shard0, now + secondWait + expectedStep));
+        
+        Assert.assertEquals(burst + 4, limiter.getAcquiredRecordCount());
+        Assert.assertEquals(2, limiter.getThrottledRecordCount());
+        Assert.assertEquals(firstWait + secondWait, limiter.getTotalWaitNanos());
+        Assert.assertEquals(secondWait, limiter.getMaxWaitNanos());
+    }
+    
+    @Test
+    public void testRecordLimitIsEnforced()
+    {
+        ShardRateLimiter limiter = new ShardRateLimiter(new InMemoryShardMapProvider(SHARDS));
+        AggRecord small = aggRecord(1, 10);
+        for (int i = 0; i < ShardRateLimiter.DEFAULT_MAX_RECORDS_PER_SECOND; i++)
+        {
+            Assert.assertEquals(0, limiter.reserve(small, 0));
+        }
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(1), limiter.reserve(small, 0), 1000);
+    }
+    
+    @Test
+    public void testOversizedRecordWaitsProportionally()
+    {
+        ShardRateLimiter limiter = new ShardRateLimiter(new InMemoryShardMapProvider(SHARDS), 1000, 1000);
+        AggRecord large = aggRecord(0, 2500);
+        
+        // the full bucket covers the first 1000 bytes, the rest takes 1.5 s
+        long wait = limiter.reserve(large, 0);
+        Assert.assertTrue(wait > TimeUnit.SECONDS.toNanos(1));
+        Assert.assertTrue(wait < TimeUnit.SECONDS.toNanos(2));
+    }
+    
+    @Test
+    public void testRateLimitedTransportPacesSends() throws Exception
+    {
+        ShardRateLimiter limiter = new ShardRateLimiter(new InMemoryShardMapProvider(SHARDS), 100 * 1024, 1000);
+        RateLimitedTransport transport = new RateLimitedTransport(aggRecord -> { }, limiter);
+        AggRecord record = aggRecord(0, 50 * 1024);
+        
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++)
+        {
+            transport.send(record);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        
+        // the burst covers about two records, the others take about a second
+        Assert.assertTrue("Took " + elapsedMillis + " ms", elapsedMillis >= 900);
+        Assert.assertTrue(limiter.getThrottledRecordCount() >= 2);
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+import com.amazonaws.services.kinesis.model.Shard;
+
+public class ShardedRecordAggregatorTest
+{
+    @Test
+    public void testRecordsAreRoutedToTheShardOwningTheirHashKey() throws Exception
+    {
+        ShardMap shardMap = ShardMap.uniform(4);
+        ShardedRecordAggregator aggregator = new ShardedRecordAggregator(new InMemoryShardMapProvider(shardMap));
+        List<AggRecord> completed = new ArrayList<>();
+        aggregator.onRecordComplete(completed::add, Runnable::run);
+        
+        for (int i = 0; i < 1000; i++)
+        {
+            aggregator.addUserRecord("partition_key_" + i, new byte[100]);
+        }
+        aggregator.addUserRecord("explicit", shardMap.getEndingHashKey(1), new byte[100]);
+        Assert.assertEquals(1001, aggregator.getNumUserRecords());
+        
+        aggregator.flush();
+        Assert.assertEquals(0, aggregator.getNumUserRecords());
+        Assert.assertEquals(4, completed.size());
+        
+        int total = 0;
+        boolean[] seen = new boolean[4];
+        for (AggRecord aggRecord : completed)
+        {
+            int shard = shardMap.indexOf(aggRecord.getExplicitHashKey());
+            Assert.assertFalse(seen[shard]);
+            seen[shard] = true;
+            Assert.assertEquals(FlushReason.MANUAL, aggRecord.getFlushReason());
+            
+            List<UserRecord> userRecords = TestRecords.deaggregate(aggRecord);
+            Assert.assertEquals(aggRecord.getNumUserRecords(), userRecords.size());
+            for (UserRecord userRecord : userRecords)
+            {
+                Assert.assertEquals(shard, shardMap.indexOf(userRecord.getExplicitHashKey()));
+            }
+            total += userRecords.size();
+        }
+        Assert.assertEquals(1001, total);
+    }
+    
+    @Test
+    public void testFullShardRecordDoesNotAffectOtherShards() throws Exception
+    {
+        ShardMap shardMap = ShardMap.uniform(2);
+        ShardedRecordAggregator aggregator = new ShardedRecordAggregator(new InMemoryShardMapProvider(shardMap),
+                new RecordAggregatorConfig().withMaxUserRecordCount(2));
+        List<AggRecord> completed = new ArrayList<>();
+        aggregator.onRecordComplete(completed::add, Runnable::run);
+        
+        aggregator.addUserRecord("a", shardMap.getStartingHashKey(0), new byte[10]);
+        aggregator.addUserRecord("b", shardMap.getStartingHashKey(1), new byte[10]);
+        aggregator.addUserRecord("c", shardMap.getEndingHashKey(0), new byte[10]);
+        
+        Assert.assertEquals(1, completed.size());
+        Assert.assertEquals(FlushReason.COUNT, completed.get(0).getFlushReason());
+        Assert.assertEquals(0, shardMap.indexOf(completed.get(0).getExplicitHashKey()));
+        Assert.assertEquals(1, aggregator.getNumUserRecords());
+    }
+    
+    @Test
+    public void testReshardFlushesOnlyClosedShards() throws Exception
+    {
+        ShardMap before = ShardMap.uniform(2);
+        InMemoryShardMapProvider provider = new InMemoryShardMapProvider(before);
+        ShardedRecordAggregator aggregator = new ShardedRecordAggregator(provider);
+        List<AggRecord> completed = new ArrayList<>();
+        aggregator.onRecordComplete(completed::add, Runnable::run);
+        
+        aggregator.addUserRecord("a", before.getStartingHashKey(0), new byte[10]);
+        aggregator.addUserRecord("b", before.getStartingHashKey(1), new byte[10]);
+        
+        // shard 1 is the same in the new map, shard 0 is replaced
+        ShardMap after = ShardMap.fromShards(Arrays.asList(
+                new Shard().withShardId("shardId-000000000002")
+                        .withHashKeyRange(new HashKeyRange()
+                                .withStartingHashKey(before.getStartingHashKey(0))
+                                .withEndingHashKey(before.getEndingHashKey(0))),
+                new Shard().withShardId(before.getShardId(1))
+                        .withHashKeyRange(new HashKeyRange()
+                                .withStartingHashKey(before.getStartingHashKey(1))
+                                .withEndingHashKey(before.getEndingHashKey(1)))));
+        provider.setShardMap(after);
+        
+        aggregator.addUserRecord("c", before.getStartingHashKey(0), new byte[10]);
+        Assert.assertSame(after, aggregator.getShardMap());
+        Assert.assertEquals(1, completed.size());
+        Assert.assertEquals(FlushReason.RESHARD, completed.get(0).getFlushReason());
+        Assert.assertEquals("a", completed.get(0).getPartitionKey());
+        
+        aggregator.flush();
+        Assert.assertEquals(3, completed.size());
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void testRecordsRequireAListener() throws Exception
+    {
+        new ShardedRecordAggregator(new InMemoryShardMapProvider(ShardMap.uniform(1))).addUserRecord("a",
+                new byte[1]);
+    }
+}
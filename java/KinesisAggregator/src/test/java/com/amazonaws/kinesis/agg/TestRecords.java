@@ -0,0 +1,51 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Reads aggregated records back with the KCL's deaggregation, for tests that
+ * check what a consumer would see.
+ */
+final class TestRecords
+{
+    private TestRecords()
+    {
+    }
+    
+    static List<UserRecord> deaggregate(AggRecord aggRecord)
+    {
+        return deaggregate(aggRecord.getPartitionKey(), ByteBuffer.wrap(aggRecord.toRecordBytes()));
+    }
+    
+    static List<UserRecord> deaggregate(EncodedRecord encodedRecord)
+    {
+        return deaggregate(encodedRecord.getPartitionKey(), encodedRecord.getData());
+    }
+    
+    static List<UserRecord> deaggregate(String partitionKey, ByteBuffer data)
+    {
+        Record record = new Record().withPartitionKey(partitionKey).withData(data).withSequenceNumber("1");
+        return UserRecord.deaggregate(Collections.singletonList(record));
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.AbstractAmazonKinesis;
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.kinesis.model.AmazonKinesisException;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+import com.amazonaws.services.kinesis.model.Record;
+
+public class TrackedUserRecordTest
+{
+    private static final String SHARD_ID = "shardId-000000000003";
+    
+    /**
+     * A Kinesis client that numbers the records it receives and rejects
+     * PutRecords entries with the partition key "reject".
+     */
+    private static class StubKinesis extends AbstractAmazonKinesis
+    {
+        final AtomicInteger sequenceNumber = new AtomicInteger();
+        final List<ByteBuffer> data = Collections.synchronizedList(new ArrayList<>());
+        
+        // synchronized so that the records in data are in sequence number order
+        @Override
+        public synchronized PutRecordResult putRecord(PutRecordRequest request)
+        {
+            this.data.add(request.getData());
+            return new PutRecordResult().withShardId(SHARD_ID)
+                    .withSequenceNumber(Integer.toString(this.sequenceNumber.incrementAndGet()));
+        }
+        
+        @Override
+        public synchronized PutRecordsResult putRecords(PutRecordsRequest request)
+        {
+            List<PutRecordsResultEntry> results = new ArrayList<>();
+            for (PutRecordsRequestEntry entry : request.getRecords())
+            {
+                if (entry.getPartitionKey().equals("reject"))
+                {
+                    results.add(new PutRecordsResultEntry().withErrorCode("InternalFailure")
+                            .withErrorMessage("Internal service failure"));
+                }
+                else
+                {
+                    this.data.add(entry.getData());
+                    results.add(new PutRecordsResultEntry().withShardId(SHARD_ID)
+                            .withSequenceNumber(Integer.toString(this.sequenceNumber.incrementAndGet())));
+                }
+            }
+            return new PutRecordsResult().withRecords(results);
+        }
+    }
+    
+    private static UserRecordResult get(CompletableFuture<UserRecordResult> future) throws Exception
+    {
+        return future.get(10, TimeUnit.SECONDS);
+    }
+    
+    @Test
+    public void testResultsMatchDeaggregatedRecords() throws Exception
+    {
+        StubKinesis kinesis = new StubKinesis();
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withMaxUserRecordCount(10));
+        List<CompletableFuture<UserRecordResult>> futures = new ArrayList<>();
+        try (RecordSender sender = new RecordSender(new KinesisRecordTransport(kinesis, "stream"),
+                (aggRecord, cause) -> Assert.fail(cause.toString())))
+        {
+            aggregator.onRecordComplete(sender, Runnable::run);
+            for (int i = 0; i < 95; i++)
+            {
+                if (i % 2 == 0)
+                {
+                    futures.add(aggregator.addTrackedUserRecord("pk-" + i, null, new byte[] { (byte) i }));
+                }
+                else
+                {
+                    aggregator.addUserRecord("pk-" + i, new byte[] { (byte) i });
+                }
+            }
+            aggregator.flush();
+            sender.flush();
+        }
+        
+        // every tracked user record can be found at its sequence number and
+        // sub-sequence number after deaggregation
+        List<UserRecord> userRecords = new ArrayList<>();
+        for (int i = 0; i < kinesis.data.size(); i++)
+        {
+            Record record = new Record().withPartitionKey("pk").withData(kinesis.data.get(i))
+                    .withSequenceNumber(Integer.toString(i + 1));
+            userRecords.addAll(UserRecord.deaggregate(Collections.singletonList(record)));
+        }
+        Assert.assertEquals(95, userRecords.size());
+        for (int i = 0; i < futures.size(); i++)
+        {
+            UserRecordResult result = get(futures.get(i));
+            Assert.assertEquals(SHARD_ID, result.getShardId());
+            UserRecord userRecord = null;
+            for (UserRecord candidate : userRecords)
+            {
+                if (candidate.getSequenceNumber().equals(result.getSequenceNumber())
+                        && candidate.getSubSequenceNumber() == result.getSubSequenceNumber())
+                {
+                    userRecord = candidate;
+                }
+            }
+            Assert.assertNotNull(userRecord);
+            Assert.assertEquals("pk-" + (i * 2), userRecord.getPartitionKey());
+        }
+    }
+    
+    @Test
+    public void testBatcherCompletesAndFailsUserRecords() throws Exception
+    {
+        StubKinesis kinesis = new StubKinesis();
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withMaxUserRecordCount(2));
+        List<String> failures = new ArrayList<>();
+        try (PutRecordsBatcher batcher = new PutRecordsBatcher(kinesis, "stream",
+                (entry, errorCode, errorMessage) -> failures.add(errorCode),
+                new PutRecordsBatcherConfig().withMaxAttempts(1)))
+        {
+            aggregator.onRecordComplete(batcher::add, Runnable::run);
+            CompletableFuture<UserRecordResult> first = aggregator.addTrackedUserRecord("a", null, new byte[1]);
+            CompletableFuture<UserRecordResult> second = aggregator.addTrackedUserRecord("b", null, new byte[1]);
+            CompletableFuture<UserRecordResult> rejected = aggregator.addTrackedUserRecord("reject", null,
+                    new byte[1]);
+            aggregator.addUserRecord("c", new byte[1]);
+            Assert.assertFalse(first.isDone());
+            batcher.flush();
+            
+            Assert.assertEquals(new UserRecordResult(SHARD_ID, "1", 0).toString(), get(first).toString());
+            Assert.assertEquals(new UserRecordResult(SHARD_ID, "1", 1).toString(), get(second).toString());
+            try
+            {
+                get(rejected);
+                Assert.fail("Rejected user record completed normally");
+            }
+            catch (ExecutionException e)
+            {
+                Assert.assertTrue(e.getCause() instanceof AmazonKinesisException);
+                Assert.assertEquals("InternalFailure", ((AmazonKinesisException) e.getCause()).getErrorCode());
+            }
+        }
+        Assert.assertEquals(Collections.singletonList("InternalFailure"), failures);
+    }
+    
+    @Test
+    public void testSenderFailsUserRecordsOfRecordsItGivesUpOn() throws Exception
+    {
+        RecordAggregator aggregator = new RecordAggregator();
+        CompletableFuture<UserRecordResult> future;
+        try (RecordSender sender = new RecordSender(aggRecord -> {
+            throw new IllegalStateException("unavailable");
+        }, (aggRecord, cause) -> {}, new RecordSenderConfig().withMaxAttempts(1)))
+        {
+            aggregator.onRecordComplete(sender, Runnable::run);
+            future = aggregator.addTrackedUserRecord("pk", null, ByteBuffer.allocateDirect(10));
+            aggregator.flush();
+            sender.flush();
+        }
+        
+        Assert.assertTrue(future.isCompletedExceptionally());
+        try
+        {
+            future.join();
+            Assert.fail("Failed user record completed normally");
+        }
+        catch (CompletionException e)
+        {
+            Assert.assertEquals("unavailable", e.getCause().getMessage());
+        }
+    }
+    
+    @Test
+    public void testEncodedRecordsCompleteUserRecords() throws Exception
+    {
+        List<EncodedRecord> encodedRecords = Collections.synchronizedList(new ArrayList<>());
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withRecordPoolSize(2));
+        CompletableFuture<UserRecordResult> future;
+        try (RecordEncoder encoder = new RecordEncoder(encodedRecords::add, 1))
+        {
+            aggregator.onRecordComplete(encoder, Runnable::run);
+            aggregator.addUserRecord("a", new byte[1]);
+            future = aggregator.addTrackedUserRecord("b", null, new byte[1]);
+            aggregator.flush();
+            encoder.flush();
+        }
+        
+        // the pooled record has been recycled, but its handles went along
+        // with the encoded record
+        Assert.assertFalse(future.isDone());
+        encodedRecords.get(0).completeUserRecords(SHARD_ID, "42");
+        Assert.assertEquals(1, get(future).getSubSequenceNumber());
+        Assert.assertEquals("42", get(future).getSequenceNumber());
+    }
+    
+    @Test
+    public void testClearedUserRecordsAreCancelled() throws Exception
+    {
+        RecordAggregator aggregator = new RecordAggregator();
+        aggregator.onRecordComplete(aggRecord -> {}, Runnable::run);
+        CompletableFuture<UserRecordResult> future = aggregator.addTrackedUserRecord("pk", null, new byte[1]);
+        aggregator.clearRecord();
+        
+        Assert.assertTrue(future.isCancelled() || future.isCompletedExceptionally());
+        try
+        {
+            future.join();
+            Assert.fail("Cleared user record completed normally");
+        }
+        catch (CancellationException e)
+        {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testRecycledUserRecordsWithoutResultAreCancelled() throws Exception
+    {
+        RecordAggregator aggregator = new RecordAggregator(new RecordAggregatorConfig().withRecordPoolSize(1));
+        aggregator.onRecordComplete(aggregator::recycle, Runnable::run);
+        CompletableFuture<UserRecordResult> future = aggregator.addTrackedUserRecord("pk", null, new byte[1]);
+        aggregator.flush();
+        
+        Assert.assertTrue(future.isCompletedExceptionally());
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void testTrackingRequiresListener() throws Exception
+    {
+        new RecordAggregator().addTrackedUserRecord("pk", null, new byte[1]);
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Utf8Test {
+
+    private static void assertMatchesJdk(String s) {
+        final byte[] expected = s.getBytes(StandardCharsets.UTF_8);
+        final byte[] buffer = new byte[s.length() * Utf8.MAX_BYTES_PER_CHAR];
+
+        Assert.assertEquals(expected.length, Utf8.encodedLength(s));
+        Assert.assertArrayEquals(expected, Arrays.copyOf(buffer, Utf8.encode(s, buffer)));
+    }
+
+    @Test
+    public void shouldMatchJdkEncoding() {
+        assertMatchesJdk("");
+        assertMatchesJdk("partition_key");
+        assertMatchesJdk("éñü");
+        assertMatchesJdk("日本語");
+        assertMatchesJdk("😀 emoji");
+        assertMatchesJdk("unpaired \ud83d high");
+        assertMatchesJdk("unpaired \ude00 low");
+        assertMatchesJdk("\ude00\ud83d reversed");
+        assertMatchesJdk("trailing \ud83d");
+    }
+
+    @Test
+    public void shouldMatchJdkEncodingForRandomStrings() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            final char[] chars = new char[random.nextInt(AggRecord.PARTITION_KEY_MAX_LENGTH) + 1];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = (char) random.nextInt(Character.MAX_VALUE + 1);
+            }
+            assertMatchesJdk(new String(chars));
+        }
+    }
+}
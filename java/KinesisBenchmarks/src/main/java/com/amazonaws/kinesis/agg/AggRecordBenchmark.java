@@ -0,0 +1,155 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.kinesis.benchmark.BenchmarkData;
+
+/**
+ * Benchmarks of the AggRecord hot paths: adding a user record, deriving its
+ * explicit hash key, sizing it, and serializing a filled aggregated record
+ * through each of its output paths (a new array, a reused array, heap and
+ * direct ByteBuffers, and a FileChannel). Lives in the agg package so it can
+ * reach the package-private steps of addUserRecord.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggRecordBenchmark {
+	/** The size of each user record's data. */
+	@Param({ "100", "1024", "10240" })
+	public int recordSizeBytes;
+
+	/** The number of distinct partition keys. */
+	@Param({ "1", "100", "10000" })
+	public int keyCardinality;
+
+	/**
+	 * The number of user records per aggregated record (fewer if they do not
+	 * fit into a Kinesis record).
+	 */
+	@Param({ "10", "100", "1000" })
+	public int recordsPerAggregate;
+
+	private BenchmarkData data;
+	/** The record addUserRecord adds to, cleared once it is full. */
+	private AggRecord record;
+	/** A filled record to serialize. */
+	private AggRecord full;
+	/** A reusable buffer to serialize into. */
+	private byte[] buffer;
+	private ByteBuffer heapBuffer;
+	private ByteBuffer directBuffer;
+	/** A temporary file to serialize into, overwritten by each operation. */
+	private File file;
+	private FileChannel channel;
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.data = new BenchmarkData(this.recordSizeBytes, this.keyCardinality);
+		this.record = new AggRecord();
+		this.full = this.data.fill(new AggRecord(), 0, this.recordsPerAggregate);
+		this.buffer = new byte[AggRecord.MAX_BYTES_PER_RECORD];
+		this.heapBuffer = ByteBuffer.allocate(AggRecord.MAX_BYTES_PER_RECORD);
+		this.directBuffer = ByteBuffer.allocateDirect(AggRecord.MAX_BYTES_PER_RECORD);
+		this.file = File.createTempFile("aggrecord", ".bin");
+		this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.WRITE);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		this.channel.close();
+		this.file.delete();
+	}
+
+	@Benchmark
+	public boolean addUserRecord() {
+		int i = this.next++;
+		if (this.record.getNumUserRecords() == this.recordsPerAggregate) {
+			this.record.clear();
+		}
+		if (this.record.addUserRecord(this.data.partitionKey(i), null, this.data.payload(i))) {
+			return true;
+		}
+
+		this.record.clear();
+		return this.record.addUserRecord(this.data.partitionKey(i), null, this.data.payload(i));
+	}
+
+	@Benchmark
+	public String createExplicitHashKey() {
+		return this.full.createExplicitHashKey(this.data.partitionKey(this.next++));
+	}
+
+	@Benchmark
+	public int calculateRecordSize() {
+		// a user record with a new partition key and a derived hash key
+		int i = this.next++;
+		return this.full.calculateRecordSize(-1, this.data.partitionKeyLength(i), -1, 39, this.recordSizeBytes);
+	}
+
+	@Benchmark
+	public byte[] toRecordBytes() {
+		return this.full.toRecordBytes();
+	}
+
+	@Benchmark
+	public int toRecordBytesReusingBuffer() {
+		return this.full.toRecordBytes(this.buffer, 0);
+	}
+
+	@Benchmark
+	public int writeToHeapBuffer() {
+		this.heapBuffer.clear();
+		return this.full.writeTo(this.heapBuffer);
+	}
+
+	@Benchmark
+	public int writeToDirectBuffer() {
+		this.directBuffer.clear();
+		return this.full.writeTo(this.directBuffer);
+	}
+
+	@Benchmark
+	public int writeToFileChannel() throws IOException {
+		this.channel.position(0);
+		return this.full.writeTo(this.channel);
+	}
+}
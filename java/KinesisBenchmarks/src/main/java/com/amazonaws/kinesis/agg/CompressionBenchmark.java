@@ -0,0 +1,122 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the compression modes at several Deflater levels: how fast user
+ * records are aggregated and their completed records serialized, against how
+ * many bytes the records take on the wire. The payloads are JSON documents
+ * with a realistic amount of repetition. Each operation adds one user record;
+ * the WireBytes counters give the compression ratio, wireBytes /
+ * payloadBytes. The level does not matter to compression NONE, so fix it with
+ * -p compressionLevel=6 when comparing against it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+	/** The number of distinct payloads. */
+	private static final int PAYLOADS = 1000;
+	private static final int PARTITION_KEYS = 100;
+
+	@Param({ "NONE", "USER_RECORD", "AGGREGATE" })
+	public CompressionMode compression;
+
+	@Param({ "1", "6", "9" })
+	public int compressionLevel;
+
+	private byte[][] payloads;
+	private String[] partitionKeys;
+	private RecordAggregator aggregator;
+	private int next;
+
+	/** The user record and serialized aggregated record bytes. */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class WireBytes {
+		public long payloadBytes;
+		public long wireBytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			this.payloadBytes = 0;
+			this.wireBytes = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		String[] types = { "page_view", "add_to_cart", "checkout", "search" };
+		this.payloads = new byte[PAYLOADS][];
+		for (int i = 0; i < PAYLOADS; i++) {
+			this.payloads[i] = String.format(
+					"{\"event_id\":\"%08x-%04x\",\"type\":\"%s\",\"user\":{\"id\":%d,\"country\":\"US\",\"agent\":"
+							+ "\"Mozilla/5.0 (X11; Linux x86_64)\"},\"item\":{\"sku\":\"SKU-%05d\",\"price\":%d.%02d},"
+							+ "\"timestamp\":%d}",
+					random.nextInt(), random.nextInt(0x10000), types[random.nextInt(types.length)],
+					random.nextInt(100_000), random.nextInt(20_000), random.nextInt(500), random.nextInt(100),
+					1_500_000_000_000L + random.nextInt(1_000_000_000)).getBytes(StandardCharsets.UTF_8);
+		}
+		this.partitionKeys = new String[PARTITION_KEYS];
+		for (int i = 0; i < PARTITION_KEYS; i++) {
+			this.partitionKeys[i] = "partition-key-" + i;
+		}
+
+		this.aggregator = new RecordAggregator(new RecordAggregatorConfig().withCompression(this.compression)
+				.withCompressionLevel(this.compressionLevel));
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.aggregator.close();
+	}
+
+	@Benchmark
+	public AggRecord addUserRecord(WireBytes counters) throws Exception {
+		int i = this.next++;
+		byte[] data = this.payloads[i % PAYLOADS];
+		AggRecord completed = this.aggregator.addUserRecord(this.partitionKeys[i % PARTITION_KEYS], data);
+		counters.payloadBytes += data.length;
+		if (completed != null) {
+			counters.wireBytes += completed.toRecordBytes().length;
+		}
+		return completed;
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import com.amazonaws.kinesis.benchmark.AggregateCounters;
+import com.amazonaws.kinesis.benchmark.BenchmarkData;
+
+/**
+ * Compares a single RecordAggregator shared by all benchmark threads (which
+ * serializes them on one lock) with a ConcurrentRecordAggregator. Runs with
+ * 8 threads; pass e.g. -t 1 or -t 64 to measure another level of contention.
+ * The AggregateCounters show the fill ratio of the records each completes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class ConcurrentRecordAggregatorBenchmark {
+	private static final int RECORD_SIZE_BYTES = 200;
+	private static final int KEY_CARDINALITY = 10000;
+
+	/**
+	 * "shared" for a RecordAggregator, "striped" for a
+	 * ConcurrentRecordAggregator.
+	 */
+	@Param({ "shared", "striped" })
+	public String aggregator;
+
+	private BenchmarkData data;
+	private RecordAggregator shared;
+	private ConcurrentRecordAggregator striped;
+
+	/** The position of one benchmark thread in the user records. */
+	@State(Scope.Thread)
+	public static class Producer {
+		int next;
+
+		@Setup
+		public void setUp(ThreadParams threadParams) {
+			// start each thread at a different user record
+			this.next = threadParams.getThreadIndex() * 7919;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		this.data = new BenchmarkData(RECORD_SIZE_BYTES, KEY_CARDINALITY);
+		if ("shared".equals(this.aggregator)) {
+			this.shared = new RecordAggregator();
+		} else {
+			this.striped = new ConcurrentRecordAggregator();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (this.shared != null) {
+			this.shared.close();
+		} else {
+			this.striped.close();
+		}
+	}
+
+	@Benchmark
+	public AggRecord addUserRecord(Producer producer, AggregateCounters counters) throws Exception {
+		int i = producer.next++;
+		AggRecord completed = this.shared != null
+				? this.shared.addUserRecord(this.data.partitionKey(i), this.data.payload(i))
+				: this.striped.addUserRecord(this.data.partitionKey(i), this.data.payload(i));
+		if (completed != null) {
+			counters.record(completed.getSizeBytes());
+		}
+		return completed;
+	}
+}
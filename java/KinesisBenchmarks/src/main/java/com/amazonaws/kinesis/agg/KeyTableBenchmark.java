@@ -0,0 +1,137 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.kinesis.benchmark.BenchmarkData;
+
+/**
+ * Compares the KeyTable that AggRecord keeps its partition keys in with the
+ * LinkedList plus TreeMap key set it replaced. Each invocation does the key
+ * work of filling one aggregated record: a lookup for each user record's
+ * partition key, and an add if the key is new. Results are per user record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyTableBenchmark {
+	private static final int RECORDS_PER_AGGREGATE = 2000;
+
+	/** The number of distinct partition keys. */
+	@Param({ "10", "100", "1000" })
+	public int keyCardinality;
+
+	private String[] picks;
+	private KeyTable keyTable;
+	private LegacyKeySet legacyKeySet;
+
+	@Setup
+	public void setUp() {
+		BenchmarkData data = new BenchmarkData(0, this.keyCardinality);
+		this.picks = new String[RECORDS_PER_AGGREGATE];
+		for (int i = 0; i < this.picks.length; i++) {
+			this.picks[i] = data.partitionKey(i);
+		}
+		this.keyTable = new KeyTable();
+		this.legacyKeySet = new LegacyKeySet();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS_PER_AGGREGATE)
+	public long keyTable() {
+		KeyTable table = this.keyTable;
+		table.clear();
+		long sink = 0;
+		for (String key : this.picks) {
+			int index = table.indexOf(key);
+			if (index < 0) {
+				index = table.add(key, Utf8.encodedLength(key));
+			}
+			sink += index;
+		}
+		return sink;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS_PER_AGGREGATE)
+	public long legacyKeySet() {
+		LegacyKeySet set = this.legacyKeySet;
+		set.clear();
+		long sink = 0;
+		for (String key : this.picks) {
+			if (!set.contains(key)) {
+				sink += key.length();
+			}
+			sink += set.getPotentialIndex(key);
+			sink += set.add(key);
+		}
+		return sink;
+	}
+
+	/**
+	 * A copy of the key set AggRecord used before KeyTable, as the baseline.
+	 */
+	private static final class LegacyKeySet {
+		private final List<String> keys = new LinkedList<>();
+		private final Map<String, Long> lookup = new TreeMap<>();
+
+		Long getPotentialIndex(String s) {
+			Long it = this.lookup.get(s);
+			return it != null ? it : Long.valueOf(this.keys.size());
+		}
+
+		long add(String s) {
+			Long it = this.lookup.get(s);
+			if (it != null) {
+				return it;
+			}
+			this.lookup.put(s, Long.valueOf(this.keys.size()));
+			this.keys.add(s);
+			return this.keys.size() - 1;
+		}
+
+		boolean contains(String s) {
+			return s != null && this.lookup.containsKey(s);
+		}
+
+		void clear() {
+			this.keys.clear();
+			this.lookup.clear();
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.kinesis.benchmark.AggregateCounters;
+
+/**
+ * Compares a RecordAggregator with PackingRecordAggregators on a bimodal
+ * workload of 2 KB user records mixed with occasional 300-700 KB ones. Each
+ * operation adds one user record; the AggregateCounters report the fill
+ * ratio and PUT payload units of the records completed meanwhile.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PackingRecordAggregatorBenchmark {
+	/** The number of precomputed payloads, a power of two. */
+	private static final int PAYLOADS = 1 << 16;
+	private static final int PARTITION_KEYS = 1000;
+
+	/**
+	 * "single" for a RecordAggregator, or the PackingPolicy of a
+	 * PackingRecordAggregator.
+	 */
+	@Param({ "single", "FIRST_FIT", "BEST_FIT" })
+	public String aggregator;
+
+	/** The number of open records of a PackingRecordAggregator. */
+	@Param({ "2", "4", "8" })
+	public int maxOpenRecords;
+
+	private byte[][] payloads;
+	private String[] partitionKeys;
+	private RecordAggregator single;
+	private PackingRecordAggregator packing;
+	private int next;
+
+	@Setup
+	public void setUp(AggregateCounters counters) {
+		Random random = new Random(7);
+		byte[] small = new byte[2 * 1024];
+		this.payloads = new byte[PAYLOADS][];
+		for (int i = 0; i < PAYLOADS; i++) {
+			this.payloads[i] = random.nextInt(100) < 2 ? new byte[300 * 1024 + random.nextInt(400 * 1024)] : small;
+		}
+		this.partitionKeys = new String[PARTITION_KEYS];
+		for (int i = 0; i < PARTITION_KEYS; i++) {
+			this.partitionKeys[i] = "partition-key-" + i;
+		}
+
+		if ("single".equals(this.aggregator)) {
+			this.single = new RecordAggregator(new RecordAggregatorConfig().withRecordPoolSize(2));
+			this.single.onRecordComplete(aggRecord -> {
+				counters.record(aggRecord.getSizeBytes());
+				this.single.recycle(aggRecord);
+			}, Runnable::run);
+		} else {
+			this.packing = new PackingRecordAggregator(
+					new RecordAggregatorConfig().withRecordPoolSize(this.maxOpenRecords + 1), this.maxOpenRecords,
+					PackingPolicy.valueOf(this.aggregator));
+			this.packing.onRecordComplete(aggRecord -> {
+				counters.record(aggRecord.getSizeBytes());
+				this.packing.recycle(aggRecord);
+			}, Runnable::run);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (this.single != null) {
+			this.single.close();
+		} else {
+			this.packing.close();
+		}
+	}
+
+	@Benchmark
+	public void addUserRecord(AggregateCounters counters) throws Exception {
+		int i = this.next++;
+		String partitionKey = this.partitionKeys[i % PARTITION_KEYS];
+		byte[] data = this.payloads[i & (PAYLOADS - 1)];
+		if (this.single != null) {
+			this.single.addUserRecord(partitionKey, null, data);
+		} else {
+			this.packing.addUserRecord(partitionKey, null, data);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.kinesis.benchmark.BenchmarkData;
+
+/**
+ * Benchmarks RecordAggregator.addUserRecord including the rotation to a new
+ * aggregated record whenever the current one is complete, with and without
+ * record pooling. Each operation adds one user record, so the cost of
+ * completing a record is spread over the user records it holds.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordAggregatorBenchmark {
+	/** The size of each user record's data. */
+	@Param({ "100", "1024", "10240" })
+	public int recordSizeBytes;
+
+	/** The number of distinct partition keys. */
+	@Param({ "1", "100", "10000" })
+	public int keyCardinality;
+
+	/**
+	 * The number of user records per aggregated record (fewer if they do not
+	 * fit into a Kinesis record).
+	 */
+	@Param({ "10", "100", "1000" })
+	public int recordsPerAggregate;
+
+	/** The record pool size (0 disables pooling). */
+	@Param({ "0", "4" })
+	public int recordPoolSize;
+
+	private BenchmarkData data;
+	private RecordAggregator aggregator;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		this.data = new BenchmarkData(this.recordSizeBytes, this.keyCardinality);
+		this.aggregator = new RecordAggregator(new RecordAggregatorConfig()
+				.withMaxUserRecordCount(this.recordsPerAggregate).withRecordPoolSize(this.recordPoolSize));
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.aggregator.close();
+	}
+
+	@Benchmark
+	public AggRecord addUserRecord() throws Exception {
+		int i = this.next++;
+		AggRecord completed = this.aggregator.addUserRecord(this.data.partitionKey(i), null, this.data.payload(i));
+		if (completed != null) {
+			this.aggregator.recycle(completed);
+		}
+		return completed;
+	}
+}
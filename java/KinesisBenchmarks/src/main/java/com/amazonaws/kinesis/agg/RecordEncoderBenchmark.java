@@ -0,0 +1,92 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.kinesis.benchmark.BenchmarkData;
+
+/**
+ * Measures the latency of RecordAggregator.addUserRecord on the producer
+ * thread, with a direct listener that serializes each completed record itself
+ * and with a RecordEncoder that serializes them on its worker threads. Runs
+ * in sample time mode, so the result holds the percentiles of the call
+ * latency; the high percentiles are the calls that complete a record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordEncoderBenchmark {
+	private static final int RECORD_SIZE_BYTES = 500;
+	private static final int KEY_CARDINALITY = 1000;
+
+	/**
+	 * "direct" for a listener that serializes completed records itself,
+	 * "encoder" for a RecordEncoder.
+	 */
+	@Param({ "direct", "encoder" })
+	public String listener;
+
+	private BenchmarkData data;
+	private RecordAggregator aggregator;
+	private RecordEncoder encoder;
+	private volatile long sink;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		this.data = new BenchmarkData(RECORD_SIZE_BYTES, KEY_CARDINALITY);
+		this.aggregator = new RecordAggregator();
+		if ("direct".equals(this.listener)) {
+			this.aggregator.onRecordComplete(aggRecord -> this.sink += aggRecord.toRecordBytes().length,
+					Runnable::run);
+		} else {
+			this.encoder = new RecordEncoder(encodedRecord -> this.sink += encodedRecord.getSizeBytes());
+			this.aggregator.onRecordComplete(this.encoder, Runnable::run);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.aggregator.close();
+		if (this.encoder != null) {
+			this.encoder.close();
+		}
+	}
+
+	@Benchmark
+	public AggRecord addUserRecord() throws Exception {
+		int i = this.next++;
+		return this.aggregator.addUserRecord(this.data.partitionKey(i), this.data.payload(i));
+	}
+}
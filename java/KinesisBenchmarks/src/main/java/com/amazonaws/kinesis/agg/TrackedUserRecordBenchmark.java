@@ -0,0 +1,91 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.kinesis.benchmark.BenchmarkData;
+
+/**
+ * Measures the cost of tracking user records: adding untracked user records,
+ * tracked user records, and tracked user records whose handles are then
+ * completed (as a transport does once the aggregated record has been
+ * written). The aggregator pools its records and the listener recycles them,
+ * so gc.alloc.rate.norm is what tracking allocates per user record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrackedUserRecordBenchmark {
+	private static final int RECORD_SIZE_BYTES = 100;
+	private static final int KEY_CARDINALITY = 1000;
+	private static final String SHARD_ID = "shardId-000000000000";
+	private static final String SEQUENCE_NUMBER = "49590338271490256608559692538361571095921575989136588898";
+
+	/** How user records are added: "untracked", "tracked" or "completed". */
+	@Param({ "untracked", "tracked", "completed" })
+	public String tracking;
+
+	private BenchmarkData data;
+	private RecordAggregator aggregator;
+	private boolean tracked;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		this.data = new BenchmarkData(RECORD_SIZE_BYTES, KEY_CARDINALITY);
+		this.tracked = !"untracked".equals(this.tracking);
+		final boolean complete = "completed".equals(this.tracking);
+		this.aggregator = new RecordAggregator(new RecordAggregatorConfig().withRecordPoolSize(2));
+		this.aggregator.onRecordComplete(aggRecord -> {
+			if (complete) {
+				aggRecord.completeUserRecords(SHARD_ID, SEQUENCE_NUMBER);
+			}
+			this.aggregator.recycle(aggRecord);
+		}, Runnable::run);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.aggregator.close();
+	}
+
+	@Benchmark
+	public Object addUserRecord() throws Exception {
+		int i = this.next++;
+		if (this.tracked) {
+			return this.aggregator.addTrackedUserRecord(this.data.partitionKey(i), null, this.data.payload(i));
+		}
+		return this.aggregator.addUserRecord(this.data.partitionKey(i), this.data.payload(i));
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.amazonaws.kinesis.agg.FillRatioStats;
+
+/**
+ * Counts the aggregated records a benchmark completes, so that its results
+ * show how well they were filled next to how fast: the mean fill ratio is
+ * aggregatedBytes / aggregatedRecords / 1 MB, and putPayloadUnits is what
+ * Kinesis would bill for them. A benchmark method takes it as an argument,
+ * which is what makes JMH report the counters, summed over all benchmark
+ * threads for each iteration.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class AggregateCounters {
+	public long aggregatedRecords;
+	public long aggregatedBytes;
+	public long putPayloadUnits;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		this.aggregatedRecords = 0;
+		this.aggregatedBytes = 0;
+		this.putPayloadUnits = 0;
+	}
+
+	/**
+	 * Count a completed aggregated record.
+	 * 
+	 * @param sizeBytes
+	 *            The size of the record in bytes.
+	 */
+	public void record(long sizeBytes) {
+		this.aggregatedRecords++;
+		this.aggregatedBytes += sizeBytes;
+		this.putPayloadUnits += Math.max(1,
+				(sizeBytes + FillRatioStats.PUT_PAYLOAD_UNIT_BYTES - 1) / FillRatioStats.PUT_PAYLOAD_UNIT_BYTES);
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+
+import com.amazonaws.kinesis.agg.AggRecord;
+
+/**
+ * The user records the benchmarks aggregate: partition keys drawn from a key
+ * space of a given cardinality and random (so incompressible) payloads of a
+ * given size. The sequence of keys is precomputed, so picking the next user
+ * record costs an array lookup rather than a random number, and the data is
+ * generated from a fixed seed so every run uses the same user records.
+ */
+public final class BenchmarkData {
+	/** The number of precomputed picks, a power of two. */
+	private static final int PICKS = 1 << 16;
+	/** The number of distinct payloads, a power of two. */
+	private static final int PAYLOADS = 16;
+
+	private final String[] partitionKeys;
+	private final int[] partitionKeyLengths;
+	private final int[] picks;
+	private final byte[][] payloads;
+
+	/**
+	 * @param recordSizeBytes
+	 *            The size of each user record's data.
+	 * @param keyCardinality
+	 *            The number of distinct partition keys.
+	 */
+	public BenchmarkData(int recordSizeBytes, int keyCardinality) {
+		Random random = new Random(42);
+		this.partitionKeys = new String[keyCardinality];
+		this.partitionKeyLengths = new int[keyCardinality];
+		for (int i = 0; i < keyCardinality; i++) {
+			this.partitionKeys[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+			this.partitionKeyLengths[i] = this.partitionKeys[i].getBytes(StandardCharsets.UTF_8).length;
+		}
+
+		this.picks = new int[PICKS];
+		for (int i = 0; i < PICKS; i++) {
+			this.picks[i] = random.nextInt(keyCardinality);
+		}
+
+		this.payloads = new byte[PAYLOADS][recordSizeBytes];
+		for (byte[] payload : this.payloads) {
+			random.nextBytes(payload);
+		}
+	}
+
+	/**
+	 * @return The partition key of the i-th user record.
+	 */
+	public String partitionKey(int i) {
+		return this.partitionKeys[this.picks[i & (PICKS - 1)]];
+	}
+
+	/**
+	 * @return The UTF-8 encoded length of the partition key of the i-th user
+	 *         record.
+	 */
+	public int partitionKeyLength(int i) {
+		return this.partitionKeyLengths[this.picks[i & (PICKS - 1)]];
+	}
+
+	/**
+	 * @return The data of the i-th user record.
+	 */
+	public byte[] payload(int i) {
+		return this.payloads[i & (PAYLOADS - 1)];
+	}
+
+	/**
+	 * Add user records to an aggregated record until it holds the specified
+	 * number of them or is full.
+	 * 
+	 * @param record
+	 *            The aggregated record to fill.
+	 * @param first
+	 *            The index of the first user record to add.
+	 * @param maxUserRecords
+	 *            The number of user records to add at most.
+	 * @return The filled record.
+	 */
+	public AggRecord fill(AggRecord record, int first, int maxUserRecords) {
+		for (int i = first; record.getNumUserRecords() < maxUserRecords; i++) {
+			if (!record.addUserRecord(partitionKey(i), null, payload(i))) {
+				break;
+			}
+		}
+		return record;
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.amazonaws.kinesis.agg.AggRecord;
+import com.amazonaws.kinesis.benchmark.BenchmarkData;
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.lambda.runtime.events.KinesisEvent;
+import com.amazonaws.services.lambda.runtime.events.KinesisEvent.KinesisEventRecord;
+
+/**
+ * Benchmarks deaggregating a Lambda batch of aggregated records with
+ * RecordDeaggregator, ZeroCopyDeaggregator and ParallelDeaggregator (on the
+ * common ForkJoinPool), and visiting it with RecordDeaggregator.forEach, which
+ * creates no user records at all, and deaggregating it with a filter that
+ * matches one partition key in a hundred. Each operation deaggregates the
+ * whole batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordDeaggregatorBenchmark {
+	/** The size of each user record's data. */
+	@Param({ "100", "1024", "10240" })
+	public int recordSizeBytes;
+
+	/** The number of distinct partition keys. */
+	@Param({ "1", "100", "10000" })
+	public int keyCardinality;
+
+	/**
+	 * The number of user records per aggregated record (fewer if they do not
+	 * fit into a Kinesis record).
+	 */
+	@Param({ "10", "100", "1000" })
+	public int recordsPerAggregate;
+
+	/** The number of aggregated records in the batch. */
+	@Param({ "10" })
+	public int batchSize;
+
+	private List<KinesisEventRecord> batch;
+	private final ParallelDeaggregator parallel = new ParallelDeaggregator();
+	private final ParallelDeaggregator unordered = new ParallelDeaggregator().withOrdered(false);
+	private final UserRecordFilter filter = UserRecordFilter
+			.partitionKeys(partitionKey -> partitionKey.hashCode() % 100 == 0);
+
+	@Setup
+	public void setUp() {
+		BenchmarkData data = new BenchmarkData(this.recordSizeBytes, this.keyCardinality);
+		this.batch = new ArrayList<>(this.batchSize);
+		for (int i = 0; i < this.batchSize; i++) {
+			AggRecord aggRecord = data.fill(new AggRecord(), i * this.recordsPerAggregate, this.recordsPerAggregate);
+
+			KinesisEvent.Record record = new KinesisEvent.Record();
+			record.setPartitionKey(aggRecord.getPartitionKey());
+			record.setSequenceNumber(Long.toString(1000000 + i));
+			record.setData(ByteBuffer.wrap(aggRecord.toRecordBytes()));
+			KinesisEventRecord eventRecord = new KinesisEventRecord();
+			eventRecord.setKinesis(record);
+			this.batch.add(eventRecord);
+		}
+	}
+
+	/**
+	 * Rewind the data of the batch, in case deaggregating it moved the
+	 * buffers' positions.
+	 */
+	private List<KinesisEventRecord> batch() {
+		for (KinesisEventRecord eventRecord : this.batch) {
+			eventRecord.getKinesis().getData().rewind();
+		}
+		return this.batch;
+	}
+
+	@Benchmark
+	public List<UserRecord> deaggregate() {
+		return RecordDeaggregator.deaggregate(batch());
+	}
+
+	@Benchmark
+	public void stream(Blackhole blackhole) {
+		RecordDeaggregator.stream(batch().stream(), blackhole::consume);
+	}
+
+	@Benchmark
+	public List<UserRecord> deaggregateZeroCopy() {
+		return ZeroCopyDeaggregator.deaggregate(batch());
+	}
+
+	@Benchmark
+	public void forEach(Blackhole blackhole) {
+		RecordDeaggregator.forEach(batch(), userRecord -> {
+			blackhole.consume(userRecord.getPartitionKey());
+			blackhole.consume(userRecord.getDataLength());
+		});
+	}
+
+	@Benchmark
+	public List<UserRecord> deaggregateFiltered() {
+		return ZeroCopyDeaggregator.deaggregate(batch(), this.filter);
+	}
+
+	@Benchmark
+	public List<UserRecord> deaggregateParallel() {
+		return this.parallel.deaggregate(batch());
+	}
+
+	@Benchmark
+	public List<UserRecord> deaggregateParallelUnordered() {
+		return this.unordered.deaggregate(batch());
+	}
+}
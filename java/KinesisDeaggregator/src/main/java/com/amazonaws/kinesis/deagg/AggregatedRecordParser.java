@@ -0,0 +1,656 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Parses the Kinesis aggregated record format directly from the buffer a
+ * record was received in, without the generated protobuf classes.
+ * 
+ * A single pass checks the magic bytes and MD5 digest, validates the protobuf
+ * message exactly as far as AggregatedRecord.parseFrom would (so a record is
+ * rejected in precisely the cases where the KCL treats it as a plain record),
+ * and remembers where each key table entry and user record starts. Nothing
+ * is copied: user record data is exposed as read-only slices of the input
+ * buffer, and keys are only decoded when asked for, once per table entry.
+ * 
+ * A parser can be reset to parse one record after another, reusing its
+ * arrays. This class is NOT thread-safe.
+ */
+final class AggregatedRecordParser {
+	static final byte[] AGGREGATED_RECORD_MAGIC = new byte[] { (byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2 };
+	private static final int DIGEST_LENGTH = 16;
+
+	/** The smallest explicit hash key the KCL accepts. */
+	private static final BigInteger MIN_HASH_KEY = BigInteger.ZERO;
+	/** The largest explicit hash key the KCL accepts, 2^128 - 1. */
+	private static final BigInteger MAX_HASH_KEY = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+	// full protobuf tags (field number << 3 | wire type) of the fields we read
+	private static final int TAG_PARTITION_KEY_TABLE = 1 << 3 | 2;
+	private static final int TAG_EXPLICIT_HASH_KEY_TABLE = 2 << 3 | 2;
+	private static final int TAG_RECORDS = 3 << 3 | 2;
+	private static final int TAG_PARTITION_KEY_INDEX = 1 << 3;
+	private static final int TAG_EXPLICIT_HASH_KEY_INDEX = 2 << 3;
+	private static final int TAG_DATA = 3 << 3 | 2;
+	private static final int TAG_TAGS = 4 << 3 | 2;
+	private static final int TAG_TAG_KEY = 1 << 3 | 2;
+
+	private static final int WIRETYPE_VARINT = 0;
+	private static final int WIRETYPE_FIXED64 = 1;
+	private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+	private static final int WIRETYPE_START_GROUP = 3;
+	private static final int WIRETYPE_END_GROUP = 4;
+	private static final int WIRETYPE_FIXED32 = 5;
+
+	/** The explicit hash key index of a user record without one. */
+	static final long NO_EXPLICIT_HASH_KEY = -1;
+
+	/** The state of an explicit hash key table entry, see explicitHashKeyStatus. */
+	static final byte HASH_KEY_UNCHECKED = 0;
+	static final byte HASH_KEY_VALID = 1;
+	static final byte HASH_KEY_NOT_A_NUMBER = 2;
+	static final byte HASH_KEY_OUT_OF_RANGE = 3;
+
+	/** Whether a key table entry matches a filter. */
+	private static final byte FILTER_UNCHECKED = 0;
+	private static final byte FILTER_MATCH = 1;
+	private static final byte FILTER_NO_MATCH = 2;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final MessageDigest md5;
+	private final byte[] digest = new byte[DIGEST_LENGTH];
+
+	/** The record being parsed, with absolute indexes into the input. */
+	private ByteBuffer data;
+	/** Scratch space for decoding keys from buffers without an array. */
+	private byte[] keyBytes = new byte[256];
+
+	// the key tables: where each entry starts and how long it is, and the
+	// entries decoded so far
+	private int partitionKeyCount;
+	private int[] partitionKeyOffsets = new int[INITIAL_CAPACITY];
+	private int[] partitionKeyLengths = new int[INITIAL_CAPACITY];
+	private String[] partitionKeys = new String[INITIAL_CAPACITY];
+	private int explicitHashKeyCount;
+	private int[] explicitHashKeyOffsets = new int[INITIAL_CAPACITY];
+	private int[] explicitHashKeyLengths = new int[INITIAL_CAPACITY];
+	private String[] explicitHashKeys = new String[INITIAL_CAPACITY];
+	private byte[] explicitHashKeyStatus = new byte[INITIAL_CAPACITY];
+	private BigInteger[] explicitHashKeyValues = new BigInteger[INITIAL_CAPACITY];
+
+	// whether each key table entry matches the filter in use, see matches
+	private byte[] partitionKeyMatches = new byte[INITIAL_CAPACITY];
+	private byte[] derivedHashKeyMatches = new byte[INITIAL_CAPACITY];
+	private byte[] explicitHashKeyMatches = new byte[INITIAL_CAPACITY];
+
+	// the user records
+	private int recordCount;
+	private long[] partitionKeyIndexes = new long[INITIAL_CAPACITY];
+	private long[] explicitHashKeyIndexes = new long[INITIAL_CAPACITY];
+	private int[] dataOffsets = new int[INITIAL_CAPACITY];
+	private int[] dataLengths = new int[INITIAL_CAPACITY];
+
+	/** Where the message starts and ends in the input. */
+	private int bodyStart;
+	private int bodyEnd;
+	/** The read position of the protobuf decoder. */
+	private int position;
+
+	AggregatedRecordParser() {
+		try {
+			this.md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Could not create an MD5 message digest.", e);
+		}
+	}
+
+	/**
+	 * Parse the remaining content of a buffer as an aggregated record. The
+	 * buffer's position is not changed, but it must not be modified while
+	 * the parser or the slices it returned are in use.
+	 * 
+	 * @param data
+	 *            The data of a Kinesis record.
+	 * @return True if the data is a valid aggregated record, false if it is
+	 *         a plain record (or a corrupted aggregated record, which the
+	 *         KCL treats the same way).
+	 */
+	boolean reset(ByteBuffer data) {
+		return parse(data) && verifyDigest();
+	}
+
+	/**
+	 * Parse the remaining content of a buffer as an aggregated record like
+	 * reset(...), but without checking its digest, which takes a pass over
+	 * all of the data. Only the message's field headers are read.
+	 * 
+	 * @param data
+	 *            The data of a Kinesis record.
+	 * @return True if the data has the magic bytes and holds a well formed
+	 *         message; verifyDigest() then tells whether it is intact.
+	 */
+	boolean parse(ByteBuffer data) {
+		this.data = data;
+		this.partitionKeyCount = 0;
+		this.explicitHashKeyCount = 0;
+		this.recordCount = 0;
+
+		int start = data.position();
+		this.bodyStart = start + AGGREGATED_RECORD_MAGIC.length;
+		this.bodyEnd = data.limit() - DIGEST_LENGTH;
+		if (this.bodyEnd <= this.bodyStart) {
+			return false;
+		}
+		for (int i = 0; i < AGGREGATED_RECORD_MAGIC.length; i++) {
+			if (data.get(start + i) != AGGREGATED_RECORD_MAGIC[i]) {
+				return false;
+			}
+		}
+
+		this.position = this.bodyStart;
+		return parseMessage(this.bodyEnd);
+	}
+
+	/**
+	 * @return Whether the MD5 digest of the record parsed by parse(...)
+	 *         matches its message.
+	 */
+	boolean verifyDigest() {
+		ByteBuffer body = this.data.duplicate();
+		body.limit(this.bodyEnd).position(this.bodyStart);
+		this.md5.update(body);
+		try {
+			this.md5.digest(this.digest, 0, DIGEST_LENGTH);
+		} catch (DigestException e) {
+			throw new IllegalStateException("Failed to compute MD5 digest.", e);
+		}
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			if (this.data.get(this.bodyEnd + i) != this.digest[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse the fields of the AggregatedRecord message up to the end index.
+	 * 
+	 * @return False if the message is malformed.
+	 */
+	private boolean parseMessage(int end) {
+		while (this.position < end) {
+			int tag = readTag(end);
+			if (tag < 0) {
+				return false;
+			}
+
+			if (tag == TAG_PARTITION_KEY_TABLE) {
+				int length = readLength(end);
+				if (length < 0) {
+					return false;
+				}
+				addPartitionKey(this.position, length);
+				this.position += length;
+			} else if (tag == TAG_EXPLICIT_HASH_KEY_TABLE) {
+				int length = readLength(end);
+				if (length < 0) {
+					return false;
+				}
+				addExplicitHashKey(this.position, length);
+				this.position += length;
+			} else if (tag == TAG_RECORDS) {
+				int length = readLength(end);
+				if (length < 0 || !parseRecord(this.position + length)) {
+					return false;
+				}
+			} else if (!skipField(tag, end)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse one Record message ending at the end index.
+	 * 
+	 * @return False if the message is malformed or lacks a required field.
+	 */
+	private boolean parseRecord(int end) {
+		boolean hasPartitionKeyIndex = false;
+		long partitionKeyIndex = 0;
+		long explicitHashKeyIndex = NO_EXPLICIT_HASH_KEY;
+		int dataOffset = -1;
+		int dataLength = 0;
+		while (this.position < end) {
+			int tag = readTag(end);
+			if (tag < 0) {
+				return false;
+			}
+
+			if (tag == TAG_PARTITION_KEY_INDEX) {
+				partitionKeyIndex = readVarint(end);
+				if (this.position < 0) {
+					return false;
+				}
+				hasPartitionKeyIndex = true;
+			} else if (tag == TAG_EXPLICIT_HASH_KEY_INDEX) {
+				explicitHashKeyIndex = readVarint(end);
+				if (this.position < 0) {
+					return false;
+				}
+			} else if (tag == TAG_DATA) {
+				dataLength = readLength(end);
+				if (dataLength < 0) {
+					return false;
+				}
+				dataOffset = this.position;
+				this.position += dataLength;
+			} else if (tag == TAG_TAGS) {
+				int length = readLength(end);
+				if (length < 0 || !parseTag(this.position + length)) {
+					return false;
+				}
+			} else if (!skipField(tag, end)) {
+				return false;
+			}
+		}
+
+		// both fields are required
+		if (!hasPartitionKeyIndex || dataOffset < 0) {
+			return false;
+		}
+		if (this.recordCount == this.dataOffsets.length) {
+			int capacity = this.recordCount * 2;
+			this.partitionKeyIndexes = Arrays.copyOf(this.partitionKeyIndexes, capacity);
+			this.explicitHashKeyIndexes = Arrays.copyOf(this.explicitHashKeyIndexes, capacity);
+			this.dataOffsets = Arrays.copyOf(this.dataOffsets, capacity);
+			this.dataLengths = Arrays.copyOf(this.dataLengths, capacity);
+		}
+		this.partitionKeyIndexes[this.recordCount] = partitionKeyIndex;
+		this.explicitHashKeyIndexes[this.recordCount] = explicitHashKeyIndex;
+		this.dataOffsets[this.recordCount] = dataOffset;
+		this.dataLengths[this.recordCount] = dataLength;
+		this.recordCount++;
+		return true;
+	}
+
+	/**
+	 * Check one Tag message ending at the end index. Tags are not exposed,
+	 * but a tag without its required key makes the whole message invalid.
+	 */
+	private boolean parseTag(int end) {
+		boolean hasKey = false;
+		while (this.position < end) {
+			int tag = readTag(end);
+			if (tag < 0 || !skipField(tag, end)) {
+				return false;
+			}
+			hasKey |= tag == TAG_TAG_KEY;
+		}
+		return hasKey;
+	}
+
+	/**
+	 * Skip the value of a field we do not read.
+	 * 
+	 * @return False if the value is malformed.
+	 */
+	private boolean skipField(int tag, int end) {
+		switch (tag & 7) {
+		case WIRETYPE_VARINT:
+			readVarint(end);
+			return this.position >= 0;
+		case WIRETYPE_FIXED64:
+			return skip(8, end);
+		case WIRETYPE_LENGTH_DELIMITED:
+			int length = readLength(end);
+			return length >= 0 && skip(length, end);
+		case WIRETYPE_START_GROUP:
+			int endTag = (tag >>> 3) << 3 | WIRETYPE_END_GROUP;
+			while (this.position < end) {
+				int groupTag = readTag(end);
+				if (groupTag == endTag) {
+					return true;
+				} else if (groupTag < 0 || !skipField(groupTag, end)) {
+					return false;
+				}
+			}
+			return false;
+		case WIRETYPE_FIXED32:
+			return skip(4, end);
+		default:
+			// an unmatched end group or an unknown wire type
+			return false;
+		}
+	}
+
+	private boolean skip(int length, int end) {
+		if (end - this.position < length) {
+			return false;
+		}
+		this.position += length;
+		return true;
+	}
+
+	/**
+	 * @return The next field tag, or -1 if it is malformed or zero.
+	 */
+	private int readTag(int end) {
+		long tag = readVarint(end);
+		if (this.position < 0 || tag <= 0 || tag > Integer.MAX_VALUE || (tag >>> 3) == 0) {
+			return -1;
+		}
+		return (int) tag;
+	}
+
+	/**
+	 * @return The length of a length delimited field, or -1 if it is
+	 *         malformed or runs past the end index.
+	 */
+	private int readLength(int end) {
+		long length = readVarint(end);
+		if (this.position < 0 || length < 0 || length > end - this.position) {
+			return -1;
+		}
+		return (int) length;
+	}
+
+	/**
+	 * Read a varint. If it is malformed, the position is set to -1.
+	 */
+	private long readVarint(int end) {
+		long value = 0;
+		for (int shift = 0; shift < 64 && this.position < end; shift += 7) {
+			byte b = this.data.get(this.position++);
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		this.position = -1;
+		return 0;
+	}
+
+	private void addPartitionKey(int offset, int length) {
+		if (this.partitionKeyCount == this.partitionKeyOffsets.length) {
+			int capacity = this.partitionKeyCount * 2;
+			this.partitionKeyOffsets = Arrays.copyOf(this.partitionKeyOffsets, capacity);
+			this.partitionKeyLengths = Arrays.copyOf(this.partitionKeyLengths, capacity);
+			this.partitionKeys = Arrays.copyOf(this.partitionKeys, capacity);
+			this.partitionKeyMatches = Arrays.copyOf(this.partitionKeyMatches, capacity);
+			this.derivedHashKeyMatches = Arrays.copyOf(this.derivedHashKeyMatches, capacity);
+		}
+		this.partitionKeyOffsets[this.partitionKeyCount] = offset;
+		this.partitionKeyLengths[this.partitionKeyCount] = length;
+		this.partitionKeys[this.partitionKeyCount] = null;
+		this.partitionKeyMatches[this.partitionKeyCount] = FILTER_UNCHECKED;
+		this.derivedHashKeyMatches[this.partitionKeyCount] = FILTER_UNCHECKED;
+		this.partitionKeyCount++;
+	}
+
+	private void addExplicitHashKey(int offset, int length) {
+		if (this.explicitHashKeyCount == this.explicitHashKeyOffsets.length) {
+			int capacity = this.explicitHashKeyCount * 2;
+			this.explicitHashKeyOffsets = Arrays.copyOf(this.explicitHashKeyOffsets, capacity);
+			this.explicitHashKeyLengths = Arrays.copyOf(this.explicitHashKeyLengths, capacity);
+			this.explicitHashKeys = Arrays.copyOf(this.explicitHashKeys, capacity);
+			this.explicitHashKeyStatus = Arrays.copyOf(this.explicitHashKeyStatus, capacity);
+			this.explicitHashKeyValues = Arrays.copyOf(this.explicitHashKeyValues, capacity);
+			this.explicitHashKeyMatches = Arrays.copyOf(this.explicitHashKeyMatches, capacity);
+		}
+		this.explicitHashKeyOffsets[this.explicitHashKeyCount] = offset;
+		this.explicitHashKeyLengths[this.explicitHashKeyCount] = length;
+		this.explicitHashKeys[this.explicitHashKeyCount] = null;
+		this.explicitHashKeyStatus[this.explicitHashKeyCount] = HASH_KEY_UNCHECKED;
+		this.explicitHashKeyValues[this.explicitHashKeyCount] = null;
+		this.explicitHashKeyMatches[this.explicitHashKeyCount] = FILTER_UNCHECKED;
+		this.explicitHashKeyCount++;
+	}
+
+	/**
+	 * @return The number of user records in the aggregated record.
+	 */
+	int getRecordCount() {
+		return this.recordCount;
+	}
+
+	/**
+	 * @return The number of entries in the partition key table.
+	 */
+	int getPartitionKeyCount() {
+		return this.partitionKeyCount;
+	}
+
+	/**
+	 * @return The number of entries in the explicit hash key table.
+	 */
+	int getExplicitHashKeyCount() {
+		return this.explicitHashKeyCount;
+	}
+
+	/**
+	 * @return The partition key index of a user record as written, which may
+	 *         be out of the bounds of the partition key table.
+	 */
+	long getPartitionKeyIndex(int record) {
+		return this.partitionKeyIndexes[record];
+	}
+
+	/**
+	 * @return The explicit hash key index of a user record as written, which
+	 *         may be out of the bounds of the explicit hash key table, or
+	 *         NO_EXPLICIT_HASH_KEY if the user record has none.
+	 */
+	long getExplicitHashKeyIndex(int record) {
+		return this.explicitHashKeyIndexes[record];
+	}
+
+	/**
+	 * @return The index in the input buffer of the first byte of a user
+	 *         record's data.
+	 */
+	int getDataOffset(int record) {
+		return this.dataOffsets[record];
+	}
+
+	/**
+	 * @return The length of a user record's data.
+	 */
+	int getDataLength(int record) {
+		return this.dataLengths[record];
+	}
+
+	/**
+	 * @return A new read-only buffer over a user record's data, sharing the
+	 *         content of the input buffer.
+	 */
+	ByteBuffer getData(int record) {
+		ByteBuffer slice = this.data.duplicate();
+		slice.limit(this.dataOffsets[record] + this.dataLengths[record]).position(this.dataOffsets[record]);
+		return slice.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return A partition key table entry, decoded on first use.
+	 */
+	String getPartitionKey(int index) {
+		String key = this.partitionKeys[index];
+		if (key == null) {
+			key = decode(this.partitionKeyOffsets[index], this.partitionKeyLengths[index]);
+			this.partitionKeys[index] = key;
+		}
+		return key;
+	}
+
+	/**
+	 * @return An explicit hash key table entry, decoded on first use.
+	 */
+	String getExplicitHashKey(int index) {
+		String key = this.explicitHashKeys[index];
+		if (key == null) {
+			key = decode(this.explicitHashKeyOffsets[index], this.explicitHashKeyLengths[index]);
+			this.explicitHashKeys[index] = key;
+		}
+		return key;
+	}
+
+	/**
+	 * Check whether an explicit hash key table entry is a valid hash key, as
+	 * the KCL does for every user record that refers to it. The entry is
+	 * only checked once.
+	 * 
+	 * @return HASH_KEY_VALID, HASH_KEY_NOT_A_NUMBER or HASH_KEY_OUT_OF_RANGE.
+	 */
+	byte getExplicitHashKeyStatus(int index) {
+		byte status = this.explicitHashKeyStatus[index];
+		if (status == HASH_KEY_UNCHECKED) {
+			try {
+				BigInteger hashKey = new BigInteger(getExplicitHashKey(index));
+				status = hashKey.compareTo(MIN_HASH_KEY) < 0 || hashKey.compareTo(MAX_HASH_KEY) > 0
+						? HASH_KEY_OUT_OF_RANGE : HASH_KEY_VALID;
+				this.explicitHashKeyValues[index] = hashKey;
+			} catch (NumberFormatException e) {
+				status = HASH_KEY_NOT_A_NUMBER;
+			}
+			this.explicitHashKeyStatus[index] = status;
+		}
+		return status;
+	}
+
+	/**
+	 * Apply the KCL's rules for user records it cannot read: a user record
+	 * with a key table index out of bounds or an explicit hash key that is
+	 * not a number ends the aggregated record, keeping the user records
+	 * before it, and an explicit hash key outside of the 128 bit hash key
+	 * range drops all user records of the aggregated record.
+	 * 
+	 * @return The number of leading user records the KCL returns.
+	 */
+	int getValidRecordCount() {
+		for (int i = 0; i < this.recordCount; i++) {
+			int partitionKeyIndex = (int) this.partitionKeyIndexes[i];
+			if (partitionKeyIndex < 0 || partitionKeyIndex >= this.partitionKeyCount) {
+				return i;
+			}
+
+			if (this.explicitHashKeyIndexes[i] != NO_EXPLICIT_HASH_KEY) {
+				int explicitHashKeyIndex = (int) this.explicitHashKeyIndexes[i];
+				if (explicitHashKeyIndex < 0 || explicitHashKeyIndex >= this.explicitHashKeyCount) {
+					return i;
+				}
+				byte status = getExplicitHashKeyStatus(explicitHashKeyIndex);
+				if (status == HASH_KEY_NOT_A_NUMBER) {
+					return i;
+				} else if (status == HASH_KEY_OUT_OF_RANGE) {
+					return 0;
+				}
+			}
+		}
+		return this.recordCount;
+	}
+
+	/**
+	 * Check whether any user record of the aggregated record could match a
+	 * filter, from its key tables alone. The filter's results are cached
+	 * for each key table entry, so a parser must be used with one filter
+	 * per aggregated record.
+	 * 
+	 * @return False if no user record can match the filter.
+	 */
+	boolean mayMatch(UserRecordFilter filter) {
+		boolean anyExplicitHashKeyMatches = !filter.hasHashKeyRange();
+		for (int i = 0; i < this.explicitHashKeyCount && !anyExplicitHashKeyMatches; i++) {
+			anyExplicitHashKeyMatches = explicitHashKeyMatches(i, filter);
+		}
+		for (int i = 0; i < this.partitionKeyCount; i++) {
+			if (partitionKeyMatches(i, filter) && (anyExplicitHashKeyMatches || derivedHashKeyMatches(i, filter))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether a user record matches a filter, without looking at its
+	 * data. The record must be one of the getValidRecordCount() first ones.
+	 * 
+	 * @return True if the user record matches the filter.
+	 */
+	boolean matches(int record, UserRecordFilter filter) {
+		int partitionKeyIndex = (int) this.partitionKeyIndexes[record];
+		if (!partitionKeyMatches(partitionKeyIndex, filter)) {
+			return false;
+		} else if (!filter.hasHashKeyRange()) {
+			return true;
+		}
+
+		long explicitHashKeyIndex = this.explicitHashKeyIndexes[record];
+		return explicitHashKeyIndex == NO_EXPLICIT_HASH_KEY ? derivedHashKeyMatches(partitionKeyIndex, filter)
+				: explicitHashKeyMatches((int) explicitHashKeyIndex, filter);
+	}
+
+	private boolean partitionKeyMatches(int index, UserRecordFilter filter) {
+		if (!filter.hasPartitionKeyPredicate()) {
+			return true;
+		}
+		if (this.partitionKeyMatches[index] == FILTER_UNCHECKED) {
+			this.partitionKeyMatches[index] = filter.matchesPartitionKey(getPartitionKey(index)) ? FILTER_MATCH
+					: FILTER_NO_MATCH;
+		}
+		return this.partitionKeyMatches[index] == FILTER_MATCH;
+	}
+
+	private boolean derivedHashKeyMatches(int index, UserRecordFilter filter) {
+		if (this.derivedHashKeyMatches[index] == FILTER_UNCHECKED) {
+			BigInteger hashKey = UserRecordFilter.hashKey(this.md5, getPartitionKey(index));
+			this.derivedHashKeyMatches[index] = filter.isInHashKeyRange(hashKey) ? FILTER_MATCH : FILTER_NO_MATCH;
+		}
+		return this.derivedHashKeyMatches[index] == FILTER_MATCH;
+	}
+
+	private boolean explicitHashKeyMatches(int index, UserRecordFilter filter) {
+		if (this.explicitHashKeyMatches[index] == FILTER_UNCHECKED) {
+			boolean matches = getExplicitHashKeyStatus(index) == HASH_KEY_VALID
+					&& filter.isInHashKeyRange(this.explicitHashKeyValues[index]);
+			this.explicitHashKeyMatches[index] = matches ? FILTER_MATCH : FILTER_NO_MATCH;
+		}
+		return this.explicitHashKeyMatches[index] == FILTER_MATCH;
+	}
+
+	private String decode(int offset, int length) {
+		if (this.data.hasArray()) {
+			return new String(this.data.array(), this.data.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+		}
+
+		if (this.keyBytes.length < length) {
+			this.keyBytes = new byte[Math.max(length, this.keyBytes.length * 2)];
+		}
+		ByteBuffer key = this.data.duplicate();
+		key.limit(offset + length).position(offset);
+		key.get(this.keyBytes, 0, length);
+		return new String(this.keyBytes, 0, length, StandardCharsets.UTF_8);
+	}
+}
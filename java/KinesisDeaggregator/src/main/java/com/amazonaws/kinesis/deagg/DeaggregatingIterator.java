@@ -0,0 +1,98 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * An iterator over the user records of a sequence of Kinesis records, which
+ * deaggregates each record only when the user records of the previous one
+ * have all been returned. Only the user records of one aggregated record are
+ * held at a time, and the input is only read as far as the consumer has got.
+ * 
+ * The user records of an aggregated record are decoded together rather than
+ * one by one because a corrupted user record can make the KCL drop the ones
+ * before it.
+ * 
+ * This class is NOT thread-safe.
+ * 
+ * @param <T>
+ *            The type of the input records.
+ */
+final class DeaggregatingIterator<T> implements Iterator<UserRecord> {
+	private final Iterator<T> inputRecords;
+	private final Function<? super T, ? extends Record> toRecord;
+	private final BiConsumer<Record, List<UserRecord>> deaggregator;
+
+	/** The user records of the current aggregated record. */
+	private final List<UserRecord> userRecords = new ArrayList<>();
+	/** The index in userRecords of the next user record to return. */
+	private int next;
+
+	/**
+	 * @param inputRecords
+	 *            The records to deaggregate.
+	 * @param toRecord
+	 *            A function returning the Kinesis record of an input record.
+	 * @param deaggregator
+	 *            A function adding the user records of a Kinesis record to a
+	 *            list.
+	 */
+	DeaggregatingIterator(Iterator<T> inputRecords, Function<? super T, ? extends Record> toRecord,
+			BiConsumer<Record, List<UserRecord>> deaggregator) {
+		this.inputRecords = inputRecords;
+		this.toRecord = toRecord;
+		this.deaggregator = deaggregator;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (this.next == this.userRecords.size()) {
+			if (!this.inputRecords.hasNext()) {
+				return false;
+			}
+
+			// clear rather than replace the list, so that it only grows to
+			// the size of the largest aggregated record
+			this.userRecords.clear();
+			this.next = 0;
+			this.deaggregator.accept(this.toRecord.apply(this.inputRecords.next()), this.userRecords);
+		}
+		return true;
+	}
+
+	@Override
+	public UserRecord next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		// drop the reference, so that returned user records can be collected
+		// before the rest of their aggregated record is consumed
+		UserRecord userRecord = this.userRecords.set(this.next, null);
+		this.next++;
+		return userRecord;
+	}
+}
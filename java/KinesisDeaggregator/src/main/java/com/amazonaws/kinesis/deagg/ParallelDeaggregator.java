@@ -0,0 +1,366 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.lambda.runtime.events.KinesisEvent.KinesisEventRecord;
+
+/**
+ * A Kinesis deaggregator that deaggregates several records at once on an
+ * Executor, by default the common ForkJoinPool. Deaggregating (and checking
+ * the digest of) one aggregated record does not depend on any other, so
+ * with several CPUs a batch is deaggregated up to that many times faster.
+ * 
+ * The deaggregated user records are still handed to the caller on the
+ * calling thread, so consumers need not be thread-safe. In ordered mode (the
+ * default) they are returned in the order of the input records, and of their
+ * sub-sequence numbers within each record, exactly as RecordDeaggregator
+ * returns them; for a Lambda batch from a single shard that is sequence
+ * number order. In unordered mode the user records of each input record are
+ * returned as soon as it has been deaggregated, so one slow record does not
+ * hold back the ones after it; the user records of a single record still
+ * stay together and in order.
+ * 
+ * At most maxInFlight input records are deaggregated ahead of the consumer,
+ * which bounds memory use to the user records of that many aggregated
+ * records.
+ * 
+ * This class is NOT thread-safe, but the iterators it returns are
+ * independent of each other and of later configuration changes.
+ */
+public final class ParallelDeaggregator {
+	/**
+	 * One parser per worker thread. A parser is reset for every record, so
+	 * reusing it saves its arrays and MessageDigest on every record but the
+	 * first.
+	 */
+	private static final ThreadLocal<AggregatedRecordParser> PARSERS = ThreadLocal
+			.withInitial(AggregatedRecordParser::new);
+
+	private final Executor executor;
+	private boolean ordered = true;
+	private boolean zeroCopy = false;
+	private int maxInFlight;
+	private UserRecordFilter filter;
+
+	/**
+	 * Create a parallel deaggregator that runs on the common ForkJoinPool.
+	 */
+	public ParallelDeaggregator() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Create a parallel deaggregator.
+	 * 
+	 * @param executor
+	 *            The executor to deaggregate records on.
+	 */
+	public ParallelDeaggregator(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Executor cannot be null");
+		}
+		this.executor = executor;
+		int parallelism = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism()
+				: Runtime.getRuntime().availableProcessors();
+		// keep every thread busy while the consumer catches up
+		this.maxInFlight = 2 * Math.max(1, parallelism);
+	}
+
+	/**
+	 * @return Whether user records are returned in the order of their input
+	 *         records.
+	 */
+	public boolean isOrdered() {
+		return this.ordered;
+	}
+
+	/**
+	 * Return user records in the order of their input records (the default),
+	 * or in the order the input records finish deaggregating, for maximum
+	 * throughput when the order of user records across records does not
+	 * matter.
+	 * 
+	 * @param ordered
+	 *            False to return user records as soon as their record is
+	 *            deaggregated.
+	 * @return This deaggregator.
+	 */
+	public ParallelDeaggregator withOrdered(boolean ordered) {
+		this.ordered = ordered;
+		return this;
+	}
+
+	/**
+	 * @return Whether records are deaggregated like ZeroCopyDeaggregator
+	 *         rather than RecordDeaggregator.
+	 */
+	public boolean isZeroCopy() {
+		return this.zeroCopy;
+	}
+
+	/**
+	 * Deaggregate records like ZeroCopyDeaggregator, returning user records
+	 * whose data is a read-only slice of the input record's data, instead of
+	 * like RecordDeaggregator.
+	 * 
+	 * @param zeroCopy
+	 *            True to deaggregate without copying user record data.
+	 * @return This deaggregator.
+	 */
+	public ParallelDeaggregator withZeroCopy(boolean zeroCopy) {
+		this.zeroCopy = zeroCopy;
+		return this;
+	}
+
+	/**
+	 * @return The maximum number of input records deaggregated ahead of the
+	 *         consumer.
+	 */
+	public int getMaxInFlight() {
+		return this.maxInFlight;
+	}
+
+	/**
+	 * Limit the number of input records that are deaggregated ahead of the
+	 * consumer. Defaults to twice the parallelism of the executor (or the
+	 * number of processors, if it is not a ForkJoinPool).
+	 * 
+	 * @param maxInFlight
+	 *            The maximum number of records deaggregated at once, at least
+	 *            1.
+	 * @return This deaggregator.
+	 */
+	public ParallelDeaggregator withMaxInFlight(int maxInFlight) {
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("Max in flight must be positive, got " + maxInFlight);
+		}
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+
+	/**
+	 * @return The filter user records are selected with, or null.
+	 */
+	public UserRecordFilter getFilter() {
+		return this.filter;
+	}
+
+	/**
+	 * Only return the user records that match a filter, see
+	 * RecordDeaggregator.deaggregate(List, UserRecordFilter).
+	 * 
+	 * @param filter
+	 *            The filter to select user records with, or null to return
+	 *            all user records.
+	 * @return This deaggregator.
+	 */
+	public ParallelDeaggregator withFilter(UserRecordFilter filter) {
+		this.filter = filter;
+		return this;
+	}
+
+	/**
+	 * Deaggregate Kinesis Event Records in parallel and hand each user record
+	 * to a consumer on the calling thread.
+	 * 
+	 * @param inputRecords
+	 *            The Kinesis Event Records provided by AWS Lambda
+	 * @param consumer
+	 *            The consumer to process the deaggregated UserRecords
+	 */
+	public void forEach(List<KinesisEventRecord> inputRecords, Consumer<UserRecord> consumer) {
+		iterator(inputRecords.iterator()).forEachRemaining(consumer);
+	}
+
+	/**
+	 * Deaggregate Kinesis Event Records in parallel into a list.
+	 * 
+	 * @param inputRecords
+	 *            The Kinesis Event Records provided by AWS Lambda
+	 * @return A list of the deaggregated UserRecords
+	 */
+	public List<UserRecord> deaggregate(List<KinesisEventRecord> inputRecords) {
+		List<UserRecord> userRecords = new ArrayList<>(inputRecords.size());
+		forEach(inputRecords, userRecords::add);
+		return userRecords;
+	}
+
+	/**
+	 * Deaggregate a Stream of Kinesis Event Records in parallel. The input
+	 * stream is read on the calling thread, up to maxInFlight records ahead
+	 * of the returned stream.
+	 * 
+	 * @param inputStream
+	 *            The Kinesis Event Records provided by AWS Lambda
+	 * @return A sequential Stream of the deaggregated UserRecords
+	 */
+	public Stream<UserRecord> stream(Stream<KinesisEventRecord> inputStream) {
+		int characteristics = this.ordered ? Spliterator.ORDERED | Spliterator.NONNULL : Spliterator.NONNULL;
+		Spliterator<UserRecord> spliterator = Spliterators.spliteratorUnknownSize(iterator(inputStream.iterator()),
+				characteristics);
+		return StreamSupport.stream(spliterator, false).onClose(inputStream::close);
+	}
+
+	/**
+	 * Deaggregate Kinesis Event Records in parallel. The input iterator is
+	 * read on the calling thread, up to maxInFlight records ahead of the
+	 * returned iterator.
+	 * 
+	 * @param inputRecords
+	 *            An iterator over the Kinesis Event Records provided by AWS
+	 *            Lambda
+	 * @return An iterator over the deaggregated UserRecords
+	 */
+	public Iterator<UserRecord> iterator(Iterator<KinesisEventRecord> inputRecords) {
+		UserRecordFilter filter = this.filter;
+		boolean copyData = !this.zeroCopy;
+		BiConsumer<Record, List<UserRecord>> deaggregator = copyData && filter == null
+				? RecordDeaggregator::deaggregateRecord
+				: (record, userRecords) -> ZeroCopyDeaggregator.deaggregate(PARSERS.get(), record, filter, copyData,
+						userRecords);
+		return new ParallelIterator(inputRecords, deaggregator, this.executor, this.ordered, this.maxInFlight);
+	}
+
+	/**
+	 * Iterates over the user records of records deaggregated in the
+	 * background, keeping up to maxInFlight records deaggregating.
+	 */
+	private static final class ParallelIterator implements Iterator<UserRecord> {
+		private final Iterator<KinesisEventRecord> inputRecords;
+		private final BiConsumer<Record, List<UserRecord>> deaggregator;
+		private final Executor executor;
+		private final int maxInFlight;
+
+		/** The records being deaggregated, in input order (ordered mode). */
+		private final Queue<CompletableFuture<List<UserRecord>>> pending;
+		/** The records that have been deaggregated (unordered mode). */
+		private final BlockingQueue<CompletableFuture<List<UserRecord>>> completed;
+		private int inFlight;
+
+		/** The user records of the current record. */
+		private List<UserRecord> userRecords = new ArrayList<>(0);
+		private int next;
+
+		ParallelIterator(Iterator<KinesisEventRecord> inputRecords, BiConsumer<Record, List<UserRecord>> deaggregator,
+				Executor executor, boolean ordered, int maxInFlight) {
+			this.inputRecords = inputRecords;
+			this.deaggregator = deaggregator;
+			this.executor = executor;
+			this.maxInFlight = maxInFlight;
+			this.pending = ordered ? new ArrayDeque<>(maxInFlight) : null;
+			this.completed = ordered ? null : new LinkedBlockingQueue<>();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (this.next == this.userRecords.size()) {
+				submit();
+				if (this.inFlight == 0) {
+					return false;
+				}
+
+				CompletableFuture<List<UserRecord>> result;
+				if (this.pending != null) {
+					result = this.pending.remove();
+				} else {
+					try {
+						result = this.completed.take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException("Interrupted while waiting for a record to deaggregate.", e);
+					}
+				}
+				this.inFlight--;
+				this.userRecords = join(result);
+				this.next = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public UserRecord next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			// drop the reference, so that returned user records can be
+			// collected before the rest of their record is consumed
+			UserRecord userRecord = this.userRecords.set(this.next, null);
+			this.next++;
+			return userRecord;
+		}
+
+		/**
+		 * Start deaggregating input records until maxInFlight are in flight.
+		 */
+		private void submit() {
+			while (this.inFlight < this.maxInFlight && this.inputRecords.hasNext()) {
+				Record record = this.inputRecords.next().getKinesis();
+				CompletableFuture<List<UserRecord>> result = CompletableFuture.supplyAsync(() -> {
+					List<UserRecord> userRecords = new ArrayList<>();
+					this.deaggregator.accept(record, userRecords);
+					return userRecords;
+				}, this.executor);
+
+				if (this.pending != null) {
+					this.pending.add(result);
+				} else {
+					result.whenComplete((userRecords, e) -> this.completed.add(result));
+				}
+				this.inFlight++;
+			}
+		}
+
+		/**
+		 * @return The user records of a deaggregated record, rethrowing the
+		 *         exception deaggregating it threw, if any.
+		 */
+		private static List<UserRecord> join(CompletableFuture<List<UserRecord>> result) {
+			try {
+				return result.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				} else if (e.getCause() instanceof Error) {
+					throw (Error) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+}
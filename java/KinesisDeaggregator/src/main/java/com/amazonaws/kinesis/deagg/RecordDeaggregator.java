@@ -16,11 +16,15 @@
  */
 package com.amazonaws.kinesis.deagg;
 
-import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
 import com.amazonaws.services.lambda.runtime.events.KinesisEvent.KinesisEventRecord;
@@ -36,6 +40,10 @@ import com.amazonaws.services.kinesis.model.Record;
  * 
  * NOTE: Any non-aggregated records passed to any deaggregation methods will be
  * returned unchanged.
+ * 
+ * Records that were compressed by a RecordAggregator configured with
+ * compression are decompressed transparently, so the returned user records
+ * always hold the original data.
  *
  */
 public class RecordDeaggregator {
@@ -49,7 +57,9 @@ public class RecordDeaggregator {
 
 	/**
 	 * Method to process a set of Kinesis user records from a Stream of Kinesis
-	 * Event Records using the Java 8 Streams API
+	 * Event Records using the Java 8 Streams API. Each record is only
+	 * deaggregated when the consumer has processed the user records of the
+	 * previous one.
 	 * 
 	 * @param inputStream
 	 *            The Kinesis Event Records provided by AWS Lambda
@@ -59,17 +69,41 @@ public class RecordDeaggregator {
 	 * @return Void
 	 */
 	public static Void stream(Stream<KinesisEventRecord> inputStream, Consumer<UserRecord> streamConsumer) {
-		// convert the event input record set to a List of Record
-		List<Record> rawRecords = new LinkedList<>();
-		inputStream.forEachOrdered(rec -> {
-			rawRecords.add(rec.getKinesis());
-		});
+		stream(inputStream).forEachOrdered(streamConsumer);
+		return null;
+	}
 
-		// deaggregate UserRecords from the Kinesis Records
-		List<UserRecord> deaggregatedRecords = UserRecord.deaggregate(rawRecords);
-		deaggregatedRecords.stream().forEachOrdered(streamConsumer);
+	/**
+	 * Method to lazily deaggregate a Stream of Kinesis Event Records. Each
+	 * record is only deaggregated once the stream's consumer has reached it,
+	 * so at most the user records of one aggregated record are held in
+	 * memory at a time (unless the stream pipeline buffers them, e.g. to
+	 * sort them).
+	 * 
+	 * @param inputStream
+	 *            The Kinesis Event Records provided by AWS Lambda
+	 * @return A sequential Stream of the deaggregated UserRecords, in order
+	 */
+	public static Stream<UserRecord> stream(Stream<KinesisEventRecord> inputStream) {
+		Spliterator<UserRecord> spliterator = Spliterators.spliteratorUnknownSize(iterator(inputStream.iterator()),
+				Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false).onClose(inputStream::close);
+	}
 
-		return null;
+	/**
+	 * Method to lazily deaggregate Kinesis Event Records. Each record is only
+	 * deaggregated once the user records of the previous one have all been
+	 * returned, so at most the user records of one aggregated record are held
+	 * in memory at a time.
+	 * 
+	 * @param inputRecords
+	 *            An iterator over the Kinesis Event Records provided by AWS
+	 *            Lambda
+	 * @return An iterator over the deaggregated UserRecords, in order
+	 */
+	public static Iterator<UserRecord> iterator(Iterator<KinesisEventRecord> inputRecords) {
+		return new DeaggregatingIterator<>(inputRecords, KinesisEventRecord::getKinesis,
+				RecordDeaggregator::deaggregateRecord);
 	}
 
 	/**
@@ -83,14 +117,8 @@ public class RecordDeaggregator {
 	 * @return Void
 	 */
 	public static Void processRecords(List<KinesisEventRecord> inputRecords, KinesisUserRecordProcessor processor) {
-		// extract raw Kinesis Records from input event records
-		List<Record> rawRecords = new LinkedList<>();
-		for (KinesisEventRecord rec : inputRecords) {
-			rawRecords.add(rec.getKinesis());
-		}
-
 		// invoke provided processor
-		return processor.process(UserRecord.deaggregate(rawRecords));
+		return processor.process(deaggregate(inputRecords));
 	}
 
 	/**
@@ -103,9 +131,32 @@ public class RecordDeaggregator {
 	 *         the input list of KinesisEventRecords
 	 */
 	public static List<UserRecord> deaggregate(List<KinesisEventRecord> inputRecords) {
-		List<UserRecord> outputRecords = new LinkedList<>();
+		List<UserRecord> outputRecords = new ArrayList<>(inputRecords.size());
+		for (KinesisEventRecord inputRecord : inputRecords) {
+			deaggregateRecord(inputRecord.getKinesis(), outputRecords);
+		}
+		return outputRecords;
+	}
+
+	/**
+	 * Method to bulk deaggregate a set of Kinesis user records from a list of
+	 * Kinesis Event Records, returning only the user records that match a
+	 * filter. The filter is evaluated against the key tables of each
+	 * aggregated record, so only the data of matching user records is
+	 * copied, and aggregated records without any matching keys are skipped
+	 * entirely.
+	 * 
+	 * @param inputRecords
+	 *            The Kinesis Event Records provided by AWS Lambda
+	 * @param filter
+	 *            The filter to select user records with
+	 * @return A list of the matching Kinesis UserRecord objects
+	 */
+	public static List<UserRecord> deaggregate(List<KinesisEventRecord> inputRecords, UserRecordFilter filter) {
+		AggregatedRecordParser parser = new AggregatedRecordParser();
+		List<UserRecord> outputRecords = new ArrayList<>();
 		for (KinesisEventRecord inputRecord : inputRecords) {
-			outputRecords.addAll(deaggregate(inputRecord));
+			ZeroCopyDeaggregator.deaggregate(parser, inputRecord.getKinesis(), filter, true, outputRecords);
 		}
 		return outputRecords;
 	}
@@ -120,6 +171,76 @@ public class RecordDeaggregator {
 	 *         the input KinesisEventRecord
 	 */
 	public static List<UserRecord> deaggregate(KinesisEventRecord inputRecord) {
-		return UserRecord.deaggregate(Arrays.asList(inputRecord.getKinesis()));
+		List<UserRecord> outputRecords = new ArrayList<>();
+		deaggregateRecord(inputRecord.getKinesis(), outputRecords);
+		return outputRecords;
+	}
+
+	/**
+	 * Method to visit the user records of a single Kinesis record without
+	 * creating a UserRecord for each. The visitor is called with the same
+	 * reusable view for every user record, which exposes the keys, the
+	 * sub-sequence number and the location of the data in a read-only view
+	 * of the record's data, so iterating over the user records does not
+	 * allocate.
+	 * 
+	 * @param inputRecord
+	 *            The single KinesisEventRecord to deaggregate
+	 * @param visitor
+	 *            Instance implementing RecordVisitor
+	 */
+	public static void forEach(KinesisEventRecord inputRecord, RecordVisitor visitor) {
+		new UserRecordView(new AggregatedRecordParser()).visit(inputRecord.getKinesis(), null, visitor);
+	}
+
+	/**
+	 * Method to visit the user records of a list of Kinesis Event Records
+	 * without creating a UserRecord for each, see forEach(KinesisEventRecord,
+	 * RecordVisitor).
+	 * 
+	 * @param inputRecords
+	 *            The Kinesis Event Records provided by AWS Lambda
+	 * @param visitor
+	 *            Instance implementing RecordVisitor
+	 */
+	public static void forEach(List<KinesisEventRecord> inputRecords, RecordVisitor visitor) {
+		UserRecordView view = new UserRecordView(new AggregatedRecordParser());
+		for (KinesisEventRecord inputRecord : inputRecords) {
+			view.visit(inputRecord.getKinesis(), null, visitor);
+		}
+	}
+
+	/**
+	 * Method to visit the user records of a list of Kinesis Event Records
+	 * that match a filter, see forEach(KinesisEventRecord, RecordVisitor).
+	 * User records that do not match are skipped without touching their
+	 * data, and aggregated records without any matching keys are skipped
+	 * entirely.
+	 * 
+	 * @param inputRecords
+	 *            The Kinesis Event Records provided by AWS Lambda
+	 * @param filter
+	 *            The filter to select user records with
+	 * @param visitor
+	 *            Instance implementing RecordVisitor
+	 */
+	public static void forEach(List<KinesisEventRecord> inputRecords, UserRecordFilter filter,
+			RecordVisitor visitor) {
+		UserRecordView view = new UserRecordView(new AggregatedRecordParser());
+		for (KinesisEventRecord inputRecord : inputRecords) {
+			view.visit(inputRecord.getKinesis(), filter, visitor);
+		}
+	}
+
+	/**
+	 * Deaggregate a Kinesis record, decompressing it before and its user
+	 * records after deaggregation if they are compressed, and add its user
+	 * records to a list.
+	 */
+	static void deaggregateRecord(Record record, List<UserRecord> userRecords) {
+		Record rawRecord = RecordDecompressor.decompressRecord(record);
+		for (UserRecord userRecord : UserRecord.deaggregate(Collections.singletonList(rawRecord))) {
+			userRecords.add(RecordDecompressor.decompressUserRecord(userRecord));
+		}
 	}
 }
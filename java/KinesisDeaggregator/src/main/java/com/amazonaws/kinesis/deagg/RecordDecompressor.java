@@ -0,0 +1,179 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Decompresses records written by a KinesisAggregator RecordAggregator with
+ * compression enabled, so that RecordDeaggregator can hand them to the KCL
+ * deaggregation logic unchanged.
+ * 
+ * A compressed aggregated record starts with the marker bytes F3 89 9A C3
+ * and a compressed user record's data with F3 89 9A C4, each followed by a
+ * codec byte (1 = Deflate) and a zlib stream. Inflating a compressed
+ * aggregated record yields a standard aggregated record. Data that carries a
+ * marker but does not decompress is left unchanged, just as the KCL treats a
+ * record with the aggregated record magic but a bad digest as a plain record.
+ * So is data that would inflate to more than the 16 MB the aggregator ever
+ * compresses into one stream, which keeps a small record of highly
+ * compressible data from exhausting the heap.
+ * 
+ * The format constants are duplicated from the aggregator's RecordCompression
+ * class so that this module does not depend on the aggregator.
+ */
+final class RecordDecompressor {
+	private static final byte[] COMPRESSED_AGGREGATE_MAGIC = new byte[] { (byte) 0xF3, (byte) 0x89, (byte) 0x9A,
+			(byte) 0xC3 };
+	private static final byte[] COMPRESSED_USER_RECORD_MAGIC = new byte[] { (byte) 0xF3, (byte) 0x89, (byte) 0x9A,
+			(byte) 0xC4 };
+	private static final byte CODEC_DEFLATE = 1;
+	private static final int HEADER_LENGTH = 5;
+	/** 16 times the Kinesis record size limit. */
+	private static final int MAX_UNCOMPRESSED_BYTES = 16 * 1024 * 1024;
+
+	private RecordDecompressor() {
+	}
+
+	/**
+	 * Decompress a Kinesis record if it is a compressed aggregated record.
+	 * 
+	 * @param record
+	 *            The Kinesis record as received.
+	 * @return A copy of the record holding the decompressed aggregated record,
+	 *         or the input record if it is not compressed.
+	 */
+	static Record decompressRecord(Record record) {
+		byte[] data = inflate(record.getData(), COMPRESSED_AGGREGATE_MAGIC);
+		if (data == null) {
+			return record;
+		}
+
+		return new Record().withData(ByteBuffer.wrap(data)).withPartitionKey(record.getPartitionKey())
+				.withSequenceNumber(record.getSequenceNumber())
+				.withApproximateArrivalTimestamp(record.getApproximateArrivalTimestamp())
+				.withEncryptionType(record.getEncryptionType());
+	}
+
+	/**
+	 * Decompress the data of a deaggregated user record in place if it was
+	 * compressed on its own.
+	 * 
+	 * @param userRecord
+	 *            The deaggregated user record.
+	 * @return The same user record.
+	 */
+	static UserRecord decompressUserRecord(UserRecord userRecord) {
+		byte[] data = inflate(userRecord.getData(), COMPRESSED_USER_RECORD_MAGIC);
+		if (data != null) {
+			userRecord.setData(ByteBuffer.wrap(data));
+		}
+		return userRecord;
+	}
+
+	/**
+	 * Decompress the data of a user record in place in a larger buffer, if
+	 * it was compressed on its own. Data that is not compressed is checked
+	 * without allocating anything.
+	 * 
+	 * @param data
+	 *            The buffer holding the user record's data.
+	 * @param offset
+	 *            The index of the first byte of the data in the buffer.
+	 * @param length
+	 *            The length of the data.
+	 * @return The decompressed data, or null if the data is not compressed.
+	 */
+	static byte[] decompressUserRecordData(ByteBuffer data, int offset, int length) {
+		if (!hasHeader(data, offset, length, COMPRESSED_USER_RECORD_MAGIC)) {
+			return null;
+		}
+
+		ByteBuffer userRecordData = data.duplicate();
+		userRecordData.limit(offset + length).position(offset);
+		return inflate(userRecordData, COMPRESSED_USER_RECORD_MAGIC);
+	}
+
+	/**
+	 * @return Whether the data starts with the marker and a known codec.
+	 */
+	private static boolean hasHeader(ByteBuffer data, int offset, int length, byte[] magic) {
+		if (length < HEADER_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if (data.get(offset + i) != magic[i]) {
+				return false;
+			}
+		}
+		return data.get(offset + magic.length) == CODEC_DEFLATE;
+	}
+
+	/**
+	 * @return The inflated content of the data following the header, or null
+	 *         if the data does not start with the marker and a known codec,
+	 *         is not a valid zlib stream or inflates to more than
+	 *         MAX_UNCOMPRESSED_BYTES. The buffer's position is unchanged.
+	 */
+	private static byte[] inflate(ByteBuffer data, byte[] magic) {
+		if (data == null || !hasHeader(data, data.position(), data.remaining(), magic)) {
+			return null;
+		}
+
+		int start = data.position();
+		byte[] input = new byte[data.remaining() - HEADER_LENGTH];
+		ByteBuffer body = data.duplicate();
+		body.position(start + HEADER_LENGTH);
+		body.get(input);
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(input);
+			// one byte more than the limit tells a stream that is too large
+			// apart from one that fills it exactly
+			final int maxOutputLength = MAX_UNCOMPRESSED_BYTES + 1;
+			byte[] output = new byte[(int) Math.min(Math.max(64, input.length * 4L), maxOutputLength)];
+			int size = 0;
+			while (!inflater.finished()) {
+				if (size == output.length) {
+					if (size == maxOutputLength) {
+						return null;
+					}
+					output = Arrays.copyOf(output, (int) Math.min(output.length * 2L, maxOutputLength));
+				}
+				int inflated = inflater.inflate(output, size, output.length - size);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					// truncated stream
+					return null;
+				}
+				size += inflated;
+			}
+			return inflater.getRemaining() == 0 && size <= MAX_UNCOMPRESSED_BYTES ? Arrays.copyOf(output, size)
+					: null;
+		} catch (DataFormatException e) {
+			return null;
+		} finally {
+			inflater.end();
+		}
+	}
+}
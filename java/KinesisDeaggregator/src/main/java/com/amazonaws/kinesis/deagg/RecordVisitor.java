@@ -0,0 +1,34 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+/**
+ * Interface used by a calling method to visit deaggregated user records
+ * without creating a UserRecord for each, see RecordDeaggregator.forEach.
+ */
+@FunctionalInterface
+public interface RecordVisitor {
+	/**
+	 * Visit a user record. The view is reused for the next user record, so
+	 * it must not be kept after this method returns; copy out whatever is
+	 * needed instead.
+	 * 
+	 * @param userRecord
+	 *            A view of the current user record.
+	 */
+	void visit(UserRecordView userRecord);
+}
@@ -0,0 +1,181 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Predicate;
+
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+
+/**
+ * Selects the user records a deaggregator returns, by partition key and/or
+ * by hash key. Deaggregators evaluate a filter against the key tables of each
+ * aggregated record before they look at its user records: the partition key
+ * predicate is called once per distinct partition key, and hash keys are
+ * parsed or derived once per distinct key. User records that do not match
+ * are skipped without touching their data, and an aggregated record whose
+ * keys cannot match is skipped without even checking its digest.
+ * 
+ * The hash key of a user record is its explicit hash key or, if it has none,
+ * the MD5 hash of its partition key, which is the hash key Kinesis itself
+ * would have assigned it. Unlike UserRecord.deaggregate(records, start, end),
+ * which drops all user records of an aggregated record as soon as one of
+ * them is out of range, a filter selects every matching user record.
+ * Non-aggregated records are filtered by the record's partition key and its
+ * hash.
+ * 
+ * Filters are immutable, and can be shared between threads as long as their
+ * partition key predicate can.
+ */
+public final class UserRecordFilter {
+	private final Predicate<String> partitionKeyPredicate;
+	private final BigInteger startingHashKey;
+	private final BigInteger endingHashKey;
+
+	private UserRecordFilter(Predicate<String> partitionKeyPredicate, BigInteger startingHashKey,
+			BigInteger endingHashKey) {
+		this.partitionKeyPredicate = partitionKeyPredicate;
+		this.startingHashKey = startingHashKey;
+		this.endingHashKey = endingHashKey;
+	}
+
+	/**
+	 * Create a filter that selects user records by partition key.
+	 * 
+	 * @param partitionKeyPredicate
+	 *            A predicate that is true for the partition keys to select.
+	 * @return A new filter.
+	 */
+	public static UserRecordFilter partitionKeys(Predicate<String> partitionKeyPredicate) {
+		if (partitionKeyPredicate == null) {
+			throw new IllegalArgumentException("Partition key predicate cannot be null");
+		}
+		return new UserRecordFilter(partitionKeyPredicate, null, null);
+	}
+
+	/**
+	 * Create a filter that selects user records whose partition key starts
+	 * with any of the given prefixes.
+	 * 
+	 * @param prefixes
+	 *            The partition key prefixes to select.
+	 * @return A new filter.
+	 */
+	public static UserRecordFilter partitionKeyPrefixes(String... prefixes) {
+		String[] copy = prefixes.clone();
+		return partitionKeys(partitionKey -> {
+			for (String prefix : copy) {
+				if (partitionKey.startsWith(prefix)) {
+					return true;
+				}
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * Create a filter that selects user records whose hash key lies in a
+	 * range, e.g. the hash key range of a shard.
+	 * 
+	 * @param startingHashKey
+	 *            The smallest hash key to select.
+	 * @param endingHashKey
+	 *            The largest hash key to select.
+	 * @return A new filter.
+	 */
+	public static UserRecordFilter hashKeyRange(BigInteger startingHashKey, BigInteger endingHashKey) {
+		if (startingHashKey == null || endingHashKey == null) {
+			throw new IllegalArgumentException("Hash key range cannot be null");
+		}
+		return new UserRecordFilter(null, startingHashKey, endingHashKey);
+	}
+
+	/**
+	 * Create a filter that selects user records whose hash key lies in the
+	 * hash key range of a shard, as returned by DescribeStream.
+	 * 
+	 * @param hashKeyRange
+	 *            The hash key range to select.
+	 * @return A new filter.
+	 */
+	public static UserRecordFilter hashKeyRange(HashKeyRange hashKeyRange) {
+		return hashKeyRange(new BigInteger(hashKeyRange.getStartingHashKey()),
+				new BigInteger(hashKeyRange.getEndingHashKey()));
+	}
+
+	/**
+	 * Combine this filter with another one.
+	 * 
+	 * @param other
+	 *            The other filter.
+	 * @return A new filter that selects the user records both filters select.
+	 */
+	public UserRecordFilter and(UserRecordFilter other) {
+		Predicate<String> partitionKeyPredicate = this.partitionKeyPredicate == null ? other.partitionKeyPredicate
+				: other.partitionKeyPredicate == null ? this.partitionKeyPredicate
+						: this.partitionKeyPredicate.and(other.partitionKeyPredicate);
+		BigInteger startingHashKey = this.startingHashKey == null ? other.startingHashKey
+				: other.startingHashKey == null ? this.startingHashKey : this.startingHashKey.max(other.startingHashKey);
+		BigInteger endingHashKey = this.endingHashKey == null ? other.endingHashKey
+				: other.endingHashKey == null ? this.endingHashKey : this.endingHashKey.min(other.endingHashKey);
+		return new UserRecordFilter(partitionKeyPredicate, startingHashKey, endingHashKey);
+	}
+
+	boolean hasPartitionKeyPredicate() {
+		return this.partitionKeyPredicate != null;
+	}
+
+	boolean matchesPartitionKey(String partitionKey) {
+		return this.partitionKeyPredicate == null || this.partitionKeyPredicate.test(partitionKey);
+	}
+
+	boolean hasHashKeyRange() {
+		return this.startingHashKey != null;
+	}
+
+	boolean isInHashKeyRange(BigInteger hashKey) {
+		return this.startingHashKey == null
+				|| hashKey.compareTo(this.startingHashKey) >= 0 && hashKey.compareTo(this.endingHashKey) <= 0;
+	}
+
+	/**
+	 * @return Whether a non-aggregated record with a partition key matches.
+	 */
+	boolean matchesRecord(String partitionKey) {
+		if (!hasHashKeyRange()) {
+			return matchesPartitionKey(partitionKey);
+		}
+		if (partitionKey == null || !matchesPartitionKey(partitionKey)) {
+			return false;
+		}
+		try {
+			return isInHashKeyRange(hashKey(MessageDigest.getInstance("MD5"), partitionKey));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Could not create an MD5 message digest.", e);
+		}
+	}
+
+	/**
+	 * @return The hash key Kinesis assigns a partition key.
+	 */
+	static BigInteger hashKey(MessageDigest md5, String partitionKey) {
+		return new BigInteger(1, md5.digest(partitionKey.getBytes(StandardCharsets.UTF_8)));
+	}
+}
@@ -0,0 +1,255 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * A reusable view of one deaggregated user record at a time, which a
+ * RecordVisitor is handed for every user record instead of a new UserRecord.
+ * Moving the view to the next user record allocates nothing: the partition
+ * and explicit hash keys are decoded once per key table entry of each
+ * aggregated record, and the data is exposed as an offset and length into a
+ * read-only view of the Kinesis record's data, which is created once per
+ * Kinesis record.
+ * 
+ * The view presents the same user records as ZeroCopyDeaggregator returns:
+ * non-aggregated records are visited as a single user record, compressed
+ * records are decompressed, and corrupted aggregated records are handled
+ * like the KCL handles them.
+ * 
+ * This class is NOT thread-safe, and a view is only valid while it is being
+ * visited.
+ */
+public final class UserRecordView {
+	private final AggregatedRecordParser parser;
+
+	/** The Kinesis record as received. */
+	private Record record;
+	/** The Kinesis record, decompressed if it was compressed. */
+	private Record aggregate;
+	private boolean aggregated;
+	private int subSequenceNumber;
+	private int partitionKeyIndex;
+	private int explicitHashKeyIndex;
+
+	private ByteBuffer buffer;
+	private int dataOffset;
+	private int dataLength;
+
+	UserRecordView(AggregatedRecordParser parser) {
+		this.parser = parser;
+	}
+
+	/**
+	 * Visit the user records of a Kinesis record that match a filter.
+	 * 
+	 * @param record
+	 *            The Kinesis record to deaggregate.
+	 * @param filter
+	 *            The filter to select user records with, or null.
+	 * @param visitor
+	 *            The visitor to call with this view for each user record.
+	 */
+	void visit(Record record, UserRecordFilter filter, RecordVisitor visitor) {
+		this.record = record;
+		this.aggregate = RecordDecompressor.decompressRecord(record);
+		ByteBuffer data = this.aggregate.getData();
+		int kind = ZeroCopyDeaggregator.prepare(this.parser, this.aggregate, filter);
+		if (kind == ZeroCopyDeaggregator.SKIP) {
+			return;
+		} else if (kind == ZeroCopyDeaggregator.PLAIN) {
+			this.aggregated = false;
+			this.subSequenceNumber = 0;
+			this.partitionKeyIndex = -1;
+			this.explicitHashKeyIndex = -1;
+			if (data == null) {
+				this.buffer = null;
+				this.dataOffset = 0;
+				this.dataLength = 0;
+			} else {
+				setData(data.asReadOnlyBuffer(), data.position(), data.remaining());
+			}
+			visitor.visit(this);
+			return;
+		}
+
+		this.aggregated = true;
+		ByteBuffer buffer = data.asReadOnlyBuffer();
+		int validRecordCount = this.parser.getValidRecordCount();
+		for (int i = 0; i < validRecordCount; i++) {
+			if (filter != null && !this.parser.matches(i, filter)) {
+				continue;
+			}
+
+			long explicitHashKeyIndex = this.parser.getExplicitHashKeyIndex(i);
+			this.subSequenceNumber = i;
+			this.partitionKeyIndex = (int) this.parser.getPartitionKeyIndex(i);
+			this.explicitHashKeyIndex = explicitHashKeyIndex == AggregatedRecordParser.NO_EXPLICIT_HASH_KEY ? -1
+					: (int) explicitHashKeyIndex;
+			setData(buffer, this.parser.getDataOffset(i), this.parser.getDataLength(i));
+			visitor.visit(this);
+		}
+	}
+
+	private void setData(ByteBuffer buffer, int offset, int length) {
+		byte[] decompressed = RecordDecompressor.decompressUserRecordData(buffer, offset, length);
+		if (decompressed == null) {
+			this.buffer = buffer;
+			this.dataOffset = offset;
+			this.dataLength = length;
+		} else {
+			this.buffer = ByteBuffer.wrap(decompressed).asReadOnlyBuffer();
+			this.dataOffset = 0;
+			this.dataLength = decompressed.length;
+		}
+	}
+
+	/**
+	 * @return The Kinesis record the user record came from, as received.
+	 */
+	public Record getRecord() {
+		return this.record;
+	}
+
+	/**
+	 * @return Whether the user record came from an aggregated record.
+	 */
+	public boolean isAggregated() {
+		return this.aggregated;
+	}
+
+	/**
+	 * @return The sequence number of the Kinesis record the user record came
+	 *         from.
+	 */
+	public String getSequenceNumber() {
+		return this.aggregate.getSequenceNumber();
+	}
+
+	/**
+	 * @return The index of the user record in its aggregated record (0 for a
+	 *         non-aggregated record).
+	 */
+	public long getSubSequenceNumber() {
+		return this.subSequenceNumber;
+	}
+
+	/**
+	 * @return The approximate arrival timestamp of the Kinesis record the
+	 *         user record came from. The Date is shared by all of its user
+	 *         records.
+	 */
+	public Date getApproximateArrivalTimestamp() {
+		return this.aggregate.getApproximateArrivalTimestamp();
+	}
+
+	/**
+	 * @return The index of the user record's partition key in the partition
+	 *         key table of its aggregated record, or -1 for a non-aggregated
+	 *         record. User records with the same index have the same key.
+	 */
+	public int getPartitionKeyIndex() {
+		return this.partitionKeyIndex;
+	}
+
+	/**
+	 * @return The user record's partition key. The same String is returned
+	 *         for all user records of an aggregated record that share it.
+	 */
+	public String getPartitionKey() {
+		return this.aggregated ? this.parser.getPartitionKey(this.partitionKeyIndex)
+				: this.aggregate.getPartitionKey();
+	}
+
+	/**
+	 * @return The index of the user record's explicit hash key in the
+	 *         explicit hash key table of its aggregated record, or -1 if it
+	 *         has none.
+	 */
+	public int getExplicitHashKeyIndex() {
+		return this.explicitHashKeyIndex;
+	}
+
+	/**
+	 * @return The user record's explicit hash key, or null if it has none.
+	 */
+	public String getExplicitHashKey() {
+		return this.explicitHashKeyIndex < 0 ? null : this.parser.getExplicitHashKey(this.explicitHashKeyIndex);
+	}
+
+	/**
+	 * @return A read-only buffer that holds the user record's data between
+	 *         getDataOffset() and getDataOffset() + getDataLength(), along
+	 *         with the data of the other user records of its Kinesis record.
+	 *         Read it with absolute gets, or duplicate it to move its
+	 *         position. Null if the Kinesis record has no data.
+	 */
+	public ByteBuffer getBuffer() {
+		return this.buffer;
+	}
+
+	/**
+	 * @return The index of the first byte of the user record's data in
+	 *         getBuffer().
+	 */
+	public int getDataOffset() {
+		return this.dataOffset;
+	}
+
+	/**
+	 * @return The length of the user record's data.
+	 */
+	public int getDataLength() {
+		return this.dataLength;
+	}
+
+	/**
+	 * Copy the user record's data into an array.
+	 * 
+	 * @param destination
+	 *            The array to copy the data to.
+	 * @param offset
+	 *            The index in the array to copy the data to.
+	 */
+	public void copyData(byte[] destination, int offset) {
+		if (this.dataLength > destination.length - offset) {
+			throw new IndexOutOfBoundsException("Cannot copy " + this.dataLength + " bytes to index " + offset
+					+ " of an array of length " + destination.length);
+		}
+		ByteBuffer data = this.buffer.duplicate();
+		data.position(this.dataOffset);
+		data.get(destination, offset, this.dataLength);
+	}
+
+	/**
+	 * @return A new read-only buffer holding just the user record's data,
+	 *         sharing the content of getBuffer(). Unlike the other methods,
+	 *         this allocates.
+	 */
+	public ByteBuffer getData() {
+		if (this.buffer == null) {
+			return null;
+		}
+		ByteBuffer data = this.buffer.duplicate();
+		data.limit(this.dataOffset + this.dataLength).position(this.dataOffset);
+		return data.slice();
+	}
+}
@@ -0,0 +1,351 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.lambda.runtime.events.KinesisEvent.KinesisEventRecord;
+
+/**
+ * A Kinesis deaggregator that does not copy user record data. Unlike
+ * RecordDeaggregator, which hands records to the KCL to be parsed into
+ * protobuf objects and copies every user record's data twice on the way,
+ * this class parses aggregated records directly and returns user records
+ * whose data is a read-only slice of the data of the Kinesis record they
+ * came from. Only the key tables are decoded, once per aggregated record.
+ * 
+ * The returned user records are otherwise identical to the ones
+ * UserRecord.deaggregate(...) returns: the same partition keys, explicit hash
+ * keys, sequence and sub-sequence numbers and arrival timestamps, and the
+ * same handling of corrupted records. Like RecordDeaggregator, non-aggregated
+ * records are returned unchanged and compressed records are decompressed
+ * transparently (decompressed data is no longer a slice of the input).
+ * 
+ * Because user records share the input buffers, the data of the input
+ * records must not be modified while their user records are in use. The
+ * data buffers of the input records are never modified themselves; their
+ * positions are left unchanged. Calling array() on the data of an
+ * aggregated user record throws a ReadOnlyBufferException, so copy it with
+ * get(...) where a byte array is needed.
+ */
+public final class ZeroCopyDeaggregator {
+	/**
+	 * The protected constructor the KCL itself creates deaggregated user
+	 * records with, or null if it is not accessible, in which case records
+	 * are created as instances of a subclass (which UserRecord.equals()
+	 * considers different from the KCL's own user records).
+	 */
+	private static final MethodHandle USER_RECORD_CONSTRUCTOR = findUserRecordConstructor();
+
+	/** The ways a Kinesis record is deaggregated, see prepare(...). */
+	static final int SKIP = 0;
+	static final int PLAIN = 1;
+	static final int AGGREGATED = 2;
+
+	private ZeroCopyDeaggregator() {
+	}
+
+	/**
+	 * Deaggregate a single Kinesis record into one or more Kinesis user
+	 * records.
+	 * 
+	 * @param inputRecord
+	 *            The single KinesisEventRecord to deaggregate
+	 * @return A list of Kinesis UserRecord objects obtained by deaggregating
+	 *         the input KinesisEventRecord
+	 */
+	public static List<UserRecord> deaggregate(KinesisEventRecord inputRecord) {
+		return deaggregate(inputRecord.getKinesis());
+	}
+
+	/**
+	 * Deaggregate a list of Kinesis Event Records.
+	 * 
+	 * @param inputRecords
+	 *            The Kinesis Event Records provided by AWS Lambda
+	 * @return A list of Kinesis UserRecord objects obtained by deaggregating
+	 *         the input list of KinesisEventRecords
+	 */
+	public static List<UserRecord> deaggregate(List<KinesisEventRecord> inputRecords) {
+		AggregatedRecordParser parser = new AggregatedRecordParser();
+		List<UserRecord> userRecords = new ArrayList<>(inputRecords.size());
+		for (KinesisEventRecord inputRecord : inputRecords) {
+			deaggregate(parser, inputRecord.getKinesis(), userRecords);
+		}
+		return userRecords;
+	}
+
+	/**
+	 * Deaggregate a list of Kinesis Event Records, returning only the user
+	 * records that match a filter. Only the data of matching user records is
+	 * touched, and aggregated records without any matching keys are skipped
+	 * entirely.
+	 * 
+	 * @param inputRecords
+	 *            The Kinesis Event Records provided by AWS Lambda
+	 * @param filter
+	 *            The filter to select user records with
+	 * @return A list of the matching Kinesis UserRecord objects
+	 */
+	public static List<UserRecord> deaggregate(List<KinesisEventRecord> inputRecords, UserRecordFilter filter) {
+		AggregatedRecordParser parser = new AggregatedRecordParser();
+		List<UserRecord> userRecords = new ArrayList<>();
+		for (KinesisEventRecord inputRecord : inputRecords) {
+			deaggregate(parser, inputRecord.getKinesis(), filter, false, userRecords);
+		}
+		return userRecords;
+	}
+
+	/**
+	 * Lazily deaggregate Kinesis Event Records, like
+	 * RecordDeaggregator.iterator(...).
+	 * 
+	 * @param inputRecords
+	 *            An iterator over the Kinesis Event Records provided by AWS
+	 *            Lambda
+	 * @return An iterator over the deaggregated UserRecords, in order
+	 */
+	public static Iterator<UserRecord> iterator(Iterator<KinesisEventRecord> inputRecords) {
+		AggregatedRecordParser parser = new AggregatedRecordParser();
+		return new DeaggregatingIterator<>(inputRecords, KinesisEventRecord::getKinesis,
+				(record, userRecords) -> deaggregate(parser, record, userRecords));
+	}
+
+	/**
+	 * Lazily deaggregate a Stream of Kinesis Event Records, like
+	 * RecordDeaggregator.stream(...).
+	 * 
+	 * @param inputStream
+	 *            The Kinesis Event Records provided by AWS Lambda
+	 * @return A sequential Stream of the deaggregated UserRecords, in order
+	 */
+	public static Stream<UserRecord> stream(Stream<KinesisEventRecord> inputStream) {
+		Spliterator<UserRecord> spliterator = Spliterators.spliteratorUnknownSize(iterator(inputStream.iterator()),
+				Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false).onClose(inputStream::close);
+	}
+
+	/**
+	 * Deaggregate a single Kinesis record into one or more Kinesis user
+	 * records.
+	 * 
+	 * @param record
+	 *            The Kinesis record to deaggregate
+	 * @return A list of Kinesis UserRecord objects obtained by deaggregating
+	 *         the input record
+	 */
+	public static List<UserRecord> deaggregate(Record record) {
+		List<UserRecord> userRecords = new ArrayList<>();
+		deaggregate(new AggregatedRecordParser(), record, userRecords);
+		return userRecords;
+	}
+
+	/**
+	 * Deaggregate a list of Kinesis records, e.g. as returned by GetRecords.
+	 * 
+	 * @param records
+	 *            The Kinesis records to deaggregate
+	 * @return A list of Kinesis UserRecord objects obtained by deaggregating
+	 *         the input records
+	 */
+	public static List<UserRecord> deaggregateRecords(List<? extends Record> records) {
+		AggregatedRecordParser parser = new AggregatedRecordParser();
+		List<UserRecord> userRecords = new ArrayList<>(records.size());
+		for (Record record : records) {
+			deaggregate(parser, record, userRecords);
+		}
+		return userRecords;
+	}
+
+	/**
+	 * Deaggregate a list of Kinesis records, e.g. as returned by GetRecords,
+	 * returning only the user records that match a filter, see
+	 * deaggregate(List, UserRecordFilter).
+	 * 
+	 * @param records
+	 *            The Kinesis records to deaggregate
+	 * @param filter
+	 *            The filter to select user records with
+	 * @return A list of the matching Kinesis UserRecord objects
+	 */
+	public static List<UserRecord> deaggregateRecords(List<? extends Record> records, UserRecordFilter filter) {
+		AggregatedRecordParser parser = new AggregatedRecordParser();
+		List<UserRecord> userRecords = new ArrayList<>();
+		for (Record record : records) {
+			deaggregate(parser, record, filter, false, userRecords);
+		}
+		return userRecords;
+	}
+
+	/**
+	 * Deaggregate a Kinesis record, appending its user records to a list.
+	 * 
+	 * The KCL's corner cases are reproduced exactly: a record that is not a
+	 * valid aggregated record (including one whose digest or protobuf message
+	 * is corrupted) is returned as a single user record; a user record with a
+	 * key table index out of bounds or an explicit hash key that is not a
+	 * number ends the aggregated record, keeping the user records before it;
+	 * and an explicit hash key outside of the 128 bit hash key range drops
+	 * all user records of the aggregated record.
+	 * 
+	 * @param parser
+	 *            The parser to reuse.
+	 * @param record
+	 *            The Kinesis record to deaggregate.
+	 * @param userRecords
+	 *            The list to add the user records to.
+	 */
+	static void deaggregate(AggregatedRecordParser parser, Record record, List<UserRecord> userRecords) {
+		deaggregate(parser, record, null, false, userRecords);
+	}
+
+	/**
+	 * Deaggregate a Kinesis record, appending the user records that match a
+	 * filter to a list.
+	 * 
+	 * @param parser
+	 *            The parser to reuse.
+	 * @param record
+	 *            The Kinesis record to deaggregate.
+	 * @param filter
+	 *            The filter to select user records with, or null.
+	 * @param copyData
+	 *            True to give user records a copy of their data in a heap
+	 *            buffer, as the KCL does, rather than a read-only slice.
+	 * @param userRecords
+	 *            The list to add the user records to.
+	 */
+	static void deaggregate(AggregatedRecordParser parser, Record record, UserRecordFilter filter, boolean copyData,
+			List<UserRecord> userRecords) {
+		Record aggregate = RecordDecompressor.decompressRecord(record);
+		int kind = prepare(parser, aggregate, filter);
+		if (kind == SKIP) {
+			return;
+		} else if (kind == PLAIN) {
+			userRecords.add(RecordDecompressor.decompressUserRecord(new UserRecord(aggregate)));
+			return;
+		}
+
+		Date arrivalTimestamp = aggregate.getApproximateArrivalTimestamp();
+		Record userRecordFields = new Record().withSequenceNumber(aggregate.getSequenceNumber());
+		int validRecordCount = parser.getValidRecordCount();
+		for (int i = 0; i < validRecordCount; i++) {
+			if (filter != null && !parser.matches(i, filter)) {
+				continue;
+			}
+
+			long explicitHashKeyIndex = parser.getExplicitHashKeyIndex(i);
+			String explicitHashKey = explicitHashKeyIndex == AggregatedRecordParser.NO_EXPLICIT_HASH_KEY ? null
+					: parser.getExplicitHashKey((int) explicitHashKeyIndex);
+			ByteBuffer data = parser.getData(i);
+			if (copyData) {
+				byte[] bytes = new byte[data.remaining()];
+				data.get(bytes);
+				data = ByteBuffer.wrap(bytes);
+			}
+
+			// the user record copies these fields, so one record serves for all
+			userRecordFields.setData(data);
+			userRecordFields.setPartitionKey(parser.getPartitionKey((int) parser.getPartitionKeyIndex(i)));
+			userRecordFields.setApproximateArrivalTimestamp(
+					arrivalTimestamp == null ? null : new Date(arrivalTimestamp.getTime()));
+			userRecords.add(RecordDecompressor
+					.decompressUserRecord(newUserRecord(userRecordFields, i, explicitHashKey)));
+		}
+	}
+
+	/**
+	 * Parse a decompressed Kinesis record and decide how to deaggregate it,
+	 * checking the digest only if the outcome depends on it.
+	 * 
+	 * @param parser
+	 *            The parser to reuse.
+	 * @param aggregate
+	 *            The decompressed Kinesis record.
+	 * @param filter
+	 *            The filter to select user records with, or null.
+	 * @return SKIP if none of its user records can match the filter, PLAIN
+	 *         if it is returned as a single user record, or AGGREGATED if
+	 *         the parser holds its user records.
+	 */
+	static int prepare(AggregatedRecordParser parser, Record aggregate, UserRecordFilter filter) {
+		ByteBuffer data = aggregate.getData();
+		if (data == null || !parser.parse(data)) {
+			return matchesRecord(aggregate, filter) ? PLAIN : SKIP;
+		} else if (filter != null && !parser.mayMatch(filter)) {
+			// only a corrupted record, which is returned whole, can match
+			return matchesRecord(aggregate, filter) && !parser.verifyDigest() ? PLAIN : SKIP;
+		} else if (!parser.verifyDigest()) {
+			return matchesRecord(aggregate, filter) ? PLAIN : SKIP;
+		}
+		return AGGREGATED;
+	}
+
+	private static boolean matchesRecord(Record record, UserRecordFilter filter) {
+		return filter == null || filter.matchesRecord(record.getPartitionKey());
+	}
+
+	private static UserRecord newUserRecord(Record record, long subSequenceNumber, String explicitHashKey) {
+		if (USER_RECORD_CONSTRUCTOR == null) {
+			return new DeaggregatedUserRecord(record, subSequenceNumber, explicitHashKey);
+		}
+
+		try {
+			return (UserRecord) USER_RECORD_CONSTRUCTOR.invokeExact(true, record, subSequenceNumber, explicitHashKey);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException("Failed to create user record.", e);
+		}
+	}
+
+	private static MethodHandle findUserRecordConstructor() {
+		try {
+			Constructor<UserRecord> constructor = UserRecord.class.getDeclaredConstructor(boolean.class,
+					Record.class, long.class, String.class);
+			constructor.setAccessible(true);
+			return MethodHandles.lookup().unreflectConstructor(constructor);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * An aggregated user record, for when the KCL's constructor for them is
+	 * not accessible.
+	 */
+	private static final class DeaggregatedUserRecord extends UserRecord {
+		private static final long serialVersionUID = 1L;
+
+		DeaggregatedUserRecord(Record record, long subSequenceNumber, String explicitHashKey) {
+			super(true, record, subSequenceNumber, explicitHashKey);
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.Messages;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.lambda.runtime.events.KinesisEvent;
+import com.amazonaws.services.lambda.runtime.events.KinesisEvent.KinesisEventRecord;
+import com.google.protobuf.ByteString;
+
+/**
+ * Kinesis records to test deaggregators against UserRecord.deaggregate(...):
+ * plain records, aggregated records of all shapes the KPL and
+ * RecordAggregator write, and aggregated records that are corrupted in the
+ * ways the KCL handles specially.
+ * 
+ * The KCL moves the positions of the buffers it deaggregates, so every call
+ * returns new records (with the same content).
+ */
+final class DeaggregationCorpus {
+    private static final byte[] MAGIC = new byte[] { (byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2 };
+    private static final String MAX_HASH_KEY = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE).toString();
+
+    private DeaggregationCorpus()
+    {
+    }
+
+    /**
+     * @return The records of the corpus, each with a distinct sequence number.
+     */
+    static List<Record> records()
+    {
+        final Random random = new Random(42);
+        final List<Record> records = new ArrayList<>();
+
+        // plain records, including ones that look like aggregated records
+        records.add(record(ByteBuffer.wrap("plain".getBytes(StandardCharsets.UTF_8))));
+        records.add(record(ByteBuffer.allocate(0)));
+        records.add(record(ByteBuffer.wrap(Arrays.copyOf(MAGIC, 3))));
+        records.add(record(ByteBuffer.wrap(Arrays.copyOf(MAGIC, MAGIC.length + 16))));
+
+        // aggregated records
+        records.add(record(wrap(encode(message(random, 1, 1, false, 10)))));
+        records.add(record(wrap(encode(message(random, 100, 10, false, 100)))));
+        records.add(record(wrap(encode(message(random, 100, 100, true, 1000)))));
+        records.add(record(wrap(encode(message(random, 50, 5, true, 0)))));
+        records.add(record(wrap(encode(message(random, 0, 0, false, 0)))));
+        records.add(withoutArrivalTimestamp(record(wrap(encode(message(random, 20, 3, true, 50))))));
+        records.add(record(direct(encode(message(random, 20, 3, true, 50)))));
+        records.add(record(offset(encode(message(random, 20, 3, false, 50)), 7)));
+        records.add(record(wrap(encode(Messages.AggregatedRecord.newBuilder().addPartitionKeyTable("\u043a\u043b\u044e\u0447-\ud83d\udd11")
+                .addExplicitHashKeyTable(MAX_HASH_KEY).addExplicitHashKeyTable("0")
+                .addRecords(userRecord(0, 0, "max")).addRecords(userRecord(0, 1, "min"))
+                .addRecords(Messages.Record.newBuilder().setPartitionKeyIndex(0).setData(ByteString.EMPTY)
+                        .addTags(Messages.Tag.newBuilder().setKey("tag").setValue("value")))
+                .build().toByteArray()))));
+
+        // unknown fields are skipped
+        records.add(record(wrap(encode(concat(message(random, 3, 2, true, 10).toByteArray(),
+                new byte[] { (byte) 0x78, (byte) 0x96, (byte) 0x01, (byte) 0x21, 1, 2, 3, 4, 5, 6, 7, 8 })))));
+
+        // corrupted aggregated records are plain records to the KCL
+        final byte[] badDigest = encode(message(random, 5, 2, false, 10));
+        badDigest[badDigest.length - 1] ^= 1;
+        records.add(record(wrap(badDigest)));
+        final byte[] truncated = encode(message(random, 5, 2, false, 10));
+        records.add(record(wrap(Arrays.copyOf(truncated, truncated.length - 1))));
+        final byte[] garbage = new byte[100];
+        random.nextBytes(garbage);
+        records.add(record(wrap(encode(garbage))));
+        records.add(record(wrap(encode(Messages.AggregatedRecord.newBuilder().addPartitionKeyTable("a")
+                .addRecords(Messages.Record.newBuilder().setPartitionKeyIndex(0).buildPartial()).buildPartial()
+                .toByteArray()))));
+        records.add(record(wrap(encode(Messages.AggregatedRecord.newBuilder().addPartitionKeyTable("a")
+                .addRecords(Messages.Record.newBuilder().setPartitionKeyIndex(0).setData(ByteString.EMPTY)
+                        .addTags(Messages.Tag.newBuilder().setValue("no key").buildPartial()).buildPartial())
+                .buildPartial().toByteArray()))));
+
+        // bad indexes and explicit hash keys end the aggregated record
+        records.add(record(wrap(encode(Messages.AggregatedRecord.newBuilder().addPartitionKeyTable("a")
+                .addRecords(userRecord(0, -1, "kept")).addRecords(userRecord(1, -1, "bad partition key index"))
+                .addRecords(userRecord(0, -1, "dropped")).build().toByteArray()))));
+        records.add(record(wrap(encode(Messages.AggregatedRecord.newBuilder().addPartitionKeyTable("a")
+                .addExplicitHashKeyTable("1").addRecords(userRecord(0, 0, "kept"))
+                .addRecords(userRecord(0, 1, "bad explicit hash key index")).build().toByteArray()))));
+        records.add(record(wrap(encode(Messages.AggregatedRecord.newBuilder().addPartitionKeyTable("a")
+                .addExplicitHashKeyTable("1").addExplicitHashKeyTable("not a number")
+                .addRecords(userRecord(0, 0, "kept")).addRecords(userRecord(0, 1, "bad explicit hash key"))
+                .build().toByteArray()))));
+        records.add(record(wrap(encode(Messages.AggregatedRecord.newBuilder().addPartitionKeyTable("a")
+                .addExplicitHashKeyTable("1").addExplicitHashKeyTable("-1")
+                .addRecords(userRecord(0, 0, "dropped")).addRecords(userRecord(0, 1, "negative hash key"))
+                .build().toByteArray()))));
+        records.add(record(wrap(encode(Messages.AggregatedRecord.newBuilder().addPartitionKeyTable("a")
+                .addExplicitHashKeyTable("1").addExplicitHashKeyTable(BigInteger.ONE.shiftLeft(128).toString())
+                .addRecords(userRecord(0, 0, "dropped")).addRecords(userRecord(0, 1, "hash key too large"))
+                .build().toByteArray()))));
+        records.add(record(wrap(encode(Messages.AggregatedRecord.newBuilder().addPartitionKeyTable("a")
+                .addRecords(userRecord(1L << 32, -1, "index wraps around to 0")).build().toByteArray()))));
+
+        for (int i = 0; i < records.size(); i++) {
+            records.get(i).setSequenceNumber(String.format("%056d", i));
+        }
+        return records;
+    }
+
+    /**
+     * @return The records wrapped in Kinesis Event Records, as AWS Lambda
+     *         would provide them.
+     */
+    static List<KinesisEventRecord> eventRecords(List<Record> records)
+    {
+        final List<KinesisEventRecord> eventRecords = new ArrayList<>(records.size());
+        for (Record record : records) {
+            final KinesisEvent.Record kinesis = new KinesisEvent.Record();
+            kinesis.setData(record.getData());
+            kinesis.setPartitionKey(record.getPartitionKey());
+            kinesis.setSequenceNumber(record.getSequenceNumber());
+            kinesis.setApproximateArrivalTimestamp(record.getApproximateArrivalTimestamp());
+            final KinesisEventRecord eventRecord = new KinesisEventRecord();
+            eventRecord.setKinesis(kinesis);
+            eventRecords.add(eventRecord);
+        }
+        return eventRecords;
+    }
+
+    /**
+     * Compress a record the way a RecordAggregator compressing whole
+     * aggregates does.
+     */
+    static Record compressAggregate(Record record)
+    {
+        final ByteBuffer data = record.getData().duplicate();
+        final byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+
+        final Deflater deflater = new Deflater();
+        deflater.setInput(bytes);
+        deflater.finish();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC, 0, 3);
+        out.write(0xC3);
+        out.write(1);
+        final byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+
+        return new Record().withData(ByteBuffer.wrap(out.toByteArray())).withPartitionKey(record.getPartitionKey())
+                .withSequenceNumber(record.getSequenceNumber())
+                .withApproximateArrivalTimestamp(record.getApproximateArrivalTimestamp());
+    }
+
+    private static Messages.AggregatedRecord message(Random random, int recordCount, int keyCount,
+            boolean explicitHashKeys, int maxDataLength)
+    {
+        final Messages.AggregatedRecord.Builder message = Messages.AggregatedRecord.newBuilder();
+        for (int i = 0; i < keyCount; i++) {
+            message.addPartitionKeyTable("key-" + i + "-" + random.nextInt());
+            if (explicitHashKeys) {
+                message.addExplicitHashKeyTable(new BigInteger(128, random).toString());
+            }
+        }
+        for (int i = 0; i < recordCount; i++) {
+            final byte[] data = new byte[maxDataLength == 0 ? 0 : random.nextInt(maxDataLength)];
+            random.nextBytes(data);
+            final int key = random.nextInt(keyCount);
+            final Messages.Record.Builder record = Messages.Record.newBuilder().setPartitionKeyIndex(key)
+                    .setData(ByteString.copyFrom(data));
+            // leave some explicit hash keys out, as the KPL may
+            if (explicitHashKeys && random.nextBoolean()) {
+                record.setExplicitHashKeyIndex(key);
+            }
+            message.addRecords(record);
+        }
+        return message.build();
+    }
+
+    private static Messages.Record userRecord(long partitionKeyIndex, long explicitHashKeyIndex, String data)
+    {
+        final Messages.Record.Builder record = Messages.Record.newBuilder().setPartitionKeyIndex(partitionKeyIndex)
+                .setData(ByteString.copyFromUtf8(data));
+        if (explicitHashKeyIndex >= 0) {
+            record.setExplicitHashKeyIndex(explicitHashKeyIndex);
+        }
+        return record.build();
+    }
+
+    private static byte[] encode(Messages.AggregatedRecord message)
+    {
+        return encode(message.toByteArray());
+    }
+
+    /**
+     * @return The magic bytes, the message and its MD5 digest.
+     */
+    private static byte[] encode(byte[] message)
+    {
+        try {
+            return concat(concat(MAGIC, message), MessageDigest.getInstance("MD5").digest(message));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second)
+    {
+        final byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private static ByteBuffer wrap(byte[] bytes)
+    {
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static ByteBuffer direct(byte[] bytes)
+    {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    /**
+     * @return A buffer that holds the bytes after some unrelated ones.
+     */
+    private static ByteBuffer offset(byte[] bytes, int offset)
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(offset + bytes.length + offset);
+        buffer.position(offset);
+        buffer.put(bytes);
+        buffer.limit(buffer.position()).position(offset);
+        return buffer;
+    }
+
+    private static Record record(ByteBuffer data)
+    {
+        return new Record().withData(data).withPartitionKey("aggregate")
+                .withApproximateArrivalTimestamp(new Date(1500000000000L));
+    }
+
+    private static Record withoutArrivalTimestamp(Record record)
+    {
+        return record.withApproximateArrivalTimestamp(null);
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.lambda.runtime.events.KinesisEvent;
+import com.amazonaws.services.lambda.runtime.events.KinesisEvent.KinesisEventRecord;
+
+public class ParallelDeaggregatorTest
+{
+    private static List<KinesisEventRecord> batch()
+    {
+        return DeaggregationCorpus.eventRecords(DeaggregationCorpus.records());
+    }
+
+    private static List<UserRecord> sorted(List<UserRecord> userRecords)
+    {
+        final List<UserRecord> sorted = new ArrayList<>(userRecords);
+        sorted.sort(Comparator.comparing(UserRecord::getSequenceNumber)
+                .thenComparingLong(UserRecord::getSubSequenceNumber));
+        return sorted;
+    }
+
+    @Test
+    public void orderedModeShouldReturnUserRecordsInOrder() throws Exception
+    {
+        final List<UserRecord> expected = RecordDeaggregator.deaggregate(batch());
+        ZeroCopyDeaggregatorTest.assertSameUserRecords(expected, new ParallelDeaggregator().deaggregate(batch()));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int maxInFlight = 1; maxInFlight <= 32; maxInFlight *= 2) {
+                final ParallelDeaggregator deaggregator = new ParallelDeaggregator(executor)
+                        .withMaxInFlight(maxInFlight);
+                ZeroCopyDeaggregatorTest.assertSameUserRecords(expected, deaggregator.deaggregate(batch()));
+                ZeroCopyDeaggregatorTest.assertSameUserRecords(expected,
+                        deaggregator.stream(batch().stream()).collect(Collectors.toList()));
+            }
+
+            ZeroCopyDeaggregatorTest.assertSameUserRecords(ZeroCopyDeaggregator.deaggregate(batch()),
+                    new ParallelDeaggregator(executor).withZeroCopy(true).deaggregate(batch()));
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void unorderedModeShouldReturnAllUserRecords()
+    {
+        final List<UserRecord> expected = RecordDeaggregator.deaggregate(batch());
+        final List<UserRecord> userRecords = new ArrayList<>();
+        new ParallelDeaggregator().withOrdered(false).forEach(batch(), userRecords::add);
+        ZeroCopyDeaggregatorTest.assertSameUserRecords(expected, sorted(userRecords));
+    }
+
+    @Test
+    public void unorderedModeShouldNotWaitForSlowRecords()
+    {
+        // deaggregate the first record late, and all others right away
+        final AtomicBoolean first = new AtomicBoolean(true);
+        final Executor executor = task -> {
+            if (first.getAndSet(false)) {
+                new Thread(() -> {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    task.run();
+                }).start();
+            } else {
+                task.run();
+            }
+        };
+
+        final List<KinesisEventRecord> batch = batch();
+        final List<UserRecord> userRecords = new ParallelDeaggregator(executor).withOrdered(false)
+                .withMaxInFlight(4).deaggregate(batch);
+        Assert.assertNotEquals(batch.get(0).getKinesis().getSequenceNumber(),
+                userRecords.get(0).getSequenceNumber());
+        ZeroCopyDeaggregatorTest.assertSameUserRecords(RecordDeaggregator.deaggregate(batch()), sorted(userRecords));
+
+        // user records of one record stay together and in order
+        for (int i = 1; i < userRecords.size(); i++) {
+            final UserRecord previous = userRecords.get(i - 1);
+            final UserRecord userRecord = userRecords.get(i);
+            if (userRecord.getSequenceNumber().equals(previous.getSequenceNumber())) {
+                Assert.assertEquals(previous.getSubSequenceNumber() + 1, userRecord.getSubSequenceNumber());
+            }
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void shouldRethrowDeaggregationFailures()
+    {
+        final List<KinesisEventRecord> batch = batch();
+        final KinesisEventRecord broken = new KinesisEventRecord();
+        broken.setKinesis(new KinesisEvent.Record());
+        batch.add(broken);
+        new ParallelDeaggregator().deaggregate(batch);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNonPositiveMaxInFlight()
+    {
+        new ParallelDeaggregator().withMaxInFlight(0);
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.lambda.runtime.events.KinesisEvent.KinesisEventRecord;
+
+public class RecordDeaggregatorTest
+{
+    private static List<KinesisEventRecord> batch()
+    {
+        return DeaggregationCorpus.eventRecords(DeaggregationCorpus.records());
+    }
+
+    /**
+     * An iterator that counts how many records have been read from it.
+     */
+    private static final class CountingIterator implements Iterator<KinesisEventRecord>
+    {
+        private final Iterator<KinesisEventRecord> records;
+        private int count;
+
+        CountingIterator(List<KinesisEventRecord> records)
+        {
+            this.records = records.iterator();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return this.records.hasNext();
+        }
+
+        @Override
+        public KinesisEventRecord next()
+        {
+            this.count++;
+            return this.records.next();
+        }
+    }
+
+    @Test
+    public void allMethodsShouldReturnTheSameUserRecords()
+    {
+        final List<UserRecord> expected = UserRecord.deaggregate(DeaggregationCorpus.records());
+        ZeroCopyDeaggregatorTest.assertSameUserRecords(expected, RecordDeaggregator.deaggregate(batch()));
+
+        final List<UserRecord> single = new ArrayList<>();
+        for (KinesisEventRecord record : batch()) {
+            single.addAll(RecordDeaggregator.deaggregate(record));
+        }
+        ZeroCopyDeaggregatorTest.assertSameUserRecords(expected, single);
+
+        final List<UserRecord> iterated = new ArrayList<>();
+        RecordDeaggregator.iterator(batch().iterator()).forEachRemaining(iterated::add);
+        ZeroCopyDeaggregatorTest.assertSameUserRecords(expected, iterated);
+
+        ZeroCopyDeaggregatorTest.assertSameUserRecords(expected,
+                RecordDeaggregator.stream(batch().stream()).collect(Collectors.toList()));
+
+        final List<UserRecord> consumed = new ArrayList<>();
+        RecordDeaggregator.stream(batch().stream(), consumed::add);
+        ZeroCopyDeaggregatorTest.assertSameUserRecords(expected, consumed);
+
+        final List<UserRecord> processed = new ArrayList<>();
+        RecordDeaggregator.processRecords(batch(), userRecords -> {
+            processed.addAll(userRecords);
+            return null;
+        });
+        ZeroCopyDeaggregatorTest.assertSameUserRecords(expected, processed);
+    }
+
+    @Test
+    public void iteratorShouldOnlyReadTheRecordsItNeeds()
+    {
+        final List<KinesisEventRecord> batch = batch();
+        // records 5 and 6 are aggregated records of 1 and 100 user records
+        final CountingIterator input = new CountingIterator(batch.subList(4, batch.size()));
+        final Iterator<UserRecord> userRecords = RecordDeaggregator.iterator(input);
+        Assert.assertEquals(0, input.count);
+
+        Assert.assertTrue(userRecords.hasNext());
+        Assert.assertEquals(1, input.count);
+        Assert.assertEquals(0, userRecords.next().getSubSequenceNumber());
+        Assert.assertEquals(1, input.count);
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(i, userRecords.next().getSubSequenceNumber());
+            Assert.assertEquals(2, input.count);
+        }
+        Assert.assertTrue(userRecords.hasNext());
+        Assert.assertEquals(3, input.count);
+    }
+
+    @Test
+    public void streamShouldOnlyReadTheRecordsItNeeds()
+    {
+        final List<KinesisEventRecord> batch = batch();
+        final List<KinesisEventRecord> read = new ArrayList<>();
+        final List<UserRecord> userRecords = RecordDeaggregator
+                .stream(batch.subList(4, batch.size()).stream().peek(read::add)).limit(50)
+                .collect(Collectors.toList());
+        Assert.assertEquals(50, userRecords.size());
+        Assert.assertEquals(2, read.size());
+    }
+
+    /**
+     * Visit the user records of a batch and check them against the ones
+     * ZeroCopyDeaggregator returns.
+     */
+    private static void assertVisitsLikeDeaggregate(List<KinesisEventRecord> batch, List<UserRecord> expected)
+    {
+        final List<UserRecordView> views = new ArrayList<>();
+        final int[] count = new int[1];
+        RecordDeaggregator.forEach(batch, view -> {
+            final UserRecord userRecord = expected.get(count[0]++);
+            Assert.assertEquals(userRecord.getSequenceNumber(), view.getSequenceNumber());
+            Assert.assertEquals(userRecord.getSubSequenceNumber(), view.getSubSequenceNumber());
+            Assert.assertEquals(userRecord.isAggregated(), view.isAggregated());
+            Assert.assertEquals(userRecord.getPartitionKey(), view.getPartitionKey());
+            Assert.assertEquals(userRecord.getExplicitHashKey(), view.getExplicitHashKey());
+            Assert.assertEquals(userRecord.getExplicitHashKey() == null, view.getExplicitHashKeyIndex() < 0);
+            Assert.assertEquals(userRecord.getApproximateArrivalTimestamp(), view.getApproximateArrivalTimestamp());
+            Assert.assertEquals(userRecord.getData(), view.getData());
+            Assert.assertEquals(userRecord.getData().remaining(), view.getDataLength());
+            Assert.assertTrue(view.getBuffer().isReadOnly());
+
+            final byte[] data = new byte[view.getDataLength() + 1];
+            view.copyData(data, 1);
+            Assert.assertEquals(userRecord.getData(), ByteBuffer.wrap(data, 1, view.getDataLength()));
+            if (!views.contains(view)) {
+                views.add(view);
+            }
+        });
+        Assert.assertEquals(expected.size(), count[0]);
+        Assert.assertEquals(1, views.size());
+    }
+
+    @Test
+    public void forEachShouldVisitTheSameUserRecords()
+    {
+        assertVisitsLikeDeaggregate(batch(), ZeroCopyDeaggregator.deaggregateRecords(DeaggregationCorpus.records()));
+
+        final List<Record> compressed = new ArrayList<>();
+        for (Record record : DeaggregationCorpus.records()) {
+            compressed.add(DeaggregationCorpus.compressAggregate(record));
+        }
+        assertVisitsLikeDeaggregate(DeaggregationCorpus.eventRecords(compressed),
+                ZeroCopyDeaggregator.deaggregateRecords(compressed));
+
+        final List<UserRecord> single = new ArrayList<>();
+        RecordDeaggregator.forEach(batch().get(6), view -> single.add(null));
+        Assert.assertEquals(ZeroCopyDeaggregator.deaggregate(batch().get(6)).size(), single.size());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void iteratorShouldThrowWhenExhausted()
+    {
+        final Iterator<UserRecord> userRecords = RecordDeaggregator.iterator(batch().subList(0, 1).iterator());
+        userRecords.next();
+        Assert.assertFalse(userRecords.hasNext());
+        userRecords.next();
+    }
+
+    @Test
+    public void oversizedCompressedRecordShouldPassThroughAsPlain()
+    {
+        // a few kilobytes that would inflate to 17 MB
+        final Record bomb = DeaggregationCorpus.compressAggregate(new Record()
+                .withData(ByteBuffer.allocate(17 * 1024 * 1024)).withPartitionKey("pk").withSequenceNumber("1"));
+        final ByteBuffer compressed = bomb.getData().duplicate();
+        Assert.assertTrue(compressed.remaining() < 64 * 1024);
+
+        final List<UserRecord> userRecords = RecordDeaggregator
+                .deaggregate(DeaggregationCorpus.eventRecords(Collections.singletonList(bomb)));
+        Assert.assertEquals(1, userRecords.size());
+        Assert.assertFalse(userRecords.get(0).isAggregated());
+        Assert.assertEquals(compressed, userRecords.get(0).getData());
+    }
+}
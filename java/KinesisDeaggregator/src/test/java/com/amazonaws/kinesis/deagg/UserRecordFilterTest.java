@@ -0,0 +1,165 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+import com.amazonaws.services.kinesis.model.Record;
+
+public class UserRecordFilterTest
+{
+    private static final BigInteger MAX_HASH_KEY = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+    private static final BigInteger MIDDLE_HASH_KEY = BigInteger.ONE.shiftLeft(127);
+
+    private static BigInteger hashKey(UserRecord userRecord) throws Exception
+    {
+        if (userRecord.getExplicitHashKey() != null) {
+            return new BigInteger(userRecord.getExplicitHashKey());
+        }
+        return new BigInteger(1, MessageDigest.getInstance("MD5")
+                .digest(userRecord.getPartitionKey().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Deaggregate the corpus with a filter, and check the result against
+     * deaggregating all of it and filtering the user records afterwards.
+     */
+    private static void assertFiltersLikeDeaggregateThenFilter(UserRecordFilter filter, String prefix,
+            BigInteger startingHashKey, BigInteger endingHashKey) throws Exception
+    {
+        final List<UserRecord> expected = new ArrayList<>();
+        for (UserRecord userRecord : ZeroCopyDeaggregator.deaggregateRecords(DeaggregationCorpus.records())) {
+            final BigInteger hashKey = hashKey(userRecord);
+            if (userRecord.getPartitionKey().startsWith(prefix) && hashKey.compareTo(startingHashKey) >= 0
+                    && hashKey.compareTo(endingHashKey) <= 0) {
+                expected.add(userRecord);
+            }
+        }
+
+        ZeroCopyDeaggregatorTest.assertSameUserRecords(expected,
+                ZeroCopyDeaggregator.deaggregateRecords(DeaggregationCorpus.records(), filter));
+        ZeroCopyDeaggregatorTest.assertSameUserRecords(expected, ZeroCopyDeaggregator
+                .deaggregate(DeaggregationCorpus.eventRecords(DeaggregationCorpus.records()), filter));
+        ZeroCopyDeaggregatorTest.assertSameUserRecords(expected, new ParallelDeaggregator().withFilter(filter)
+                .deaggregate(DeaggregationCorpus.eventRecords(DeaggregationCorpus.records())));
+
+        // RecordDeaggregator copies the data, like the KCL
+        final List<UserRecord> copied = RecordDeaggregator
+                .deaggregate(DeaggregationCorpus.eventRecords(DeaggregationCorpus.records()), filter);
+        ZeroCopyDeaggregatorTest.assertSameUserRecords(expected, copied);
+        for (UserRecord userRecord : copied) {
+            Assert.assertFalse(userRecord.getData().isReadOnly());
+        }
+
+        final List<String> visited = new ArrayList<>();
+        RecordDeaggregator.forEach(DeaggregationCorpus.eventRecords(DeaggregationCorpus.records()), filter,
+                view -> visited.add(view.getSequenceNumber() + "/" + view.getSubSequenceNumber()));
+        Assert.assertEquals(expected.size(), visited.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).getSequenceNumber() + "/" + expected.get(i).getSubSequenceNumber(),
+                    visited.get(i));
+        }
+    }
+
+    @Test
+    public void shouldFilterByPartitionKey() throws Exception
+    {
+        assertFiltersLikeDeaggregateThenFilter(UserRecordFilter.partitionKeyPrefixes("key-1"), "key-1",
+                BigInteger.ZERO, MAX_HASH_KEY);
+        // corrupted and plain records are filtered by the record's own key
+        assertFiltersLikeDeaggregateThenFilter(UserRecordFilter.partitionKeyPrefixes("aggregate"), "aggregate",
+                BigInteger.ZERO, MAX_HASH_KEY);
+        assertFiltersLikeDeaggregateThenFilter(UserRecordFilter.partitionKeyPrefixes(), "no such key",
+                BigInteger.ZERO, MAX_HASH_KEY);
+    }
+
+    @Test
+    public void shouldFilterByHashKeyRange() throws Exception
+    {
+        assertFiltersLikeDeaggregateThenFilter(UserRecordFilter.hashKeyRange(BigInteger.ZERO, MIDDLE_HASH_KEY), "",
+                BigInteger.ZERO, MIDDLE_HASH_KEY);
+        assertFiltersLikeDeaggregateThenFilter(
+                UserRecordFilter.hashKeyRange(new HashKeyRange().withStartingHashKey(MIDDLE_HASH_KEY.toString())
+                        .withEndingHashKey(MAX_HASH_KEY.toString())),
+                "", MIDDLE_HASH_KEY, MAX_HASH_KEY);
+        assertFiltersLikeDeaggregateThenFilter(UserRecordFilter.hashKeyRange(BigInteger.ZERO, MAX_HASH_KEY), "",
+                BigInteger.ZERO, MAX_HASH_KEY);
+    }
+
+    @Test
+    public void shouldCombineFilters() throws Exception
+    {
+        final UserRecordFilter filter = UserRecordFilter.partitionKeyPrefixes("key-")
+                .and(UserRecordFilter.hashKeyRange(BigInteger.ZERO, MIDDLE_HASH_KEY))
+                .and(UserRecordFilter.hashKeyRange(BigInteger.ONE.shiftLeft(126), MAX_HASH_KEY));
+        assertFiltersLikeDeaggregateThenFilter(filter, "key-", BigInteger.ONE.shiftLeft(126), MIDDLE_HASH_KEY);
+    }
+
+    @Test
+    public void shouldTestEachPartitionKeyOnce()
+    {
+        // record 5 aggregates 100 user records with up to 10 distinct keys
+        final List<Record> records = DeaggregationCorpus.records().subList(5, 6);
+        final Set<String> keys = new HashSet<>();
+        final List<String> tested = new ArrayList<>();
+        for (UserRecord userRecord : ZeroCopyDeaggregator.deaggregateRecords(records)) {
+            keys.add(userRecord.getPartitionKey());
+        }
+
+        final List<UserRecord> userRecords = ZeroCopyDeaggregator.deaggregateRecords(records,
+                UserRecordFilter.partitionKeys(partitionKey -> {
+                    tested.add(partitionKey);
+                    return true;
+                }));
+        Assert.assertEquals(100, userRecords.size());
+        Assert.assertEquals(keys.size(), tested.size());
+        Assert.assertEquals(keys, new HashSet<>(tested));
+    }
+
+    @Test
+    public void shouldSkipAggregatesWithoutMatchingKeys()
+    {
+        // an aggregate whose keys cannot match is skipped before its digest
+        // is checked, so it makes no difference if the digest is corrupted
+        final List<Record> records = DeaggregationCorpus.records();
+        final Record record = records.get(5);
+        final byte[] data = record.getData().array();
+        data[data.length - 1] ^= 1;
+
+        final AggregatedRecordParser parser = new AggregatedRecordParser();
+        Assert.assertTrue(parser.parse(record.getData()));
+        Assert.assertFalse(parser.verifyDigest());
+        final UserRecordFilter filter = UserRecordFilter.partitionKeyPrefixes("no such key");
+        Assert.assertFalse(parser.mayMatch(filter));
+        Assert.assertEquals(ZeroCopyDeaggregator.SKIP, ZeroCopyDeaggregator.prepare(parser, record, filter));
+
+        // unless the corrupted record itself matches, as a plain record
+        Assert.assertEquals(ZeroCopyDeaggregator.PLAIN,
+                ZeroCopyDeaggregator.prepare(parser, record, UserRecordFilter.partitionKeyPrefixes("aggregate")));
+    }
+}
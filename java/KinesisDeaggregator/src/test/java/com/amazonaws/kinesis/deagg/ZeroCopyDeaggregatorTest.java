@@ -0,0 +1,149 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright 2014, Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.kinesis.model.Record;
+
+public class ZeroCopyDeaggregatorTest
+{
+    /**
+     * Check that two lists hold equal user records, and compare the fields
+     * UserRecord.equals() leaves out.
+     */
+    static void assertSameUserRecords(List<UserRecord> expected, List<UserRecord> actual)
+    {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            final UserRecord e = expected.get(i);
+            final UserRecord a = actual.get(i);
+            Assert.assertEquals("user record " + i, e, a);
+            Assert.assertEquals(e.getData(), a.getData());
+            Assert.assertEquals(e.getPartitionKey(), a.getPartitionKey());
+            Assert.assertEquals(e.getExplicitHashKey(), a.getExplicitHashKey());
+            Assert.assertEquals(e.getSequenceNumber(), a.getSequenceNumber());
+            Assert.assertEquals(e.getSubSequenceNumber(), a.getSubSequenceNumber());
+            Assert.assertEquals(e.isAggregated(), a.isAggregated());
+            Assert.assertEquals(e.getApproximateArrivalTimestamp(), a.getApproximateArrivalTimestamp());
+        }
+    }
+
+    @Test
+    public void shouldDeaggregateLikeTheKcl()
+    {
+        final List<Record> kclRecords = DeaggregationCorpus.records();
+        final List<Record> records = DeaggregationCorpus.records();
+        assertSameUserRecords(UserRecord.deaggregate(kclRecords), ZeroCopyDeaggregator.deaggregateRecords(records));
+
+        // record by record as well, with a new parser for each
+        for (int i = 0; i < records.size(); i++) {
+            assertSameUserRecords(UserRecord.deaggregate(DeaggregationCorpus.records().subList(i, i + 1)),
+                    ZeroCopyDeaggregator.deaggregate(DeaggregationCorpus.records().get(i)));
+        }
+    }
+
+    @Test
+    public void shouldIterateLazilyLikeDeaggregate()
+    {
+        final List<UserRecord> expected = ZeroCopyDeaggregator.deaggregateRecords(DeaggregationCorpus.records());
+
+        final List<UserRecord> iterated = new ArrayList<>();
+        ZeroCopyDeaggregator.iterator(DeaggregationCorpus.eventRecords(DeaggregationCorpus.records()).iterator())
+                .forEachRemaining(iterated::add);
+        assertSameUserRecords(expected, iterated);
+
+        assertSameUserRecords(expected,
+                ZeroCopyDeaggregator.stream(DeaggregationCorpus.eventRecords(DeaggregationCorpus.records()).stream())
+                        .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void shouldSliceTheInputWithoutMovingIt()
+    {
+        final List<Record> records = DeaggregationCorpus.records();
+        final List<ByteBuffer> data = new ArrayList<>();
+        for (Record record : records) {
+            data.add(record.getData().duplicate());
+        }
+
+        final List<UserRecord> userRecords = ZeroCopyDeaggregator.deaggregateRecords(records);
+        for (int i = 0; i < records.size(); i++) {
+            Assert.assertEquals(data.get(i).position(), records.get(i).getData().position());
+            Assert.assertEquals(data.get(i).limit(), records.get(i).getData().limit());
+        }
+
+        int aggregated = 0;
+        for (UserRecord userRecord : userRecords) {
+            if (userRecord.isAggregated()) {
+                Assert.assertTrue(userRecord.getData().isReadOnly());
+                aggregated++;
+            }
+        }
+        Assert.assertTrue(aggregated > 300);
+
+        // the data of a user record is a view of the record it came from
+        final Record record = records.get(5);
+        final UserRecord userRecord = ZeroCopyDeaggregator.deaggregate(record).get(0);
+        final ByteBuffer userData = userRecord.getData();
+        Assert.assertTrue(userData.remaining() > 0);
+        final byte before = userData.get(0);
+        final byte[] array = record.getData().array();
+        for (int i = 0; i < array.length; i++) {
+            array[i] = (byte) ~array[i];
+        }
+        Assert.assertEquals((byte) ~before, userData.get(0));
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void userRecordDataShouldBeReadOnly()
+    {
+        final UserRecord userRecord = ZeroCopyDeaggregator.deaggregate(DeaggregationCorpus.records().get(5)).get(0);
+        Assert.assertTrue(userRecord.isAggregated());
+        userRecord.getData().array();
+    }
+
+    @Test
+    public void shouldDecompressLikeRecordDeaggregator()
+    {
+        final List<Record> records = new ArrayList<>();
+        for (Record record : DeaggregationCorpus.records()) {
+            records.add(DeaggregationCorpus.compressAggregate(record));
+        }
+
+        assertSameUserRecords(RecordDeaggregator.deaggregate(DeaggregationCorpus.eventRecords(records)),
+                ZeroCopyDeaggregator.deaggregateRecords(records));
+
+        // the user records of aggregated records are still the KCL's
+        final List<UserRecord> userRecords = ZeroCopyDeaggregator.deaggregateRecords(records);
+        final List<UserRecord> kclUserRecords = UserRecord.deaggregate(DeaggregationCorpus.records());
+        Assert.assertEquals(kclUserRecords.size(), userRecords.size());
+        for (int i = 0; i < userRecords.size(); i++) {
+            if (userRecords.get(i).isAggregated()) {
+                Assert.assertEquals(kclUserRecords.get(i), userRecords.get(i));
+            }
+        }
+    }
+}
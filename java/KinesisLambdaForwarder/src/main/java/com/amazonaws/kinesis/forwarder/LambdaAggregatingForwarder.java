@@ -23,6 +23,7 @@ import com.amazonaws.Protocol;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.kinesis.agg.AggRecord;
+import com.amazonaws.kinesis.agg.PutRecordsBatcher;
 import com.amazonaws.kinesis.agg.RecordAggregator;
 import com.amazonaws.kinesis.deagg.RecordDeaggregator;
 import com.amazonaws.regions.Region;
@@ -30,8 +31,7 @@ import com.amazonaws.regions.Regions;
 import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
 import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
-import com.amazonaws.services.kinesis.model.PutRecordRequest;
-import com.amazonaws.services.kinesis.model.PutRecordResult;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
@@ -53,6 +53,10 @@ public class LambdaAggregatingForwarder implements RequestHandler<KinesisEvent,
     
     private final AmazonKinesis kinesisForwarder;
     private final RecordAggregator aggregator;
+    private final PutRecordsBatcher batcher;
+    
+    //The logger of the invocation currently being handled
+    private LambdaLogger logger;
 
     /**
      * One-time initialization of resources for this Lambda function.
@@ -82,11 +86,25 @@ public class LambdaAggregatingForwarder implements RequestHandler<KinesisEvent,
         
         this.kinesisForwarder = new AmazonKinesisClient(provider, kinesisConfig);
         this.kinesisForwarder.setRegion(Region.getRegion(DESTINATION_STREAM_REGION));
+        
+        //Aggregated records are sent up to 500 at a time with PutRecords; records the destination
+        //stream rejects are retried a few times before they are logged as failed
+        this.batcher = new PutRecordsBatcher(this.kinesisForwarder, DESTINATION_STREAM_NAME, this::logFailedRecord);
+    }
+    
+    /**
+     * Log an aggregated record that could not be forwarded to the destination stream.
+     */
+    private void logFailedRecord(PutRecordsRequestEntry entry, String errorCode, String errorMessage)
+    {
+        this.logger.log("ERROR: Failed to forward aggregated record with EHK " + entry.getExplicitHashKey()
+                + " to destination stream: " + errorCode + " " + errorMessage);
     }
     
     /**
-     * Check if the input aggregated record is complete and if so, forward it to the
-     * configured destination Kinesis stream.
+     * Check if the input aggregated record is complete and if so, queue it for forwarding
+     * to the configured destination Kinesis stream. The record is sent once a full
+     * PutRecords request is waiting or at the end of the invocation.
      * 
      * @param logger The LambdaLogger from the input Context
      * @param aggRecord The aggregated record to transmit or null if the record isn't full yet.
@@ -99,23 +117,15 @@ public class LambdaAggregatingForwarder implements RequestHandler<KinesisEvent,
         }
         
         logger.log("Forwarding " + aggRecord.getNumUserRecords() + " as an aggregated record.");
-        
-        PutRecordRequest request = aggRecord.toPutRecordRequest(DESTINATION_STREAM_NAME);
-        try
-        {
-            PutRecordResult result = this.kinesisForwarder.putRecord(request);
-            logger.log("Successfully published record Seq #" + result.getSequenceNumber() + " to shard " + result.getShardId());
-        }
-        catch(Exception e)
-        {
-            logger.log("ERROR: Failed to forward Kinesis records to destination stream: " + e.getMessage());
-            return;
-        }
+        this.batcher.add(aggRecord);
     }
     
     public Void handleRequest(KinesisEvent input, Context context)
     {
         LambdaLogger logger = context.getLogger();
+        this.logger = logger;
+        long sentBefore = this.batcher.getSentRecordCount();
+        long requestsBefore = this.batcher.getRequestCount();
         logger.log("Received " + input.getRecords().size() + " raw Kinesis records.");
         
         try
@@ -140,6 +150,9 @@ public class LambdaAggregatingForwarder implements RequestHandler<KinesisEvent,
             }
             
             checkAndForwardRecords(logger, this.aggregator.clearAndGet());
+            this.batcher.flush();
+            logger.log("Successfully published " + (this.batcher.getSentRecordCount() - sentBefore)
+                    + " aggregated records in " + (this.batcher.getRequestCount() - requestsBefore) + " PutRecords requests.");
         } 
         catch (Exception e) 
         {
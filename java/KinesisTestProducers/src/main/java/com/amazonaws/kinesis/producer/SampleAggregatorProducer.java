@@ -20,6 +20,8 @@ import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.kinesis.agg.AggRecord;
+import com.amazonaws.kinesis.agg.PutRecordsBatcher;
+import com.amazonaws.kinesis.agg.PutRecordsBatcherConfig;
 import com.amazonaws.kinesis.agg.RecordAggregator;
 import com.amazonaws.services.kinesis.AmazonKinesis;
 
@@ -28,10 +30,10 @@ import com.amazonaws.services.kinesis.AmazonKinesis;
  */
 public class SampleAggregatorProducer {
 	/**
-	 * Send an aggregated record to Kinesis using the specified producer and
-	 * stream name.
+	 * Queue an aggregated record for transmission to Kinesis. The batcher
+	 * sends up to 500 aggregated records in a single PutRecords request.
 	 */
-	private static void sendRecord(AmazonKinesis producer, String streamName, AggRecord aggRecord) {
+	private static void sendRecord(PutRecordsBatcher batcher, AggRecord aggRecord) {
 		if (aggRecord == null || aggRecord.getNumUserRecords() == 0) {
 			return;
 		}
@@ -39,40 +41,42 @@ public class SampleAggregatorProducer {
 		System.out.println("Submitting record EHK=" + aggRecord.getExplicitHashKey() + " NumRecords="
 				+ aggRecord.getNumUserRecords() + " NumBytes=" + aggRecord.getSizeBytes());
 		try {
-			producer.putRecord(aggRecord.toPutRecordRequest(streamName));
+			batcher.add(aggRecord);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		System.out.println("Completed record EHK=" + aggRecord.getExplicitHashKey());
 	}
 
 	/**
 	 * Flush out and send any remaining records from the aggregator and then
 	 * wait for all pending transmissions to finish.
 	 */
-	private static void flushAndFinish(AmazonKinesis producer, String streamName, RecordAggregator aggregator) {
+	private static void flushAndFinish(PutRecordsBatcher batcher, RecordAggregator aggregator) {
 		// Do one final flush & send to get any remaining records that haven't
 		// triggered a callback yet
 		AggRecord finalRecord = aggregator.clearAndGet();
 		ForkJoinPool.commonPool().execute(() -> {
-			sendRecord(producer, streamName, finalRecord);
+			sendRecord(batcher, finalRecord);
 		});
 
-		// Wait up to 2 minutes for all the publisher threads to finish
+		// Wait up to 2 minutes for all the publisher threads to finish, then
+		// send the last partially filled batch
 		System.out.println("Waiting for all transmissions to complete...");
 		ForkJoinPool.commonPool().awaitQuiescence(2, TimeUnit.MINUTES);
-		System.out.println("Transmissions complete.");
+		batcher.close();
+		System.out.println("Transmissions complete. Sent=" + batcher.getSentRecordCount() + " Failed="
+				+ batcher.getFailedRecordCount() + " Requests=" + batcher.getRequestCount());
 	}
 
 	/**
 	 * Use the callback mechanism and a lambda function to send aggregated
 	 * records to Kinesis.
 	 */
-	private static void sendViaCallback(AmazonKinesis producer, String streamName, RecordAggregator aggregator) {
+	private static void sendViaCallback(PutRecordsBatcher batcher, RecordAggregator aggregator) {
 		// add a lambda callback to be called when a full record is ready to
 		// transmit
 		aggregator.onRecordComplete((aggRecord) -> {
-			sendRecord(producer, streamName, aggRecord);
+			sendRecord(batcher, aggRecord);
 		});
 
 		System.out.println("Creating " + ProducerConfig.RECORDS_TO_TRANSMIT + " records...");
@@ -89,7 +93,7 @@ public class SampleAggregatorProducer {
             }
 		}
 
-		flushAndFinish(producer, streamName, aggregator);
+		flushAndFinish(batcher, aggregator);
 	}
 
 	/**
@@ -97,7 +101,7 @@ public class SampleAggregatorProducer {
 	 * Kinesis.
 	 */
 	@SuppressWarnings("unused")
-	private static void sendViaBatch(AmazonKinesis producer, String streamName, RecordAggregator aggregator) {
+	private static void sendViaBatch(PutRecordsBatcher batcher, RecordAggregator aggregator) {
 		System.out.println("Creating " + ProducerConfig.RECORDS_TO_TRANSMIT + " records...");
 		for (int i = 1; i <= ProducerConfig.RECORDS_TO_TRANSMIT; i++) {
 			String pk = ProducerUtils.randomPartitionKey();
@@ -110,7 +114,7 @@ public class SampleAggregatorProducer {
                 final AggRecord aggRecord = aggregator.addUserRecord(pk, ehk, data);
                 if (aggRecord != null) {
                     ForkJoinPool.commonPool().execute(() -> {
-                        sendRecord(producer, streamName, aggRecord);
+                        sendRecord(batcher, aggRecord);
                     });
                 }
             }
@@ -120,7 +124,7 @@ public class SampleAggregatorProducer {
             }
 		}
 
-		flushAndFinish(producer, streamName, aggregator);
+		flushAndFinish(batcher, aggregator);
 	}
 
 	public static void main(String[] args) {
@@ -133,8 +137,12 @@ public class SampleAggregatorProducer {
 		String regionName = args[1];
 		final AmazonKinesis producer = ProducerUtils.getKinesisProducer(regionName);
 		final RecordAggregator aggregator = new RecordAggregator();
+		final PutRecordsBatcher batcher = new PutRecordsBatcher(producer, streamName,
+				(entry, errorCode, errorMessage) -> System.err.println("Failed to send record EHK="
+						+ entry.getExplicitHashKey() + ": " + errorCode + " " + errorMessage),
+				new PutRecordsBatcherConfig().withMaxBatchDelayMillis(100));
 
-		sendViaCallback(producer, streamName, aggregator);
-		// sendViaBatch(producer, streamName, aggregator);
+		sendViaCallback(batcher, aggregator);
+		// sendViaBatch(batcher, aggregator);
 	}
 }